@@ -29,6 +29,18 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // Lets JVM unit tests run code that logs through android.util.Log
+        unitTests.isReturnDefaultValues = true
+        // Robolectric tests load the app's resources and manifest
+        unitTests.isIncludeAndroidResources = true
+        // ./gradlew test -Dimu.stressSeconds=300 for a long SampleRingBufferStressTest run,
+        // -Dimu.zipScaling=true for the ExportBenchmarkTest thread scaling run
+        unitTests.all { test ->
+            System.getProperty("imu.stressSeconds")?.let { test.systemProperty("imu.stressSeconds", it) }
+            System.getProperty("imu.zipScaling")?.let { test.systemProperty("imu.zipScaling", it) }
+        }
+    }
 }
 
 dependencies {
@@ -37,12 +49,15 @@ dependencies {
     implementation(libs.activity)
     implementation(libs.constraintlayout)
     testImplementation(libs.junit)
+    testImplementation(libs.robolectric)
     androidTestImplementation(libs.ext.junit)
     androidTestImplementation(libs.espresso.core)
     implementation("com.github.PhilJay:MPAndroidChart:v3.1.0")
     implementation("androidx.viewpager2:viewpager2:1.0.0")
     implementation("com.google.android.material:material:1.9.0")
     implementation ("com.squareup.okhttp3:okhttp:4.10.0")
+    testImplementation("com.squareup.okhttp3:mockwebserver:4.10.0")
+    testImplementation("com.squareup.okhttp3:okhttp-tls:4.10.0")
 
 
 }
\ No newline at end of file
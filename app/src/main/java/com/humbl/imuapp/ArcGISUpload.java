@@ -2,32 +2,36 @@ package com.humbl.imuapp;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLEncoder;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
 
+import okhttp3.FormBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
 public class ArcGISUpload {
 
     private static final String UPLOAD_URL = "https://services2.arcgis.com/NlsizNmbMFiinWw4/arcgis/rest/services/FallEvents/FeatureServer/0/addFeatures";
 
+    // Upload queue destination of the features
+    public static final String DESTINATION = "arcgis";
+
     /**
-     * Uploads a fall or near-fall event to ArcGIS with location and timestamp.
+     * Queues a fall or near-fall event for upload to ArcGIS with location and timestamp.
      *
+     * @param queue          upload queue with the DESTINATION added (see post)
      * @param eventType      "Fall" or "Near-fall"
      * @param eventTimestamp timestamp in milliseconds
      * @param latitude       decimal degrees
      * @param longitude      decimal degrees
      */
-    public static void uploadEvent(String eventType, long eventTimestamp, double latitude, double longitude) {
+    public static void uploadEvent(UploadQueue queue, String eventType, long eventTimestamp,
+                                   double latitude, double longitude) {
 
         Log.d("ArcGISUploader", "uploadEvent() called with type=" + eventType);
 
@@ -50,43 +54,28 @@ public class ArcGISUpload {
                 "\"spatialReference\": { \"wkid\": 4326 } } } ], " +
                 "\"f\": \"json\" }";
 
-        new Thread(() -> {
-            try {
-                URL url = new URL(UPLOAD_URL);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-                conn.setDoOutput(true);
-
-                String payload;
-                try {
-                    payload = "features=" + URLEncoder.encode(json, "UTF-8") + "&f=json";
-                } catch (UnsupportedEncodingException e) {
-                    Log.e("ArcGISUploader", "Encoding error", e);
-                    return;
-                }
-
-                OutputStream os = conn.getOutputStream();
-                os.write(payload.getBytes());
-                os.flush();
-                os.close();
-
-                int responseCode = conn.getResponseCode();
-                InputStream is = conn.getInputStream();
-                BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-                StringBuilder response = new StringBuilder();
-                String line;
-
-                while ((line = reader.readLine()) != null) {
-                    response.append(line);
-                }
-
-                Log.d("ArcGISUploader", "Upload response (" + responseCode + "): " + response.toString());
+        try {
+            queue.enqueue(DESTINATION, null, false, Collections.singletonMap("features", json));
+        } catch (IOException e) {
+            Log.e("ArcGISUploader", "Could not queue the event for upload", e);
+        }
+    }
 
-            } catch (Exception e) {
-                Log.e("ArcGISUploader", "Error uploading to ArcGIS", e);
+    // Send the features of a queued event, on the calling thread; throws if they did not go through
+    public static void post(String json) throws IOException {
+        RequestBody payload = new FormBody.Builder()
+                .add("features", json)
+                .add("f", "json")
+                .build();
+        Request request = new Request.Builder().url(UPLOAD_URL).post(payload).build();
+
+        try (Response response = HttpClients.shared().newCall(request).execute()) {
+            int responseCode = response.code();
+            if (!response.isSuccessful()) {
+                throw new IOException("ArcGIS upload failed with response code: " + responseCode);
             }
-        }).start();
+            Log.d("ArcGISUploader", "Upload response (" + responseCode + "): " + response.body().string());
+        }
     }
 
     /**
@@ -0,0 +1,472 @@
+package com.humbl.imuapp;
+
+import java.math.BigInteger;
+
+/**
+ * Writes longs, floats and doubles as ASCII straight into a byte array, without creating any
+ * objects. By default floats and doubles use the shortest text that parses back to exactly the
+ * same value (the Ryu algorithm), laid out like Float.toString / Double.toString. A fixed number
+ * of decimals can be configured instead for smaller files when full precision is not needed.
+ *
+ * Every write method takes the buffer and the position to write at and returns the position
+ * after the written text. Callers must leave room for MAX_CHARS bytes per value.
+ */
+public final class AsciiFormatter {
+    public static final int SHORTEST = -1;
+    public static final int MAX_CHARS = 32;
+
+    private static final byte[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+    private static final byte[] LONG_MIN = String.valueOf(Long.MIN_VALUE).getBytes();
+    private static final long[] POW10 = new long[19];
+
+    // Ryu lookup tables, built once from exact powers of five
+    private static final int FLOAT_POW5_INV_BITCOUNT = 59;
+    private static final int FLOAT_POW5_BITCOUNT = 61;
+    private static final long[] FLOAT_POW5_INV_SPLIT = new long[31];
+    private static final long[] FLOAT_POW5_SPLIT = new long[47];
+    private static final int DOUBLE_POW5_INV_BITCOUNT = 125;
+    private static final int DOUBLE_POW5_BITCOUNT = 125;
+    private static final long[][] DOUBLE_POW5_INV_SPLIT = new long[342][2];
+    private static final long[][] DOUBLE_POW5_SPLIT = new long[326][2];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) POW10[i] = POW10[i - 1] * 10;
+
+        BigInteger mask64 = BigInteger.ONE.shiftLeft(64).subtract(BigInteger.ONE);
+        for (int i = 0; i < DOUBLE_POW5_INV_SPLIT.length; i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int pow5len = pow.bitLength();
+            if (i < FLOAT_POW5_SPLIT.length) {
+                FLOAT_POW5_SPLIT[i] = shift(pow, pow5len - FLOAT_POW5_BITCOUNT).longValue();
+            }
+            if (i < FLOAT_POW5_INV_SPLIT.length) {
+                FLOAT_POW5_INV_SPLIT[i] = BigInteger.ONE.shiftLeft(pow5len - 1 + FLOAT_POW5_INV_BITCOUNT)
+                        .divide(pow).add(BigInteger.ONE).longValue();
+            }
+            if (i < DOUBLE_POW5_SPLIT.length) {
+                BigInteger split = shift(pow, pow5len - DOUBLE_POW5_BITCOUNT);
+                DOUBLE_POW5_SPLIT[i][0] = split.and(mask64).longValue();
+                DOUBLE_POW5_SPLIT[i][1] = split.shiftRight(64).longValue();
+            }
+            BigInteger inv = BigInteger.ONE.shiftLeft(pow5len - 1 + DOUBLE_POW5_INV_BITCOUNT).divide(pow).add(BigInteger.ONE);
+            DOUBLE_POW5_INV_SPLIT[i][0] = inv.and(mask64).longValue();
+            DOUBLE_POW5_INV_SPLIT[i][1] = inv.shiftRight(64).longValue();
+        }
+    }
+
+    private final int decimals;
+    // Result of the last shortest-digit conversion
+    private long digits;
+    private int exponent;
+
+    // Shortest round-trip output for floats and doubles
+    public AsciiFormatter() {
+        this(SHORTEST);
+    }
+
+    // decimals: digits after the decimal point (0-9), or SHORTEST
+    public AsciiFormatter(int decimals) {
+        if (decimals != SHORTEST && (decimals < 0 || decimals > 9)) {
+            throw new IllegalArgumentException("decimals must be SHORTEST or 0-9: " + decimals);
+        }
+        this.decimals = decimals;
+    }
+
+    public int getDecimals() {
+        return decimals;
+    }
+
+    public static int writeLong(long value, byte[] buf, int pos) {
+        if (value == Long.MIN_VALUE) {
+            System.arraycopy(LONG_MIN, 0, buf, pos, LONG_MIN.length);
+            return pos + LONG_MIN.length;
+        }
+        if (value < 0) {
+            buf[pos++] = '-';
+            value = -value;
+        }
+        return writeDigits(value, decimalLength(value), buf, pos);
+    }
+
+    public int writeFloat(float value, byte[] buf, int pos) {
+        if (Float.isNaN(value) || Float.isInfinite(value) || value == 0f) {
+            return writeSpecial(value, Float.floatToRawIntBits(value) < 0, buf, pos);
+        }
+        if (decimals != SHORTEST && Math.abs(value) < 1e9f) {
+            return writeFixed(value, buf, pos);
+        }
+        int bits = Float.floatToRawIntBits(value);
+        if (bits < 0) buf[pos++] = '-';
+        shortestFloat(bits & 0x7FFFFF, (bits >>> 23) & 0xFF);
+        return writeDecimal(buf, pos);
+    }
+
+    public int writeDouble(double value, byte[] buf, int pos) {
+        if (Double.isNaN(value) || Double.isInfinite(value) || value == 0d) {
+            return writeSpecial(value, Double.doubleToRawLongBits(value) < 0, buf, pos);
+        }
+        if (decimals != SHORTEST && Math.abs(value) < 1e9) {
+            return writeFixed(value, buf, pos);
+        }
+        long bits = Double.doubleToRawLongBits(value);
+        if (bits < 0) buf[pos++] = '-';
+        shortestDouble(bits & 0xFFFFFFFFFFFFFL, (int) ((bits >>> 52) & 0x7FF));
+        return writeDecimal(buf, pos);
+    }
+
+    private static int writeSpecial(double value, boolean negative, byte[] buf, int pos) {
+        if (Double.isNaN(value)) {
+            System.arraycopy(NAN, 0, buf, pos, NAN.length);
+            return pos + NAN.length;
+        }
+        if (negative) buf[pos++] = '-';
+        if (Double.isInfinite(value)) {
+            System.arraycopy(INFINITY, 0, buf, pos, INFINITY.length);
+            return pos + INFINITY.length;
+        }
+        buf[pos++] = '0';
+        buf[pos++] = '.';
+        buf[pos++] = '0';
+        return pos;
+    }
+
+    // Round to the configured number of decimals (values below 1e9, so the scaled value fits a long)
+    private int writeFixed(double value, byte[] buf, int pos) {
+        long scaled = Math.round(Math.abs(value) * POW10[decimals]);
+        if (value < 0 && scaled != 0) buf[pos++] = '-';
+        long whole = scaled / POW10[decimals];
+        pos = writeDigits(whole, decimalLength(whole), buf, pos);
+        if (decimals > 0) {
+            buf[pos++] = '.';
+            pos = writeDigits(scaled - whole * POW10[decimals], decimals, buf, pos);
+        }
+        return pos;
+    }
+
+    // Lay out digits * 10^exponent like Float.toString: plain between 1e-3 and 1e7, otherwise scientific
+    private int writeDecimal(byte[] buf, int pos) {
+        int length = decimalLength(digits);
+        int scientific = exponent + length - 1;
+        if (scientific >= -3 && scientific < 7) {
+            if (scientific < 0) {
+                buf[pos++] = '0';
+                buf[pos++] = '.';
+                for (int i = -1; i > scientific; i--) buf[pos++] = '0';
+                return writeDigits(digits, length, buf, pos);
+            }
+            if (exponent >= 0) {
+                pos = writeDigits(digits, length, buf, pos);
+                for (int i = 0; i < exponent; i++) buf[pos++] = '0';
+                buf[pos++] = '.';
+                buf[pos++] = '0';
+                return pos;
+            }
+            // Split the digits around the decimal point
+            int fraction = -exponent;
+            long whole = digits / POW10[fraction];
+            pos = writeDigits(whole, length - fraction, buf, pos);
+            buf[pos++] = '.';
+            return writeDigits(digits - whole * POW10[fraction], fraction, buf, pos);
+        }
+
+        long lead = digits / POW10[length - 1];
+        buf[pos++] = DIGITS[(int) lead];
+        buf[pos++] = '.';
+        if (length > 1) {
+            pos = writeDigits(digits - lead * POW10[length - 1], length - 1, buf, pos);
+        } else {
+            buf[pos++] = '0';
+        }
+        buf[pos++] = 'E';
+        return writeLong(scientific, buf, pos);
+    }
+
+    // Write exactly count digits of a non-negative value, zero padded on the left
+    private static int writeDigits(long value, int count, byte[] buf, int pos) {
+        int end = pos + count;
+        for (int i = end - 1; i >= pos; i--) {
+            buf[i] = DIGITS[(int) (value % 10)];
+            value /= 10;
+        }
+        return end;
+    }
+
+    private static int decimalLength(long value) {
+        int length = 1;
+        while (length < 19 && value >= POW10[length]) length++;
+        return length;
+    }
+
+    // ---- Ryu, float (32-bit) ----
+
+    private void shortestFloat(int ieeeMantissa, int ieeeExponent) {
+        int e2;
+        int m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - 127 - 23 - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - 127 - 23 - 2;
+            m2 = (1 << 23) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        int mv = 4 * m2;
+        int mp = 4 * m2 + 2;
+        int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+        int mm = 4 * m2 - 1 - mmShift;
+
+        int vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        int lastRemovedDigit = 0;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2);
+            e10 = q;
+            int k = FLOAT_POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            vr = mulShift32(mv, FLOAT_POW5_INV_SPLIT[q], i);
+            vp = mulShift32(mp, FLOAT_POW5_INV_SPLIT[q], i);
+            vm = mulShift32(mm, FLOAT_POW5_INV_SPLIT[q], i);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                // The last removed digit is needed for rounding when the loop below removes nothing
+                int l = FLOAT_POW5_INV_BITCOUNT + pow5bits(q - 1) - 1;
+                lastRemovedDigit = mulShift32(mv, FLOAT_POW5_INV_SPLIT[q - 1], -e2 + q - 1 + l) % 10;
+            }
+            if (q <= 9) {
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = pow5Factor(mv) >= q;
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = pow5Factor(mm) >= q;
+                } else if (pow5Factor(mp) >= q) {
+                    vp--;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5bits(i) - FLOAT_POW5_BITCOUNT;
+            int j = q - k;
+            vr = mulShift32(mv, FLOAT_POW5_SPLIT[i], j);
+            vp = mulShift32(mp, FLOAT_POW5_SPLIT[i], j);
+            vm = mulShift32(mm, FLOAT_POW5_SPLIT[i], j);
+            if (q != 0 && (vp - 1) / 10 <= vm / 10) {
+                j = q - 1 - (pow5bits(i + 1) - FLOAT_POW5_BITCOUNT);
+                lastRemovedDigit = mulShift32(mv, FLOAT_POW5_SPLIT[i + 1], j) % 10;
+            }
+            if (q <= 1) {
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 31) {
+                vrIsTrailingZeros = (mv & ((1 << (q - 1)) - 1)) == 0;
+            }
+        }
+
+        int removed = 0;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = vr % 10;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = vr % 10;
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                lastRemovedDigit = 4; // Round half to even
+            }
+            digits = vr + (((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5) ? 1 : 0);
+        } else {
+            while (vp / 10 > vm / 10) {
+                lastRemovedDigit = vr % 10;
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            digits = vr + ((vr == vm || lastRemovedDigit >= 5) ? 1 : 0);
+        }
+        exponent = e10 + removed;
+    }
+
+    private static int mulShift32(int m, long factor, int shift) {
+        long factorLo = factor & 0xFFFFFFFFL;
+        long factorHi = factor >>> 32;
+        long bits0 = m * factorLo;
+        long bits1 = m * factorHi;
+        long sum = (bits0 >>> 32) + bits1;
+        return (int) (sum >>> (shift - 32));
+    }
+
+    // ---- Ryu, double (64-bit) ----
+
+    private void shortestDouble(long ieeeMantissa, int ieeeExponent) {
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - 1023 - 52 - 2;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - 1023 - 52 - 2;
+            m2 = (1L << 52) | ieeeMantissa;
+        }
+        boolean acceptBounds = (m2 & 1) == 0;
+
+        long mv = 4 * m2;
+        int mmShift = (ieeeMantissa != 0 || ieeeExponent <= 1) ? 1 : 0;
+
+        long vr, vp, vm;
+        int e10;
+        boolean vmIsTrailingZeros = false;
+        boolean vrIsTrailingZeros = false;
+        if (e2 >= 0) {
+            int q = log10Pow2(e2) - (e2 > 3 ? 1 : 0);
+            e10 = q;
+            int k = DOUBLE_POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            int i = -e2 + q + k;
+            long[] mul = DOUBLE_POW5_INV_SPLIT[q];
+            vr = mulShift64(4 * m2, mul, i);
+            vp = mulShift64(4 * m2 + 2, mul, i);
+            vm = mulShift64(4 * m2 - 1 - mmShift, mul, i);
+            if (q <= 21) {
+                if (mv % 5 == 0) {
+                    vrIsTrailingZeros = pow5Factor(mv) >= q;
+                } else if (acceptBounds) {
+                    vmIsTrailingZeros = pow5Factor(mv - 1 - mmShift) >= q;
+                } else if (pow5Factor(mv + 2) >= q) {
+                    vp--;
+                }
+            }
+        } else {
+            int q = log10Pow5(-e2) - (-e2 > 1 ? 1 : 0);
+            e10 = q + e2;
+            int i = -e2 - q;
+            int k = pow5bits(i) - DOUBLE_POW5_BITCOUNT;
+            int j = q - k;
+            long[] mul = DOUBLE_POW5_SPLIT[i];
+            vr = mulShift64(4 * m2, mul, j);
+            vp = mulShift64(4 * m2 + 2, mul, j);
+            vm = mulShift64(4 * m2 - 1 - mmShift, mul, j);
+            if (q <= 1) {
+                vrIsTrailingZeros = true;
+                if (acceptBounds) {
+                    vmIsTrailingZeros = mmShift == 1;
+                } else {
+                    vp--;
+                }
+            } else if (q < 63) {
+                vrIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        int removed = 0;
+        int lastRemovedDigit = 0;
+        if (vmIsTrailingZeros || vrIsTrailingZeros) {
+            while (vp / 10 > vm / 10) {
+                vmIsTrailingZeros &= vm % 10 == 0;
+                vrIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            if (vmIsTrailingZeros) {
+                while (vm % 10 == 0) {
+                    vrIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int) (vr % 10);
+                    vr /= 10;
+                    vp /= 10;
+                    vm /= 10;
+                    removed++;
+                }
+            }
+            if (vrIsTrailingZeros && lastRemovedDigit == 5 && vr % 2 == 0) {
+                lastRemovedDigit = 4; // Round half to even
+            }
+            digits = vr + (((vr == vm && (!acceptBounds || !vmIsTrailingZeros)) || lastRemovedDigit >= 5) ? 1 : 0);
+        } else {
+            while (vp / 10 > vm / 10) {
+                lastRemovedDigit = (int) (vr % 10);
+                vr /= 10;
+                vp /= 10;
+                vm /= 10;
+                removed++;
+            }
+            digits = vr + ((vr == vm || lastRemovedDigit >= 5) ? 1 : 0);
+        }
+        exponent = e10 + removed;
+    }
+
+    // (m * mul) >> j for a 55-bit m and a 128-bit mul, with 64 < j < 128
+    private static long mulShift64(long m, long[] mul, int j) {
+        long high1 = multiplyHighUnsigned(m, mul[1]);
+        long low1 = m * mul[1];
+        long high0 = multiplyHighUnsigned(m, mul[0]);
+        long sum = high0 + low1;
+        if (Long.compareUnsigned(sum, high0) < 0) high1++;
+        int dist = j - 64;
+        return (high1 << (64 - dist)) | (sum >>> dist);
+    }
+
+    private static long multiplyHighUnsigned(long x, long y) {
+        long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+        long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+        long p00 = x0 * y0;
+        long p01 = x0 * y1;
+        long p10 = x1 * y0;
+        long p11 = x1 * y1;
+        long middle = (p00 >>> 32) + (p01 & 0xFFFFFFFFL) + (p10 & 0xFFFFFFFFL);
+        return p11 + (p01 >>> 32) + (p10 >>> 32) + (middle >>> 32);
+    }
+
+    // ---- Shared helpers ----
+
+    private static BigInteger shift(BigInteger value, int rightShift) {
+        return rightShift >= 0 ? value.shiftRight(rightShift) : value.shiftLeft(-rightShift);
+    }
+
+    // ceil(log2(5^e)) for e > 0, 1 for e == 0
+    private static int pow5bits(int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    // floor(log10(2^e))
+    private static int log10Pow2(int e) {
+        return (e * 78913) >>> 18;
+    }
+
+    // floor(log10(5^e))
+    private static int log10Pow5(int e) {
+        return (e * 732923) >>> 20;
+    }
+
+    private static int pow5Factor(long value) {
+        int count = 0;
+        while (value > 0 && value % 5 == 0) {
+            value /= 5;
+            count++;
+        }
+        return count;
+    }
+}
@@ -1,50 +1,19 @@
 package com.humbl.imuapp;
 
-import android.util.Log;
-import java.io.*;
-import java.net.*;
+import java.io.File;
 
 public class AzureStorage {
+    private static final BlockBlobUploader uploader = new BlockBlobUploader(new BlockBlobUploader.Config());
 
     public static boolean uploadCsvToBlob(String filePath, String sasUrl) {
-        try {
-            File file = new File(filePath);
-            FileInputStream fileInputStream = new FileInputStream(file);
-
-            URL url = new URL(sasUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-
-            connection.setDoOutput(true);
-            connection.setRequestMethod("PUT");
-            connection.setRequestProperty("x-ms-blob-type", "BlockBlob");
-            connection.setRequestProperty("Content-Length", String.valueOf(file.length()));
-
-            OutputStream out = connection.getOutputStream();
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-
-            while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                out.write(buffer, 0, bytesRead);
-            }
-
-            fileInputStream.close();
-            out.flush();
-            out.close();
-
-            int responseCode = connection.getResponseCode();
-            connection.disconnect();
-            if (responseCode == 201) {
-                Log.d("AzureStorage", "✅ Upload successful");
-                return true;
-            } else {
-                Log.e("AzureStorage", "❌ Upload failed. Code: " + responseCode);
-                return false;
-            }
+        return uploadCsvToBlob(filePath, sasUrl, null);
+    }
 
-        } catch (Exception e) {
-            Log.e("AzureStorage", "❌ Upload failed", e);
-            return false;
-        }
+    // Files larger than a block go up in blocks; the blocks already sent are kept in stateDirectory,
+    // so calling this again after a failure only sends the rest (null to start over every time)
+    public static boolean uploadCsvToBlob(String filePath, String sasUrl, File stateDirectory) {
+        File file = new File(filePath);
+        File stateFile = stateDirectory != null ? new File(stateDirectory, file.getName() + ".blocks") : null;
+        return uploader.upload(file, sasUrl, stateFile);
     }
 }
-
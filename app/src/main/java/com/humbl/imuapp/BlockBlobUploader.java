@@ -0,0 +1,251 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Uploads a file to a block blob in pieces: the file is cut into fixed-size blocks sent with Put
+ * Block, a few at a time, and then put together with Put Block List. A failed block is retried on
+ * its own instead of restarting the whole file, and the blocks already sent are written to a state
+ * file, so an upload that still fails can be resumed later, even after the app restarts, with only
+ * the missing blocks. Files of a single block are sent in one Put Blob as before.
+ *
+ * The state file belongs to the file and the blob (without the SAS query, which changes every time
+ * a token is requested), and is deleted once the block list is committed.
+ *
+ * Blocks are sent on parallelBlocks threads shared by every upload through the same uploader, so
+ * files uploaded at the same time take turns with their blocks rather than each adding threads.
+ */
+public class BlockBlobUploader {
+    private static final String TAG = "BlockBlobUploader";
+    private static final String STATE_HEADER = "blocks v1";
+    private static final MediaType XML = MediaType.get("application/xml; charset=utf-8");
+
+    public static class Config {
+        public int blockBytes = 4 * 1024 * 1024;
+        public int parallelBlocks = 4;             // Blocks sent at the same time
+        public int attempts = 4;                   // Tries per block before the upload gives up
+        public long retryDelayMs = 500;            // Doubled after every failed try
+    }
+
+    private final Config config;
+    private final OkHttpClient client;
+    private final ThreadPoolExecutor blocks;
+
+    public BlockBlobUploader(Config config) {
+        this(config, HttpClients.shared());
+    }
+
+    public BlockBlobUploader(Config config, OkHttpClient client) {
+        this.config = config;
+        this.client = client;
+        blocks = new ThreadPoolExecutor(config.parallelBlocks, config.parallelBlocks, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> new Thread(r, "BlockUpload"));
+        blocks.allowCoreThreadTimeOut(true); // No threads kept while nothing is uploaded
+    }
+
+    // Upload the file to the blob of the SAS URL; stateFile keeps the blocks sent so far between
+    // attempts, or is null to start over every time. Returns false if the upload did not complete
+    public boolean upload(File file, String sasUrl, File stateFile) {
+        long length = file.length();
+        if (length <= config.blockBytes) return putBlob(file, sasUrl);
+
+        int blockCount = (int) ((length + config.blockBytes - 1) / config.blockBytes);
+        String fingerprint = blobPath(sasUrl) + " " + length + " " + file.lastModified() + " " + config.blockBytes;
+        BitSet sent = readState(stateFile, fingerprint, blockCount);
+        if (stateFile != null) startState(stateFile, fingerprint, sent);
+        Log.d(TAG, "Uploading " + file.getName() + " in " + blockCount + " blocks, "
+                + sent.cardinality() + " already sent");
+
+        // Blocks are streamed from the file, so only the threads' buffers are in memory
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Future<?>> pending = new ArrayList<>();
+        for (int block = 0; block < blockCount; block++) {
+            if (sent.get(block)) continue;
+            int index = block;
+            pending.add(blocks.submit(() -> {
+                if (failed.get()) return null; // Not started once a block has failed for good
+                try {
+                    putBlock(file, sasUrl, index);
+                } catch (IOException | InterruptedException e) {
+                    failed.set(true);
+                    throw e;
+                }
+                if (stateFile != null) appendState(stateFile, index);
+                return null;
+            }));
+        }
+        try {
+            // Every block is waited for, so the ones in flight have recorded themselves before the
+            // state file is read again
+            Throwable error = null;
+            for (Future<?> block : pending) {
+                try {
+                    block.get();
+                } catch (ExecutionException e) {
+                    if (error == null) error = e.getCause();
+                }
+            }
+            if (error == null) {
+                try {
+                    putBlockList(sasUrl, blockCount);
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            if (error != null) {
+                Log.e(TAG, "Upload of " + file.getName() + " failed, sent blocks are kept for a retry", error);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            failed.set(true);
+            for (Future<?> block : pending) block.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (stateFile != null && !stateFile.delete()) Log.w(TAG, "Could not delete " + stateFile.getName());
+        Log.d(TAG, "Uploaded " + file.getName());
+        return true;
+    }
+
+    // Letters and digits, a multiple of 4 long: already valid Base64 and all the same length, as
+    // block IDs must be, without java.util.Base64 (API 26)
+    static String blockId(int block) {
+        return String.format(Locale.US, "blk%013d", block);
+    }
+
+    private void putBlock(File file, String sasUrl, int block) throws IOException, InterruptedException {
+        long offset = (long) block * config.blockBytes;
+        long size = Math.min(config.blockBytes, file.length() - offset);
+        RequestBody body = HttpClients.fileBody(file, offset, size, null);
+        String url = sasUrl + "&comp=block&blockid=" + blockId(block);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                put(url, body);
+                return;
+            } catch (IOException e) {
+                if (attempt >= config.attempts) throw e;
+                Log.w(TAG, "Block " + block + " attempt " + attempt + " failed, retrying", e);
+                Thread.sleep(config.retryDelayMs << (attempt - 1));
+            }
+        }
+    }
+
+    private void putBlockList(String sasUrl, int blockCount) throws IOException, InterruptedException {
+        StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?><BlockList>");
+        for (int block = 0; block < blockCount; block++) {
+            xml.append("<Latest>").append(blockId(block)).append("</Latest>");
+        }
+        xml.append("</BlockList>");
+        RequestBody body = RequestBody.create(xml.toString(), XML);
+        for (int attempt = 1; ; attempt++) {
+            try {
+                put(sasUrl + "&comp=blocklist", body);
+                return;
+            } catch (IOException e) {
+                if (attempt >= config.attempts) throw e;
+                Thread.sleep(config.retryDelayMs << (attempt - 1));
+            }
+        }
+    }
+
+    private boolean putBlob(File file, String sasUrl) {
+        try {
+            put(sasUrl, HttpClients.fileBody(file, null));
+            Log.d(TAG, "Uploaded " + file.getName());
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Upload of " + file.getName() + " failed", e);
+            return false;
+        }
+    }
+
+    // One PUT; anything but 201 Created is a failure
+    private void put(String url, RequestBody body) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .put(body)
+                .header("x-ms-blob-type", "BlockBlob")
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            if (response.code() != 201) {
+                throw new IOException("HTTP " + response.code() + " for " + blobPath(url));
+            }
+        }
+    }
+
+    // The blob's URL without the SAS query
+    private static String blobPath(String sasUrl) {
+        int query = sasUrl.indexOf('?');
+        return query >= 0 ? sasUrl.substring(0, query) : sasUrl;
+    }
+
+    // Blocks sent by an earlier attempt at the same upload; none if it was another file or blob
+    private static BitSet readState(File stateFile, String fingerprint, int blockCount) {
+        BitSet sent = new BitSet(blockCount);
+        if (stateFile == null || !stateFile.exists()) return sent;
+        try (BufferedReader reader = new BufferedReader(new FileReader(stateFile))) {
+            if (!STATE_HEADER.equals(reader.readLine()) || !fingerprint.equals(reader.readLine())) return sent;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    int block = Integer.parseInt(line.trim());
+                    if (block >= 0 && block < blockCount) sent.set(block);
+                } catch (NumberFormatException e) {
+                    break; // A line torn by a kill mid-write, and nothing after it
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read " + stateFile.getName() + ", sending every block", e);
+            sent.clear();
+        }
+        return sent;
+    }
+
+    // Rewrite the state file with the blocks known to be sent, dropping any torn line
+    private static void startState(File stateFile, String fingerprint, BitSet sent) {
+        File directory = stateFile.getParentFile();
+        if (directory != null && !directory.exists()) directory.mkdirs();
+        StringBuilder state = new StringBuilder(STATE_HEADER).append('\n').append(fingerprint).append('\n');
+        for (int block = sent.nextSetBit(0); block >= 0; block = sent.nextSetBit(block + 1)) {
+            state.append(block).append('\n');
+        }
+        try (FileOutputStream out = new FileOutputStream(stateFile)) {
+            out.write(state.toString().getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + stateFile.getName() + ", the upload can't be resumed", e);
+        }
+    }
+
+    private static synchronized void appendState(File stateFile, int block) {
+        try (FileOutputStream out = new FileOutputStream(stateFile, true)) {
+            out.write((block + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not record block " + block + " in " + stateFile.getName(), e);
+        }
+    }
+}
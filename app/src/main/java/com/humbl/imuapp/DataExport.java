@@ -2,111 +2,386 @@ package com.humbl.imuapp;
 
 
 import android.util.Log;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 
 public class DataExport {
-    private final Map<String, ArrayList<String[]>> sensorDataMap; // Dynamic data for each sensor type
-    private final ArrayList<Long> eventTime;
+    private final SampleSchema schema;
+    private final SampleStore samples; // Synchronized rows, kept as primitive columns (in-memory mode)
+    private final RecordingWriter writer; // Streams rows to segment files instead (on-disk mode)
+    private final RecordingFileReader file; // Or reads a finished binary recording file (read-only)
+    private final EventTable events = new EventTable(); // Events marked while recording
+    private final List<RecordingFileReader.Event> fileEvents; // Or those of the recording file
+    private AsciiFormatter formatter = new AsciiFormatter(); // CSV number formatting
+    private LocationTrack locationTrack; // Positions to interpolate onto the rows in CSV exports
 
     public DataExport() {
-        sensorDataMap = new HashMap<>();
-        eventTime = new ArrayList<>();
+        this(SampleSchema.resampledImu());
     }
 
-    // Add a new row of data for a specific sensor type
-    public void addSensorRow(String sensorType, String[] row) {
-        if (!sensorDataMap.containsKey(sensorType)) {
-            sensorDataMap.put(sensorType, new ArrayList<>());
+    // Keep all rows in memory (used for live plotting)
+    public DataExport(SampleSchema schema) {
+        this.schema = schema;
+        this.samples = new SampleStore(schema);
+        this.writer = null;
+        this.file = null;
+        fileEvents = null;
+    }
+
+    // Append rows to disk as they arrive, nothing is kept in memory
+    public DataExport(RecordingWriter writer) {
+        this.schema = writer.getSchema();
+        this.samples = null;
+        this.writer = writer;
+        this.file = null;
+        fileEvents = null;
+    }
+
+    // Export view of a binary recording file, e.g. to produce CSV from it
+    public DataExport(RecordingFileReader file) {
+        this.schema = file.getSchema();
+        this.samples = null;
+        this.writer = null;
+        this.file = file;
+        fileEvents = file.getEvents();
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    // Add a new synchronized row; the row is copied so the caller can reuse it
+    public void addSample(SampleRow row) {
+        if (file != null) {
+            throw new IllegalStateException("Recording file is read-only");
+        } else if (writer != null) {
+            writer.append(row);
+        } else {
+            samples.append(row);
         }
-        sensorDataMap.get(sensorType).add(row);
     }
 
-    // Add an event timestamp when event button clicked
-    public void addEvent(long timeMs) {
-        eventTime.add(timeMs);
+    public int getSampleCount() {
+        if (file != null) return (int) file.getRowCount();
+        return writer != null ? (int) writer.getRowCount() : samples.size();
     }
 
-    // Build the CSV content string for the dataset
-    public String createCSV() {
-        StringBuilder sb = new StringBuilder();
+    // Make sure every row added so far has reached the segment files
+    public void flush() {
+        if (writer != null) writer.flush();
+    }
 
-        // Unified header
-        sb.append("timeStampAcc,accX,accY,accZ,timeStampGyro,gyroX,gyroY,gyroZ,timeStampGPS,latitude,longitude,event_time, event_description\n");
+    // Why rows failed to reach the segment files (e.g. the storage is full), null if none did;
+    // the segments then hold only part of the recording
+    public IOException getWriteFailure() {
+        return writer != null ? writer.getFailure() : null;
+    }
 
-        ArrayList<String[]> rows = sensorDataMap.get("Synchronized");
-        if (rows != null) {
-            for (String[] row : rows) {
-                if (row == null) continue;
-                sb.append(String.join(",", row)).append("\n");
+    // Flush and stop the background writer; no more rows can be added afterwards
+    public void close() {
+        if (writer != null) writer.close();
+    }
+
+    // Remove the recording directory once it is no longer needed (e.g. after a successful export)
+    public void deleteRecordingFiles() {
+        if (writer == null) return;
+        writer.close();
+        File directory = writer.getDirectory();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) Log.w("DataExport", "Could not delete " + file.getName());
             }
         }
-        return sb.toString();
+        directory.delete();
     }
 
-    // Export CSV as zip file to specified location
-    public boolean exportAsZip(File zipFile) {
-        try {
-            Log.d("DataExport", "Starting exportAsZip to: " + zipFile.getAbsolutePath());
-
-            // Create CSV file in the same directory as zip
-            File csvFile = new File(zipFile.getParent(), zipFile.getName().replace(".zip", ".csv"));
-            Log.d("DataExport", "CSV file path: " + csvFile.getAbsolutePath());
-
-            // Create the CSV content
-            String csvContent = createCSV();
-            Log.d("DataExport", "CSV content length: " + (csvContent != null ? csvContent.length() : 0));
-
-            // Write CSV content to the file
-            FileOutputStream fos = new FileOutputStream(csvFile);
-            fos.write(csvContent.getBytes());
-            fos.close();
-
-            // Confirm CSV file exists
-            Log.d("DataExport", "CSV file created: " + csvFile.exists() + " at " + csvFile.getAbsolutePath());
-
-            // Create a ZIP output stream
-            ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipFile));
-            FileInputStream fis = new FileInputStream(csvFile);
-            ZipEntry entry = new ZipEntry(csvFile.getName());
-            zos.putNextEntry(entry);
-
-            byte[] buffer = new byte[1024];
-            int len;
-            while ((len = fis.read(buffer)) > 0) {
-                zos.write(buffer, 0, len);
+    // Iterate over every row recorded so far
+    public SampleCursor cursor() {
+        return openCursor();
+    }
+
+    private SampleCursor openCursor() {
+        if (file != null) return file.cursor();
+        if (writer != null) {
+            writer.flush();
+            return new SegmentReader(writer.getDirectory(), schema);
+        }
+        return samples.cursor();
+    }
+
+    // Events marked on the rows' time column, resolved to the nearest row on export
+    public EventTable getEvents() {
+        return events;
+    }
+
+    public int getEventCount() {
+        return fileEvents != null ? fileEvents.size() : events.size();
+    }
+
+    // Every event in time order with the row nearest to it, -1 while there are no rows
+    private List<RecordingFileReader.Event> eventList() throws IOException {
+        if (fileEvents != null) return fileEvents;
+        synchronized (events) { // Hold the events still while they are matched to rows
+            long[] rows = events.size() > 0 ? nearestEventRows() : new long[0];
+            List<RecordingFileReader.Event> list = new ArrayList<>(rows.length);
+            for (int i = 0; i < rows.length; i++) {
+                list.add(new RecordingFileReader.Event(rows[i], String.valueOf(events.getTime(i)), events.getDescription(i)));
             }
+            return list;
+        }
+    }
 
-            zos.closeEntry();
-            zos.close();
-            fis.close();
+    // Row index -> {event_time, event_description} for the CSV's event columns; events nearest
+    // the same row share it
+    private Map<Integer, String[]> rowEvents() throws IOException {
+        Map<Integer, String[]> rowEvents = new HashMap<>();
+        for (RecordingFileReader.Event event : eventList()) {
+            if (event.row < 0) continue;
+            String[] columns = rowEvents.get((int) event.row);
+            if (columns == null) {
+                rowEvents.put((int) event.row, new String[]{event.time, event.description});
+            } else {
+                columns[0] += ' ' + event.time;
+                columns[1] += "; " + event.description;
+            }
+        }
+        return rowEvents;
+    }
 
-            // Confirm ZIP file was created
-            Log.d("DataExport", "ZIP file created: " + zipFile.exists() + " at " + zipFile.getAbsolutePath());
+    // Row nearest to each event; segment files can only be read in order, the others are searched
+    private long[] nearestEventRows() throws IOException {
+        if (writer != null) return events.nearestRows(openCursor(), schema);
+        int timeSlot = RecordingFileWriter.timeSlot(schema);
+        return events.nearestRows(new EventTable.RowTimes() {
+            @Override
+            public long rowCount() {
+                return samples.size();
+            }
 
-            // Delete the temporary CSV file
-            if (csvFile.exists()) {
-                boolean deleted = csvFile.delete();
-                Log.d("DataExport", "CSV file deleted after ZIP? " + deleted);
+            @Override
+            public long timeOf(long row) {
+                return timeSlot >= 0 ? samples.getLong((int) row, timeSlot) : row;
             }
+        });
+    }
 
-            return true; // success
+    // Write the events as a table of their own, one line per event, joined to the rows by
+    // event_time (on the clock of the rows' first column) and by the index of the nearest row
+    public boolean exportEventsCsv(File csvFile) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(csvFile))) {
+            StringBuilder csv = new StringBuilder("event_time,row,event_description\n");
+            for (RecordingFileReader.Event event : eventList()) {
+                csv.append(event.time).append(',').append(event.row >= 0 ? String.valueOf(event.row) : "")
+                        .append(',').append(event.description).append('\n');
+            }
+            out.write(csv.toString().getBytes(StandardCharsets.UTF_8));
+            return true;
+        } catch (IOException e) {
+            Log.e("DataExport", "Failed to export events file", e);
+            return false;
+        }
+    }
+
+    // Add latitude and longitude columns to CSV exports, interpolated from the recording's
+    // location fixes at each row's timeStampNs; rows that carry their own position keep it
+    public void setLocationTrack(LocationTrack track) {
+        locationTrack = track;
+    }
+
+    // Stream the dataset as CSV straight from the sample store, returns the number of bytes written
+    public long writeCSV(OutputStream out) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(out);
+        byte[] buf = new byte[64 * 1024];
+        int timeColumn = schema.indexOf("timeStampNs");
+        boolean positions = locationTrack != null && locationTrack.size() > 0 && timeColumn >= 0
+                && schema.getType(timeColumn) == SampleSchema.TYPE_LONG && schema.indexOf("latitude") < 0;
+        int timeSlot = positions ? schema.getSlot(timeColumn) : -1;
+        double[] position = new double[2];
+        Map<Integer, String[]> rowEvents = rowEvents();
+        // Room needed for one row of numbers plus its separators
+        int rowBytes = (schema.getColumnCount() + 2) * (AsciiFormatter.MAX_CHARS + 1) + 2;
+
+        // Unified header
+        StringBuilder header = new StringBuilder(256);
+        for (int c = 0; c < schema.getColumnCount(); c++) {
+            header.append(schema.getName(c)).append(',');
+        }
+        if (positions) header.append("latitude,longitude,");
+        header.append("event_time, event_description\n");
+        int pos = writeText(counter, buf, 0, header.toString());
+
+        // Numbers are formatted straight into the byte buffer, no strings per value
+        SampleRow row = schema.newRow();
+        try (SampleCursor cursor = openCursor()) {
+            for (int i = 0; cursor.next(row); i++) {
+                if (pos + rowBytes > buf.length) {
+                    counter.write(buf, 0, pos);
+                    pos = 0;
+                }
+                pos = writeRow(row, buf, pos);
+                if (positions) {
+                    if (locationTrack.interpolate(row.longs[timeSlot], position)) {
+                        pos = formatter.writeDouble(position[0], buf, pos);
+                        buf[pos++] = ',';
+                        pos = formatter.writeDouble(position[1], buf, pos);
+                    } else {
+                        buf[pos++] = ',';
+                    }
+                    buf[pos++] = ',';
+                }
+                String[] event = rowEvents.get(i);
+                if (event != null) {
+                    pos = writeText(counter, buf, pos, event[0] + ',' + event[1] + '\n');
+                } else {
+                    buf[pos++] = ',';
+                    buf[pos++] = '\n';
+                }
+            }
+        }
+        counter.write(buf, 0, pos);
+        return counter.count;
+    }
+
+    // Use fixed decimals for float and double columns instead of the shortest exact form
+    public void setDecimalPlaces(int decimals) {
+        formatter = new AsciiFormatter(decimals);
+    }
+
+    private int writeRow(SampleRow row, byte[] buf, int pos) {
+        for (int c = 0; c < schema.getColumnCount(); c++) {
+            int slot = schema.getSlot(c);
+            switch (schema.getType(c)) {
+                case SampleSchema.TYPE_LONG:
+                    pos = AsciiFormatter.writeLong(row.longs[slot], buf, pos);
+                    break;
+                case SampleSchema.TYPE_FLOAT:
+                    pos = formatter.writeFloat(row.floats[slot], buf, pos);
+                    break;
+                default:
+                    pos = formatter.writeDouble(row.doubles[slot], buf, pos);
+                    break;
+            }
+            buf[pos++] = ',';
+        }
+        return pos;
+    }
+
+    // Append UTF-8 text (headers and event descriptions), writing the buffer out first if it is full
+    private static int writeText(OutputStream out, byte[] buf, int pos, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (pos + bytes.length > buf.length) {
+            out.write(buf, 0, pos);
+            pos = 0;
+        }
+        if (bytes.length > buf.length) {
+            out.write(bytes);
+            return pos;
+        }
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        return pos + bytes.length;
+    }
+
+    // Write the dataset as a compact binary recording file (see RecordingFileWriter),
+    // optionally with GorillaCodec-compressed blocks
+    public boolean exportAsBinary(File binaryFile, Map<String, String> metadata, boolean compress) {
+        Log.d("DataExport", "Starting exportAsBinary to: " + binaryFile.getAbsolutePath());
+        flush();
+        if (getWriteFailure() != null) {
+            // The segments are missing rows; a file from them would look complete
+            Log.e("DataExport", "Not exporting, rows were lost while recording", getWriteFailure());
+            return false;
+        }
+        try (RecordingFileWriter out = RecordingFileWriter.create(binaryFile, schema, metadata, compress)) {
+            SampleRow row = schema.newRow();
+            try (SampleCursor cursor = openCursor()) {
+                while (cursor.next(row)) out.append(row);
+            }
+            // One entry per event, so events nearest the same row stay apart
+            for (RecordingFileReader.Event event : eventList()) {
+                if (event.row >= 0) out.addEvent(event.row, event.time, event.description);
+            }
+            Log.d("DataExport", "Binary file created at " + binaryFile.getAbsolutePath() + ", rows: " + out.getRowCount());
+            return true;
+        } catch (IOException e) {
+            Log.e("DataExport", "Failed to export binary file", e);
+            if (binaryFile.exists() && !binaryFile.delete()) {
+                Log.w("DataExport", "Could not delete partial binary file");
+            }
+            return false;
+        }
+    }
+
+    // Export CSV as zip file to specified location, streaming rows directly into the archive
+    public boolean exportAsZip(File zipFile) {
+        return exportAsZip(zipFile, 1);
+    }
+
+    // Same, but deflating on up to the given number of threads
+    public boolean exportAsZip(File zipFile, int threads) {
+        Log.d("DataExport", "Starting exportAsZip to: " + zipFile.getAbsolutePath() + " on " + threads + " threads");
+        String csvName = zipFile.getName().replace(".zip", ".csv");
+
+        try (OutputStream zos = openZip(zipFile, csvName, threads)) {
+            long csvBytes = writeCSV(zos);
+            Log.d("DataExport", "ZIP file created at " + zipFile.getAbsolutePath() + ", CSV bytes: " + csvBytes);
         } catch (IOException e) {
             Log.e("DataExport", "Failed to export zip file", e);
+            if (zipFile.exists() && !zipFile.delete()) {
+                Log.w("DataExport", "Could not delete partial zip file");
+            }
             return false; // error
         }
+        return true; // success
     }
-    //Method to get sensor data from specific sensor type
-    public ArrayList<String[]> getSensorData(String sensorType) {
-        return sensorDataMap.get(sensorType);
+
+    // A zip stream positioned at the start of its only entry; closing it completes the archive
+    private static OutputStream openZip(File zipFile, String entryName, int threads) throws IOException {
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(zipFile), 64 * 1024);
+        try {
+            if (threads > 1) {
+                return new ParallelZipOutputStream(file, entryName, threads, Deflater.DEFAULT_COMPRESSION);
+            }
+            ZipOutputStream zos = new ZipOutputStream(file);
+            zos.putNextEntry(new ZipEntry(entryName));
+            return zos;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
     }
 
+    // Counts the bytes passed through to the underlying stream
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the last few seconds of rows in memory, so the moments around an event can be saved as a
+ * clip of their own: a small compressed recording file (see RecordingFileWriter) holding the rows
+ * from preNanos before the event to postNanos after it, with the event marked on its nearest row.
+ * A clip is cut as soon as the row that closes its after-window is appended and written on a
+ * thread of its own, so it can be uploaded long before the whole recording is exported.
+ *
+ * Rows are appended from one thread (the collector's drain thread) into primitive ring columns,
+ * so appending does not allocate; events can be added from any thread.
+ */
+public class EventClipRecorder {
+    private static final String TAG = "EventClipRecorder";
+    public static final long DEFAULT_WINDOW_MS = 10_000; // Before and after the event
+
+    public interface Listener {
+        // Called on the clip writer thread once a clip file is complete
+        void onClipWritten(File clip);
+    }
+
+    private final SampleSchema schema;
+    private final File directory;
+    private final long preNanos;
+    private final long postNanos;
+    private final Map<String, String> metadata;
+    private final Listener listener;
+    private final int timeSlot;
+    private final int capacity;
+    private final long[][] longs;     // [slot][ring index]
+    private final float[][] floats;
+    private final double[][] doubles;
+    private long rowCount; // Rows appended so far, the newest at (rowCount - 1) % capacity
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "EventClipWriter"));
+
+    // Events still waiting for their after-window to close, in time order
+    private final Object pendingLock = new Object();
+    private long[] pendingTimes = new long[8];
+    private String[] pendingNames = new String[8];
+    private int pendingCount;
+    private volatile long nextCutTime = Long.MAX_VALUE; // When the first pending event is due
+
+    // rateHz sizes the window: rows of up to preNanos + postNanos at that rate are kept
+    public EventClipRecorder(SampleSchema schema, int rateHz, long preNanos, long postNanos, File directory,
+                             Map<String, String> metadata, Listener listener) {
+        this.schema = schema;
+        this.timeSlot = RecordingFileWriter.timeSlot(schema);
+        if (timeSlot < 0) throw new IllegalArgumentException("Schema has no time column: " + schema.toSpec());
+        this.preNanos = preNanos;
+        this.postNanos = postNanos;
+        this.directory = directory;
+        this.metadata = metadata;
+        this.listener = listener;
+        // A little extra room for rows that come in faster than the rate
+        capacity = (int) Math.min(Integer.MAX_VALUE, (preNanos + postNanos) * rateHz / 1_000_000_000L * 5 / 4 + 16);
+        longs = new long[schema.getLongCount()][capacity];
+        floats = new float[schema.getFloatCount()][capacity];
+        doubles = new double[schema.getDoubleCount()][capacity];
+    }
+
+    // Keep a row in the window; rows must come in time order from a single thread
+    public void append(SampleRow row) {
+        int index = (int) (rowCount % capacity);
+        for (int c = 0; c < longs.length; c++) longs[c][index] = row.longs[c];
+        for (int c = 0; c < floats.length; c++) floats[c][index] = row.floats[c];
+        for (int c = 0; c < doubles.length; c++) doubles[c][index] = row.doubles[c];
+        rowCount++;
+        long time = row.longs[timeSlot];
+        if (time >= nextCutTime) cutDue(time);
+    }
+
+    // Save a clip around an event at the given time, on the clock of the rows' time column;
+    // name is the clip file's name without extension
+    public void addEvent(long time, String name) {
+        synchronized (pendingLock) {
+            if (pendingCount == pendingTimes.length) {
+                pendingTimes = Arrays.copyOf(pendingTimes, pendingCount * 2);
+                pendingNames = Arrays.copyOf(pendingNames, pendingCount * 2);
+            }
+            int index = pendingCount;
+            while (index > 0 && pendingTimes[index - 1] > time) index--;
+            System.arraycopy(pendingTimes, index, pendingTimes, index + 1, pendingCount - index);
+            System.arraycopy(pendingNames, index, pendingNames, index + 1, pendingCount - index);
+            pendingTimes[index] = time;
+            pendingNames[index] = name;
+            pendingCount++;
+            nextCutTime = pendingTimes[0] + postNanos;
+        }
+    }
+
+    // Cut the clips of events still waiting with the rows there are, then wait for every clip to be
+    // written; call once no more rows are appended, e.g. after the collector stopped
+    public void finish() {
+        cutDue(Long.MAX_VALUE);
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(30, TimeUnit.SECONDS)) Log.w(TAG, "Clips still being written");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void cutDue(long time) {
+        synchronized (pendingLock) {
+            int cut = 0;
+            while (cut < pendingCount && (time == Long.MAX_VALUE || pendingTimes[cut] + postNanos <= time)) {
+                cut(pendingTimes[cut], pendingNames[cut]);
+                cut++;
+            }
+            System.arraycopy(pendingTimes, cut, pendingTimes, 0, pendingCount - cut);
+            System.arraycopy(pendingNames, cut, pendingNames, 0, pendingCount - cut);
+            Arrays.fill(pendingNames, pendingCount - cut, pendingCount, null);
+            pendingCount -= cut;
+            nextCutTime = pendingCount > 0 ? pendingTimes[0] + postNanos : Long.MAX_VALUE;
+        }
+    }
+
+    // Copy the window around an event out of the ring and hand it to the writer thread
+    private void cut(long eventTime, String name) {
+        long oldest = Math.max(0, rowCount - capacity);
+        long from = firstRowAtOrAfter(oldest, eventTime - preNanos);
+        long to = firstRowAtOrAfter(from, eventTime + postNanos + 1);
+        if (from == to) {
+            Log.w(TAG, "No rows around the event at " + eventTime + " for " + name);
+            return;
+        }
+        SampleStore clip = new SampleStore(schema);
+        SampleRow row = schema.newRow();
+        for (long i = from; i < to; i++) {
+            int index = (int) (i % capacity);
+            for (int c = 0; c < longs.length; c++) row.longs[c] = longs[c][index];
+            for (int c = 0; c < floats.length; c++) row.floats[c] = floats[c][index];
+            for (int c = 0; c < doubles.length; c++) row.doubles[c] = doubles[c][index];
+            clip.append(row);
+        }
+        writer.execute(() -> write(clip, eventTime, name));
+    }
+
+    // Binary search over the rows still in the ring
+    private long firstRowAtOrAfter(long low, long time) {
+        long high = rowCount;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (longs[timeSlot][(int) (mid % capacity)] < time) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private void write(SampleStore clip, long eventTime, String name) {
+        File file = new File(directory, name + RecordingFileWriter.EXTENSION);
+        Map<String, String> clipMetadata = new LinkedHashMap<>(metadata);
+        clipMetadata.put("eventTime", String.valueOf(eventTime));
+        clipMetadata.put("clipPreMs", String.valueOf(preNanos / 1_000_000));
+        clipMetadata.put("clipPostMs", String.valueOf(postNanos / 1_000_000));
+        long eventRow = EventTable.nearestRow(new EventTable.RowTimes() {
+            @Override
+            public long rowCount() {
+                return clip.size();
+            }
+
+            @Override
+            public long timeOf(long row) {
+                return clip.getLong((int) row, timeSlot);
+            }
+        }, eventTime);
+
+        try (RecordingFileWriter out = RecordingFileWriter.create(file, schema, clipMetadata, true)) {
+            SampleRow row = schema.newRow();
+            try (SampleCursor cursor = clip.cursor()) {
+                while (cursor.next(row)) out.append(row);
+            }
+            out.addEvent(eventRow, String.valueOf(eventTime), "");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write clip " + file.getName(), e);
+            if (file.exists() && !file.delete()) Log.w(TAG, "Could not delete partial clip " + file.getName());
+            return;
+        }
+        Log.d(TAG, "Clip " + file.getName() + " written, rows: " + clip.size());
+        if (listener != null) listener.onClipWritten(file);
+    }
+}
@@ -0,0 +1,120 @@
+package com.humbl.imuapp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Events marked during a recording, kept in a time-sorted table of their own rather than on the
+ * rows. An event is stored at the time it was marked, on the clock of the rows' time column
+ * (the first column, e.g. timeStampNs), and only resolved to the nearest row when exporting, by
+ * binary search on that column; so it does not matter whether any rows exist yet, or whether the
+ * rows are in memory, in segment files or in a recording file.
+ *
+ * Marking and describing happen on whichever thread the UI calls from, exporting on another, so
+ * every method is synchronized; hold the table's lock to read several of them consistently.
+ */
+public class EventTable {
+    // Time of a row, for rows stored in time order
+    public interface RowTimes {
+        long rowCount();
+        long timeOf(long row);
+    }
+
+    private long[] times = new long[16];
+    private String[] descriptions = new String[16];
+    private int size;
+
+    // Add an event at the given time, returns its index in time order
+    public synchronized int add(long time) {
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            descriptions = Arrays.copyOf(descriptions, size * 2);
+        }
+        // Events almost always arrive in order, so this is usually an append
+        int index = size;
+        while (index > 0 && times[index - 1] > time) index--;
+        System.arraycopy(times, index, times, index + 1, size - index);
+        System.arraycopy(descriptions, index, descriptions, index + 1, size - index);
+        times[index] = time;
+        descriptions[index] = "";
+        size++;
+        return index;
+    }
+
+    // Set the description of the event marked at the given time, which can be done at any
+    // point before exporting; false if there is no such event
+    public synchronized boolean describe(long time, String description) {
+        int index = Arrays.binarySearch(times, 0, size, time);
+        if (index < 0) return false;
+        while (index + 1 < size && times[index + 1] == time) index++; // The latest of equal times
+        descriptions[index] = description.replace(",", " "); // avoid commas in CSV
+        return true;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    public synchronized String getDescription(int index) {
+        checkIndex(index);
+        return descriptions[index];
+    }
+
+    // Row nearest to each event, in event order; -1 for every event when there are no rows
+    public synchronized long[] nearestRows(RowTimes rows) {
+        long[] nearest = new long[size];
+        for (int i = 0; i < size; i++) nearest[i] = nearestRow(rows, times[i]);
+        return nearest;
+    }
+
+    // Same for rows that can only be read in order, e.g. from segment files: one pass over the
+    // rows, taking the events along as their time is reached
+    public synchronized long[] nearestRows(SampleCursor cursor, SampleSchema schema) throws IOException {
+        long[] nearest = new long[size];
+        Arrays.fill(nearest, -1);
+        int timeSlot = RecordingFileWriter.timeSlot(schema);
+        SampleRow row = schema.newRow();
+        int event = 0;
+        long previousTime = 0;
+        long index = 0;
+        try (SampleCursor rows = cursor) {
+            for (; event < size && rows.next(row); index++) {
+                long time = timeSlot >= 0 ? row.longs[timeSlot] : index;
+                for (; event < size && times[event] <= time; event++) {
+                    // Ties go to the earlier row, as with the binary search
+                    nearest[event] = index > 0 && times[event] - previousTime <= time - times[event] ? index - 1 : index;
+                }
+                previousTime = time;
+            }
+        }
+        for (; event < size && index > 0; event++) nearest[event] = index - 1; // After the last row
+        return nearest;
+    }
+
+    // Index of the row nearest to the given time, the earlier one on a tie; -1 if there are no rows
+    static long nearestRow(RowTimes rows, long time) {
+        long count = rows.rowCount();
+        if (count == 0) return -1;
+        // First row at or after the time
+        long low = 0, high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (rows.timeOf(mid) < time) low = mid + 1;
+            else high = mid;
+        }
+        if (low == 0) return 0;
+        if (low == count) return count - 1;
+        return time - rows.timeOf(low - 1) <= rows.timeOf(low) - time ? low - 1 : low;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Event " + index + " of " + size);
+        }
+    }
+}
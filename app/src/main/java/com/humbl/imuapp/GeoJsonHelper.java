@@ -1,16 +1,17 @@
 package com.humbl.imuapp;
 
-import android.content.Context;
 import android.util.Log;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.List;
 
+import okhttp3.Request;
+import okhttp3.Response;
+
 public class GeoJsonHelper {
     private static final String TAG = "GeoJsonHelper";
 
@@ -26,7 +27,8 @@ public class GeoJsonHelper {
         }
     }
 
-    public static void uploadLatestGeoJson(Context context, List<EventPoint> recentPins, String sasUrl) {
+    // Write the pins as a GeoJSON FeatureCollection
+    public static void writeGeoJson(List<EventPoint> recentPins, File geojsonFile) throws IOException {
         try {
             // Build GeoJSON FeatureCollection
             JSONArray featuresArray = new JSONArray();
@@ -57,56 +59,32 @@ public class GeoJsonHelper {
             featureCollection.put("type", "FeatureCollection");
             featureCollection.put("features", featuresArray);
 
-
-            // Write to cache file
-            File geojsonFile = new File(context.getCacheDir(), "latest.geojson");
             try (FileWriter writer = new FileWriter(geojsonFile)) {
                 writer.write(featureCollection.toString());
             }
-
-            // Upload to Azure
-            uploadToAzure(geojsonFile, sasUrl);
-        } catch (Exception e) {
-            Log.e(TAG, "Error building or uploading GeoJSON", e);
+        } catch (JSONException e) {
+            throw new IOException("Error building GeoJSON", e);
         }
     }
 
-    private static void uploadToAzure(File file, String sasUrl) {
-        new Thread(() -> {
-            try {
-                Log.d(TAG, "Uploading file of size: " + file.length());
-
-                URL url = new URL(sasUrl);
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-
-                conn.setDoOutput(true);
-                conn.setRequestMethod("PUT");
-                conn.setRequestProperty("x-ms-blob-type", "BlockBlob");
-                conn.setRequestProperty("Content-Length", String.valueOf(file.length()));
-
-                OutputStream out = conn.getOutputStream();
-                FileInputStream fis = new FileInputStream(file);
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
-                }
-                fis.close();
-                out.flush();
-                out.close();
-
-                int responseCode = conn.getResponseCode();
-                Log.d(TAG, "Upload response: " + responseCode);
-
-                if (responseCode >= 200 && responseCode < 300) {
-                    Log.d(TAG, "GeoJSON upload successful");
-                } else {
-                    Log.w(TAG, "GeoJSON upload failed with response code: " + responseCode);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error during upload to Azure", e);
+    // Upload on the calling thread; throws if the upload did not go through
+    public static void uploadToAzure(File file, String sasUrl) throws IOException {
+        Log.d(TAG, "Uploading file of size: " + file.length());
+
+        Request request = new Request.Builder()
+                .url(sasUrl)
+                .put(HttpClients.fileBody(file, null))
+                .header("x-ms-blob-type", "BlockBlob")
+                .build();
+        try (Response response = HttpClients.shared().newCall(request).execute()) {
+            int responseCode = response.code();
+            Log.d(TAG, "Upload response: " + responseCode);
+
+            if (!response.isSuccessful()) {
+                throw new IOException("GeoJSON upload failed with response code: " + responseCode);
             }
-        }).start();
+            Log.d(TAG, "GeoJSON upload successful");
+        }
     }
 
     private static String formatTimestamp(long millis) {
@@ -0,0 +1,259 @@
+package com.humbl.imuapp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses a block of fixed-width sample rows column by column, in the style of Facebook's
+ * Gorilla time-series store. Long columns (timestamps) are stored as zigzag varint
+ * delta-of-deltas, so evenly spaced timestamps take a byte each. Float and double columns are
+ * XORed with the previous value of the same column: an unchanged value takes one bit and a
+ * small change only stores the bits that differ.
+ *
+ * The input and output of decode are the same row layout as SampleBlock payloads. A codec
+ * keeps no state between blocks, so each block can be decoded on its own.
+ */
+public final class GorillaCodec {
+    private final int longCount;
+    private final int floatCount;
+    private final int doubleCount;
+    private final int rowBytes;
+
+    public GorillaCodec(SampleSchema schema) {
+        this.longCount = schema.getLongCount();
+        this.floatCount = schema.getFloatCount();
+        this.doubleCount = schema.getDoubleCount();
+        this.rowBytes = schema.getRowBytes();
+    }
+
+    // Upper bound of the encoded size of a block, for sizing the output buffer
+    public int maxEncodedBytes(int rowCount) {
+        // Worst cases: 10 byte varint per long, 1 + 2 + 5 + 5 + 32 bits per float, 1 + 2 + 6 + 6 + 64 per double
+        long bits = rowCount * (longCount * 80L + floatCount * 45L + doubleCount * 79L);
+        return (int) (bits / 8) + 16;
+    }
+
+    // Encode rowCount rows starting at the position of rows (little-endian) into out at offset,
+    // returns the encoded length
+    public int encode(ByteBuffer rows, int rowCount, byte[] out, int offset) {
+        BitWriter writer = new BitWriter(out, offset);
+        int base = rows.position();
+        for (int c = 0; c < longCount; c++) {
+            int at = base + c * 8;
+            long previous = 0, previousDelta = 0;
+            for (int r = 0; r < rowCount; r++, at += rowBytes) {
+                long value = rows.getLong(at);
+                long delta = value - previous;
+                writer.writeVarLong(zigzag(delta - previousDelta));
+                previous = value;
+                previousDelta = delta;
+            }
+        }
+        for (int c = 0; c < floatCount; c++) {
+            int at = base + longCount * 8 + c * 4;
+            int previous = 0, leading = -1, trailing = 0;
+            for (int r = 0; r < rowCount; r++, at += rowBytes) {
+                int bits = Float.floatToRawIntBits(rows.getFloat(at));
+                int xor = bits ^ previous;
+                previous = bits;
+                if (xor == 0) {
+                    writer.writeBits(0, 1);
+                    continue;
+                }
+                int lead = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+                int trail = Integer.numberOfTrailingZeros(xor);
+                if (leading >= 0 && lead >= leading && trail >= trailing) {
+                    // Fits in the previous window of meaningful bits
+                    writer.writeBits(0b10, 2);
+                    writer.writeBits((xor >>> trailing) & mask(32 - leading - trailing), 32 - leading - trailing);
+                } else {
+                    int length = 32 - lead - trail;
+                    writer.writeBits(0b11, 2);
+                    writer.writeBits(lead, 5);
+                    writer.writeBits(length - 1, 5);
+                    writer.writeBits((xor >>> trail) & mask(length), length);
+                    leading = lead;
+                    trailing = trail;
+                }
+            }
+        }
+        for (int c = 0; c < doubleCount; c++) {
+            int at = base + longCount * 8 + floatCount * 4 + c * 8;
+            long previous = 0;
+            int leading = -1, trailing = 0;
+            for (int r = 0; r < rowCount; r++, at += rowBytes) {
+                long bits = Double.doubleToRawLongBits(rows.getDouble(at));
+                long xor = bits ^ previous;
+                previous = bits;
+                if (xor == 0) {
+                    writer.writeBits(0, 1);
+                    continue;
+                }
+                int lead = Math.min(Long.numberOfLeadingZeros(xor), 63);
+                int trail = Long.numberOfTrailingZeros(xor);
+                if (leading >= 0 && lead >= leading && trail >= trailing) {
+                    writer.writeBits(0b10, 2);
+                    writer.writeLongBits(xor >>> trailing, 64 - leading - trailing);
+                } else {
+                    int length = 64 - lead - trail;
+                    writer.writeBits(0b11, 2);
+                    writer.writeBits(lead, 6);
+                    writer.writeBits(length - 1, 6);
+                    writer.writeLongBits(xor >>> trail, length);
+                    leading = lead;
+                    trailing = trail;
+                }
+            }
+        }
+        return writer.finish() - offset;
+    }
+
+    // Decode rowCount rows into rows at its position (little-endian), advancing the position past them
+    public void decode(byte[] in, int offset, int length, int rowCount, ByteBuffer rows) {
+        BitReader reader = new BitReader(in, offset, length);
+        int base = rows.position();
+        for (int c = 0; c < longCount; c++) {
+            int out = base + c * 8;
+            long previous = 0, previousDelta = 0;
+            for (int r = 0; r < rowCount; r++, out += rowBytes) {
+                long delta = previousDelta + unzigzag(reader.readVarLong());
+                previous += delta;
+                previousDelta = delta;
+                rows.putLong(out, previous);
+            }
+        }
+        for (int c = 0; c < floatCount; c++) {
+            int out = base + longCount * 8 + c * 4;
+            int previous = 0, leading = 0, trailing = 0;
+            for (int r = 0; r < rowCount; r++, out += rowBytes) {
+                if (reader.readBits(1) != 0) {
+                    if (reader.readBits(1) != 0) {
+                        leading = (int) reader.readBits(5);
+                        trailing = 32 - leading - ((int) reader.readBits(5) + 1);
+                    }
+                    previous ^= (int) reader.readBits(32 - leading - trailing) << trailing;
+                }
+                rows.putFloat(out, Float.intBitsToFloat(previous));
+            }
+        }
+        for (int c = 0; c < doubleCount; c++) {
+            int out = base + longCount * 8 + floatCount * 4 + c * 8;
+            long previous = 0;
+            int leading = 0, trailing = 0;
+            for (int r = 0; r < rowCount; r++, out += rowBytes) {
+                if (reader.readBits(1) != 0) {
+                    if (reader.readBits(1) != 0) {
+                        leading = (int) reader.readBits(6);
+                        trailing = 64 - leading - ((int) reader.readBits(6) + 1);
+                    }
+                    previous ^= reader.readLongBits(64 - leading - trailing) << trailing;
+                }
+                rows.putDouble(out, Double.longBitsToDouble(previous));
+            }
+        }
+        rows.position(base + rowCount * rowBytes);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int mask(int bits) {
+        return bits == 32 ? -1 : (1 << bits) - 1;
+    }
+
+    // Packs bits most significant first into a byte array
+    private static final class BitWriter {
+        private final byte[] out;
+        private int position;
+        private long buffer;  // Pending bits, right-aligned
+        private int buffered;
+
+        BitWriter(byte[] out, int offset) {
+            this.out = out;
+            this.position = offset;
+        }
+
+        // Write the low count bits of value (count <= 32)
+        void writeBits(long value, int count) {
+            buffer = (buffer << count) | (value & ((1L << count) - 1));
+            buffered += count;
+            while (buffered >= 8) {
+                buffered -= 8;
+                out[position++] = (byte) (buffer >>> buffered);
+            }
+        }
+
+        // Write the low count bits of value (count <= 64)
+        void writeLongBits(long value, int count) {
+            if (count > 32) {
+                writeBits(value >>> 32, count - 32);
+                count = 32;
+            }
+            writeBits(value, count);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeBits((value & 0x7F) | 0x80, 8);
+                value >>>= 7;
+            }
+            writeBits(value, 8);
+        }
+
+        // Pad the last byte with zeros, returns the position after it
+        int finish() {
+            if (buffered > 0) {
+                out[position++] = (byte) (buffer << (8 - buffered));
+                buffered = 0;
+            }
+            return position;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] in;
+        private final int end;
+        private int position;
+        private long buffer;
+        private int buffered;
+
+        BitReader(byte[] in, int offset, int length) {
+            this.in = in;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        // Read count bits (count <= 32)
+        long readBits(int count) {
+            while (buffered < count) {
+                if (position >= end) throw new IllegalArgumentException("Encoded block is truncated");
+                buffer = (buffer << 8) | (in[position++] & 0xFF);
+                buffered += 8;
+            }
+            buffered -= count;
+            return (buffer >>> buffered) & ((1L << count) - 1);
+        }
+
+        long readLongBits(int count) {
+            if (count > 32) {
+                long high = readBits(count - 32);
+                return (high << 32) | readBits(32);
+            }
+            return readBits(count);
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                long b = readBits(8);
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint in encoded block");
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.humbl.imuapp;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * The one OkHttp client every upload and token request goes through. Its connection pool keeps
+ * connections to the blob store, the token function and ArcGIS open between requests, so only the
+ * first request to a host pays for the TLS handshake, and requests to a host that speaks HTTP/2 share
+ * a single connection. Clients that need other settings derive from it with newBuilder(), which
+ * keeps the same pool.
+ */
+public final class HttpClients {
+    public static final long CONNECT_TIMEOUT_MS = 15_000;
+    public static final long READ_TIMEOUT_MS = 60_000;  // Also for writes, e.g. a block of a big upload
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static OkHttpClient shared;
+
+    private HttpClients() {
+    }
+
+    public static synchronized OkHttpClient shared() {
+        if (shared == null) shared = newBuilder().build();
+        return shared;
+    }
+
+    // The shared client's settings with a pool of its own, e.g. for a test server's certificates
+    public static OkHttpClient.Builder newBuilder() {
+        return new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .writeTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                .socketFactory(new NoDelaySocketFactory());
+    }
+
+    // Sends a request's headers and body as soon as they are written; with Nagle's algorithm a
+    // small body waits for the server to acknowledge the headers, which it may delay for 40 ms
+    private static class NoDelaySocketFactory extends SocketFactory {
+        private final SocketFactory platform = SocketFactory.getDefault();
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return noDelay(platform.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return noDelay(platform.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return noDelay(platform.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return noDelay(platform.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return noDelay(platform.createSocket(address, port, localAddress, localPort));
+        }
+
+        private static Socket noDelay(Socket socket) throws IOException {
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    // The whole file, streamed from disk as it is sent
+    public static RequestBody fileBody(File file, @Nullable MediaType contentType) {
+        return RequestBody.create(file, contentType);
+    }
+
+    // length bytes of the file from offset, streamed from disk as they are sent, and again if the
+    // request is retried
+    public static RequestBody fileBody(File file, long offset, long length, @Nullable MediaType contentType) {
+        return new RequestBody() {
+            @Nullable
+            @Override
+            public MediaType contentType() {
+                return contentType;
+            }
+
+            @Override
+            public long contentLength() {
+                return length;
+            }
+
+            @Override
+            public void writeTo(BufferedSink sink) throws IOException {
+                byte[] buffer = new byte[64 * 1024];
+                try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                    in.seek(offset);
+                    long left = length;
+                    while (left > 0) {
+                        int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                        if (n < 0) throw new IOException(file.getName() + " ended before " + (offset + length));
+                        sink.write(buffer, 0, n);
+                        left -= n;
+                    }
+                }
+            }
+        };
+    }
+}
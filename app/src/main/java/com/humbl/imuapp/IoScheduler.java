@@ -0,0 +1,151 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The few threads all network work runs on, instead of a thread per request: however many events
+ * are pressed or clips written, requests go out on WORKERS threads, plus the blocks of big files on
+ * the few threads BlockBlobUploader shares between all of them (see BlockBlobUploader). Work is
+ * queued in lanes, and a free worker always takes the oldest task of the most urgent lane, so an
+ * event's pins go out ahead of a recording upload that was queued before them. Each lane holds a
+ * bounded number of waiting tasks; past that, submit refuses the task (RejectedExecutionException)
+ * rather than letting a burst pile up in memory.
+ *
+ * The shared scheduler lives as long as the process, but holds no threads while there is nothing
+ * to do: workers end after 30 s without work and are started again by the next task.
+ */
+public class IoScheduler {
+    private static final String TAG = "IoScheduler";
+    public static final int WORKERS = 4;
+
+    public enum Lane {
+        EVENT(256),  // Event pins and features, due as soon as possible
+        NORMAL(256), // Event clips, tokens
+        BULK(64);    // Whole recordings
+
+        final int capacity; // Tasks that may wait in the lane
+
+        Lane(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static IoScheduler shared;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicIntegerArray waiting = new AtomicIntegerArray(Lane.values().length);
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    public IoScheduler(int workers) {
+        executor = new ThreadPoolExecutor(workers, workers, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+                r -> new Thread(r, "IoWorker-" + threadCount.incrementAndGet()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized IoScheduler shared() {
+        if (shared == null) shared = new IoScheduler(WORKERS);
+        return shared;
+    }
+
+    // Queue a task in its lane; cancel the returned future to take it out of the queue, or to
+    // interrupt it while it runs. Throws RejectedExecutionException if the lane is full or the
+    // scheduler is shut down
+    public Future<?> submit(Lane lane, Runnable task) {
+        int waitingNow = waiting.incrementAndGet(lane.ordinal());
+        if (waitingNow > lane.capacity) {
+            waiting.decrementAndGet(lane.ordinal());
+            throw new RejectedExecutionException(lane + " lane is full");
+        }
+        LaneTask queued = new LaneTask(lane, sequence.getAndIncrement(), task);
+        try {
+            executor.execute(queued);
+        } catch (RejectedExecutionException e) {
+            waiting.decrementAndGet(lane.ordinal());
+            throw e;
+        }
+        return queued;
+    }
+
+    // Tasks waiting in the lane, not counting those running
+    public int getWaitingCount(Lane lane) {
+        return waiting.get(lane.ordinal());
+    }
+
+    // Threads the scheduler has started so far, for checking they stay bounded
+    public int getThreadsStarted() {
+        return threadCount.get();
+    }
+
+    // Refuse new tasks, and let the workers end once the queued ones are done
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    // Ordered by lane, then by when it was submitted
+    private class LaneTask extends FutureTask<Void> implements Comparable<LaneTask> {
+        final Lane lane;
+        final long order;
+        private final AtomicInteger left = new AtomicInteger(1); // 1 while still counted as waiting
+
+        LaneTask(Lane lane, long order, Runnable task) {
+            super(task, null);
+            this.lane = lane;
+            this.order = order;
+        }
+
+        @Override
+        public void run() {
+            leaveQueue();
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            // Free its place in the lane now rather than when a worker gets to it
+            if (cancelled && executor.remove(this)) leaveQueue();
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (isCancelled()) return;
+            try {
+                get();
+            } catch (Exception e) {
+                Log.e(TAG, "Task in the " + lane + " lane failed", e.getCause() != null ? e.getCause() : e);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull LaneTask other) {
+            if (lane != other.lane) return Integer.compare(lane.ordinal(), other.lane.ordinal());
+            return Long.compare(order, other.order);
+        }
+
+        private void leaveQueue() {
+            if (left.getAndSet(0) == 1) waiting.decrementAndGet(lane.ordinal());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.humbl.imuapp;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The position fixes of a recording, used to place the sensor rows on the map when exporting.
+ * Fixes are stored once, at the rate they arrive (SampleSchema.locationFixes()), rather than
+ * copied into every sensor row; their timestamps are on the sensors' elapsedRealtimeNanos clock,
+ * so a row's position is interpolated linearly between the fixes either side of its grid time.
+ *
+ * Rows before the first fix, after the last one, or in a gap longer than maxGapNanos (signal
+ * lost) get no position rather than a stale one.
+ */
+public class LocationTrack {
+    private final long maxGapNanos;
+    private long[] times = new long[64];
+    private double[] latitudes = new double[64];
+    private double[] longitudes = new double[64];
+    private int size;
+
+    public LocationTrack(long maxGapNanos) {
+        this.maxGapNanos = maxGapNanos;
+    }
+
+    // Read the fixes of a locationFixes() table
+    public static LocationTrack read(SampleCursor cursor, SampleSchema schema, long maxGapNanos) throws IOException {
+        LocationTrack track = new LocationTrack(maxGapNanos);
+        int timeSlot = schema.getSlot(schema.indexOf("timeStampNs"));
+        int latitudeSlot = schema.getSlot(schema.indexOf("latitude"));
+        int longitudeSlot = schema.getSlot(schema.indexOf("longitude"));
+        SampleRow row = schema.newRow();
+        try (SampleCursor fixes = cursor) {
+            while (fixes.next(row)) {
+                track.add(row.longs[timeSlot], row.doubles[latitudeSlot], row.doubles[longitudeSlot]);
+            }
+        }
+        return track;
+    }
+
+    // Fixes must come in time order; one that does not is ignored
+    public void add(long timeNanos, double latitude, double longitude) {
+        if (size > 0 && timeNanos <= times[size - 1]) return;
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            latitudes = Arrays.copyOf(latitudes, size * 2);
+            longitudes = Arrays.copyOf(longitudes, size * 2);
+        }
+        times[size] = timeNanos;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Latitude and longitude at timeNanos into out[0] and out[1]; false if there is no position then
+    public boolean interpolate(long timeNanos, double[] out) {
+        int after = Arrays.binarySearch(times, 0, size, timeNanos);
+        if (after >= 0) {
+            out[0] = latitudes[after];
+            out[1] = longitudes[after];
+            return true;
+        }
+        after = -after - 1; // First fix later than timeNanos
+        if (after == 0 || after == size) return false;
+        int before = after - 1;
+        long gap = times[after] - times[before];
+        if (gap > maxGapNanos) return false;
+
+        double fraction = (double) (timeNanos - times[before]) / gap;
+        double longitudeStep = longitudes[after] - longitudes[before];
+        // Take the short way round across the antimeridian
+        if (longitudeStep > 180) longitudeStep -= 360;
+        else if (longitudeStep < -180) longitudeStep += 360;
+        double longitude = longitudes[before] + fraction * longitudeStep;
+        if (longitude > 180) longitude -= 360;
+        else if (longitude < -180) longitude += 360;
+        out[0] = latitudes[before] + fraction * (latitudes[after] - latitudes[before]);
+        out[1] = longitude;
+        return true;
+    }
+}
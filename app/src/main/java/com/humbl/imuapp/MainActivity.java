@@ -1,42 +1,52 @@
 package com.humbl.imuapp;
 
 //import static androidx.core.content.ContextCompat.getSystemService;
+import android.Manifest;
 import android.annotation.SuppressLint;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
 //import android.util.Log; //Needed for Log debugging statements
 import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.app.ActivityCompat;
 import androidx.core.content.FileProvider;
 import androidx.viewpager2.widget.ViewPager2;
 import com.google.android.material.tabs.TabLayout;
 import com.google.android.material.tabs.TabLayoutMediator;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Map;
 
 
 public class MainActivity extends AppCompatActivity implements RecordFragment.OnRecordControlListener {
 
-    private DataExport dataLivePlot;
-    private long recordingStartTime;
-    private boolean isAccelEnabled, isGyroEnabled, isGPSEnabled;
+    private boolean isGPSEnabled;
+    private Map<SensorChannel, Integer> channelRates; // SENSOR_DELAY_* constants or periods in microseconds
+    private int batchLatencyUs; // 0 for unbatched capture
+    private RecordFragment.RecordingOptions recordingOptions;
     public static final int REQUEST_LOCATION_PERMISSION = 1; //Request code for GPS permissions
     private PlotFragment plotFragment; //fragment to plot live data
-    private SynchronizedDataCollector synchronizedDataCollector;
+    // The recording service, while bound and running; it does all sensor capture, the plots
+    // only follow its live samples
+    private SynchronizedData_BackgroundService recordingService;
+    private boolean livePlotVisible, liveSubscribed;
     private static final int REQUEST_STORAGE_PERMISSION = 1001;
     private String pendingRecordingNameForExport = null;
 
@@ -52,6 +62,53 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
             }
         }
     };
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            recordingService = ((SynchronizedData_BackgroundService.LocalBinder) service).getService();
+            updateLiveSubscription();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            recordingService = null;
+            liveSubscribed = false;
+        }
+    };
+
+    // Newest live sample waiting for the UI thread; one reused runnable is posted for it, and if the
+    // UI falls behind only the newest sample is plotted
+    private final Object liveSampleLock = new Object();
+    private long pendingLiveTimeMs;
+    private SensorChannel[] pendingLiveChannels;
+    private float[] pendingLiveValues = new float[0], shownLiveValues = new float[0];
+    private boolean liveSamplePosted;
+    private final Runnable showLiveSample = () -> {
+        long timeMs;
+        SensorChannel[] channels;
+        synchronized (liveSampleLock) {
+            liveSamplePosted = false;
+            timeMs = pendingLiveTimeMs;
+            channels = pendingLiveChannels;
+            if (shownLiveValues.length != pendingLiveValues.length) shownLiveValues = new float[pendingLiveValues.length];
+            System.arraycopy(pendingLiveValues, 0, shownLiveValues, 0, shownLiveValues.length);
+        }
+        plotFragment.addSample(timeMs, channels, shownLiveValues);
+    };
+
+    // Called on the service's drain thread; the values are reused, so copy them before posting
+    private final SynchronizedDataCollector.LiveSampleListener liveSampleListener = (timeMs, channels, values) -> {
+        synchronized (liveSampleLock) {
+            if (pendingLiveValues.length != values.length) pendingLiveValues = new float[values.length];
+            System.arraycopy(values, 0, pendingLiveValues, 0, values.length);
+            pendingLiveTimeMs = timeMs;
+            pendingLiveChannels = channels;
+            if (liveSamplePosted) return;
+            liveSamplePosted = true;
+        }
+        runOnUiThread(showLiveSample);
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -66,6 +123,9 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
             prefs.edit().putString("DEVICE_ID", deviceId).apply();
         }
 
+        // Uploads a killed process left unfinished carry on, recording or not
+        SynchronizedData_BackgroundService.getUploadQueue(this);
+
         //Checking if gyroscope is on the device - toast message if not available
         SensorManager sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
         Sensor gyroSensor = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
@@ -91,11 +151,71 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
                 (tab, position) -> tab.setText(adapter.getTitle(position))
         ).attach();
 
+        offerRecoveredRecordings();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        // Without BIND_AUTO_CREATE this connects whenever the service is running, i.e. while recording
+        bindService(new Intent(this, SynchronizedData_BackgroundService.class), serviceConnection, 0);
+    }
+
+    @Override
+    protected void onStop() {
+        if (recordingService != null && liveSubscribed) recordingService.removeLiveSampleListener(liveSampleListener);
+        liveSubscribed = false;
+        recordingService = null;
+        unbindService(serviceConnection);
+        super.onStop();
+    }
+
+    // The plot tab tells us when it is shown, so live samples only flow while someone looks at them
+    void setLivePlotVisible(boolean visible) {
+        livePlotVisible = visible;
+        updateLiveSubscription();
+    }
+
+    private void updateLiveSubscription() {
+        boolean wanted = recordingService != null && livePlotVisible;
+        if (wanted == liveSubscribed) return;
+        if (wanted) {
+            recordingService.addLiveSampleListener(liveSampleListener);
+        } else if (recordingService != null) {
+            recordingService.removeLiveSampleListener(liveSampleListener);
+        }
+        liveSubscribed = wanted;
+    }
+
+    // Recordings that were stopped but never exported (e.g. the app was killed) are still on disk
+    private void offerRecoveredRecordings() {
+        for (RecordingSession session : RecordingSession.list(SynchronizedData_BackgroundService.getRecordingsRoot(this))) {
+            if (!RecordingSession.STATE_STOPPED.equals(session.getState())) continue;
+
+            String name = session.getName().isEmpty() ? "recovered_" + session.getStartTime() : session.getName();
+            new AlertDialog.Builder(this)
+                    .setTitle("Recover recording")
+                    .setMessage("The recording \"" + name + "\" was interrupted before it was exported. Export it now?")
+                    .setPositiveButton("Export", (dialog, which) -> requestExport(name, session.getDirectory()))
+                    .setNegativeButton("Discard", (dialog, which) -> discard(session))
+                    .show();
+            return; // One at a time
+        }
+    }
+
+    // Through the service if it is up, as it may still have the session open
+    private void discard(RecordingSession session) {
+        if (recordingService != null) {
+            recordingService.discardRecording(session.getDirectory());
+        } else {
+            session.delete();
+        }
     }
     @SuppressLint("UnspecifiedRegisterReceiverFlag")
     @Override
-    public void onStartRecording(boolean accel, boolean gyro, boolean gps) {
-        //Log.d("MainActivity", "onStartRecording called with accel: " + accel + ", gyro: " + gyro + ", gps: " + gps); //Uncomment for debugging of user selection checkboxes
+    public void onStartRecording(Map<SensorChannel, Integer> channelRates, boolean gps, int batchLatencyUs,
+                                 RecordFragment.RecordingOptions options) {
+        //Log.d("MainActivity", "onStartRecording called with channels: " + channelRates.keySet() + ", gps: " + gps); //Uncomment for debugging of user selection checkboxes
         String recordingName = // get this from EditText where user enters recording name
                 ((EditText) findViewById(R.id.editRecordingName)).getText().toString().trim();
 
@@ -104,15 +224,40 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
                 .putString("CURRENT_RECORDING_NAME", recordingName)
                 .apply();
         //User preferences for checkboxes
-        isAccelEnabled = accel;
-        isGyroEnabled = gyro;
+        this.channelRates = channelRates;
         isGPSEnabled = gps;
+        this.batchLatencyUs = batchLatencyUs;
+        recordingOptions = options;
+
+        // The service can't ask for the location permission, so ask before starting it;
+        // onRequestPermissionsResult starts the recording once answered
+        if (gps && ActivityCompat.checkSelfPermission(this, Manifest.permission.ACCESS_FINE_LOCATION)
+                != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
+                    REQUEST_LOCATION_PERMISSION);
+            return;
+        }
 
         // Start the background service for recording
         Intent serviceIntent = new Intent(this, SynchronizedData_BackgroundService.class);
-        serviceIntent.putExtra("ACCEL_ENABLED", isAccelEnabled);
-        serviceIntent.putExtra("GYRO_ENABLED", isGyroEnabled);
+        String[] channelNames = new String[channelRates.size()];
+        int[] rates = new int[channelRates.size()];
+        int i = 0;
+        for (Map.Entry<SensorChannel, Integer> channelRate : channelRates.entrySet()) {
+            channelNames[i] = channelRate.getKey().getName();
+            rates[i++] = channelRate.getValue();
+        }
+        serviceIntent.putExtra("CHANNELS", channelNames);
+        serviceIntent.putExtra("CHANNEL_RATES", rates);
         serviceIntent.putExtra("GPS_ENABLED", isGPSEnabled);
+        serviceIntent.putExtra("BATCH_LATENCY_US", batchLatencyUs);
+        serviceIntent.putExtra("GRID_RATE_HZ", options.gridRateHz);
+        serviceIntent.putExtra("INTERPOLATION", options.interpolation);
+        serviceIntent.putExtra("LOCATION_INTERVAL_MS", options.locationIntervalMs);
+        serviceIntent.putExtra("INTERPOLATE_POSITIONS", options.interpolatePositions);
+        serviceIntent.putExtra("CLIP_PRE_MS", options.clipPreMs);
+        serviceIntent.putExtra("CLIP_POST_MS", options.clipPostMs);
+        serviceIntent.putExtra("RECORDING_NAME", recordingName);
         if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.O) {
             // For API 26 and up
             startForegroundService(serviceIntent);
@@ -121,13 +266,8 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
             startService(serviceIntent);
         }
 
-        // Start a local data collector for live plots (separate instance for live plotting)
-        recordingStartTime = System.currentTimeMillis();
-        dataLivePlot = new DataExport(); // Only for plotting (not exported)
-        synchronizedDataCollector = new SynchronizedDataCollector(
-                this, dataLivePlot, isAccelEnabled, isGyroEnabled, isGPSEnabled, recordingStartTime, plotFragment
-        );
-        synchronizedDataCollector.start();
+        // No collector here: the binding made in onStart connects once the service is up, and
+        // the plots then follow its live samples
         plotFragment.resetCharts(); //reset the live plotting charts so plot is current recording
 
 
@@ -145,73 +285,75 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
     }
     @Override
     public void onEventRecorded() {
-        long relativeTime = System.currentTimeMillis() - recordingStartTime;
-
-        // Send event to the Service
-        Intent eventIntent = new Intent(this, SynchronizedData_BackgroundService.class);
-        eventIntent.setAction("ACTION_RECORD_EVENT");
-        eventIntent.putExtra("EVENT_TIMESTAMP", relativeTime);
-        startService(eventIntent);
-
-        // Update local plotter data with event time
-        if (dataLivePlot != null) {
-            dataLivePlot.addEvent(relativeTime);
-
-            ArrayList<String[]> rows = dataLivePlot.getSensorData("Synchronized");
-            if (rows != null && !rows.isEmpty()) {
-                String[] lastRow = rows.get(rows.size() - 1);
-                // 10th column = index 9
-                lastRow[11] = String.valueOf(relativeTime);
-
-                // Prompt user for description
-                AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
-                builder.setTitle("Describe the Event");
-
-                final EditText input = new EditText(this);
-                input.setHint("Enter a short description...");
-                builder.setView(input);
+        // Taken now, so the event lands where it was pressed however long the command waits
+        long pressedAt = SystemClock.elapsedRealtimeNanos();
+        if (recordingService == null) {
+            Toast.makeText(this, "Recording service not connected.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        // The service marks the event on its own clock, the one the recorded rows are stamped with
+        recordingService.recordEvent(pressedAt, eventTime -> {
+            if (eventTime >= 0) runOnUiThread(() -> describeEvent(pressedAt, eventTime));
+        });
+    }
 
-                builder.setPositiveButton("OK", (dialog, which) -> {
-                    String description = input.getText().toString();
-                    Intent descIntent = new Intent(MainActivity.this, SynchronizedData_BackgroundService.class);
-                    descIntent.setAction("ACTION_ADD_EVENT_DESCRIPTION");
-                    descIntent.putExtra("EVENT_DESCRIPTION", description);
-                    descIntent.putExtra("EVENT_TIMESTAMP", relativeTime); // still relative
-                    startService(descIntent);
+    private void describeEvent(long pressedAt, long eventTime) {
+        if (isFinishing()) return;
+        // Prompt user for description
+        AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
+        builder.setTitle("Describe the Event");
 
+        final EditText input = new EditText(this);
+        input.setHint("Enter a short description...");
+        builder.setView(input);
 
-                    InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
-                    if (imm != null) {
-                        imm.hideSoftInputFromWindow(input.getWindowToken(), 0);
-                    }
+        builder.setPositiveButton("OK", (dialog, which) -> {
+            String description = input.getText().toString();
+            if (recordingService != null) recordingService.describeEvent(pressedAt, description);
 
-                    Log.d("Export", "Row with description saved: " + Arrays.toString(lastRow));
-                });
+            InputMethodManager imm = (InputMethodManager) getSystemService(Context.INPUT_METHOD_SERVICE);
+            if (imm != null) {
+                imm.hideSoftInputFromWindow(input.getWindowToken(), 0);
+            }
 
-                builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
-                builder.show();
+            Log.d("Export", "Description saved for event at " + eventTime / 1_000_000 + " ms");
+        });
 
-            }
-        }
+        builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
+        builder.show();
 
         // Send the event time to the plot for visual marking
         if (plotFragment != null) {
-            plotFragment.addEventMarker(relativeTime/1000f); // convert to seconds if X-axis uses seconds
+            plotFragment.addEventMarker(eventTime / 1e9f); // convert to seconds if X-axis uses seconds
         }
     }
 
     //Stop the background service from recording
     @Override
     public void onStopRecording() {
-        // Stop only local collector (plotting)
-        if (synchronizedDataCollector != null) {
-            synchronizedDataCollector.stop();
+        // Stop background data collector (sensor capture)
+        if (recordingService != null) {
+            recordingService.stopRecording();
+        } else {
+            // Not bound yet, e.g. stopped right after starting
+            Intent pauseIntent = new Intent(this, SynchronizedData_BackgroundService.class);
+            pauseIntent.setAction(SynchronizedData_BackgroundService.ACTION_STOP_RECORDING);
+            startService(pauseIntent);
         }
+    }
 
-        // Stop background data collector (sensor capture)
-        Intent pauseIntent = new Intent(this, SynchronizedData_BackgroundService.class);
-        pauseIntent.setAction("ACTION_STOP_RECORDING");
-        startService(pauseIntent); // Add handling in service
+    // Export through the bound service; a recovered recording may need the service started first,
+    // which only an intent does
+    private void requestExport(String recordingName, @Nullable File sessionDirectory) {
+        if (recordingService != null) {
+            recordingService.exportRecording(recordingName, sessionDirectory);
+            return;
+        }
+        Intent exportIntent = new Intent(this, SynchronizedData_BackgroundService.class);
+        exportIntent.setAction(SynchronizedData_BackgroundService.ACTION_EXPORT_DATA);
+        exportIntent.putExtra("RECORDING_NAME", recordingName);
+        if (sessionDirectory != null) exportIntent.putExtra("SESSION_DIR", sessionDirectory.getAbsolutePath());
+        startService(exportIntent);
     }
 
 
@@ -238,7 +380,17 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
             }
         }
 
-        // 3. Reset plot/chart data if needed
+        // 3. Delete the recording's segment files, so it is not offered for recovery
+        if (recordingService != null) {
+            recordingService.discardRecording(null);
+        } else {
+            // Not bound, e.g. deleted right after stopping
+            Intent discardIntent = new Intent(this, SynchronizedData_BackgroundService.class);
+            discardIntent.setAction(SynchronizedData_BackgroundService.ACTION_DISCARD_RECORDING);
+            startService(discardIntent);
+        }
+
+        // 4. Reset plot/chart data if needed
         if (plotFragment != null) {
             plotFragment.resetCharts();
         }
@@ -248,11 +400,7 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
 
     @Override
     public void onExportRecording(String recordingName) {
-        // Send an intent to the Service to trigger the export
-        Intent exportIntent = new Intent(this, SynchronizedData_BackgroundService.class);
-        exportIntent.setAction("ACTION_EXPORT_DATA");
-        exportIntent.putExtra("RECORDING_NAME", recordingName);
-        startService(exportIntent);
+        requestExport(recordingName, null);
     }
     private void shareZipFile(String zipFilePath) {
         File zipFile = new File(zipFilePath);
@@ -276,9 +424,10 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
 
         if (requestCode == REQUEST_LOCATION_PERMISSION) {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                onStartRecording(isAccelEnabled, isGyroEnabled, isGPSEnabled);
+                onStartRecording(channelRates, isGPSEnabled, batchLatencyUs, recordingOptions);
             } else {
-                Toast.makeText(this, "Location permission denied.", Toast.LENGTH_SHORT).show();
+                Toast.makeText(this, "Location permission denied, recording without GPS.", Toast.LENGTH_SHORT).show();
+                onStartRecording(channelRates, false, batchLatencyUs, recordingOptions);
             }
         } else if (requestCode == REQUEST_STORAGE_PERMISSION) {
             if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
@@ -293,21 +442,12 @@ public class MainActivity extends AppCompatActivity implements RecordFragment.On
     }
 
     private void exportAndStop(String recordingName) {
-        // Send export intent
-        Intent exportIntent = new Intent(this, SynchronizedData_BackgroundService.class);
-        exportIntent.setAction("ACTION_EXPORT_DATA");
-        exportIntent.putExtra("RECORDING_NAME", recordingName);
-        startService(exportIntent);
+        requestExport(recordingName, null);
 
         // Stop background service
         Intent serviceIntent = new Intent(this, SynchronizedData_BackgroundService.class);
         stopService(serviceIntent);
 
-        // Stop local plotting
-        if (synchronizedDataCollector != null) {
-            synchronizedDataCollector.stop();
-        }
-
         // Unregister export receiver
         unregisterReceiver(exportReceiver);
     }
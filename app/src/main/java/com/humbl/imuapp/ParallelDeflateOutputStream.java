@@ -0,0 +1,191 @@
+package com.humbl.imuapp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflates a stream on several threads, the way pigz does. The input is cut into chunks that
+ * are compressed independently, each primed with the last 32 KB of the chunk before it so the
+ * compression ratio stays close to a single deflate stream. Chunks end on a sync flush, so
+ * their outputs simply concatenate into one raw deflate stream, written in order.
+ *
+ * At most two chunks per thread are in flight, and their buffers are reused, so memory stays
+ * bounded however large the stream is. The stream also keeps the CRC32 and sizes needed by
+ * zip and gzip containers.
+ */
+public class ParallelDeflateOutputStream extends OutputStream {
+    static final int CHUNK_BYTES = 128 * 1024;
+    private static final int DICTIONARY_BYTES = 32 * 1024;
+
+    private final OutputStream out;
+    private final ExecutorService workers;
+    private final ArrayDeque<Job> free = new ArrayDeque<>();
+    private final ArrayDeque<Future<Job>> inFlight = new ArrayDeque<>();
+    private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] single = new byte[1];
+    private Job current;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private boolean finished;
+    private volatile boolean shutDown;
+
+    // A chunk of input and the buffer its compressed output goes to
+    private static final class Job {
+        final byte[] input = new byte[DICTIONARY_BYTES + CHUNK_BYTES];
+        byte[] output = new byte[CHUNK_BYTES + CHUNK_BYTES / 8 + 64];
+        int dictionaryLength;
+        int inputLength;
+        int outputLength;
+        boolean last;
+    }
+
+    public ParallelDeflateOutputStream(OutputStream out, int threads, int level) {
+        this.out = out;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "ParallelDeflate");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < 2 * threads; i++) free.add(new Job());
+        for (int i = 0; i < threads; i++) deflaters.add(new Deflater(level, true));
+        current = free.poll();
+    }
+
+    public long getCrc() {
+        return crc.getValue();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        single[0] = (byte) b;
+        write(single, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) throw new IOException("Stream already finished");
+        crc.update(b, off, len);
+        uncompressedBytes += len;
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_BYTES - current.inputLength);
+            System.arraycopy(b, off, current.input, DICTIONARY_BYTES + current.inputLength, n);
+            current.inputLength += n;
+            off += n;
+            len -= n;
+            if (current.inputLength == CHUNK_BYTES) submit(false);
+        }
+    }
+
+    // Compress and write everything, ending the deflate stream; the underlying stream stays open
+    public void finish() throws IOException {
+        if (finished) return;
+        submit(true);
+        while (!inFlight.isEmpty()) writeOldest();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            shutdown();
+        }
+    }
+
+    // Stop the workers without writing anything more, e.g. after a failed export
+    public void shutdown() {
+        workers.shutdownNow();
+        synchronized (deflaters) {
+            shutDown = true;
+            for (Deflater deflater : deflaters) deflater.end();
+            deflaters.clear();
+        }
+    }
+
+    private void submit(boolean last) throws IOException {
+        Job job = current;
+        job.last = last;
+        inFlight.add(workers.submit(() -> compress(job)));
+        if (last) return;
+
+        if (free.isEmpty()) writeOldest();
+        Job next = free.poll();
+        // Prime with the end of this chunk, so matches can reach back across the boundary
+        int length = Math.min(DICTIONARY_BYTES, job.inputLength);
+        System.arraycopy(job.input, DICTIONARY_BYTES + job.inputLength - length,
+                next.input, DICTIONARY_BYTES - length, length);
+        next.dictionaryLength = length;
+        next.inputLength = 0;
+        current = next;
+    }
+
+    private Job compress(Job job) {
+        Deflater deflater;
+        synchronized (deflaters) {
+            deflater = deflaters.poll();
+        }
+        if (deflater == null) throw new IllegalStateException("Stream was shut down");
+        try {
+            deflater.reset();
+            if (job.dictionaryLength > 0) {
+                deflater.setDictionary(job.input, DICTIONARY_BYTES - job.dictionaryLength, job.dictionaryLength);
+            }
+            deflater.setInput(job.input, DICTIONARY_BYTES, job.inputLength);
+            if (job.last) deflater.finish();
+            int flush = job.last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH;
+            job.outputLength = 0;
+            while (true) {
+                if (job.outputLength == job.output.length) {
+                    byte[] larger = new byte[job.output.length * 2];
+                    System.arraycopy(job.output, 0, larger, 0, job.outputLength);
+                    job.output = larger;
+                }
+                int space = job.output.length - job.outputLength;
+                int n = deflater.deflate(job.output, job.outputLength, space, flush);
+                job.outputLength += n;
+                // A sync flush is complete once it no longer fills the buffer
+                if (job.last ? deflater.finished() : n < space) break;
+            }
+            return job;
+        } finally {
+            synchronized (deflaters) {
+                if (shutDown) deflater.end();
+                else deflaters.add(deflater);
+            }
+        }
+    }
+
+    // Wait for the oldest chunk and write its output, keeping the stream in order
+    private void writeOldest() throws IOException {
+        Job job;
+        try {
+            job = inFlight.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+        out.write(job.output, 0, job.outputLength);
+        compressedBytes += job.outputLength;
+        free.add(job);
+    }
+}
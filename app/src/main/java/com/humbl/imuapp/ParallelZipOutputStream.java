@@ -0,0 +1,107 @@
+package com.humbl.imuapp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+/**
+ * Writes a zip archive holding a single deflated entry, compressed on several threads by
+ * ParallelDeflateOutputStream. ZipOutputStream only accepts uncompressed data, so the zip
+ * records are written here: the local header has no sizes (they follow the data in a data
+ * descriptor), then come the central directory and the end record. Entries must stay below
+ * 4 GB, as Zip64 is not written.
+ */
+public class ParallelZipOutputStream extends OutputStream {
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int DATA_DESCRIPTOR = 0x08074b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_RECORD = 0x06054b50;
+    private static final int VERSION = 20;                 // 2.0: deflate
+    private static final int FLAGS = 0x0808;               // Sizes in data descriptor, UTF-8 name
+    private static final int DEFLATED = 8;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+    private final ParallelDeflateOutputStream deflater;
+    private final byte[] name;
+    private final int dosTime;
+    private final int dosDate;
+    private boolean closed;
+
+    public ParallelZipOutputStream(OutputStream out, String entryName, int threads, int level) throws IOException {
+        this.out = out;
+        this.name = entryName.getBytes(StandardCharsets.UTF_8);
+        Calendar now = Calendar.getInstance();
+        this.dosTime = (now.get(Calendar.HOUR_OF_DAY) << 11) | (now.get(Calendar.MINUTE) << 5) | (now.get(Calendar.SECOND) / 2);
+        this.dosDate = ((now.get(Calendar.YEAR) - 1980) << 9) | ((now.get(Calendar.MONTH) + 1) << 5) | now.get(Calendar.DAY_OF_MONTH);
+
+        ByteBuffer header = record(30);
+        header.putInt(LOCAL_HEADER).putShort((short) VERSION).putShort((short) FLAGS).putShort((short) DEFLATED)
+                .putShort((short) dosTime).putShort((short) dosDate)
+                .putInt(0).putInt(0).putInt(0)         // CRC and sizes follow in the data descriptor
+                .putShort((short) name.length).putShort((short) 0);
+        out.write(header.array());
+        out.write(name);
+        this.deflater = new ParallelDeflateOutputStream(out, threads, level);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        deflater.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        deflater.write(b, off, len);
+    }
+
+    // Finish the entry, write the central directory and close the underlying stream
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            deflater.finish();
+            long crc = deflater.getCrc();
+            long compressed = deflater.getCompressedBytes();
+            long size = deflater.getUncompressedBytes();
+            if (size > MAX_SIZE || compressed > MAX_SIZE) {
+                throw new IOException("Zip entry too large: " + size + " bytes");
+            }
+
+            ByteBuffer descriptor = record(16);
+            descriptor.putInt(DATA_DESCRIPTOR).putInt((int) crc).putInt((int) compressed).putInt((int) size);
+            out.write(descriptor.array());
+
+            long centralOffset = 30 + name.length + compressed + 16;
+            ByteBuffer central = record(46);
+            central.putInt(CENTRAL_HEADER).putShort((short) VERSION).putShort((short) VERSION)
+                    .putShort((short) FLAGS).putShort((short) DEFLATED)
+                    .putShort((short) dosTime).putShort((short) dosDate)
+                    .putInt((int) crc).putInt((int) compressed).putInt((int) size)
+                    .putShort((short) name.length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0)
+                    .putInt(0);                        // Local header offset: the only entry starts the file
+            out.write(central.array());
+            out.write(name);
+
+            if (centralOffset > MAX_SIZE) {
+                throw new IOException("Zip archive too large: " + centralOffset + " bytes");
+            }
+            ByteBuffer end = record(22);
+            end.putInt(END_RECORD).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1)
+                    .putInt(46 + name.length).putInt((int) centralOffset).putShort((short) 0);
+            out.write(end.array());
+        } finally {
+            deflater.shutdown();
+            out.close();
+        }
+    }
+
+    private static ByteBuffer record(int bytes) {
+        return ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
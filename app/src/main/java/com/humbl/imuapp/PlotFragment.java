@@ -1,5 +1,6 @@
 package com.humbl.imuapp;
 
+import android.content.res.ColorStateList;
 import android.graphics.Color;
 import android.os.Bundle;
 //import android.util.Log; //Uncomment for Log debugging statements
@@ -8,6 +9,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
+import android.widget.LinearLayout;
+import android.widget.TextView;
 
 import androidx.fragment.app.Fragment;
 import com.github.mikephil.charting.charts.LineChart;
@@ -18,55 +21,80 @@ import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
 import com.github.mikephil.charting.formatter.ValueFormatter;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 public class PlotFragment extends Fragment {
-    private LineChart lineChartAccel, lineChartGyro;
-    private LineDataSet accelDataSetX, accelDataSetY, accelDataSetZ;
-    private LineDataSet gyroDataSetX, gyroDataSetY, gyroDataSetZ;
+    private static final int[][] AXIS_COLORS = {
+            {Color.RED, Color.GREEN, Color.BLUE, Color.MAGENTA},
+            {Color.MAGENTA, Color.CYAN, Color.DKGRAY, Color.RED}
+    };
+
+    // Chart of one sensor channel and a checkbox per value
+    private static class ChannelPlot {
+        View block;
+        LineChart chart;
+        LineDataSet[] dataSets;
+        CheckBox[] checkBoxes;
+    }
 
-    private CheckBox checkboxAccelX, checkboxAccelY, checkboxAccelZ;
-    private CheckBox checkboxGyroX, checkboxGyroY, checkboxGyroZ;
+    private final Map<SensorChannel, ChannelPlot> plots = new LinkedHashMap<>();
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.fragment_plot, container, false);
 
-        checkboxAccelX = view.findViewById(R.id.checkboxX_Accel);
-        checkboxAccelY = view.findViewById(R.id.checkboxY_Accel);
-        checkboxAccelZ = view.findViewById(R.id.checkboxZ_Accel);
-        checkboxGyroX = view.findViewById(R.id.checkboxX_Gyro);
-        checkboxGyroY = view.findViewById(R.id.checkboxY_Gyro);
-        checkboxGyroZ = view.findViewById(R.id.checkboxZ_Gyro);
-        setupCheckboxListeners();
-
-        lineChartAccel = view.findViewById(R.id.lineChartAccel);
-        lineChartGyro = view.findViewById(R.id.lineChartGyro);
-
-        setupChart(lineChartAccel, true);
-        setupChart(lineChartGyro, false); //false for boolean of isAccel
+        // A plot for every registered channel, hidden until a recording sends it data
+        plots.clear();
+        ViewGroup plotContainer = view.findViewById(R.id.plotContainer);
+        List<SensorChannel> channels = SensorChannel.all();
+        for (int i = 0; i < channels.size(); i++) {
+            ChannelPlot plot = createPlot(inflater, plotContainer, channels.get(i), AXIS_COLORS[i % AXIS_COLORS.length]);
+            plotContainer.addView(plot.block);
+            plots.put(channels.get(i), plot);
+        }
 
         return view;
     }
 
-    private void setupChart(LineChart chart, boolean isAccel) {
+    private ChannelPlot createPlot(LayoutInflater inflater, ViewGroup parent, SensorChannel channel, int[] colors) {
+        ChannelPlot plot = new ChannelPlot();
+        plot.block = inflater.inflate(R.layout.plot_channel, parent, false);
+        ((TextView) plot.block.findViewById(R.id.plotTitle)).setText(channel.getLabel() + " vs Time");
+        ((TextView) plot.block.findViewById(R.id.plotUnit)).setText(channel.getUnit());
+        plot.chart = plot.block.findViewById(R.id.plotChart);
+
+        ViewGroup checkBoxContainer = plot.block.findViewById(R.id.plotAxisCheckboxes);
+        CompoundButton.OnCheckedChangeListener listener = (buttonView, isChecked) -> updateDatasetVisibility(plot);
+        int arity = channel.getArity();
+        plot.dataSets = new LineDataSet[arity];
+        plot.checkBoxes = new CheckBox[arity];
         LineData data = new LineData();
-
-        if (isAccel) {
-            accelDataSetX = createDataSet("Acc X", Color.RED);
-            accelDataSetY = createDataSet("Acc Y", Color.GREEN);
-            accelDataSetZ = createDataSet("Acc Z", Color.BLUE);
-            data.addDataSet(accelDataSetX);
-            data.addDataSet(accelDataSetY);
-            data.addDataSet(accelDataSetZ);
-        } else {
-            gyroDataSetX = createDataSet("Gyro X", Color.MAGENTA);
-            gyroDataSetY = createDataSet("Gyro Y", Color.CYAN);
-            gyroDataSetZ = createDataSet("Gyro Z", Color.DKGRAY);
-            data.addDataSet(gyroDataSetX);
-            data.addDataSet(gyroDataSetY);
-            data.addDataSet(gyroDataSetZ);
+        for (int k = 0; k < arity; k++) {
+            String axis = channel.getAxis(k);
+            plot.dataSets[k] = createDataSet(axis.isEmpty() ? channel.getLabel() : channel.getLabel() + " " + axis,
+                    colors[k % colors.length]);
+            data.addDataSet(plot.dataSets[k]);
+            if (arity == 1) continue; // Nothing to choose between
+
+            CheckBox checkBox = new CheckBox(getContext());
+            checkBox.setText(axis.toLowerCase(Locale.ROOT));
+            checkBox.setChecked(true);
+            checkBox.setButtonTintList(ColorStateList.valueOf(0xFF3264A8));
+            checkBox.setOnCheckedChangeListener(listener);
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+            if (k > 0) params.setMarginStart((int) (16 * getResources().getDisplayMetrics().density));
+            checkBoxContainer.addView(checkBox, params);
+            plot.checkBoxes[k] = checkBox;
         }
+        setupChart(plot.chart, data);
+        return plot;
+    }
 
+    private void setupChart(LineChart chart, LineData data) {
         chart.setData(data);
         chart.getXAxis().setEnabled(true);
         chart.getXAxis().setPosition(XAxis.XAxisPosition.BOTTOM);
@@ -85,36 +113,30 @@ public class PlotFragment extends Fragment {
         return dataSet;
     }
 
-    public void addAccelData(long timestamp, float accX, float accY, float accZ) {
-        if (lineChartAccel == null) return; // prevent null crash
+    // One live sample: values holds each channel's values in turn
+    public void addSample(long timestamp, SensorChannel[] channels, float[] values) {
         float time = timestamp / 1000f;
-        LineData dataAccel = lineChartAccel.getData();
-        if (dataAccel == null) return;
-
-        // Always add data regardless of checkbox state
-        accelDataSetX.addEntry(new Entry(time, accX));
-        accelDataSetY.addEntry(new Entry(time, accY));
-        accelDataSetZ.addEntry(new Entry(time, accZ));
-
-        dataAccel.notifyDataChanged();
-        lineChartAccel.notifyDataSetChanged();
-        updateWindow(lineChartAccel, time);
+        int offset = 0;
+        for (SensorChannel channel : channels) {
+            ChannelPlot plot = plots.get(channel);
+            if (plot != null) addChannelData(plot, time, values, offset);
+            offset += channel.getArity();
+        }
     }
 
-    public void addGyroData(long timestamp, float gyroX, float gyroY, float gyroZ) {
-        if(lineChartGyro == null) return;
-        float time = timestamp / 1000f;
-        LineData dataGyro = lineChartGyro.getData();
-        if (dataGyro == null) return;
+    private void addChannelData(ChannelPlot plot, float time, float[] values, int offset) {
+        LineData data = plot.chart.getData();
+        if (data == null) return;
+        plot.block.setVisibility(View.VISIBLE);
 
         // Always add data regardless of checkbox state
-        gyroDataSetX.addEntry(new Entry(time, gyroX));
-        gyroDataSetY.addEntry(new Entry(time, gyroY));
-        gyroDataSetZ.addEntry(new Entry(time, gyroZ));
+        for (int k = 0; k < plot.dataSets.length; k++) {
+            plot.dataSets[k].addEntry(new Entry(time, values[offset + k]));
+        }
 
-        dataGyro.notifyDataChanged();
-        lineChartGyro.notifyDataSetChanged();
-        updateWindow(lineChartGyro, time);
+        data.notifyDataChanged();
+        plot.chart.notifyDataSetChanged();
+        updateWindow(plot.chart, time);
     }
 
     private void updateWindow(LineChart chart, float time) {
@@ -124,83 +146,55 @@ public class PlotFragment extends Fragment {
         chart.invalidate();
     }
 
-    private void setupCheckboxListeners() {
-        CompoundButton.OnCheckedChangeListener listener = (buttonView, isChecked) -> {
-            updateDatasetVisibility();
-        };
-
-        checkboxAccelX.setOnCheckedChangeListener(listener);
-        checkboxAccelY.setOnCheckedChangeListener(listener);
-        checkboxAccelZ.setOnCheckedChangeListener(listener);
-        checkboxGyroX.setOnCheckedChangeListener(listener);
-        checkboxGyroY.setOnCheckedChangeListener(listener);
-        checkboxGyroZ.setOnCheckedChangeListener(listener);
+    private void updateDatasetVisibility(ChannelPlot plot) {
+        for (int k = 0; k < plot.dataSets.length; k++) {
+            if (plot.checkBoxes[k] != null) plot.dataSets[k].setVisible(plot.checkBoxes[k].isChecked());
+        }
+        plot.chart.invalidate();
     }
 
-    private void updateDatasetVisibility() {
-        accelDataSetX.setVisible(checkboxAccelX.isChecked());
-        accelDataSetY.setVisible(checkboxAccelY.isChecked());
-        accelDataSetZ.setVisible(checkboxAccelZ.isChecked());
-
-        gyroDataSetX.setVisible(checkboxGyroX.isChecked());
-        gyroDataSetY.setVisible(checkboxGyroY.isChecked());
-        gyroDataSetZ.setVisible(checkboxGyroZ.isChecked());
+    // Live samples are only wanted while the plots are on screen; ViewPager2 only resumes the
+    // page that is showing
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (getActivity() instanceof MainActivity) ((MainActivity) getActivity()).setLivePlotVisible(true);
+    }
 
-        lineChartAccel.invalidate();
-        lineChartGyro.invalidate();
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (getActivity() instanceof MainActivity) ((MainActivity) getActivity()).setLivePlotVisible(false);
     }
 
+    // Clear the plots for a new recording; they show again as its channels send data
     public void resetCharts() {
-        if (lineChartAccel != null) {
-            if (accelDataSetX != null) accelDataSetX.clear();
-            if (accelDataSetY != null) accelDataSetY.clear();
-            if (accelDataSetZ != null) accelDataSetZ.clear();
-            lineChartAccel.getXAxis().removeAllLimitLines();
-            lineChartAccel.getData().notifyDataChanged();
-            lineChartAccel.notifyDataSetChanged();
-            lineChartAccel.invalidate();
-        }
-
-        if (lineChartGyro != null) {
-            if (gyroDataSetX != null) gyroDataSetX.clear();
-            if (gyroDataSetY != null) gyroDataSetY.clear();
-            if (gyroDataSetZ != null) gyroDataSetZ.clear();
-            lineChartGyro.getXAxis().removeAllLimitLines();
-            lineChartGyro.getData().notifyDataChanged();
-            lineChartGyro.notifyDataSetChanged();
-            lineChartGyro.invalidate();
+        for (ChannelPlot plot : plots.values()) {
+            for (LineDataSet dataSet : plot.dataSets) dataSet.clear();
+            plot.chart.getXAxis().removeAllLimitLines();
+            plot.chart.getData().notifyDataChanged();
+            plot.chart.notifyDataSetChanged();
+            plot.chart.invalidate();
+            plot.block.setVisibility(View.GONE);
         }
     }
 
     public void addEventMarker(float eventTimeX) {
-        if (lineChartAccel != null && lineChartAccel.getXAxis() != null) {
+        if (plots.isEmpty()) {
+            android.util.Log.w("PlotFragment", "No charts yet in addEventMarker()");
+            return;
+        }
+        for (ChannelPlot plot : plots.values()) {
             LimitLine eventLine = new LimitLine(eventTimeX, "Event");
             eventLine.setLineColor(Color.BLACK);
             eventLine.setLineWidth(2f);
             eventLine.setTextColor(Color.BLACK);
             eventLine.setTextSize(10f);
 
-            XAxis x1 = lineChartAccel.getXAxis();
-            x1.addLimitLine(eventLine);
-            x1.setDrawLimitLinesBehindData(true);
-            lineChartAccel.invalidate();
-        } else {
-            android.util.Log.w("PlotFragment", "lineChartAccel or its XAxis is null in addEventMarker()");
-        }
-
-        if (lineChartGyro != null && lineChartGyro.getXAxis() != null) {
-            LimitLine eventLine2 = new LimitLine(eventTimeX, "Event");
-            eventLine2.setLineColor(Color.BLACK);
-            eventLine2.setLineWidth(2f);
-            eventLine2.setTextColor(Color.BLACK);
-            eventLine2.setTextSize(10f);
-
-            XAxis x2 = lineChartGyro.getXAxis();
-            x2.addLimitLine(eventLine2);
-            x2.setDrawLimitLinesBehindData(true);
-            lineChartGyro.invalidate();
-        } else {
-            android.util.Log.w("PlotFragment", "lineChartGyro or its XAxis is null in addEventMarker()");
+            XAxis xAxis = plot.chart.getXAxis();
+            xAxis.addLimitLine(eventLine);
+            xAxis.setDrawLimitLinesBehindData(true);
+            plot.chart.invalidate();
         }
     }
     public static class UnitValueFormatter extends ValueFormatter {
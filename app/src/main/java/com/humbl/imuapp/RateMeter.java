@@ -0,0 +1,57 @@
+package com.humbl.imuapp;
+
+/**
+ * Measures the rate a sensor actually delivers, from the hardware timestamps of its readings:
+ * the mean interval, its standard deviation (jitter) and the longest gap. Uses Welford's running
+ * variance, so it keeps nothing per reading and never allocates. Not thread-safe.
+ */
+public class RateMeter {
+    private long count;
+    private long firstNanos;
+    private long lastNanos;
+    private double meanInterval;
+    private double squaredDeviations;
+    private long maxIntervalNanos;
+
+    public void add(long timeNanos) {
+        if (count > 0) {
+            long interval = timeNanos - lastNanos;
+            long n = count; // Intervals so far, including this one
+            double delta = interval - meanInterval;
+            meanInterval += delta / n;
+            squaredDeviations += delta * (interval - meanInterval);
+            if (interval > maxIntervalNanos) maxIntervalNanos = interval;
+        } else {
+            firstNanos = timeNanos;
+        }
+        lastNanos = timeNanos;
+        count++;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    // Readings per second over the whole measurement, 0 until there are two readings
+    public double getAchievedHz() {
+        return count < 2 || lastNanos == firstNanos ? 0 : (count - 1) * 1e9 / (lastNanos - firstNanos);
+    }
+
+    // Time from the first reading to the last
+    public long getDurationNanos() {
+        return count < 2 ? 0 : lastNanos - firstNanos;
+    }
+
+    public double getMeanIntervalUs() {
+        return meanInterval / 1e3;
+    }
+
+    // Standard deviation of the intervals between readings
+    public double getJitterUs() {
+        return count < 3 ? 0 : Math.sqrt(squaredDeviations / (count - 2)) / 1e3;
+    }
+
+    public double getMaxIntervalUs() {
+        return maxIntervalNanos / 1e3;
+    }
+}
@@ -1,13 +1,17 @@
 package com.humbl.imuapp;
 
 import android.content.Context;
+import android.hardware.SensorManager;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CheckBox;
 import android.widget.EditText;
+import android.widget.LinearLayout;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -15,20 +19,62 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.fragment.app.Fragment;
 
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 public class RecordFragment extends Fragment implements View.OnClickListener {
 
     private TextView txtRecProgress;
     private EditText recordingID;
 
-    private CheckBox checkBoxAccel, checkBoxGyro, checkBoxGPS;
+    private CheckBox checkBoxGPS, checkBoxBatching, checkBoxInterpolatePositions;
+    private Spinner gridRateSpinner, interpolationSpinner, locationIntervalSpinner, clipBeforeSpinner, clipAfterSpinner;
+    // One row per registered sensor channel
+    private final List<SensorChannel> channels = SensorChannel.all();
+    private CheckBox[] channelCheckBoxes;
+    private Spinner[] channelRateSpinners;
     private Button startBtn, stopBtn, exportBtn, eventBtn, deleteBtn;
     private OnRecordControlListener recordingControlListener; //Interface
 
+    // Sensor rate choices: SENSOR_DELAY_* constants or sampling periods in microseconds
+    private static final String[] RATE_LABELS = {"5 Hz", "15 Hz", "25 Hz", "50 Hz", "100 Hz", "200 Hz", "400 Hz", "Fastest"};
+    private static final int[] RATES = {
+            SensorManager.SENSOR_DELAY_NORMAL, SensorManager.SENSOR_DELAY_UI, 40_000, SensorManager.SENSOR_DELAY_GAME,
+            10_000, 5_000, 2_500, SensorManager.SENSOR_DELAY_FASTEST
+    };
+    private static final int DEFAULT_RATE_INDEX = 3; // SENSOR_DELAY_GAME, for channels whose default rate isn't listed
+
+    // Resampling grid choices in Hz, 0 following the fastest sensor
+    private static final String[] GRID_LABELS = {"Fastest sensor", "100 Hz", "200 Hz", "400 Hz"};
+    private static final int[] GRID_RATES = {0, 100, 200, 400};
+    private static final String[] INTERPOLATION_LABELS = {"Linear", "Cubic"};
+    private static final int[] INTERPOLATIONS = {SensorSynchronizer.LINEAR, SensorSynchronizer.CUBIC};
+    // Location fix interval choices in milliseconds, the first SynchronizedDataCollector.GPS_INTERVAL_MS
+    private static final String[] LOCATION_INTERVAL_LABELS = {"1 s", "5 s", "10 s", "30 s"};
+    private static final long[] LOCATION_INTERVALS_MS = {1_000, 5_000, 10_000, 30_000};
+    // Event clip window choices in milliseconds, either side of the event
+    private static final String[] CLIP_WINDOW_LABELS = {"2 s", "5 s", "10 s", "20 s", "30 s"};
+    private static final long[] CLIP_WINDOWS_MS = {2_000, 5_000, 10_000, 20_000, 30_000};
+    private static final int DEFAULT_CLIP_WINDOW_INDEX = 2; // EventClipRecorder.DEFAULT_WINDOW_MS
+
     public RecordFragment() {
         // Required empty public constructor
     }
+    // Choices for a recording besides its channels, GPS and batching, as the start intent takes them
+    public static class RecordingOptions {
+        public int gridRateHz;    // Resampling grid, 0 to follow the fastest sensor
+        public int interpolation = SynchronizedDataCollector.DEFAULT_INTERPOLATION;
+        public long locationIntervalMs = SynchronizedDataCollector.GPS_INTERVAL_MS;
+        public boolean interpolatePositions = true; // Positions from the fixes on the exported rows
+        public long clipPreMs = EventClipRecorder.DEFAULT_WINDOW_MS; // Rows kept before and after each event
+        public long clipPostMs = EventClipRecorder.DEFAULT_WINDOW_MS;
+    }
+
     public interface OnRecordControlListener {
-        void onStartRecording(boolean accel, boolean gyro, boolean gps);
+        // rates holds the selected channels in registry order
+        void onStartRecording(Map<SensorChannel, Integer> rates, boolean gps, int batchLatencyUs,
+                              RecordingOptions options);
         void onStopRecording();
         void onEventRecorded();
         void onDeleteRecorded();
@@ -53,9 +99,20 @@ public class RecordFragment extends Fragment implements View.OnClickListener {
 
         // Initialize UI references
         txtRecProgress = view.findViewById(R.id.txtRecordingProgress);
-        checkBoxAccel = view.findViewById(R.id.checkboxLinAccelerometer);
-        checkBoxGyro = view.findViewById(R.id.checkboxGyroscope);
+        addChannelRows(view.findViewById(R.id.channelContainer));
         checkBoxGPS = view.findViewById(R.id.checkboxGPS);
+        checkBoxBatching = view.findViewById(R.id.checkboxBatching);
+        gridRateSpinner = view.findViewById(R.id.spinnerGridRate);
+        setUpSpinner(gridRateSpinner, GRID_LABELS, 0);
+        interpolationSpinner = view.findViewById(R.id.spinnerInterpolation);
+        setUpSpinner(interpolationSpinner, INTERPOLATION_LABELS, 0);
+        locationIntervalSpinner = view.findViewById(R.id.spinnerLocationInterval);
+        setUpSpinner(locationIntervalSpinner, LOCATION_INTERVAL_LABELS, 0);
+        checkBoxInterpolatePositions = view.findViewById(R.id.checkboxInterpolatePositions);
+        clipBeforeSpinner = view.findViewById(R.id.spinnerClipBefore);
+        setUpSpinner(clipBeforeSpinner, CLIP_WINDOW_LABELS, DEFAULT_CLIP_WINDOW_INDEX);
+        clipAfterSpinner = view.findViewById(R.id.spinnerClipAfter);
+        setUpSpinner(clipAfterSpinner, CLIP_WINDOW_LABELS, DEFAULT_CLIP_WINDOW_INDEX);
         recordingID = view.findViewById(R.id.editRecordingName);
 
         //Collapse keyboard after entering recording name by clicking return
@@ -93,6 +150,86 @@ public class RecordFragment extends Fragment implements View.OnClickListener {
 
         return view;
     }
+
+    // A checkbox and a rate spinner for every channel, checked if the channel is recorded by default
+    private void addChannelRows(LinearLayout container) {
+        channelCheckBoxes = new CheckBox[channels.size()];
+        channelRateSpinners = new Spinner[channels.size()];
+        for (int i = 0; i < channels.size(); i++) {
+            SensorChannel channel = channels.get(i);
+            LinearLayout row = new LinearLayout(requireContext());
+            row.setOrientation(LinearLayout.HORIZONTAL);
+
+            CheckBox checkBox = new CheckBox(requireContext());
+            checkBox.setText(channel.getLabel());
+            checkBox.setChecked(channel.isEnabledByDefault());
+            checkBox.setButtonTintList(android.content.res.ColorStateList.valueOf(0xFF3264A8));
+            row.addView(checkBox);
+
+            Spinner spinner = new Spinner(requireContext());
+            setUpRateSpinner(spinner, channel.getDefaultRate());
+            LinearLayout.LayoutParams params = new LinearLayout.LayoutParams(
+                    ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT);
+            params.setMarginStart((int) (8 * getResources().getDisplayMetrics().density));
+            row.addView(spinner, params);
+
+            container.addView(row);
+            channelCheckBoxes[i] = checkBox;
+            channelRateSpinners[i] = spinner;
+        }
+    }
+
+    private void setUpRateSpinner(Spinner spinner, int defaultRate) {
+        int selection = DEFAULT_RATE_INDEX;
+        for (int i = 0; i < RATES.length; i++) {
+            if (RATES[i] == defaultRate) selection = i;
+        }
+        setUpSpinner(spinner, RATE_LABELS, selection);
+    }
+
+    private void setUpSpinner(Spinner spinner, String[] labels, int selection) {
+        ArrayAdapter<String> adapter = new ArrayAdapter<>(requireContext(), android.R.layout.simple_spinner_item, labels);
+        adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinner.setAdapter(adapter);
+        spinner.setSelection(selection);
+    }
+
+    private void setSelectionsEnabled(boolean enabled) {
+        for (int i = 0; i < channels.size(); i++) {
+            channelCheckBoxes[i].setEnabled(enabled);
+            channelRateSpinners[i].setEnabled(enabled);
+        }
+        checkBoxGPS.setEnabled(enabled);
+        checkBoxBatching.setEnabled(enabled);
+        gridRateSpinner.setEnabled(enabled);
+        interpolationSpinner.setEnabled(enabled);
+        locationIntervalSpinner.setEnabled(enabled);
+        checkBoxInterpolatePositions.setEnabled(enabled);
+        clipBeforeSpinner.setEnabled(enabled);
+        clipAfterSpinner.setEnabled(enabled);
+    }
+
+    // Checked channels with the rates chosen for them
+    private Map<SensorChannel, Integer> selectedRates() {
+        Map<SensorChannel, Integer> rates = new LinkedHashMap<>();
+        for (int i = 0; i < channels.size(); i++) {
+            if (channelCheckBoxes[i].isChecked()) {
+                rates.put(channels.get(i), RATES[channelRateSpinners[i].getSelectedItemPosition()]);
+            }
+        }
+        return rates;
+    }
+
+    private RecordingOptions selectedOptions() {
+        RecordingOptions options = new RecordingOptions();
+        options.gridRateHz = GRID_RATES[gridRateSpinner.getSelectedItemPosition()];
+        options.interpolation = INTERPOLATIONS[interpolationSpinner.getSelectedItemPosition()];
+        options.locationIntervalMs = LOCATION_INTERVALS_MS[locationIntervalSpinner.getSelectedItemPosition()];
+        options.interpolatePositions = checkBoxInterpolatePositions.isChecked();
+        options.clipPreMs = CLIP_WINDOWS_MS[clipBeforeSpinner.getSelectedItemPosition()];
+        options.clipPostMs = CLIP_WINDOWS_MS[clipAfterSpinner.getSelectedItemPosition()];
+        return options;
+    }
     @Override
     public void onClick(View v) { //Once click has been registered by the onClickListener - need to figure out what the click is meant for
 
@@ -113,16 +250,15 @@ public class RecordFragment extends Fragment implements View.OnClickListener {
             stopBtn.setEnabled(true);
             deleteBtn.setEnabled(false);
 
-            // Disable checkboxes to lock selections
-            checkBoxAccel.setEnabled(false);
-            checkBoxGyro.setEnabled(false);
-            checkBoxGPS.setEnabled(false);
+            // Disable checkboxes and rates to lock selections
+            setSelectionsEnabled(false);
 
             if (recordingControlListener != null){ //Signal Main Activity to start recording and live plotting appropriate selections
                 recordingControlListener.onStartRecording(
-                        checkBoxAccel.isChecked(),
-                        checkBoxGyro.isChecked(),
-                        checkBoxGPS.isChecked()
+                        selectedRates(),
+                        checkBoxGPS.isChecked(),
+                        checkBoxBatching.isChecked() ? SynchronizedDataCollector.DEFAULT_BATCH_LATENCY_US : 0,
+                        selectedOptions()
                 );
             }
 
@@ -158,10 +294,8 @@ public class RecordFragment extends Fragment implements View.OnClickListener {
             //Enable EditText to enter new recording name
             recordingID.setEnabled(true);
 
-            //Enable checkboxes to lock selections
-            checkBoxAccel.setEnabled(true);
-            checkBoxGyro.setEnabled(true);
-            checkBoxGPS.setEnabled(true);;
+            //Enable checkboxes and rates for the next recording
+            setSelectionsEnabled(true);
 
 
         }else if (v.getId() == R.id.exportBtn) {
@@ -176,10 +310,8 @@ public class RecordFragment extends Fragment implements View.OnClickListener {
             //Enable EditText to enter new recording name
             recordingID.setEnabled(true);
 
-            //Enable checkboxes to lock selections
-            checkBoxAccel.setEnabled(true);
-            checkBoxGyro.setEnabled(true);
-            checkBoxGPS.setEnabled(true);
+            //Enable checkboxes and rates for the next recording
+            setSelectionsEnabled(true);
         }
     }
 }
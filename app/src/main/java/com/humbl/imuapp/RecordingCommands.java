@@ -0,0 +1,36 @@
+package com.humbl.imuapp;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+
+/**
+ * What the UI asks of a running recording, sent straight to the recording service through its
+ * binder (SynchronizedData_BackgroundService.LocalBinder) rather than as intents. None of the
+ * calls block: each is queued and run in order on the service's command thread.
+ *
+ * Events are identified by when they were pressed, a SystemClock.elapsedRealtimeNanos() taken on
+ * the caller's thread, so queueing never moves them on the recording's timeline.
+ */
+public interface RecordingCommands {
+    interface Result<T> {
+        // Called on the service's command thread
+        void onResult(T value);
+    }
+
+    // Mark an event; recorded gets its time since the recording started in nanoseconds (the
+    // rows' timeStampNs), or -1 if nothing is recording
+    void recordEvent(long pressedAtNanos, @Nullable Result<Long> recorded);
+
+    // Describe the event pressed at the given time
+    void describeEvent(long pressedAtNanos, String description);
+
+    void stopRecording();
+
+    // Export the current recording, or the one in sessionDirectory if it is another one
+    void exportRecording(String recordingName, @Nullable File sessionDirectory);
+
+    // Stop the current recording, or forget the one in sessionDirectory if it is another one, and
+    // delete its files so it is not offered for recovery
+    void discardRecording(@Nullable File sessionDirectory);
+}
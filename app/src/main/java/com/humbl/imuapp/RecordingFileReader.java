@@ -0,0 +1,289 @@
+package com.humbl.imuapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a binary recording file (see RecordingFileWriter) through a read-only memory map.
+ * Rows are decoded straight from the mapped pages, so any row, or the first row at a given
+ * time, can be read without loading the rest of the file. Compressed blocks are decoded one
+ * at a time into a reused buffer, so a reader must only be used from one thread.
+ */
+public class RecordingFileReader implements Closeable {
+    // An event as stored in the file, with the row nearest to it
+    public static class Event {
+        public final long row;
+        public final String time;
+        public final String description;
+
+        public Event(long row, String time, String description) {
+            this.row = row;
+            this.time = time;
+            this.description = description;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer map;
+    private final SampleSchema schema;
+    private final Map<String, String> metadata;
+    private final List<Event> events;
+    private final int rowBytes;
+    private final int timeSlot;
+    private final long rowCount;
+    private final int blockCount;
+    private final int indexOffset;
+    private final GorillaCodec codec;
+    private ByteBuffer decoded;       // Rows of the last compressed block that was read
+    private byte[] encoded = new byte[0];
+    private int decodedEntry = -1;
+    // Where the rows of the selected block are: in the map or in the decoded buffer
+    private ByteBuffer rows;
+    private int rowsBase;
+    private int selectedEntry = -1;
+
+    private RecordingFileReader(FileChannel channel, ByteBuffer map) throws IOException {
+        this.channel = channel;
+        this.map = map;
+
+        if (map.limit() < 16 + RecordingFileWriter.FOOTER_BYTES || map.getInt(0) != RecordingFileWriter.MAGIC) {
+            throw new IOException("Not a recording file");
+        }
+        int version = map.getInt(4);
+        if (version != RecordingFileWriter.VERSION && version != RecordingFileWriter.VERSION_COMPRESSED) {
+            throw new IOException("Unsupported recording file version " + version);
+        }
+        int footer = map.limit() - RecordingFileWriter.FOOTER_BYTES;
+        if (map.getInt(footer + 28) != RecordingFileWriter.FOOTER_MAGIC) {
+            throw new IOException("Recording file is incomplete");
+        }
+
+        map.position(12);
+        int metadataCount = map.getInt();
+        try {
+            schema = SampleSchema.fromSpec(getString(map));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid schema in recording file", e);
+        }
+        Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < metadataCount; i++) {
+            entries.put(getString(map), getString(map));
+        }
+        metadata = Collections.unmodifiableMap(entries);
+
+        rowBytes = schema.getRowBytes();
+        timeSlot = RecordingFileWriter.timeSlot(schema);
+        codec = new GorillaCodec(schema);
+        indexOffset = (int) map.getLong(footer);
+        rowCount = map.getLong(footer + 16);
+        blockCount = map.getInt(footer + 24);
+
+        map.position((int) map.getLong(footer + 8));
+        int eventCount = map.getInt();
+        List<Event> stored = new ArrayList<>(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            stored.add(new Event(map.getLong(), getString(map), getString(map)));
+        }
+        events = Collections.unmodifiableList(stored);
+    }
+
+    public static RecordingFileReader open(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Recording file too large to map: " + size + " bytes");
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            return new RecordingFileReader(channel, map);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e instanceof IOException ? (IOException) e : new IOException("Corrupt recording file", e);
+        }
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    // Every event, in the order they were written (time order); events may share a row
+    public List<Event> getEvents() {
+        return events;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public void readRow(long row, SampleRow out) {
+        if (row < 0 || row >= rowCount) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + rowCount);
+        }
+        int offset = rowOffset(blockContaining(row), row);
+        SampleBlock.readRow(rows, offset, out);
+    }
+
+    // Index of the first row at or after the given time, or the row count if there is none
+    public long findRow(long time) {
+        // First block whose last row is not before the time
+        int low = 0, high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (map.getLong(entryOffset(mid) + 24) < time) low = mid + 1;
+            else high = mid;
+        }
+        if (low == blockCount) return rowCount;
+
+        long firstRow = map.getLong(entryOffset(low) + 8);
+        long rowLow = firstRow, rowHigh = firstRow + map.getInt(entryOffset(low) + 32);
+        while (rowLow < rowHigh) {
+            long mid = (rowLow + rowHigh) >>> 1;
+            if (timeOf(low, mid) < time) rowLow = mid + 1;
+            else rowHigh = mid;
+        }
+        return rowLow;
+    }
+
+    public SampleCursor cursor() {
+        return cursor(0);
+    }
+
+    // Iterate from the given row to the end of the recording
+    public SampleCursor cursor(long fromRow) {
+        return new SampleCursor() {
+            private long row = fromRow;
+            private int entry = row < rowCount ? blockContaining(row) : blockCount;
+
+            @Override
+            public boolean next(SampleRow out) {
+                if (row >= rowCount) return false;
+                int entryOffset = entryOffset(entry);
+                if (row >= map.getLong(entryOffset + 8) + map.getInt(entryOffset + 32)) {
+                    entry++;
+                }
+                int offset = rowOffset(entry, row);
+                SampleBlock.readRow(rows, offset, out);
+                row++;
+                return true;
+            }
+
+            @Override
+            public void close() {
+                row = rowCount;
+            }
+        };
+    }
+
+    // Check every block against its CRC32, returns false if any of them is corrupt
+    public boolean verifyChecksums() {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer view = map.duplicate();
+        for (int entry = 0; entry < blockCount; entry++) {
+            int blockOffset = (int) map.getLong(entryOffset(entry));
+            int payloadBytes = map.getInt(blockOffset + 8);
+            int magic = map.getInt(blockOffset);
+            boolean raw = magic == SampleBlock.MAGIC;
+            if ((!raw && magic != SampleBlock.COMPRESSED_MAGIC)
+                    || (raw && payloadBytes != map.getInt(entryOffset(entry) + 32) * rowBytes)
+                    || blockOffset + SampleBlock.HEADER_BYTES + payloadBytes > indexOffset) {
+                return false;
+            }
+            crc.reset();
+            view.position(blockOffset + SampleBlock.HEADER_BYTES);
+            for (int remaining = payloadBytes; remaining > 0; ) {
+                int n = Math.min(remaining, chunk.length);
+                view.get(chunk, 0, n);
+                crc.update(chunk, 0, n);
+                remaining -= n;
+            }
+            if (map.getInt(blockOffset + 12) != (int) crc.getValue()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // The mapping itself is released once it is garbage collected
+        channel.close();
+    }
+
+    private int blockContaining(long row) {
+        int low = 0, high = blockCount - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (map.getLong(entryOffset(mid) + 8) <= row) low = mid;
+            else high = mid - 1;
+        }
+        return low;
+    }
+
+    private int entryOffset(int entry) {
+        return indexOffset + entry * RecordingFileWriter.INDEX_ENTRY_BYTES;
+    }
+
+    // Offset of a row in the rows buffer, decoding its block first if it is compressed
+    private int rowOffset(int entry, long row) {
+        if (entry != selectedEntry) selectBlock(entry);
+        return (int) (rowsBase + (row - map.getLong(entryOffset(entry) + 8)) * rowBytes);
+    }
+
+    private void selectBlock(int entry) {
+        int blockOffset = (int) map.getLong(entryOffset(entry));
+        if (map.getInt(blockOffset) == SampleBlock.COMPRESSED_MAGIC) {
+            if (entry != decodedEntry) {
+                int rowCount = map.getInt(blockOffset + 4);
+                int payloadBytes = map.getInt(blockOffset + 8);
+                if (encoded.length < payloadBytes) encoded = new byte[payloadBytes];
+                ByteBuffer view = map.duplicate();
+                view.position(blockOffset + SampleBlock.HEADER_BYTES);
+                view.get(encoded, 0, payloadBytes);
+                if (decoded == null || decoded.capacity() < rowCount * rowBytes) {
+                    decoded = ByteBuffer.allocate(rowCount * rowBytes).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                decoded.clear();
+                codec.decode(encoded, 0, payloadBytes, rowCount, decoded);
+                decodedEntry = entry;
+            }
+            rows = decoded;
+            rowsBase = 0;
+        } else {
+            rows = map;
+            rowsBase = blockOffset + SampleBlock.HEADER_BYTES;
+        }
+        selectedEntry = entry;
+    }
+
+    // Longs come first in a row, so the time column sits at a fixed offset
+    private long timeOf(int entry, long row) {
+        if (timeSlot < 0) return row;
+        int offset = rowOffset(entry, row);
+        return rows.getLong(offset + timeSlot * 8);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
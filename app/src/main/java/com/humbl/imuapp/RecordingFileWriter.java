@@ -0,0 +1,213 @@
+package com.humbl.imuapp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a finished recording as one compact binary file. Everything is little-endian:
+ *
+ *   header   magic "IMUR", version, header length, metadata count, schema spec,
+ *            then metadata key/value strings (sensor settings, sample rates, ...)
+ *   blocks   SampleBlock blocks of fixed-width rows, each with its own CRC32, or in a
+ *            compressed file GorillaCodec-encoded blocks (magic "IMUG", same header)
+ *   events   event count, then (row, event time, description) per event
+ *   index    one entry per block: offset, first row, first and last time, row count
+ *   footer   index offset, events offset, row count, block count, magic "IMUX"
+ *
+ * Strings are an int byte length followed by UTF-8. The first column of the schema is the row
+ * time used by the index, so rows must be appended in time order.
+ */
+public class RecordingFileWriter implements Closeable {
+    public static final int MAGIC = 0x52554D49;           // "IMUR"
+    public static final int FOOTER_MAGIC = 0x58554D49;    // "IMUX"
+    public static final int VERSION = 1;
+    public static final int VERSION_COMPRESSED = 2;       // Needs a reader that knows GorillaCodec blocks
+    public static final String EXTENSION = ".imur";
+    static final int INDEX_ENTRY_BYTES = 40;
+    static final int FOOTER_BYTES = 32;
+    private static final int BLOCK_ROWS = 1024;
+
+    private final FileChannel channel;
+    private final SampleSchema schema;
+    private final int timeSlot;
+    private final ByteBuffer block;
+    private final CRC32 crc = new CRC32();
+    private final GorillaCodec codec; // null for raw blocks
+    private final byte[] encoded;
+    private final List<Long> eventRows = new ArrayList<>();
+    private final List<String> eventTimes = new ArrayList<>();
+    private final List<String> eventDescriptions = new ArrayList<>();
+    private ByteBuffer index = ByteBuffer.allocate(64 * INDEX_ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private long position;
+    private long rowCount;
+    private int blockCount;
+    private int blockRows;
+    private long blockFirstTime;
+    private long blockLastTime;
+    private boolean closed;
+
+    private RecordingFileWriter(FileChannel channel, SampleSchema schema, boolean compress) {
+        this.channel = channel;
+        this.schema = schema;
+        this.timeSlot = timeSlot(schema);
+        this.block = ByteBuffer.allocate(SampleBlock.HEADER_BYTES + BLOCK_ROWS * schema.getRowBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+        this.codec = compress ? new GorillaCodec(schema) : null;
+        this.encoded = compress ? new byte[SampleBlock.HEADER_BYTES + codec.maxEncodedBytes(BLOCK_ROWS)] : null;
+        SampleBlock.begin(block);
+    }
+
+    public static RecordingFileWriter create(File file, SampleSchema schema, Map<String, String> metadata) throws IOException {
+        return create(file, schema, metadata, false);
+    }
+
+    // Compressed files are several times smaller, but rows have to be decoded a block at a time
+    public static RecordingFileWriter create(File file, SampleSchema schema, Map<String, String> metadata,
+                                             boolean compress) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            RecordingFileWriter writer = new RecordingFileWriter(channel, schema, compress);
+            writer.writeHeader(metadata);
+            return writer;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Slot of the long column that holds the row time, or -1 to use the row number instead
+    static int timeSlot(SampleSchema schema) {
+        return schema.getColumnCount() > 0 && schema.getType(0) == SampleSchema.TYPE_LONG ? schema.getSlot(0) : -1;
+    }
+
+    public void append(SampleRow row) throws IOException {
+        long time = timeSlot >= 0 ? row.longs[timeSlot] : rowCount;
+        if (blockRows == 0) blockFirstTime = time;
+        blockLastTime = time;
+        SampleBlock.writeRow(block, row);
+        blockRows++;
+        rowCount++;
+        if (blockRows == BLOCK_ROWS) writeBlock();
+    }
+
+    // Events are kept until close and written after the blocks
+    public void addEvent(long row, String time, String description) {
+        eventRows.add(row);
+        eventTimes.add(time);
+        eventDescriptions.add(description);
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    // Write the remaining rows, events, index and footer, then fsync
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (blockRows > 0) writeBlock();
+
+            long eventsOffset = position;
+            int eventBytes = 4;
+            for (int i = 0; i < eventRows.size(); i++) {
+                eventBytes += 8 + stringBytes(eventTimes.get(i)) + stringBytes(eventDescriptions.get(i));
+            }
+            ByteBuffer events = ByteBuffer.allocate(eventBytes).order(ByteOrder.LITTLE_ENDIAN);
+            events.putInt(eventRows.size());
+            for (int i = 0; i < eventRows.size(); i++) {
+                events.putLong(eventRows.get(i));
+                putString(events, eventTimes.get(i));
+                putString(events, eventDescriptions.get(i));
+            }
+            events.flip();
+            write(events);
+
+            long indexOffset = position;
+            index.flip();
+            write(index);
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            footer.putLong(indexOffset).putLong(eventsOffset).putLong(rowCount)
+                    .putInt(blockCount).putInt(FOOTER_MAGIC).flip();
+            write(footer);
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader(Map<String, String> metadata) throws IOException {
+        String spec = schema.toSpec();
+        int length = 16 + stringBytes(spec);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            length += stringBytes(entry.getKey()) + stringBytes(entry.getValue());
+        }
+        ByteBuffer header = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(codec != null ? VERSION_COMPRESSED : VERSION).putInt(length).putInt(metadata.size());
+        putString(header, spec);
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            putString(header, entry.getKey());
+            putString(header, entry.getValue());
+        }
+        header.flip();
+        write(header);
+    }
+
+    private void writeBlock() throws IOException {
+        if (index.remaining() < INDEX_ENTRY_BYTES) {
+            ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            larger.put(index);
+            index = larger;
+        }
+        index.putLong(position).putLong(rowCount - blockRows).putLong(blockFirstTime).putLong(blockLastTime)
+                .putInt(blockRows).putInt(0);
+
+        if (codec != null) {
+            block.position(SampleBlock.HEADER_BYTES);
+            int payloadBytes = codec.encode(block, blockRows, encoded, SampleBlock.HEADER_BYTES);
+            crc.reset();
+            crc.update(encoded, SampleBlock.HEADER_BYTES, payloadBytes);
+            ByteBuffer compressed = ByteBuffer.wrap(encoded, 0, SampleBlock.HEADER_BYTES + payloadBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            compressed.putInt(0, SampleBlock.COMPRESSED_MAGIC).putInt(4, blockRows)
+                    .putInt(8, payloadBytes).putInt(12, (int) crc.getValue());
+            write(compressed);
+        } else {
+            SampleBlock.finish(block, blockRows, crc);
+            write(block);
+        }
+        SampleBlock.begin(block);
+        blockRows = 0;
+        blockCount++;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer);
+        }
+    }
+
+    private static int stringBytes(String value) {
+        return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+}
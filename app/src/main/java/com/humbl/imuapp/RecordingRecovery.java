@@ -0,0 +1,136 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Brings an interrupted recording back to a consistent state. Segments listed in the sealed
+ * segment index were fsynced before the next one was started, so only the unsealed tail segment
+ * is scanned: its blocks are checked against their checksums and the file is truncated after
+ * the last valid block. The work is proportional to the tail segment, not the whole recording.
+ */
+public class RecordingRecovery {
+    private static final String TAG = "RecordingRecovery";
+
+    public static class Result {
+        public final RecordingSession session;
+        public final long rowCount;       // Valid rows across all segments
+        public final long scannedBytes;   // Bytes read while checking unsealed segments
+        public final long truncatedBytes; // Torn or corrupt bytes removed from the tail
+
+        Result(RecordingSession session, long rowCount, long scannedBytes, long truncatedBytes) {
+            this.session = session;
+            this.rowCount = rowCount;
+            this.scannedBytes = scannedBytes;
+            this.truncatedBytes = truncatedBytes;
+        }
+    }
+
+    public static Result recover(RecordingSession session) throws IOException {
+        return recover(session, session.getDirectory(), session.getSchema());
+    }
+
+    // Recover segments of another table of the session, e.g. its location fixes
+    public static Result recover(RecordingSession session, File directory, SampleSchema schema) throws IOException {
+        int rowBytes = schema.getRowBytes();
+        Map<String, Long> sealed = readSealedSegments(directory);
+
+        long rows = 0, scanned = 0, truncated = 0;
+        for (File segment : RecordingWriter.listSegments(directory)) {
+            Long sealedRows = sealed.get(segment.getName());
+            if (sealedRows != null) {
+                rows += sealedRows;
+                continue;
+            }
+
+            long length = segment.length();
+            long[] validEnd = new long[1];
+            long segmentRows = scanSegment(segment, rowBytes, validEnd);
+            scanned += validEnd[0];
+
+            if (validEnd[0] < RecordingWriter.SEGMENT_HEADER_BYTES) {
+                // Not even a complete segment header, nothing to keep
+                truncated += length;
+                if (!segment.delete()) Log.w(TAG, "Could not delete " + segment.getName());
+                continue;
+            }
+            if (validEnd[0] < length) {
+                try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+                    file.setLength(validEnd[0]);
+                    file.getFD().sync();
+                }
+                truncated += length - validEnd[0];
+            }
+            // Seal it so the next recovery does not have to scan it again
+            RecordingWriter.sealSegment(directory, segment, segmentRows);
+            rows += segmentRows;
+        }
+
+        Log.d(TAG, "Recovered " + rows + " rows in " + directory.getName()
+                + " (scanned " + scanned + " bytes, truncated " + truncated + " bytes)");
+        return new Result(session, rows, scanned, truncated);
+    }
+
+    // Count the valid rows of a segment; validEnd[0] receives the offset just after the last valid block
+    static long scanSegment(File segment, int rowBytes, long[] validEnd) throws IOException {
+        validEnd[0] = 0;
+        long rows = 0;
+        try (RandomAccessFile file = new RandomAccessFile(segment, "r")) {
+            long length = file.length();
+            ByteBuffer header = ByteBuffer.allocate(SampleBlock.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (length < RecordingWriter.SEGMENT_HEADER_BYTES) return 0;
+            file.readFully(header.array(), 0, RecordingWriter.SEGMENT_HEADER_BYTES);
+            if (header.getInt(0) != RecordingWriter.SEGMENT_MAGIC) return 0;
+
+            long position = RecordingWriter.SEGMENT_HEADER_BYTES;
+            validEnd[0] = position;
+            CRC32 crc = new CRC32();
+            byte[] payload = new byte[0];
+            while (position + SampleBlock.HEADER_BYTES <= length) {
+                file.readFully(header.array());
+                int payloadBytes = SampleBlock.payloadBytes(header, rowBytes);
+                if (payloadBytes < 0 || position + SampleBlock.HEADER_BYTES + payloadBytes > length) break;
+                if (payload.length < payloadBytes) payload = new byte[payloadBytes];
+                file.readFully(payload, 0, payloadBytes);
+                if (!SampleBlock.checksumMatches(header, payload, payloadBytes, crc)) break;
+
+                position += SampleBlock.HEADER_BYTES + payloadBytes;
+                rows += header.getInt(4);
+                validEnd[0] = position;
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, Long> readSealedSegments(File directory) {
+        Map<String, Long> sealed = new HashMap<>();
+        File index = new File(directory, RecordingWriter.SEGMENT_INDEX_FILE);
+        if (!index.exists()) return sealed;
+        try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+            byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            String text = new String(bytes, StandardCharsets.US_ASCII);
+            // Only lines that were completely written end with a newline
+            text = text.substring(0, text.lastIndexOf('\n') + 1);
+            for (String line : text.split("\n")) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length != 2) continue;
+                try {
+                    sealed.put(parts[0], Long.parseLong(parts[1]));
+                } catch (NumberFormatException ignored) {}
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read sealed segment index", e);
+        }
+        return sealed;
+    }
+}
@@ -0,0 +1,312 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Properties;
+
+/**
+ * A recording directory on disk: its segment files plus a small properties file describing how
+ * the recording was started, so it can be resumed or exported after the process is killed.
+ * Events marked while recording, and their descriptions, are appended to a log of their own as
+ * they happen, so they come back with the rows.
+ */
+public class RecordingSession {
+    private static final String TAG = "RecordingSession";
+    private static final String PROPERTIES_FILE = "session.properties";
+    private static final String METADATA_PREFIX = "meta.";
+    private static final String LOCATION_DIRECTORY = "locations";
+    private static final String EVENTS_FILE = "events.log";
+
+    public static final String STATE_RECORDING = "recording";
+    public static final String STATE_STOPPED = "stopped";
+
+    private final File directory;
+    private final Properties properties;
+
+    private RecordingSession(File directory, Properties properties) {
+        this.directory = directory;
+        this.properties = properties;
+    }
+
+    public static RecordingSession create(File recordingsRoot, String recordingName, long startTime,
+                                          SampleSchema schema, boolean accel, boolean gyro, boolean gps) throws IOException {
+        return create(recordingsRoot, recordingName, startTime, schema,
+                SynchronizedDataCollector.imuChannels(accel, gyro), gps);
+    }
+
+    public static RecordingSession create(File recordingsRoot, String recordingName, long startTime, SampleSchema schema,
+                                          List<SensorChannel> channels, boolean gps) throws IOException {
+        File directory = new File(recordingsRoot, String.valueOf(startTime));
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create recording directory " + directory);
+        }
+        Properties properties = new Properties();
+        properties.setProperty("name", recordingName != null ? recordingName : "");
+        properties.setProperty("startTime", String.valueOf(startTime));
+        properties.setProperty("schema", schema.toSpec());
+        properties.setProperty("channels", SensorChannel.join(channels));
+        properties.setProperty("gpsEnabled", String.valueOf(gps));
+        properties.setProperty("state", STATE_RECORDING);
+
+        RecordingSession session = new RecordingSession(directory, properties);
+        session.save();
+        return session;
+    }
+
+    // Returns null if the directory does not hold a readable session
+    public static RecordingSession load(File directory) {
+        File file = new File(directory, PROPERTIES_FILE);
+        if (!file.exists()) return null;
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return null;
+        }
+        if (properties.getProperty("schema") == null) return null;
+        return new RecordingSession(directory, properties);
+    }
+
+    // All sessions still on disk (i.e. not yet exported), newest first
+    public static List<RecordingSession> list(File recordingsRoot) {
+        List<RecordingSession> sessions = new ArrayList<>();
+        File[] directories = recordingsRoot.listFiles(File::isDirectory);
+        if (directories == null) return sessions;
+        Arrays.sort(directories, (a, b) -> b.getName().compareTo(a.getName()));
+        for (File directory : directories) {
+            RecordingSession session = load(directory);
+            if (session != null) sessions.add(session);
+        }
+        return sessions;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public String getName() {
+        return properties.getProperty("name", "");
+    }
+
+    public long getStartTime() {
+        return Long.parseLong(properties.getProperty("startTime", "0"));
+    }
+
+    public SampleSchema getSchema() {
+        return SampleSchema.fromSpec(properties.getProperty("schema"));
+    }
+
+    // Recorded sensor channels; sessions from before the channel registry only name accel and gyro
+    public List<SensorChannel> getChannels() {
+        String names = properties.getProperty("channels");
+        if (names != null) return SensorChannel.parse(names);
+        return SynchronizedDataCollector.imuChannels(
+                Boolean.parseBoolean(properties.getProperty("accelEnabled", "true")),
+                Boolean.parseBoolean(properties.getProperty("gyroEnabled", "true")));
+    }
+
+    public boolean isGPSEnabled() {
+        return Boolean.parseBoolean(properties.getProperty("gpsEnabled", "true"));
+    }
+
+    // Segment files of the location fixes (SampleSchema.locationFixes()), kept apart from the rows
+    public File getLocationDirectory() {
+        return new File(directory, LOCATION_DIRECTORY);
+    }
+
+    // Location fix interval in milliseconds, and whether exported rows get positions interpolated
+    // from the fixes
+    public long getLocationIntervalMs() {
+        return Long.parseLong(properties.getProperty("locationIntervalMs",
+                String.valueOf(SynchronizedDataCollector.GPS_INTERVAL_MS)));
+    }
+
+    public boolean isPositionInterpolated() {
+        return Boolean.parseBoolean(properties.getProperty("interpolatePositions", "true"));
+    }
+
+    public void setLocationSettings(long intervalMs, boolean interpolatePositions) {
+        properties.setProperty("locationIntervalMs", String.valueOf(intervalMs));
+        properties.setProperty("interpolatePositions", String.valueOf(interpolatePositions));
+        trySave();
+    }
+
+    // Rows kept before and after each event for its clip, in milliseconds (see EventClipRecorder)
+    public long getClipPreMs() {
+        return Long.parseLong(properties.getProperty("clipPreMs", String.valueOf(EventClipRecorder.DEFAULT_WINDOW_MS)));
+    }
+
+    public long getClipPostMs() {
+        return Long.parseLong(properties.getProperty("clipPostMs", String.valueOf(EventClipRecorder.DEFAULT_WINDOW_MS)));
+    }
+
+    public void setClipWindow(long preMs, long postMs) {
+        properties.setProperty("clipPreMs", String.valueOf(preMs));
+        properties.setProperty("clipPostMs", String.valueOf(postMs));
+        trySave();
+    }
+
+    // Requested rate of a channel's sensor, a SENSOR_DELAY_* constant or period in microseconds
+    public int getSamplingRate(SensorChannel channel) {
+        String rate = properties.getProperty(channel.getName() + "Rate");
+        return rate != null ? Integer.parseInt(rate) : channel.getDefaultRate();
+    }
+
+    public void setSamplingRates(Map<SensorChannel, Integer> rates) {
+        for (Map.Entry<SensorChannel, Integer> rate : rates.entrySet()) {
+            properties.setProperty(rate.getKey().getName() + "Rate", String.valueOf(rate.getValue()));
+        }
+        trySave();
+    }
+
+    // Rate of the grid the sensors are resampled onto, 0 to follow the fastest sensor, and the
+    // interpolation used (SensorSynchronizer.LINEAR or CUBIC)
+    public int getGridRateHz() {
+        return Integer.parseInt(properties.getProperty("gridRateHz", "0"));
+    }
+
+    public int getInterpolation() {
+        return Integer.parseInt(properties.getProperty("interpolation",
+                String.valueOf(SynchronizedDataCollector.DEFAULT_INTERPOLATION)));
+    }
+
+    public void setResampling(int gridRateHz, int interpolation) {
+        properties.setProperty("gridRateHz", String.valueOf(gridRateHz));
+        properties.setProperty("interpolation", String.valueOf(interpolation));
+        trySave();
+    }
+
+    // Sensor FIFO report latency in microseconds, 0 when readings were not batched
+    public int getBatchLatencyUs() {
+        return Integer.parseInt(properties.getProperty("batchLatencyUs", "0"));
+    }
+
+    public void setBatchLatencyUs(int batchLatencyUs) {
+        properties.setProperty("batchLatencyUs", String.valueOf(batchLatencyUs));
+        trySave();
+    }
+
+    // Extra entries for the exported file's metadata, e.g. the rates the sensors achieved
+    public Map<String, String> getMetadata() {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            if (key.startsWith(METADATA_PREFIX)) {
+                metadata.put(key.substring(METADATA_PREFIX.length()), properties.getProperty(key));
+            }
+        }
+        return metadata;
+    }
+
+    public void putMetadata(Map<String, String> metadata) {
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            properties.setProperty(METADATA_PREFIX + entry.getKey(), entry.getValue());
+        }
+        trySave();
+    }
+
+    // Log an event marked at the given time (on the clock of the rows' time column)
+    public void appendEvent(long time) {
+        appendToEventLog("event\t" + time);
+    }
+
+    // Log the description given to the event marked at the given time
+    public void appendDescription(long time, String description) {
+        appendToEventLog("describe\t" + time + "\t" + description.replace('\n', ' '));
+    }
+
+    // Replay the logged events and descriptions into the table, in the order they happened
+    public void loadEvents(EventTable events) {
+        File file = new File(directory, EVENTS_FILE);
+        if (!file.exists()) return;
+        String[] lines;
+        try {
+            lines = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).split("\n", -1);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            return;
+        }
+        // The last piece is empty unless the process was killed in the middle of a line
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split("\t", 3);
+            try {
+                if (fields[0].equals("event") && fields.length == 2) {
+                    events.add(Long.parseLong(fields[1]));
+                } else if (fields[0].equals("describe") && fields.length == 3) {
+                    events.describe(Long.parseLong(fields[1]), fields[2]);
+                }
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping unreadable event line " + i);
+            }
+        }
+    }
+
+    public String getState() {
+        return properties.getProperty("state", STATE_RECORDING);
+    }
+
+    public void setState(String state) {
+        properties.setProperty("state", state);
+        trySave();
+    }
+
+    // Delete the session directory and everything in it
+    public void delete() {
+        deleteDirectory(getLocationDirectory());
+        deleteDirectory(directory);
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) Log.w(TAG, "Could not delete " + file.getName());
+            }
+        }
+        directory.delete();
+    }
+
+    // One line per entry, on disk before the call returns so a kill right after still keeps it
+    private void appendToEventLog(String line) {
+        try (FileOutputStream out = new FileOutputStream(new File(directory, EVENTS_FILE), true)) {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not log event", e);
+        }
+    }
+
+    private void trySave() {
+        try {
+            save();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save session state", e);
+        }
+    }
+
+    // Write to a temporary file first so a kill mid-write never leaves a half-written file
+    private void save() throws IOException {
+        File file = new File(directory, PROPERTIES_FILE);
+        File tmp = new File(directory, PROPERTIES_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, "IMU recording session");
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+}
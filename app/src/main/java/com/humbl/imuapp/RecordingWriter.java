@@ -0,0 +1,350 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Appends sample rows to fixed-size segment files while the recording runs. Rows are encoded
+ * into a small pool of block buffers on the caller's thread and written out by a background
+ * thread, so memory stays bounded no matter how long the recording is. A partly filled block is
+ * handed off once it is a flush interval old, by the writer thread itself if no more rows come
+ * (e.g. between sensor batches), so little more than one flush interval of data is lost if the
+ * process is killed.
+ *
+ * Rows are appended from one thread. The block being filled is shared with the writer thread
+ * and guarded by the writer's lock; close() must only be called once appending has stopped.
+ * If a block cannot be written (e.g. the storage is full), the writer stops writing and
+ * getFailure() says so; the rows in the segments are then not the whole recording.
+ */
+public class RecordingWriter {
+    private static final String TAG = "RecordingWriter";
+
+    public static final int SEGMENT_MAGIC = 0x53554D49;    // "IMUS"
+    public static final int FORMAT_VERSION = 1;
+    public static final int SEGMENT_HEADER_BYTES = 8;
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    // One "name rows" line per segment that was completely written and fsynced
+    static final String SEGMENT_INDEX_FILE = "segments.idx";
+
+    // Marker handed to the writer thread to make it finish
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    public static class Config {
+        public int segmentBytes = 4 * 1024 * 1024;  // Size at which a new segment file is started
+        public int blockRows = 512;                 // Rows per block before it is handed to the writer
+        public int bufferBlocks = 8;                // Blocks in the write buffer pool
+        public long flushIntervalMs = 1000;         // Hand off partially filled blocks after this long
+        public long syncIntervalMs = 5000;          // fsync the current segment after this long
+    }
+
+    private final File directory;
+    private final SampleSchema schema;
+    private final Config config;
+    private final BlockingQueue<ByteBuffer> freeBlocks;
+    private final BlockingQueue<ByteBuffer> filledBlocks;
+    private final Thread writerThread;
+    private final CRC32 producerCrc = new CRC32();
+    private final long flushIntervalNanos;
+
+    // Producer side: the block being filled, guarded by this writer's lock
+    private ByteBuffer currentBlock;
+    private int currentRows;
+    private long currentBlockStartNanos;
+    private volatile long rowCount;
+    private long handedOffBlocks;
+
+    // Writer side
+    private final Object writtenLock = new Object();
+    private long writtenBlocks;
+    private FileChannel channel;
+    private File segment;
+    private long segmentRows;
+    private long segmentPosition;
+    private int segmentIndex;
+    private long lastSyncNanos;
+    private boolean unsynced; // Blocks written since the last fsync
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    private RecordingWriter(File directory, SampleSchema schema, Config config, int firstSegmentIndex, long existingRows) {
+        this.directory = directory;
+        this.schema = schema;
+        this.config = config;
+        this.segmentIndex = firstSegmentIndex;
+        this.rowCount = existingRows;
+        this.flushIntervalNanos = config.flushIntervalMs * 1_000_000L;
+
+        int blockBytes = SampleBlock.HEADER_BYTES + config.blockRows * schema.getRowBytes();
+        freeBlocks = new ArrayBlockingQueue<>(config.bufferBlocks);
+        filledBlocks = new ArrayBlockingQueue<>(config.bufferBlocks + 1);
+        for (int i = 0; i < config.bufferBlocks; i++) {
+            freeBlocks.add(ByteBuffer.allocate(blockBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        writerThread = new Thread(this::runWriter, "RecordingWriter");
+    }
+
+    // Start writing segments into an empty directory
+    public static RecordingWriter open(File directory, SampleSchema schema, Config config) throws IOException {
+        return open(directory, schema, config, 0);
+    }
+
+    // Continue a recording after existingRows rows that are already in the directory's segments
+    public static RecordingWriter open(File directory, SampleSchema schema, Config config, long existingRows) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create recording directory " + directory);
+        }
+        File[] existing = listSegments(directory);
+        int nextIndex = existing.length == 0 ? 0 : segmentIndexOf(existing[existing.length - 1]) + 1;
+        RecordingWriter writer = new RecordingWriter(directory, schema, config, nextIndex, existingRows);
+        writer.writerThread.start();
+        return writer;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    // Rows appended so far (including rows still waiting in the write buffer)
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    // Last error from the writer thread, or null if everything has been written
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public void append(SampleRow row) {
+        if (closed) return;
+        ByteBuffer free = null;
+        while (true) {
+            synchronized (this) {
+                if (currentBlock == null && free != null) begin(free);
+                if (currentBlock != null) {
+                    SampleBlock.writeRow(currentBlock, row);
+                    currentRows++;
+                    rowCount++;
+                    if (currentRows >= config.blockRows
+                            || System.nanoTime() - currentBlockStartNanos >= flushIntervalNanos) {
+                        handOffCurrentBlock();
+                    }
+                    return;
+                }
+            }
+            // Outside the lock, as it waits if the writer thread has fallen a full buffer pool behind
+            free = takeFreeBlock();
+            if (free == null) return;
+        }
+    }
+
+    // Hand off any buffered rows and wait until they have reached the segment files (or failed
+    // to, see getFailure)
+    public void flush() {
+        if (closed) return;
+        long handedOff;
+        synchronized (this) {
+            if (currentBlock != null && currentRows > 0) handOffCurrentBlock();
+            handedOff = handedOffBlocks;
+        }
+        synchronized (writtenLock) {
+            while (writtenBlocks < handedOff && writerThread.isAlive()) {
+                try {
+                    writtenLock.wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Write out everything still buffered, fsync and stop the writer thread; only once no more
+    // rows are being appended
+    public void close() {
+        if (closed) return;
+        flush();
+        closed = true;
+        try {
+            filledBlocks.put(END);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ByteBuffer takeFreeBlock() {
+        try {
+            return freeBlocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    // Under the lock
+    private void begin(ByteBuffer block) {
+        currentBlock = block;
+        SampleBlock.begin(currentBlock);
+        currentRows = 0;
+        currentBlockStartNanos = System.nanoTime();
+    }
+
+    // Under the lock
+    private void handOffCurrentBlock() {
+        SampleBlock.finish(currentBlock, currentRows, producerCrc);
+        try {
+            filledBlocks.put(currentBlock);
+            handedOffBlocks++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            freeBlocks.offer(currentBlock);
+        }
+        currentBlock = null;
+        currentRows = 0;
+    }
+
+    // The block being filled if it is a flush interval old and nothing is queued ahead of it;
+    // taken from the producer when rows stopped coming
+    private synchronized ByteBuffer takeStaleBlock() {
+        if (currentBlock == null || currentRows == 0 || !filledBlocks.isEmpty()
+                || System.nanoTime() - currentBlockStartNanos < flushIntervalNanos) {
+            return null;
+        }
+        SampleBlock.finish(currentBlock, currentRows, producerCrc);
+        ByteBuffer block = currentBlock;
+        handedOffBlocks++;
+        currentBlock = null;
+        currentRows = 0;
+        return block;
+    }
+
+    private void runWriter() {
+        lastSyncNanos = System.nanoTime();
+        // Check for a stale block a few times per interval
+        long pollNanos = Math.max(1_000_000L, flushIntervalNanos / 4);
+        try {
+            while (true) {
+                ByteBuffer block = filledBlocks.poll(pollNanos, TimeUnit.NANOSECONDS);
+                if (block == null) block = takeStaleBlock();
+                if (block == END) break;
+
+                if (failure == null) {
+                    try {
+                        if (block != null) writeBlock(block);
+                        syncIfDue();
+                    } catch (IOException e) {
+                        failure = e;
+                        Log.e(TAG, "Failed to write block to " + directory + ", dropping the rows from here on", e);
+                    }
+                }
+                if (block == null) continue;
+                freeBlocks.offer(block);
+                synchronized (writtenLock) {
+                    writtenBlocks++;
+                    writtenLock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Writer thread interrupted");
+        } finally {
+            closeSegment();
+        }
+    }
+
+    private void writeBlock(ByteBuffer block) throws IOException {
+        if (channel == null || (segmentPosition + block.remaining() > config.segmentBytes
+                && segmentPosition > SEGMENT_HEADER_BYTES)) {
+            startNextSegment();
+        }
+        segmentRows += block.getInt(4);
+        while (block.hasRemaining()) {
+            segmentPosition += channel.write(block);
+        }
+        unsynced = true;
+    }
+
+    // Also while no blocks come, so the last ones are not left unsynced
+    private void syncIfDue() throws IOException {
+        long now = System.nanoTime();
+        if (unsynced && now - lastSyncNanos >= config.syncIntervalMs * 1_000_000L) {
+            channel.force(false);
+            lastSyncNanos = now;
+            unsynced = false;
+        }
+    }
+
+    private void startNextSegment() throws IOException {
+        closeSegment();
+        segment = segmentFile(directory, segmentIndex++);
+        segmentRows = 0;
+        channel = new RandomAccessFile(segment, "rw").getChannel();
+        channel.truncate(0);
+
+        ByteBuffer header = ByteBuffer.allocate(SEGMENT_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(SEGMENT_MAGIC).putInt(FORMAT_VERSION).flip();
+        while (header.hasRemaining()) channel.write(header);
+        segmentPosition = SEGMENT_HEADER_BYTES;
+        Log.d(TAG, "Started segment " + segment.getName());
+    }
+
+    // fsync and seal the current segment, so recovery only ever has to scan unsealed ones
+    private void closeSegment() {
+        if (channel == null) return;
+        try {
+            channel.force(true);
+            channel.close();
+            if (failure == null) {
+                sealSegment(directory, segment, segmentRows);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close segment", e);
+        }
+        channel = null;
+        unsynced = false;
+    }
+
+    static void sealSegment(File directory, File segment, long rows) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(directory, SEGMENT_INDEX_FILE), true)) {
+            out.write((segment.getName() + " " + rows + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.getFD().sync();
+        }
+    }
+
+    static File segmentFile(File directory, int index) {
+        return new File(directory, String.format(Locale.US, "%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    static int segmentIndexOf(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // Segment files of a recording, in write order
+    public static File[] listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> Integer.compare(segmentIndexOf(a), segmentIndexOf(b)));
+        return files;
+    }
+}
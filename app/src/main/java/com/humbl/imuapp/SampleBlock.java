@@ -0,0 +1,69 @@
+package com.humbl.imuapp;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk layout of a block of sample rows. A block is a 16 byte little-endian header
+ * (magic, row count, payload length, CRC32 of the payload) followed by fixed-width rows.
+ * Each row stores its long columns, then float columns, then double columns.
+ */
+public final class SampleBlock {
+    public static final int MAGIC = 0x42554D49;        // "IMUB"
+    public static final int COMPRESSED_MAGIC = 0x47554D49; // "IMUG", payload encoded with GorillaCodec
+    public static final int HEADER_BYTES = 16;
+
+    private SampleBlock() {}
+
+    // Leave room for the header, rows are appended after it
+    public static void begin(ByteBuffer block) {
+        block.clear();
+        block.position(HEADER_BYTES);
+    }
+
+    public static void writeRow(ByteBuffer block, SampleRow row) {
+        for (long v : row.longs) block.putLong(v);
+        for (float v : row.floats) block.putFloat(v);
+        for (double v : row.doubles) block.putDouble(v);
+    }
+
+    public static void readRow(ByteBuffer block, SampleRow row) {
+        for (int i = 0; i < row.longs.length; i++) row.longs[i] = block.getLong();
+        for (int i = 0; i < row.floats.length; i++) row.floats[i] = block.getFloat();
+        for (int i = 0; i < row.doubles.length; i++) row.doubles[i] = block.getDouble();
+    }
+
+    // Read the row starting at an absolute offset, leaving the buffer's position alone
+    public static void readRow(ByteBuffer buffer, int offset, SampleRow row) {
+        for (int i = 0; i < row.longs.length; i++, offset += 8) row.longs[i] = buffer.getLong(offset);
+        for (int i = 0; i < row.floats.length; i++, offset += 4) row.floats[i] = buffer.getFloat(offset);
+        for (int i = 0; i < row.doubles.length; i++, offset += 8) row.doubles[i] = buffer.getDouble(offset);
+    }
+
+    // Fill in the header once all rows are written and flip the buffer for writing out
+    public static void finish(ByteBuffer block, int rowCount, CRC32 crc) {
+        int payloadBytes = block.position() - HEADER_BYTES;
+        crc.reset();
+        crc.update(block.array(), block.arrayOffset() + HEADER_BYTES, payloadBytes);
+        block.putInt(0, MAGIC);
+        block.putInt(4, rowCount);
+        block.putInt(8, payloadBytes);
+        block.putInt(12, (int) crc.getValue());
+        block.flip();
+    }
+
+    // Checks a header read from disk, returns the payload length or -1 if it is not a valid block
+    public static int payloadBytes(ByteBuffer header, int rowBytes) {
+        if (header.getInt(0) != MAGIC) return -1;
+        int rows = header.getInt(4);
+        int payloadBytes = header.getInt(8);
+        if (rows <= 0 || payloadBytes != rows * rowBytes) return -1;
+        return payloadBytes;
+    }
+
+    public static boolean checksumMatches(ByteBuffer header, byte[] payload, int length, CRC32 crc) {
+        crc.reset();
+        crc.update(payload, 0, length);
+        return header.getInt(12) == (int) crc.getValue();
+    }
+}
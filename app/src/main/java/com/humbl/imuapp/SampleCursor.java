@@ -0,0 +1,15 @@
+package com.humbl.imuapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Forward-only iteration over stored sample rows, whether they live in memory or on disk.
+ */
+public interface SampleCursor extends Closeable {
+    // Copy the next row into out, returns false once all rows have been read
+    boolean next(SampleRow out) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,123 @@
+package com.humbl.imuapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated single-producer, single-consumer queue of sensor readings. Each record holds a
+ * channel id, a timestamp and a fixed number of floats, kept in primitive arrays, so offering
+ * and draining never allocate. The producer (a sensor callback) never blocks: when the
+ * consumer has fallen a whole buffer behind, the reading is dropped and counted instead.
+ *
+ * Exactly one thread may call offer and exactly one thread may call drain.
+ */
+public final class SampleRingBuffer {
+    public interface Consumer {
+        // values[offset] .. values[offset + width - 1] are only valid during the call
+        void onRecord(int channel, long time, float[] values, int offset);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int width;
+    private final int[] channels;
+    private final long[] times;
+    private final float[] values;
+    private final long[] droppedByChannel;
+
+    // Sequence numbers of the next record to write and to read; published with ordered writes
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // Producer-local copies, so the fast path reads no volatile fields
+    private long producerHead;
+    private long cachedTail;
+    private int maxUsed;
+    private volatile long dropped;
+    private volatile int highWaterMark;
+
+    // capacity is rounded up to a power of two; channels are 0 .. channelCount - 1
+    public SampleRingBuffer(int capacity, int width, int channelCount) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.width = width;
+        this.channels = new int[size];
+        this.times = new long[size];
+        this.values = new float[size * width];
+        this.droppedByChannel = new long[channelCount];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    // Copy one reading in, returns false if the buffer was full and the reading was dropped
+    public boolean offer(int channel, long time, float[] source) {
+        long sequence = producerHead;
+        if (sequence - cachedTail >= capacity) {
+            cachedTail = tail.get();
+            if (sequence - cachedTail >= capacity) {
+                droppedByChannel[channel]++;
+                dropped = dropped + 1; // Only the producer writes it
+                return false;
+            }
+        }
+        int slot = (int) sequence & mask;
+        channels[slot] = channel;
+        times[slot] = time;
+        System.arraycopy(source, 0, values, slot * width, Math.min(width, source.length));
+        if (sequence + 1 - cachedTail > maxUsed) {
+            // cachedTail may be stale, so check against the real tail before raising the mark
+            cachedTail = tail.get();
+            int used = (int) (sequence + 1 - cachedTail);
+            if (used > maxUsed) {
+                maxUsed = used;
+                highWaterMark = used;
+            }
+        }
+        producerHead = sequence + 1;
+        head.lazySet(producerHead);
+        return true;
+    }
+
+    // Hand up to max waiting records to the consumer, returns how many there were
+    public int drain(Consumer consumer, int max) {
+        long sequence = tail.get();
+        long available = Math.min(head.get() - sequence, max);
+        for (long i = 0; i < available; i++) {
+            int slot = (int) (sequence + i) & mask;
+            consumer.onRecord(channels[slot], times[slot], values, slot * width);
+            // Free each slot as soon as it has been used, so the producer can refill it
+            tail.lazySet(sequence + i + 1);
+        }
+        return (int) available;
+    }
+
+    // Records waiting to be drained
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    // Readings dropped because the buffer was full
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    // Dropped readings of one channel; may lag slightly behind when read from another thread
+    public long getDroppedCount(int channel) {
+        return droppedByChannel[channel];
+    }
+
+    // Readings accepted so far
+    public long getOfferedCount() {
+        return head.get();
+    }
+
+    // Most records that were ever waiting at once, to see how close the consumer came to falling behind
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+}
@@ -0,0 +1,23 @@
+package com.humbl.imuapp;
+
+/**
+ * Reusable holder for one sample row. The collector fills a single instance for every row it
+ * emits, and readers copy stored rows into one, so no objects are created per sample.
+ */
+public class SampleRow {
+    public final long[] longs;
+    public final float[] floats;
+    public final double[] doubles;
+
+    public SampleRow(int longCount, int floatCount, int doubleCount) {
+        longs = new long[longCount];
+        floats = new float[floatCount];
+        doubles = new double[doubleCount];
+    }
+
+    public void copyFrom(SampleRow other) {
+        System.arraycopy(other.longs, 0, longs, 0, longs.length);
+        System.arraycopy(other.floats, 0, floats, 0, floats.length);
+        System.arraycopy(other.doubles, 0, doubles, 0, doubles.length);
+    }
+}
@@ -0,0 +1,173 @@
+package com.humbl.imuapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Describes the columns of a recorded sample row. Each column is either a long (timestamps),
+ * a float (sensor axes) or a double (coordinates), and is stored in its own primitive array so
+ * no per-sample objects are needed until the data is exported.
+ */
+public class SampleSchema {
+    public static final int TYPE_LONG = 0;
+    public static final int TYPE_FLOAT = 1;
+    public static final int TYPE_DOUBLE = 2;
+    private static final String TYPE_CODES = "LFD";
+
+    private final String[] names;
+    private final int[] types;
+    private final int[] slots; // Index of the column within the arrays of its own type
+    private final int longCount;
+    private final int floatCount;
+    private final int doubleCount;
+
+    private SampleSchema(List<String> names, List<Integer> types) {
+        int columns = names.size();
+        this.names = names.toArray(new String[0]);
+        this.types = new int[columns];
+        this.slots = new int[columns];
+        int l = 0, f = 0, d = 0;
+        for (int i = 0; i < columns; i++) {
+            int type = types.get(i);
+            this.types[i] = type;
+            if (type == TYPE_LONG) slots[i] = l++;
+            else if (type == TYPE_FLOAT) slots[i] = f++;
+            else slots[i] = d++;
+        }
+        this.longCount = l;
+        this.floatCount = f;
+        this.doubleCount = d;
+    }
+
+    // Column layout of the "Synchronized" accel + gyro + GPS rows
+    public static SampleSchema synchronizedImu() {
+        return new Builder()
+                .addLong("timeStampAcc")
+                .addFloat("accX").addFloat("accY").addFloat("accZ")
+                .addLong("timeStampGyro")
+                .addFloat("gyroX").addFloat("gyroY").addFloat("gyroZ")
+                .addLong("timeStampGPS")
+                .addDouble("latitude").addDouble("longitude")
+                .build();
+    }
+
+    // Accel + gyro resampled onto a common grid, timeStampNs being the grid time in nanoseconds
+    // since the recording started; GPS time stays in milliseconds
+    public static SampleSchema resampledImu() {
+        return new Builder()
+                .addLong("timeStampNs")
+                .addFloat("accX").addFloat("accY").addFloat("accZ")
+                .addFloat("gyroX").addFloat("gyroY").addFloat("gyroZ")
+                .addLong("timeStampGPS")
+                .addDouble("latitude").addDouble("longitude")
+                .build();
+    }
+
+    // Raw position fixes, one row per fix: timeStampNs is the fix time on the sensors' clock
+    // (elapsedRealtimeNanos since the recording started), utcTimeMs the time the fix reports;
+    // altitude, accuracy and speed are NaN when the fix has none
+    public static SampleSchema locationFixes() {
+        return new Builder()
+                .addLong("timeStampNs")
+                .addLong("utcTimeMs")
+                .addDouble("latitude").addDouble("longitude").addDouble("altitude")
+                .addFloat("accuracyM").addFloat("speedMps")
+                .build();
+    }
+
+    // Compact text form, e.g. "timeStampAcc:L,accX:F", used to persist the layout next to the data
+    public String toSpec() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(names[i]).append(':').append(TYPE_CODES.charAt(types[i]));
+        }
+        return sb.toString();
+    }
+
+    public static SampleSchema fromSpec(String spec) {
+        Builder builder = new Builder();
+        for (String column : spec.split(",")) {
+            int colon = column.lastIndexOf(':');
+            int type = colon < 0 || colon == column.length() - 1 ? -1 : TYPE_CODES.indexOf(column.charAt(colon + 1));
+            if (type < 0) {
+                throw new IllegalArgumentException("Invalid column in schema: " + column);
+            }
+            builder.add(column.substring(0, colon), type);
+        }
+        return builder.build();
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    // Column with the given name, or -1
+    public int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) return i;
+        }
+        return -1;
+    }
+
+    public String getName(int column) {
+        return names[column];
+    }
+
+    public int getType(int column) {
+        return types[column];
+    }
+
+    // Position of the column inside SampleRow.longs / floats / doubles
+    public int getSlot(int column) {
+        return slots[column];
+    }
+
+    public int getLongCount() {
+        return longCount;
+    }
+
+    public int getFloatCount() {
+        return floatCount;
+    }
+
+    public int getDoubleCount() {
+        return doubleCount;
+    }
+
+    // Size of one row when written as fixed-width binary
+    public int getRowBytes() {
+        return longCount * 8 + floatCount * 4 + doubleCount * 8;
+    }
+
+    public SampleRow newRow() {
+        return new SampleRow(longCount, floatCount, doubleCount);
+    }
+
+    public static class Builder {
+        private final List<String> names = new ArrayList<>();
+        private final List<Integer> types = new ArrayList<>();
+
+        public Builder addLong(String name) {
+            return add(name, TYPE_LONG);
+        }
+
+        public Builder addFloat(String name) {
+            return add(name, TYPE_FLOAT);
+        }
+
+        public Builder addDouble(String name) {
+            return add(name, TYPE_DOUBLE);
+        }
+
+        public Builder add(String name, int type) {
+            names.add(name);
+            types.add(type);
+            return this;
+        }
+
+        public SampleSchema build() {
+            return new SampleSchema(names, types);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.humbl.imuapp;
+
+import java.util.ArrayList;
+
+/**
+ * In-memory columnar store for sample rows. Rows are kept in fixed-size chunks of primitive
+ * arrays (one array per column), so appending never copies earlier data and each sample costs
+ * only its raw bytes on the heap.
+ */
+public class SampleStore {
+    public static final int CHUNK_ROWS = 4096;
+
+    private final SampleSchema schema;
+    private final ArrayList<Chunk> chunks = new ArrayList<>();
+    private int size;
+
+    public SampleStore(SampleSchema schema) {
+        this.schema = schema;
+    }
+
+    public SampleSchema getSchema() {
+        return schema;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void append(SampleRow row) {
+        int offset = size % CHUNK_ROWS;
+        if (offset == 0) {
+            chunks.add(new Chunk(schema));
+        }
+        Chunk chunk = chunks.get(chunks.size() - 1);
+        for (int c = 0; c < chunk.longs.length; c++) chunk.longs[c][offset] = row.longs[c];
+        for (int c = 0; c < chunk.floats.length; c++) chunk.floats[c][offset] = row.floats[c];
+        for (int c = 0; c < chunk.doubles.length; c++) chunk.doubles[c][offset] = row.doubles[c];
+        size++;
+    }
+
+    // Copy the stored row at index into out
+    public void get(int index, SampleRow out) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        Chunk chunk = chunks.get(index / CHUNK_ROWS);
+        int offset = index % CHUNK_ROWS;
+        for (int c = 0; c < chunk.longs.length; c++) out.longs[c] = chunk.longs[c][offset];
+        for (int c = 0; c < chunk.floats.length; c++) out.floats[c] = chunk.floats[c][offset];
+        for (int c = 0; c < chunk.doubles.length; c++) out.doubles[c] = chunk.doubles[c][offset];
+    }
+
+    // A single long column of the stored row at index, e.g. its time
+    public long getLong(int index, int slot) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Row " + index + " of " + size);
+        }
+        return chunks.get(index / CHUNK_ROWS).longs[slot][index % CHUNK_ROWS];
+    }
+
+    // Iterate over the rows stored so far
+    public SampleCursor cursor() {
+        return new SampleCursor() {
+            private int next;
+
+            @Override
+            public boolean next(SampleRow out) {
+                if (next >= size) return false;
+                get(next++, out);
+                return true;
+            }
+
+            @Override
+            public void close() {
+                next = size;
+            }
+        };
+    }
+
+    public void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    // Approximate heap used by the column arrays (array headers included)
+    public long estimatedHeapBytes() {
+        int columns = schema.getColumnCount();
+        long perChunk = (long) schema.getRowBytes() * CHUNK_ROWS + columns * 16L + 3 * 16L;
+        return perChunk * chunks.size();
+    }
+
+    private static final class Chunk {
+        final long[][] longs;
+        final float[][] floats;
+        final double[][] doubles;
+
+        Chunk(SampleSchema schema) {
+            longs = new long[schema.getLongCount()][CHUNK_ROWS];
+            floats = new float[schema.getFloatCount()][CHUNK_ROWS];
+            doubles = new double[schema.getDoubleCount()][CHUNK_ROWS];
+        }
+    }
+}
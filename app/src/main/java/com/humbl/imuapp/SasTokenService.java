@@ -1,72 +1,63 @@
 package com.humbl.imuapp;
 
 import android.util.Log;
+
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.net.*;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
-public class SasTokenService {
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 
-    public interface SasTokenCallback {
-        void onSuccess(String sasUrl);
-        void onFailure(Exception e);
+public class SasTokenService {
+    // The shared client and its connections, with the short timeouts the token function always had
+    private static final OkHttpClient tokenClient = HttpClients.shared().newBuilder()
+            .connectTimeout(5, TimeUnit.SECONDS)
+            .readTimeout(5, TimeUnit.SECONDS)
+            .build();
+    // SAS URLs handed out until shortly before they expire, shared by every upload
+    private static final SasUrlCache cache = new SasUrlCache(SasTokenService::fetchSasUrl, new SasUrlCache.Config(),
+            IoScheduler.shared());
+
+    // A SAS URL for the blob, on the calling thread: a cached one, or else one request for it;
+    // retrying is up to the caller
+    public static String getSasUrl(String container, String filename) throws IOException {
+        return cache.get(container, filename);
     }
 
-    public static void requestSasUrl(String container, String filename, SasTokenCallback callback) {
-        new Thread(() -> {
-            int maxRetries = 3;
-            int attempts = 0;
-            boolean success = false;
-
-            while (attempts < maxRetries && !success) {
-                try {
-                    attempts++;
-
-                    String encodedContainer = URLEncoder.encode(container, "UTF-8");
-                    String encodedFilename = URLEncoder.encode(filename, "UTF-8");
-                    String urlStr = "https://imu-sas-api.azurewebsites.net/api/GetSasToken?container=" +
-                            encodedContainer + "&filename=" + encodedFilename;
-
-                    URL url = new URL(urlStr);
-                    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                    conn.setRequestMethod("GET");
-                    conn.setConnectTimeout(5000);
-                    conn.setReadTimeout(5000);
-
-                    int responseCode = conn.getResponseCode();
-                    Log.d("SasTokenService", "HTTP response code: " + responseCode);
-
-                    if (responseCode != 200) {
-                        throw new RuntimeException("Failed to get SAS token. HTTP " + responseCode);
-                    }
-
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(conn.getInputStream()));
-                    StringBuilder response = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        response.append(line);
-                    }
-                    reader.close();
+    // Get a SAS URL for a blob that will soon be uploaded, in the background
+    public static void prefetchSasUrl(String container, String filename) {
+        cache.prefetch(container, filename);
+    }
 
-                    JSONObject json = new JSONObject(response.toString());
-                    String sasUrl = json.getString("sasUrl");
+    // Stop handing out the SAS URL of the blob, e.g. after an upload with it failed
+    public static void invalidateSasUrl(String container, String filename) {
+        cache.invalidate(container, filename);
+    }
 
-                    success = true;
-                    callback.onSuccess(sasUrl);
+    // One request to the token function
+    static String fetchSasUrl(String container, String filename) throws IOException {
+        HttpUrl url = HttpUrl.get("https://imu-sas-api.azurewebsites.net/api/GetSasToken").newBuilder()
+                .addQueryParameter("container", container)
+                .addQueryParameter("filename", filename)
+                .build();
 
-                } catch (Exception e) {
-                    Log.e("SasTokenService", "Attempt " + attempts + " failed to fetch SAS URL", e);
-                    if (attempts >= maxRetries) {
-                        callback.onFailure(e);
-                    }
+        Request request = new Request.Builder().url(url).get().build();
+        try (Response response = tokenClient.newCall(request).execute()) {
+            int responseCode = response.code();
+            Log.d("SasTokenService", "HTTP response code: " + responseCode);
 
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ignored) {}
-                }
+            if (responseCode != 200) {
+                throw new IOException("Failed to get SAS token. HTTP " + responseCode);
             }
-        }).start();
+
+            return new JSONObject(response.body().string()).getString("sasUrl");
+        } catch (JSONException e) {
+            throw new IOException("Unreadable SAS token response", e);
+        }
     }
 }
@@ -0,0 +1,199 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps SAS URLs until shortly before they expire (their se= time), so an upload can usually start
+ * without a round trip to the token function. Tokens are kept by container and blob-name prefix:
+ * a token for a whole container (sr=c) serves every blob in it, one for a single blob (sr=b) only
+ * that blob. A token close to its expiry is still handed out while a new one is fetched in the
+ * background, and a token can be fetched ahead of time for a blob that is about to be uploaded;
+ * both run in the IoScheduler's event lane, as an upload is soon waiting for them. Concurrent
+ * requests for the same token share one fetch.
+ */
+public class SasUrlCache {
+    private static final String TAG = "SasUrlCache";
+
+    public static class Config {
+        public long refreshBeforeMs = 5 * 60 * 1000;  // Fetch a new token in the background this close to expiry
+        public long minValidityMs = 60 * 1000;        // Never hand out a token with less time left than this
+        public long unknownExpiryMs = 60 * 1000;      // How long to keep a token without an se= time
+    }
+
+    public interface TokenSource {
+        // One request for a SAS URL for the blob, on the calling thread
+        String fetch(String container, String blobName) throws IOException;
+    }
+
+    private static class Token {
+        final String sasUrl;
+        final long expiresAt;
+        final boolean wholeContainer;
+
+        Token(String sasUrl, long expiresAt, boolean wholeContainer) {
+            this.sasUrl = sasUrl;
+            this.expiresAt = expiresAt;
+            this.wholeContainer = wholeContainer;
+        }
+    }
+
+    private final TokenSource source;
+    private final Config config;
+    private final IoScheduler io;
+    private final Map<String, Token> tokens = new HashMap<>(); // By container + "/" + prefix
+    private final Map<String, FutureTask<Token>> fetching = new HashMap<>(); // By the blob they are for
+
+    public SasUrlCache(TokenSource source, Config config, IoScheduler io) {
+        this.source = source;
+        this.config = config;
+        this.io = io;
+    }
+
+    // A SAS URL for the blob, from the cache if one is valid long enough, else fetched on this thread
+    public String get(String container, String blobName) throws IOException {
+        long now = System.currentTimeMillis();
+        Token token = cached(container, blobName, now);
+        if (token != null) {
+            if (token.expiresAt - now < config.refreshBeforeMs) prefetch(container, blobName);
+            return urlFor(token, blobName);
+        }
+        return urlFor(fetch(container, blobName), blobName);
+    }
+
+    // Fetch a token for the blob in the background, unless one valid long enough is kept already
+    public void prefetch(String container, String blobName) {
+        Token token = cached(container, blobName, System.currentTimeMillis());
+        if (token != null && token.expiresAt - System.currentTimeMillis() >= config.refreshBeforeMs) return;
+        try {
+            io.submit(IoScheduler.Lane.EVENT, () -> {
+                try {
+                    fetch(container, blobName);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not prefetch a SAS URL for " + container + "/" + blobName, e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Prefetch of " + blobName + " dropped", e);
+        }
+    }
+
+    // Forget the token serving the blob, e.g. after the upload was refused with it
+    public synchronized void invalidate(String container, String blobName) {
+        tokens.remove(container + "/" + blobName);
+        tokens.remove(container + "/");
+    }
+
+    @Nullable
+    private synchronized Token cached(String container, String blobName, long now) {
+        Token token = tokens.get(container + "/" + blobName);
+        if (token == null) token = tokens.get(container + "/");
+        return token != null && token.expiresAt - now >= config.minValidityMs ? token : null;
+    }
+
+    // Fetch a token, or wait for the fetch already running for the same blob
+    private Token fetch(String container, String blobName) throws IOException {
+        String key = container + "/" + blobName;
+        FutureTask<Token> task;
+        boolean mine = false;
+        synchronized (this) {
+            task = fetching.get(key);
+            if (task == null) {
+                task = new FutureTask<>(() -> {
+                    String sasUrl = source.fetch(container, blobName);
+                    long expiry = expiryOf(sasUrl);
+                    boolean wholeContainer = "c".equals(parameter(sasUrl, "sr"));
+                    return new Token(sasUrl, expiry > 0 ? expiry : System.currentTimeMillis() + config.unknownExpiryMs,
+                            wholeContainer);
+                });
+                fetching.put(key, task);
+                mine = true;
+            }
+        }
+        if (mine) task.run();
+        try {
+            Token token = task.get();
+            synchronized (this) {
+                if (mine) {
+                    fetching.remove(key);
+                    tokens.put(token.wholeContainer ? container + "/" : key, token);
+                }
+            }
+            return token;
+        } catch (ExecutionException e) {
+            if (mine) {
+                synchronized (this) {
+                    fetching.remove(key);
+                }
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Could not get a SAS URL for " + key, cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a SAS URL for " + key, e);
+        }
+    }
+
+    // A container token points at the blob it was fetched for; swap in the one asked for
+    private static String urlFor(Token token, String blobName) {
+        if (!token.wholeContainer) return token.sasUrl;
+        int query = token.sasUrl.indexOf('?');
+        String path = query >= 0 ? token.sasUrl.substring(0, query) : token.sasUrl;
+        int containerEnd = path.indexOf('/', path.indexOf("://") + 3);
+        containerEnd = path.indexOf('/', containerEnd + 1);
+        String containerUrl = containerEnd >= 0 ? path.substring(0, containerEnd) : path;
+        return containerUrl + "/" + blobName + (query >= 0 ? token.sasUrl.substring(query) : "");
+    }
+
+    // The se= time of a SAS URL in milliseconds, or -1 if it has none
+    static long expiryOf(String sasUrl) {
+        String expiry = parameter(sasUrl, "se");
+        if (expiry == null) return -1;
+        // Seconds are enough; fractions would need a pattern of their own
+        int fraction = expiry.indexOf('.');
+        if (fraction >= 0) expiry = expiry.substring(0, fraction) + "Z";
+        String pattern;
+        if (expiry.length() == 10) pattern = "yyyy-MM-dd";
+        else if (expiry.length() == 17) pattern = "yyyy-MM-dd'T'HH:mm'Z'";
+        else pattern = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(expiry).getTime();
+        } catch (ParseException e) {
+            Log.w(TAG, "Unreadable SAS expiry " + expiry);
+            return -1;
+        }
+    }
+
+    @Nullable
+    private static String parameter(String url, String name) {
+        int query = url.indexOf('?');
+        if (query < 0) return null;
+        for (String pair : url.substring(query + 1).split("&")) {
+            if (pair.startsWith(name + "=")) {
+                try {
+                    return URLDecoder.decode(pair.substring(name.length() + 1), "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,97 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the rows of a recording back from its segment files, in the order they were written.
+ * A block with a bad header or checksum ends its segment, since it can only be a torn write.
+ */
+public class SegmentReader implements SampleCursor {
+    private static final String TAG = "SegmentReader";
+
+    private final File[] segments;
+    private final int rowBytes;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(SampleBlock.HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] payload = new byte[0];
+    private ByteBuffer block;
+    private DataInputStream in;
+    private int nextSegment;
+
+    public SegmentReader(File directory, SampleSchema schema) {
+        this.segments = RecordingWriter.listSegments(directory);
+        this.rowBytes = schema.getRowBytes();
+    }
+
+    @Override
+    public boolean next(SampleRow out) throws IOException {
+        while (block == null || !block.hasRemaining()) {
+            if (!readBlock()) return false;
+        }
+        SampleBlock.readRow(block, out);
+        return true;
+    }
+
+    // Load the next valid block, moving on to the next segment when needed
+    private boolean readBlock() throws IOException {
+        while (true) {
+            if (in == null) {
+                if (nextSegment >= segments.length) return false;
+                in = openSegment(segments[nextSegment++]);
+                if (in == null) continue;
+            }
+            try {
+                in.readFully(header.array());
+                int length = SampleBlock.payloadBytes(header, rowBytes);
+                if (length > 0) {
+                    if (payload.length < length) payload = new byte[length];
+                    in.readFully(payload, 0, length);
+                    if (SampleBlock.checksumMatches(header, payload, length, crc)) {
+                        block = ByteBuffer.wrap(payload, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+                        return true;
+                    }
+                }
+                Log.w(TAG, "Invalid block in segment " + (nextSegment - 1) + ", skipping rest of segment");
+            } catch (EOFException e) {
+                // End of segment (or a torn final block)
+            }
+            in.close();
+            in = null;
+        }
+    }
+
+    private DataInputStream openSegment(File segment) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+        try {
+            ByteBuffer segmentHeader = ByteBuffer.allocate(RecordingWriter.SEGMENT_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            stream.readFully(segmentHeader.array());
+            if (segmentHeader.getInt(0) == RecordingWriter.SEGMENT_MAGIC) {
+                return stream;
+            }
+            Log.w(TAG, "Not a segment file: " + segment.getName());
+        } catch (EOFException e) {
+            Log.w(TAG, "Empty segment file: " + segment.getName());
+        }
+        stream.close();
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        nextSegment = segments.length;
+    }
+}
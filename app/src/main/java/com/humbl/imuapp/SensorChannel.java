@@ -0,0 +1,156 @@
+package com.humbl.imuapp;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One kind of sensor the app can record, and the registry of all of them. A channel declares
+ * its Android sensor type, how many values each reading has (its arity), the storage columns and
+ * units of those values and the rate it is sampled at unless chosen otherwise. Capture,
+ * resampling, the row schema, CSV headers and the plots are all laid out from the channels a
+ * recording uses, so a new sensor only needs an entry here; channels that are not recorded have
+ * no columns and cost nothing per reading.
+ */
+public final class SensorChannel {
+    private static final Map<String, SensorChannel> registry = new LinkedHashMap<>(); // Declared first, the constants register into it
+
+    public static final SensorChannel ACCELEROMETER = register(new SensorChannel("accel", "Acceleration",
+            Sensor.TYPE_ACCELEROMETER, "acc", new String[]{"X", "Y", "Z"}, "m/s²", SensorManager.SENSOR_DELAY_GAME, true));
+    public static final SensorChannel GYROSCOPE = register(new SensorChannel("gyro", "Angular velocity",
+            Sensor.TYPE_GYROSCOPE, "gyro", new String[]{"X", "Y", "Z"}, "rad/s", SensorManager.SENSOR_DELAY_GAME, true));
+    public static final SensorChannel MAGNETOMETER = register(new SensorChannel("mag", "Magnetic field",
+            Sensor.TYPE_MAGNETIC_FIELD, "mag", new String[]{"X", "Y", "Z"}, "µT", SensorManager.SENSOR_DELAY_GAME, false));
+    // Air pressure, for changes in altitude; barometers rarely go much above 25 Hz
+    public static final SensorChannel PRESSURE = register(new SensorChannel("pressure", "Air pressure",
+            Sensor.TYPE_PRESSURE, "pressure", new String[]{""}, "hPa", 40_000, false));
+    // Orientation as a unit quaternion, without the magnetometer so it doesn't jump near metal
+    public static final SensorChannel GAME_ROTATION = register(new SensorChannel("rotation", "Rotation (quaternion)",
+            Sensor.TYPE_GAME_ROTATION_VECTOR, "rot", new String[]{"X", "Y", "Z", "W"}, "", SensorManager.SENSOR_DELAY_GAME, false));
+    public static final SensorChannel LINEAR_ACCELERATION = register(new SensorChannel("linearAccel", "Linear acceleration",
+            Sensor.TYPE_LINEAR_ACCELERATION, "linAcc", new String[]{"X", "Y", "Z"}, "m/s²", SensorManager.SENSOR_DELAY_GAME, false));
+
+    private final String name;
+    private final String label;
+    private final int sensorType;
+    private final String[] columns;
+    private final String[] axes;
+    private final String unit;
+    private final int defaultRate;
+    private final boolean enabledByDefault;
+
+    // axes are appended to columnPrefix to name the columns, e.g. "acc" + "X"; a single
+    // empty axis names the column columnPrefix itself
+    public SensorChannel(String name, String label, int sensorType, String columnPrefix, String[] axes,
+                         String unit, int defaultRate, boolean enabledByDefault) {
+        if (axes.length == 0) throw new IllegalArgumentException("Channel " + name + " has no values");
+        this.name = name;
+        this.label = label;
+        this.sensorType = sensorType;
+        this.axes = axes.clone();
+        this.columns = new String[axes.length];
+        for (int k = 0; k < axes.length; k++) columns[k] = columnPrefix + axes[k];
+        this.unit = unit;
+        this.defaultRate = defaultRate;
+        this.enabledByDefault = enabledByDefault;
+    }
+
+    // Add a channel to the registry; its name must be new
+    public static synchronized SensorChannel register(SensorChannel channel) {
+        if (registry.containsKey(channel.name)) {
+            throw new IllegalArgumentException("Sensor channel already registered: " + channel.name);
+        }
+        registry.put(channel.name, channel);
+        return channel;
+    }
+
+    // Every registered channel, in registration order
+    public static synchronized List<SensorChannel> all() {
+        return Collections.unmodifiableList(new ArrayList<>(registry.values()));
+    }
+
+    // Registered channel with the given name, or null
+    public static synchronized SensorChannel byName(String name) {
+        return registry.get(name);
+    }
+
+    // Channels with the given comma separated names, skipping unknown ones
+    public static List<SensorChannel> parse(String names) {
+        List<SensorChannel> channels = new ArrayList<>();
+        if (names == null) return channels;
+        for (String name : names.split(",")) {
+            SensorChannel channel = byName(name.trim());
+            if (channel != null && !channels.contains(channel)) channels.add(channel);
+        }
+        return channels;
+    }
+
+    public static String join(List<SensorChannel> channels) {
+        StringBuilder names = new StringBuilder();
+        for (SensorChannel channel : channels) {
+            if (names.length() > 0) names.append(',');
+            names.append(channel.name);
+        }
+        return names.toString();
+    }
+
+    // Rows of the given channels resampled onto a common grid: timeStampNs is the grid time in
+    // nanoseconds since the recording started, then each channel's columns. Positions are not
+    // part of the rows, location fixes are kept apart (SampleSchema.locationFixes())
+    public static SampleSchema schemaFor(List<SensorChannel> channels) {
+        SampleSchema.Builder builder = new SampleSchema.Builder().addLong("timeStampNs");
+        for (SensorChannel channel : channels) {
+            for (String column : channel.columns) builder.addFloat(column);
+        }
+        return builder.build();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public int getSensorType() {
+        return sensorType;
+    }
+
+    // Values per reading
+    public int getArity() {
+        return columns.length;
+    }
+
+    public String getColumn(int axis) {
+        return columns[axis];
+    }
+
+    // Short name of a value, e.g. "X"; empty for single-valued channels
+    public String getAxis(int axis) {
+        return axes[axis];
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    // SENSOR_DELAY_* constant or period in microseconds
+    public int getDefaultRate() {
+        return defaultRate;
+    }
+
+    public boolean isEnabledByDefault() {
+        return enabledByDefault;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
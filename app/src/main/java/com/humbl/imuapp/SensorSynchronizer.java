@@ -0,0 +1,251 @@
+package com.humbl.imuapp;
+
+/**
+ * Resamples several sensor channels onto one common time grid. Readings come in with their
+ * hardware timestamps (nanoseconds, SensorEvent.timestamp), each channel at its own rate and
+ * phase; rows go out at exact multiples of the grid period, with every channel interpolated to
+ * that instant, so no reading is paired with one taken most of a period earlier.
+ *
+ * A grid point is emitted as soon as every channel has a reading at or after it (one more
+ * for cubic interpolation), so rows trail the slowest channel by about one of its periods. If a
+ * channel stops delivering, rows still go out once the others are maxLatency ahead; that
+ * channel then holds its last value and the gap shows up in its alignment error.
+ *
+ * Not thread-safe: all calls must come from one thread (the collector's drain thread).
+ */
+public class SensorSynchronizer {
+    public static final int LINEAR = 1;
+    public static final int CUBIC = 3;
+
+    static final int DEFAULT_HISTORY = 256; // Readings kept per channel
+
+    public interface Output {
+        // values holds width floats per channel, channel after channel; only valid during the call
+        void onRow(long timeNanos, float[] values);
+    }
+
+    private final int channelCount;
+    private final int width;
+    private final long periodNanos;
+    private final int interpolation;
+    private final long maxLatencyNanos;
+    private final Output output;
+    private final int mask; // History length minus one; the length is a power of two
+
+    // Per channel history, oldest reading at first[c]
+    private final long[][] times;
+    private final float[][] values;
+    private final int[] first;
+    private final int[] size;
+
+    private final float[] row;
+    private boolean started;
+    private long nextTime;
+    private long rowCount;
+
+    private final long[] maxErrorNanos;
+    private final long[] totalErrorNanos;
+    private final long[] heldRows;
+    private final long[] rejected;
+
+    public SensorSynchronizer(int channelCount, int width, int rateHz, int interpolation,
+                              long maxLatencyNanos, Output output) {
+        this(channelCount, width, rateHz, interpolation, maxLatencyNanos, DEFAULT_HISTORY, output);
+    }
+
+    // history is the number of readings kept per channel (rounded up to a power of two); it must
+    // cover maxLatency at the fastest channel's rate, or readings are dropped while others lag
+    public SensorSynchronizer(int channelCount, int width, int rateHz, int interpolation,
+                              long maxLatencyNanos, int history, Output output) {
+        if (channelCount <= 0) throw new IllegalArgumentException("No channels to synchronize");
+        if (rateHz <= 0) throw new IllegalArgumentException("Invalid grid rate: " + rateHz);
+        if (interpolation != LINEAR && interpolation != CUBIC) {
+            throw new IllegalArgumentException("Invalid interpolation: " + interpolation);
+        }
+        this.channelCount = channelCount;
+        this.width = width;
+        this.periodNanos = 1_000_000_000L / rateHz;
+        this.interpolation = interpolation;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.output = output;
+        int length = Integer.highestOneBit(Math.max(4, history) - 1) << 1;
+        this.mask = length - 1;
+        this.times = new long[channelCount][length];
+        this.values = new float[channelCount][length * width];
+        this.first = new int[channelCount];
+        this.size = new int[channelCount];
+        this.row = new float[channelCount * width];
+        this.maxErrorNanos = new long[channelCount];
+        this.totalErrorNanos = new long[channelCount];
+        this.heldRows = new long[channelCount];
+        this.rejected = new long[channelCount];
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    // Largest distance between a grid point and the nearest real reading of the channel
+    public long getMaxErrorNanos(int channel) {
+        return maxErrorNanos[channel];
+    }
+
+    public long getMeanErrorNanos(int channel) {
+        return rowCount == 0 ? 0 : totalErrorNanos[channel] / rowCount;
+    }
+
+    // Rows where the channel had nothing at or after the grid point and held its last value
+    public long getHeldRows(int channel) {
+        return heldRows[channel];
+    }
+
+    // Readings ignored because their timestamp did not move forward, or the history overflowed
+    public long getRejectedReadings(int channel) {
+        return rejected[channel];
+    }
+
+    // Add one reading, which may complete one or more rows
+    public void add(int channel, long timeNanos, float[] source, int offset) {
+        int n = size[channel];
+        long[] channelTimes = times[channel];
+        if (n > 0 && timeNanos <= channelTimes[(first[channel] + n - 1) & mask]) {
+            rejected[channel]++;
+            return;
+        }
+        if (n == mask + 1) {
+            // The other channels are far behind; make room by forgetting the oldest reading
+            first[channel] = (first[channel] + 1) & mask;
+            n--;
+            rejected[channel]++;
+        }
+        int slot = (first[channel] + n) & mask;
+        channelTimes[slot] = timeNanos;
+        System.arraycopy(source, offset, values[channel], slot * width, width);
+        size[channel] = n + 1;
+        emitReadyRows();
+    }
+
+    private void emitReadyRows() {
+        if (!started) {
+            long start = Long.MIN_VALUE;
+            for (int c = 0; c < channelCount; c++) {
+                if (size[c] == 0) return;
+                start = Math.max(start, times[c][first[c]]);
+            }
+            // First multiple of the period that every channel has reached
+            nextTime = Math.floorDiv(start + periodNanos - 1, periodNanos) * periodNanos;
+            started = true;
+        }
+        while (true) {
+            long t = nextTime;
+            boolean ready = true;
+            long newest = Long.MIN_VALUE;
+            for (int c = 0; c < channelCount; c++) {
+                long last = newestTime(c);
+                newest = Math.max(newest, last);
+                if (!hasReadingsFor(c, t)) ready = false;
+            }
+            if (!ready && newest - t <= maxLatencyNanos) return;
+
+            for (int c = 0; c < channelCount; c++) {
+                interpolate(c, t);
+            }
+            rowCount++;
+            output.onRow(t, row);
+            nextTime = t + periodNanos;
+            for (int c = 0; c < channelCount; c++) {
+                discardBefore(c, nextTime);
+            }
+        }
+    }
+
+    private long newestTime(int c) {
+        return times[c][(first[c] + size[c] - 1) & mask];
+    }
+
+    // Index into the channel's history of the first reading at or after t, or size if none
+    private int after(int c, long t) {
+        long[] channelTimes = times[c];
+        int i = 0;
+        while (i < size[c] && channelTimes[(first[c] + i) & mask] < t) i++;
+        return i;
+    }
+
+    private boolean hasReadingsFor(int c, long t) {
+        int r = after(c, t);
+        if (r == size[c]) return false;
+        if (interpolation == LINEAR || time(c, r) == t) return true;
+        return r + 1 < size[c]; // Cubic also needs the slope past the right-hand reading
+    }
+
+    private long time(int c, int index) {
+        return times[c][(first[c] + index) & mask];
+    }
+
+    private int valueIndex(int c, int index) {
+        return ((first[c] + index) & mask) * width;
+    }
+
+    // Fill the channel's part of the row for time t and account for its alignment error
+    private void interpolate(int c, long t) {
+        float[] v = values[c];
+        int out = c * width;
+        int n = size[c];
+        int r = after(c, t);
+        long error;
+        if (r == n) {
+            // Nothing newer yet: hold the last value
+            System.arraycopy(v, valueIndex(c, n - 1), row, out, width);
+            error = t - time(c, n - 1);
+            heldRows[c]++;
+        } else if (r == 0 || time(c, r) == t) {
+            // Exact hit, or the history starts after t (only after an overflow)
+            System.arraycopy(v, valueIndex(c, r), row, out, width);
+            error = time(c, r) - t;
+        } else {
+            int l = r - 1;
+            long tl = time(c, l), tr = time(c, r);
+            error = Math.min(t - tl, tr - t);
+            double h = tr - tl;
+            double u = (t - tl) / h;
+            int il = valueIndex(c, l), ir = valueIndex(c, r);
+            if (interpolation == LINEAR) {
+                for (int k = 0; k < width; k++) {
+                    row[out + k] = (float) (v[il + k] + (v[ir + k] - v[il + k]) * u);
+                }
+            } else {
+                // Cubic Hermite with slopes from the neighbouring readings (one-sided at the ends)
+                double u2 = u * u, u3 = u2 * u;
+                double h00 = 2 * u3 - 3 * u2 + 1, h10 = u3 - 2 * u2 + u;
+                double h01 = -2 * u3 + 3 * u2, h11 = u3 - u2;
+                boolean hasBefore = l > 0, hasAfter = r + 1 < n;
+                long t0 = hasBefore ? time(c, l - 1) : tl;
+                long t3 = hasAfter ? time(c, r + 1) : tr;
+                int i0 = hasBefore ? valueIndex(c, l - 1) : il;
+                int i3 = hasAfter ? valueIndex(c, r + 1) : ir;
+                for (int k = 0; k < width; k++) {
+                    double p1 = v[il + k], p2 = v[ir + k];
+                    double m1 = (p2 - v[i0 + k]) / (tr - t0) * h;
+                    double m2 = (v[i3 + k] - p1) / (t3 - tl) * h;
+                    row[out + k] = (float) (h00 * p1 + h10 * m1 + h01 * p2 + h11 * m2);
+                }
+            }
+        }
+        error = Math.abs(error);
+        totalErrorNanos[c] += error;
+        if (error > maxErrorNanos[c]) maxErrorNanos[c] = error;
+    }
+
+    // Forget readings no longer needed for grid points at or after t, always keeping the newest
+    private void discardBefore(int c, long t) {
+        int keep = interpolation == CUBIC ? 2 : 1; // Readings kept at or before t
+        while (size[c] > keep && time(c, keep) <= t) {
+            first[c] = (first[c] + 1) & mask;
+            size[c]--;
+        }
+    }
+}
@@ -1,66 +1,193 @@
 package com.humbl.imuapp;
 
 import android.Manifest;
+import android.app.Activity;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
-import android.widget.EditText;
 
 import androidx.annotation.NonNull;
-import androidx.appcompat.app.AlertDialog;
+import androidx.annotation.Nullable;
 import androidx.core.app.ActivityCompat;
 
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class SynchronizedDataCollector implements SensorEventListener2 {
+    // Receives a thinned-out copy of the rows for live display, on the drain thread
+    public interface LiveSampleListener {
+        // values holds each channel's readings in turn, getArity() of them per channel; both
+        // arrays are reused after the call returns and must not be changed
+        void onLiveSample(long timeMs, SensorChannel[] channels, float[] values);
+    }
+
+    // Sampling settings, also stored in the metadata of exported recording files
+    static final int DEFAULT_SAMPLING_RATE = SensorManager.SENSOR_DELAY_GAME;
+    static final long GPS_INTERVAL_MS = 1000; // Location fix interval unless set otherwise
+    private static final SampleSchema FIX_SCHEMA = SampleSchema.locationFixes();
+    private static final int FIX_TIME_SLOT = slotOf(FIX_SCHEMA, "timeStampNs");
+    private static final int FIX_UTC_SLOT = slotOf(FIX_SCHEMA, "utcTimeMs");
+    private static final int FIX_LATITUDE_SLOT = slotOf(FIX_SCHEMA, "latitude");
+    private static final int FIX_LONGITUDE_SLOT = slotOf(FIX_SCHEMA, "longitude");
+    private static final int FIX_ALTITUDE_SLOT = slotOf(FIX_SCHEMA, "altitude");
+    private static final int FIX_ACCURACY_SLOT = slotOf(FIX_SCHEMA, "accuracyM");
+    private static final int FIX_SPEED_SLOT = slotOf(FIX_SCHEMA, "speedMps");
+    // Sensor readings wait here until the drain thread stores them; 8192 slots hold over a
+    // minute of both sensors at 50 Hz, or several seconds at the fastest rates
+    static final int RING_CAPACITY = 8192;
+    // Rows are resampled onto a grid at the rate of the fastest sensor, unless set otherwise
+    static final int DEFAULT_INTERPOLATION = SensorSynchronizer.LINEAR;
+    private static final int FASTEST_PERIOD_US = 2500; // Assumed when a sensor reports no minimum delay
+    // A sensor that falls this far behind the other is held at its last value instead of waited for
+    static final long MAX_SYNC_LATENCY_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    // Report latency of batched capture unless set otherwise: the sensor hub holds readings in
+    // its FIFO and wakes the app about six times a minute instead of for every reading
+    static final int DEFAULT_BATCH_LATENCY_US = 10_000_000;
+    private static final long FLUSH_TIMEOUT_MS = 1000; // Wait at most this long for the FIFO on stop()
 
-public class SynchronizedDataCollector implements SensorEventListener {
     private final SensorManager sensorManager;
-    private final Sensor accelerometer;
-    private final Sensor gyroscope;
+    // The recorded channels this device has a sensor for; the index is the channel number in the
+    // ring buffer and the synchronizer
+    private final SensorChannel[] channels;
+    private final Sensor[] sensors;
+    private final int[] arities;
+    private final int width; // Values per reading in the ring buffer and synchronizer, the largest arity
+    private final int[] channelOfType; // Sensor type -> channel, -1 where the type is not recorded
     private final LocationManager locationManager;
     private final Context context;
     private final DataExport dataExport;
     private long recordingStartTime;
-    private long accelTimestamp = -1;
-    private long gyroTimestamp = -1;
-    private long gpsTimestamp = -1;
-    private final boolean isAccelEnabled;
-    private final boolean isGyroEnabled;
+    private long startElapsedNanos; // recordingStartTime on the elapsedRealtimeNanos clock of SensorEvent.timestamp
+    private volatile long gpsTimestamp = -1; // Time of the latest fix in milliseconds since the start
     private final boolean isGPSEnabled;
-    private final PlotFragment plotFragment;
-    // For synchronized data
-    private float[] latestAccel = new float[3];
-    private float[] latestGyro = new float[3];
-    private double latitude = 0, longitude = 0;
-    private boolean hasAccel = false, hasGyro = false;
-    private boolean hasGPSFix = false;
+    private long locationIntervalMs = GPS_INTERVAL_MS;
+    private String locationProvider; // Provider the fixes come from while recording
+    // Every fix is stored here once, as a SampleSchema.locationFixes() row, by the callback thread
+    private DataExport locationExport;
+    private final SampleRow fixRow = FIX_SCHEMA.newRow();
+    private volatile long locationFixes;
+    private volatile LiveSampleListener liveListener;
+    private volatile EventClipRecorder eventClips; // Rolling window the rows also go to, for event clips
+    private volatile long livePeriodNanos;
+    private long nextLiveNanos = Long.MIN_VALUE; // Only used on the drain thread
+    private final float[] liveValues;
+    // Latest fix, set by the location listener; read for event pins and by the drain thread for
+    // sessions whose rows still have position columns
+    private volatile double latitude = 0, longitude = 0;
+    private volatile boolean hasGPSFix = false;
+    private final SampleRow combinedRow; // Reused for every synchronized row
+    // Row slots, looked up by name so sessions recorded with the older per-sensor time columns
+    // (SampleSchema.synchronizedImu) can still be resumed; -1 where the schema has no such column
+    private final int timeNanosSlot, accTimeSlot, gyroTimeSlot, gpsTimeSlot;
+    private final int latitudeSlot, longitudeSlot;
+    private final int[] axisSlots; // Slot of each channel's values, width entries per channel
+    // SENSOR_DELAY_* constants or periods in microseconds, as registerListener takes them
+    private final int[] rates;
+    private int gridRateHz; // 0 until start() when following the sensors
+    private boolean gridRateSet;
+    private int interpolation = DEFAULT_INTERPOLATION;
+    private final RateMeter[] rateMeters; // Used on the drain thread
+    private SensorSynchronizer synchronizer; // Only used on the drain thread once started
+    private int batchLatencyUs; // 0 delivers every reading as it is taken
+    private SampleRingBuffer ring; // Sized in start(), to hold a whole batch when batching
+    private final SampleRingBuffer.Consumer drainConsumer = this::onReading;
+    private HandlerThread callbackThread; // Sensor and location callbacks arrive here, not on the main thread
+    private Handler callbackHandler;
+    private Thread drainThread;
+    private volatile boolean draining;
+    // Deliveries from the sensor hub, i.e. times the callback thread had to wake up for readings;
+    // the drain thread is woken once per delivery and stores the whole burst in one pass
+    private boolean drainWakePosted; // Only used on the callback thread
+    private long deliveries;
+    private final Runnable wakeDrain = () -> {
+        drainWakePosted = false;
+        deliveries++;
+        LockSupport.unpark(drainThread);
+    };
+    private int registeredSensors;
+    private volatile CountDownLatch flushLatch;
 
     public SynchronizedDataCollector(Context context, DataExport dataExport,
                                      boolean isAccelEnabled, boolean isGyroEnabled, boolean isGPSEnabled,
-                                     long recordingStartTime, PlotFragment plotFragment) {
+                                     long recordingStartTime) {
+        this(context, dataExport, imuChannels(isAccelEnabled, isGyroEnabled), isGPSEnabled, recordingStartTime);
+    }
+
+    // Records the given channels (see SensorChannel), each at its default rate until set otherwise;
+    // channels this device has no sensor for are left out
+    public SynchronizedDataCollector(Context context, DataExport dataExport, List<SensorChannel> recorded,
+                                     boolean isGPSEnabled, long recordingStartTime) {
 
         this.context = context;
         this.dataExport = dataExport;
-        this.isAccelEnabled = isAccelEnabled;
-        this.isGyroEnabled = isGyroEnabled;
         this.isGPSEnabled = isGPSEnabled;
         this.recordingStartTime = recordingStartTime;
-        this.plotFragment = plotFragment;
+        SampleSchema schema = dataExport.getSchema();
+        this.combinedRow = schema.newRow();
+        this.timeNanosSlot = slotOf(schema, "timeStampNs");
+        this.accTimeSlot = slotOf(schema, "timeStampAcc");
+        this.gyroTimeSlot = slotOf(schema, "timeStampGyro");
+        this.gpsTimeSlot = slotOf(schema, "timeStampGPS");
+        this.latitudeSlot = slotOf(schema, "latitude");
+        this.longitudeSlot = slotOf(schema, "longitude");
 
         this.sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-        this.accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
-        this.gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        List<SensorChannel> present = new ArrayList<>();
+        List<Sensor> found = new ArrayList<>();
+        for (SensorChannel channel : recorded) {
+            Sensor sensor = sensorManager.getDefaultSensor(channel.getSensorType());
+            if (sensor == null) {
+                Log.w("SynchronizedDataCollector", "No " + channel.getLabel() + " sensor, recording without it");
+                continue;
+            }
+            present.add(channel);
+            found.add(sensor);
+        }
+        int n = present.size();
+        this.channels = present.toArray(new SensorChannel[0]);
+        this.sensors = found.toArray(new Sensor[0]);
+        this.arities = new int[n];
+        this.rates = new int[n];
+        this.rateMeters = new RateMeter[n];
+        int widest = 1, maxType = -1, totalValues = 0;
+        for (int c = 0; c < n; c++) {
+            arities[c] = channels[c].getArity();
+            rates[c] = channels[c].getDefaultRate();
+            rateMeters[c] = new RateMeter();
+            widest = Math.max(widest, arities[c]);
+            maxType = Math.max(maxType, channels[c].getSensorType());
+            totalValues += arities[c];
+        }
+        this.width = widest;
+        this.channelOfType = new int[maxType + 1];
+        Arrays.fill(channelOfType, -1);
+        this.axisSlots = new int[n * width];
+        Arrays.fill(axisSlots, -1);
+        for (int c = 0; c < n; c++) {
+            channelOfType[channels[c].getSensorType()] = c;
+            for (int k = 0; k < arities[c]; k++) axisSlots[c * width + k] = slotOf(schema, channels[c].getColumn(k));
+        }
+        this.liveValues = new float[totalValues];
         this.locationManager = (LocationManager) context.getSystemService(Context.LOCATION_SERVICE);
     }
     public double getLatitude() {
@@ -77,163 +204,405 @@ public class SynchronizedDataCollector implements SensorEventListener {
     public DataExport getDataExport() {
         return dataExport;
     }
+
+    @Nullable
+    public DataExport getLocationExport() {
+        return locationExport;
+    }
+
+    // Accelerometer and/or gyroscope, what recordings held before there were more channels
+    static List<SensorChannel> imuChannels(boolean accel, boolean gyro) {
+        List<SensorChannel> channels = new ArrayList<>();
+        if (accel) channels.add(SensorChannel.ACCELEROMETER);
+        if (gyro) channels.add(SensorChannel.GYROSCOPE);
+        return channels;
+    }
+
+    // Target rate of a channel's sensor, a SensorManager.SENSOR_DELAY_* constant or a period in
+    // microseconds (e.g. 2500 for 400 Hz); must be set before start(). Ignored for channels
+    // that are not recorded
+    public void setSamplingRate(SensorChannel channel, int rate) {
+        for (int c = 0; c < channels.length; c++) {
+            if (channels[c] == channel) rates[c] = rate;
+        }
+    }
+
+    // The channels being recorded, in column order
+    public List<SensorChannel> getChannels() {
+        return Arrays.asList(channels.clone());
+    }
+
+    // Grid the sensors are resampled onto, e.g. 100, 200 or 400 Hz, or 0 to follow the fastest
+    // sensor; interpolation is SensorSynchronizer.LINEAR or CUBIC. Must be set before start()
+    public void setResampling(int rateHz, int interpolation) {
+        this.gridRateHz = Math.max(0, rateHz);
+        this.gridRateSet = rateHz > 0;
+        this.interpolation = interpolation;
+    }
+
+    // Batched capture: the sensor hub may hold readings for up to maxReportLatencyUs before
+    // delivering them in one burst, so the phone can sleep in between; 0 turns it off. Rows are
+    // then written up to that much later than the readings were taken. Must be set before start()
+    public void setBatching(int maxReportLatencyUs) {
+        this.batchLatencyUs = Math.max(0, maxReportLatencyUs);
+    }
+
+    // Ask for a position fix this often; must be set before start()
+    public void setLocationInterval(long intervalMs) {
+        this.locationIntervalMs = Math.max(0, intervalMs);
+    }
+
+    // Where the location fixes are stored, a DataExport of SampleSchema.locationFixes() rows;
+    // without one, fixes only update the latest position. Must be set before start()
+    public void setLocationExport(@Nullable DataExport fixes) {
+        this.locationExport = fixes;
+    }
+
+    // Also keep the latest rows in a clip recorder's window; null stops it
+    public void setEventClips(@Nullable EventClipRecorder clips) {
+        this.eventClips = clips;
+    }
+
+    // Pass rows on to the listener, at most maxRateHz of them a second; null stops it
+    public void setLiveSampleListener(@Nullable LiveSampleListener listener, int maxRateHz) {
+        livePeriodNanos = 1_000_000_000L / Math.max(1, maxRateHz);
+        liveListener = listener;
+    }
+
+    // Time since the recording started on the clock the rows are stamped with, e.g. to mark
+    // events against the same timeline; only valid once started
+    public long getElapsedMillis() {
+        return getElapsedNanos() / 1_000_000;
+    }
+
+    // Same in nanoseconds, the unit of the rows' timeStampNs
+    public long getElapsedNanos() {
+        return getElapsedNanos(SystemClock.elapsedRealtimeNanos());
+    }
+
+    // The same for a moment taken earlier with SystemClock.elapsedRealtimeNanos(), e.g. a button press
+    public long getElapsedNanos(long elapsedRealtimeNanos) {
+        return elapsedRealtimeNanos - startElapsedNanos;
+    }
+
+    public int getGridRateHz() {
+        return gridRateHz;
+    }
+
+    // Period in microseconds asked for by a SENSOR_DELAY_* constant or a period; 0 for the fastest
+    static int toPeriodUs(int rate) {
+        switch (rate) {
+            case SensorManager.SENSOR_DELAY_FASTEST: return 0;
+            case SensorManager.SENSOR_DELAY_GAME: return 20_000;
+            case SensorManager.SENSOR_DELAY_UI: return 66_667;
+            case SensorManager.SENSOR_DELAY_NORMAL: return 200_000;
+            default: return rate;
+        }
+    }
+
+    // Period the sensor will actually be driven at for the requested rate
+    private static int effectivePeriodUs(Sensor sensor, int rate) {
+        int period = toPeriodUs(rate);
+        int minDelay = sensor.getMinDelay();
+        if (minDelay > 0 && period < minDelay) return minDelay;
+        return period > 0 ? period : FASTEST_PERIOD_US;
+    }
+
+    private static int slotOf(SampleSchema schema, String name) {
+        int column = schema.indexOf(name);
+        return column < 0 ? -1 : schema.getSlot(column);
+    }
+
     public void start() {
         Log.d("SynchronizedDataCollector", "Starting data collection...");
-        recordingStartTime = System.currentTimeMillis();
+        // Timestamps stay relative to the start time given to the constructor, so a resumed
+        // recording continues on the same timeline
+
+        if (synchronizer == null) {
+            // Hardware timestamps count from boot; line them up with the recording's start time
+            startElapsedNanos = SystemClock.elapsedRealtimeNanos()
+                    - TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - recordingStartTime);
+            int count = channels.length;
+            int fastestPeriodUs = Integer.MAX_VALUE;
+            for (int c = 0; c < count; c++) {
+                fastestPeriodUs = Math.min(fastestPeriodUs, effectivePeriodUs(sensors[c], rates[c]));
+            }
+            if (!gridRateSet && count > 0) {
+                gridRateHz = Math.max(1, (int) Math.round(1e6 / fastestPeriodUs));
+            }
+            // A batch arrives all at once, so the queue and the synchronizer must hold one whole
+            // batch of the fastest sensor, and a sensor whose batch comes later is waited for
+            long batchNanos = TimeUnit.MICROSECONDS.toNanos(batchLatencyUs);
+            long perBatch = count > 0 ? batchLatencyUs / fastestPeriodUs + 1 : 0;
+            ring = new SampleRingBuffer((int) Math.max(RING_CAPACITY, 2 * count * perBatch), width, Math.max(1, count));
+            if (count > 0) {
+                long maxLatency = MAX_SYNC_LATENCY_NANOS + 2 * batchNanos;
+                long history = Math.max(SensorSynchronizer.DEFAULT_HISTORY, 2 * (maxLatency / 1000 / fastestPeriodUs + 1));
+                synchronizer = new SensorSynchronizer(count, width, gridRateHz, interpolation,
+                        maxLatency, (int) Math.min(history, 1 << 20), this::addGridRow);
+            }
+        }
 
-        // Register accelerometer if enabled
-        if (isAccelEnabled && accelerometer != null) {
-            sensorManager.registerListener(this, accelerometer, SensorManager.SENSOR_DELAY_GAME);
-            Log.d("SynchronizedDataCollector", "Accelerometer listener registered");
+        // Rows are combined and stored on their own thread, so slow storage never holds up the sensors
+        if (drainThread == null) {
+            draining = true;
+            drainThread = new Thread(this::drainLoop, "SensorDrain");
+            drainThread.start();
+        }
+        // Callbacks get a thread of their own, so charts and dialogs on the main thread can't delay them
+        if (callbackThread == null) {
+            callbackThread = new HandlerThread("SensorCallbacks", Process.THREAD_PRIORITY_URGENT_AUDIO);
+            callbackThread.start();
+            callbackHandler = new Handler(callbackThread.getLooper());
         }
 
-        // Register gyroscope if enabled
-        if (isGyroEnabled && gyroscope != null) {
-            sensorManager.registerListener(this, gyroscope, SensorManager.SENSOR_DELAY_GAME);
-            Log.d("SynchronizedDataCollector", "Gyroscope listener registered");
+        // Register the sensor of every recorded channel
+        registeredSensors = 0;
+        for (int c = 0; c < channels.length; c++) {
+            register(sensors[c], rates[c]);
+            Log.d("SynchronizedDataCollector", channels[c].getLabel() + " listener registered at " + rates[c]);
         }
 
         // Start GPS updates if enabled
         if (isGPSEnabled) {
             if (ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)
                     != PackageManager.PERMISSION_GRANTED) {
-                // If permission is not granted, request it
+                // If permission is not granted, request it; a service can't, it records without GPS
                 Log.w("SynchronizedDataCollector", "Location permission not granted yet");
-                ActivityCompat.requestPermissions(
-                        (MainActivity) context,
-                        new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
-                        MainActivity.REQUEST_LOCATION_PERMISSION
-                );
+                if (context instanceof Activity) {
+                    ActivityCompat.requestPermissions(
+                            (Activity) context,
+                            new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
+                            MainActivity.REQUEST_LOCATION_PERMISSION
+                    );
+                }
                 return; // Exit start() until permission granted
             }
-            // Request location updates
-            Log.d("SynchronizedDataCollector", "Requesting GPS location updates...");
+            // Satellite fixes when the GNSS receiver is on, cell and Wi-Fi positioning otherwise
+            locationProvider = locationManager.isProviderEnabled(LocationManager.GPS_PROVIDER)
+                    ? LocationManager.GPS_PROVIDER : LocationManager.NETWORK_PROVIDER;
+            Log.d("SynchronizedDataCollector", "Requesting " + locationProvider + " location updates every "
+                    + locationIntervalMs + " ms");
             locationManager.requestLocationUpdates(
-                    LocationManager.NETWORK_PROVIDER,
-                    1000, //gps updates once every second
+                    locationProvider,
+                    locationIntervalMs,
                     0,    // 0m min distance
-                    locationListener
+                    locationListener,
+                    callbackThread.getLooper()
             );
         }
     }
 
-    public void stop() {
-        sensorManager.unregisterListener(this);
-        locationManager.removeUpdates(locationListener);
+    private void register(Sensor sensor, int rate) {
+        if (batchLatencyUs == 0) {
+            sensorManager.registerListener(this, sensor, rate, callbackHandler);
+            registeredSensors++;
+            return;
+        }
+        // A non-wake-up sensor stops delivering while the phone sleeps and its FIFO overwrites the
+        // oldest readings once full, so prefer the wake-up variant, which wakes the phone per batch
+        Sensor wakeUp = sensorManager.getDefaultSensor(sensor.getType(), true);
+        if (wakeUp != null) {
+            sensor = wakeUp;
+        } else {
+            Log.w("SynchronizedDataCollector", sensor.getName() + " has no wake-up variant, readings may be lost while the screen is off");
+        }
+        if (sensor.getFifoMaxEventCount() == 0) {
+            Log.w("SynchronizedDataCollector", sensor.getName() + " has no FIFO, readings are delivered unbatched");
+        } else {
+            Log.d("SynchronizedDataCollector", sensor.getName() + " FIFO holds " + sensor.getFifoMaxEventCount()
+                    + " readings, batching for up to " + batchLatencyUs / 1000 + " ms");
+        }
+        sensorManager.registerListener(this, sensor, rate, batchLatencyUs, callbackHandler);
+        registeredSensors++;
     }
 
-
-    @Override
-    public void onSensorChanged(SensorEvent event) {
-        long eventTime = System.currentTimeMillis() - recordingStartTime;
-
-        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
-            latestAccel = event.values.clone();
-            accelTimestamp = eventTime;
-            hasAccel = true;
-
-            // Add plotting for individual axes
-            if (plotFragment != null) {
-                plotFragment.addAccelData(accelTimestamp, latestAccel[0], latestAccel[1], latestAccel[2]);
+    // Have the sensor hub deliver everything waiting in its FIFO, and wait until it has;
+    // only needed when batching, unbatched readings are never held back
+    private void flushSensors() {
+        if (batchLatencyUs == 0 || registeredSensors == 0 || callbackHandler == null) return;
+        CountDownLatch latch = new CountDownLatch(registeredSensors);
+        flushLatch = latch;
+        try {
+            if (sensorManager.flush(this) && !latch.await(FLUSH_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w("SynchronizedDataCollector", "Sensor FIFO flush timed out, the last batch may be incomplete");
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        flushLatch = null;
+    }
 
-        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
-            latestGyro = event.values.clone();
-            gyroTimestamp = eventTime;
-            hasGyro = true;
+    // Stop the sensors and store every reading still queued; rows are complete when this returns
+    public void stop() {
+        flushSensors();
+        sensorManager.unregisterListener(this);
+        registeredSensors = 0;
+        locationManager.removeUpdates(locationListener);
 
-            // Add plotting for individual axes
-            if (plotFragment != null) {
-                plotFragment.addGyroData(gyroTimestamp, latestGyro[0], latestGyro[1], latestGyro[2]);
+        // Let callbacks already queued finish, so no reading is offered once draining stops
+        HandlerThread callbacks = callbackThread;
+        if (callbacks != null) {
+            callbacks.quitSafely();
+            try {
+                callbacks.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+            callbackThread = null;
+            callbackHandler = null;
         }
 
-        if (hasAccel && hasGyro) {
-            addCombinedRow(accelTimestamp, gyroTimestamp);
-            hasAccel = hasGyro = false;
+        Thread thread = drainThread;
+        if (thread == null) return;
+        draining = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        drainThread = null;
+        logAlignment();
+        Log.d("SynchronizedDataCollector", deliveries + " sensor deliveries, " + String.format(Locale.US,
+                "%.1f", getDeliveriesPerMinute()) + " a minute");
+        Log.d("SynchronizedDataCollector", "Sensor queue: " + ring.getOfferedCount() + " readings, "
+                + ring.getDroppedCount() + " dropped, at most " + ring.getHighWaterMark() + " of " + ring.getCapacity() + " slots used");
     }
 
-    private void addCombinedRow(long accelTime, long gyroTime) {
-        String[] row = new String[13];
-        row[0] = String.valueOf(accelTime);         // accel_time
-        row[1] = String.valueOf(latestAccel[0]);    // ax
-        row[2] = String.valueOf(latestAccel[1]);    // ay
-        row[3] = String.valueOf(latestAccel[2]);    // az
-        row[4] = String.valueOf(gyroTime);          // gyro_time
-        row[5] = String.valueOf(latestGyro[0]);     // gx
-        row[6] = String.valueOf(latestGyro[1]);     // gy
-        row[7] = String.valueOf(latestGyro[2]);     // gz
-        row[11] = "";
-        row[12] = "";                               //Event description
-        if (hasGPSFix) {
-            row[8] = String.valueOf(gpsTimestamp);
-            row[9] = String.valueOf(latitude);
-            row[10] = String.valueOf(longitude);
-        } else {
-            row[8] = "0";     //
-            row[9] = "0";
-            row[10] = "0";
-        }
+    // Looper the sensor and location callbacks run on while recording, null when stopped
+    Looper getCallbackLooper() {
+        return callbackHandler != null ? callbackHandler.getLooper() : null;
+    }
 
-        dataExport.addSensorRow("Synchronized", row);
+    // Readings lost because the drain thread fell a whole queue behind
+    public long getDroppedReadings() {
+        return ring != null ? ring.getDroppedCount() : 0;
+    }
 
-        if (plotFragment != null && plotFragment.getActivity() != null) {
-            plotFragment.getActivity().runOnUiThread(() -> {
-                plotFragment.addAccelData(accelTime, latestAccel[0], latestAccel[1], latestAccel[2]);
-                plotFragment.addGyroData(gyroTime, latestGyro[0], latestGyro[1], latestGyro[2]);
-            });
-        }
+    // Times the sensors woke the callback thread, per minute of readings; call after stop()
+    double getDeliveriesPerMinute() {
+        long durationNanos = 0;
+        for (RateMeter meter : rateMeters) durationNanos = Math.max(durationNanos, meter.getDurationNanos());
+        return durationNanos == 0 ? 0 : deliveries * 60e9 / durationNanos;
     }
-    public void recordEventWithDialog() {
-        ArrayList<String[]> rows = dataExport.getSensorData("Synchronized");
 
-        if (rows == null || rows.isEmpty()) {
-            Log.w("SynchronizedDataCollector", "No data rows to attach event to");
-            return;
+    // Requested and achieved sampling of each sensor, for the recording metadata; call after stop()
+    public Map<String, String> getSamplingStats() {
+        Map<String, String> stats = new LinkedHashMap<>();
+        if (synchronizer == null) return stats;
+        for (int c = 0; c < channels.length; c++) {
+            RateMeter meter = rateMeters[c];
+            String name = channels[c].getName();
+            stats.put(name + "PeriodUs", String.valueOf(toPeriodUs(rates[c])));
+            stats.put(name + "AchievedHz", String.format(Locale.US, "%.2f", meter.getAchievedHz()));
+            stats.put(name + "JitterUs", String.format(Locale.US, "%.1f", meter.getJitterUs()));
+            stats.put(name + "MaxIntervalUs", String.format(Locale.US, "%.0f", meter.getMaxIntervalUs()));
+            stats.put(name + "Readings", String.valueOf(meter.getCount()));
+            stats.put(name + "Dropped", String.valueOf(ring.getDroppedCount(c)));
+            stats.put(name + "AlignmentMeanUs", String.valueOf(synchronizer.getMeanErrorNanos(c) / 1000));
+            stats.put(name + "AlignmentMaxUs", String.valueOf(synchronizer.getMaxErrorNanos(c) / 1000));
         }
+        stats.put("gridRateHz", String.valueOf(gridRateHz));
+        stats.put("interpolation", interpolation == SensorSynchronizer.CUBIC ? "cubic" : "linear");
+        stats.put("batchLatencyUs", String.valueOf(batchLatencyUs));
+        stats.put("sensorDeliveries", String.valueOf(deliveries));
+        stats.put("sensorDeliveriesPerMinute", String.format(Locale.US, "%.1f", getDeliveriesPerMinute()));
+        if (locationProvider != null) {
+            stats.put("locationProvider", locationProvider);
+            stats.put("locationIntervalMs", String.valueOf(locationIntervalMs));
+            stats.put("locationFixes", String.valueOf(locationFixes));
+        }
+        return stats;
+    }
 
-        // Get the most recent row
-        String[] lastRow = rows.get(rows.size() - 1);
+    private void logAlignment() {
+        if (synchronizer == null) return;
+        for (int c = 0; c < channels.length; c++) {
+            RateMeter meter = rateMeters[c];
+            String name = channels[c].getName();
+            Log.d("SynchronizedDataCollector", String.format(Locale.US,
+                    "%s achieved %.2f Hz, jitter %.1f us, longest interval %.1f ms", name,
+                    meter.getAchievedHz(), meter.getJitterUs(), meter.getMaxIntervalUs() / 1e3));
+            Log.d("SynchronizedDataCollector", String.format(Locale.US,
+                    "%s alignment on the %d Hz grid: mean %.2f ms, max %.2f ms, %d rows held, %d readings rejected",
+                    name, gridRateHz, synchronizer.getMeanErrorNanos(c) / 1e6,
+                    synchronizer.getMaxErrorNanos(c) / 1e6, synchronizer.getHeldRows(c),
+                    synchronizer.getRejectedReadings(c)));
+        }
+    }
 
-        // Insert timestamp in column 12
-        String timeFormatted = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.getDefault())
-                .format(new Date(System.currentTimeMillis()));
-        lastRow[11] = timeFormatted;
+    // Sleeps until the callback thread has a delivery queued, then stores all of it in one pass
+    private void drainLoop() {
+        int capacity = ring.getCapacity();
+        while (draining) {
+            while (ring.drain(drainConsumer, capacity) > 0) {}
+            LockSupport.park(this);
+        }
+        // The listeners are unregistered by now, take whatever is left
+        while (ring.drain(drainConsumer, capacity) > 0) {}
+    }
 
-        // Show dialog to get description and store in column 13
-        AlertDialog.Builder builder = new AlertDialog.Builder(context);
-        builder.setTitle("Describe the Event");
 
-        final EditText input = new EditText(context);
-        input.setHint("Enter a short description...");
-        builder.setView(input);
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        int type = event.sensor.getType();
+        // Only queue the reading with its hardware timestamp here, the drain thread does the rest
+        int channel = type < channelOfType.length ? channelOfType[type] : -1;
+        if (channel >= 0) ring.offer(channel, event.timestamp, event.values);
+        // Wake the drain thread after the rest of this delivery, however many readings it holds
+        if (!drainWakePosted) {
+            drainWakePosted = true;
+            callbackHandler.post(wakeDrain);
+        }
+    }
 
-        builder.setPositiveButton("OK", (dialog, which) -> {
-            String description = input.getText().toString();
-            lastRow[12] = description.replace(",", " "); // avoid commas in CSV
-        });
+    // The FIFO has been emptied into onSensorChanged for this sensor
+    @Override
+    public void onFlushCompleted(Sensor sensor) {
+        CountDownLatch latch = flushLatch;
+        if (latch != null) latch.countDown();
+    }
 
-        builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
-        builder.show();
+    // Runs on the drain thread for every queued reading, in arrival order
+    private void onReading(int channel, long timeNanos, float[] values, int offset) {
+        rateMeters[channel].add(timeNanos);
+        synchronizer.add(channel, timeNanos, values, offset);
     }
-    public void recordEventDescription(long timestamp, String description) {
-        ArrayList<String[]> rows = dataExport.getSensorData("Synchronized");
-        if (rows != null && !rows.isEmpty()) {
-            String[] lastRow = rows.get(rows.size() - 1);
 
-            if (lastRow.length < 13) {
-                lastRow = Arrays.copyOf(lastRow, 13);
-                rows.set(rows.size() - 1, lastRow);
+    // Called by the synchronizer for every grid point, with each channel interpolated to it
+    private void addGridRow(long timeNanos, float[] values) {
+        long sinceStartNanos = timeNanos - startElapsedNanos;
+        long sinceStartMs = sinceStartNanos / 1_000_000;
+        if (timeNanosSlot >= 0) combinedRow.longs[timeNanosSlot] = sinceStartNanos;
+        if (accTimeSlot >= 0) combinedRow.longs[accTimeSlot] = sinceStartMs;
+        if (gyroTimeSlot >= 0) combinedRow.longs[gyroTimeSlot] = sinceStartMs;
+        for (int c = 0; c < arities.length; c++) {
+            for (int k = 0, i = c * width; k < arities[c]; k++, i++) {
+                int slot = axisSlots[i];
+                if (slot >= 0) combinedRow.floats[slot] = values[i];
             }
-
-            lastRow[11] = String.valueOf(timestamp);              // event_time
-            lastRow[12] = description.replace(",", " ");          // event_description
-            Log.d("EventWrite", "Saved description to background export row: " + Arrays.toString(lastRow));
+        }
+        boolean fix = hasGPSFix;
+        if (gpsTimeSlot >= 0) combinedRow.longs[gpsTimeSlot] = fix ? gpsTimestamp : 0;
+        if (latitudeSlot >= 0) combinedRow.doubles[latitudeSlot] = fix ? latitude : 0;
+        if (longitudeSlot >= 0) combinedRow.doubles[longitudeSlot] = fix ? longitude : 0;
+
+        dataExport.addSample(combinedRow);
+        EventClipRecorder clips = eventClips;
+        if (clips != null) clips.append(combinedRow);
+
+        LiveSampleListener listener = liveListener;
+        if (listener != null && timeNanos >= nextLiveNanos) {
+            nextLiveNanos = timeNanos + livePeriodNanos;
+            int out = 0;
+            for (int c = 0; c < arities.length; c++) {
+                System.arraycopy(values, c * width, liveValues, out, arities[c]);
+                out += arities[c];
+            }
+            listener.onLiveSample(sinceStartMs, channels, liveValues);
         }
     }
-
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 
@@ -241,10 +610,25 @@ public class SynchronizedDataCollector implements SensorEventListener {
     private final LocationListener locationListener = new LocationListener() {
         @Override
         public void onLocationChanged(Location location) {
+            // The fix's own timestamp, on the clock the sensor readings are stamped with
+            long timeNanos = location.getElapsedRealtimeNanos() - startElapsedNanos;
             latitude = location.getLatitude();
             longitude = location.getLongitude();
-            gpsTimestamp = System.currentTimeMillis() - recordingStartTime;
+            gpsTimestamp = timeNanos / 1_000_000;
             hasGPSFix = true;
+            locationFixes++;
+
+            DataExport fixes = locationExport;
+            if (fixes != null) {
+                fixRow.longs[FIX_TIME_SLOT] = timeNanos;
+                fixRow.longs[FIX_UTC_SLOT] = location.getTime();
+                fixRow.doubles[FIX_LATITUDE_SLOT] = latitude;
+                fixRow.doubles[FIX_LONGITUDE_SLOT] = longitude;
+                fixRow.doubles[FIX_ALTITUDE_SLOT] = location.hasAltitude() ? location.getAltitude() : Double.NaN;
+                fixRow.floats[FIX_ACCURACY_SLOT] = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+                fixRow.floats[FIX_SPEED_SLOT] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+                fixes.addSample(fixRow);
+            }
             Log.d("SynchronizedDataCollector", "GPS updated: " + latitude + ", " + longitude);
         }
 
@@ -4,13 +4,16 @@ import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.media.MediaScannerConnection;
 import android.util.Log;
 import android.widget.Toast;
@@ -19,149 +22,566 @@ import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 
 import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-
-public class SynchronizedData_BackgroundService extends Service {
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns sensor capture: the only SynchronizedDataCollector of a recording lives here. A recording
+ * is started with an intent, which makes this a foreground service; activities then bind to it
+ * (LocalBinder) and send everything else through RecordingCommands, and follow a thinned-out
+ * live stream of the rows.
+ *
+ * Commands, from the binder or from intents, run one at a time on the service's command thread,
+ * and only that thread touches the collector, the session and the exports; so a command can
+ * never see a recording half started or half stopped, and none of them runs on the main thread.
+ */
+public class SynchronizedData_BackgroundService extends Service implements RecordingCommands {
+    static final int LIVE_SAMPLE_RATE_HZ = 25; // Enough for the plots, whatever the sensor rate
     private SynchronizedDataCollector dataCollector;
-    private final Map<Long, Integer> eventTimestampToRowIndex = new HashMap<>();
+    private RecordingSession session; // On-disk session of the current recording
+    private DataExport locationExport; // Location fixes of the current recording
+    private EventClipRecorder eventClips; // Clips around the events of the current recording
+    private String clipPrefix; // Start of the clip file names, the recording's name and start time
     public static String lastRecordingZipPath;
+    private static UploadQueue uploadQueue; // See getUploadQueue
     public static final String ACTION_RECORD_EVENT = "ACTION_RECORD_EVENT";
     public static final String ACTION_ADD_EVENT_DESCRIPTION = "ACTION_ADD_EVENT_DESCRIPTION";
     public static final String ACTION_EXPORT_DATA = "ACTION_EXPORT_DATA";
     public static final String ACTION_STOP_RECORDING = "ACTION_STOP_RECORDING";
-
-    private static final int LATITUDE_INDEX = 10;
-    private static final int LONGITUDE_INDEX = 11;
-    private static final int EVENT_DESC_INDEX = 12;
+    public static final String ACTION_DISCARD_RECORDING = "ACTION_DISCARD_RECORDING";
 
     private final List<GeoJsonHelper.EventPoint> recentPins = new ArrayList<GeoJsonHelper.EventPoint>();
+    private final IBinder binder = new LocalBinder();
+    private final ExecutorService commands = Executors.newSingleThreadExecutor(r -> new Thread(r, "RecordingCommands"));
+    private volatile long lastEventLatencyNanos = -1;
+    // Replaced as a whole on every change, so the fan-out walks it without locking or an iterator
+    private volatile SynchronizedDataCollector.LiveSampleListener[] liveListeners = new SynchronizedDataCollector.LiveSampleListener[0];
+    // Fans the collector's live samples out to the subscribers, on the collector's drain thread
+    private final SynchronizedDataCollector.LiveSampleListener liveFanOut = (timeMs, channels, values) -> {
+        for (SynchronizedDataCollector.LiveSampleListener listener : liveListeners) {
+            listener.onLiveSample(timeMs, channels, values);
+        }
+    };
+
+    // Handed to clients in the same process by bindService
+    public class LocalBinder extends Binder {
+        public RecordingCommands getCommands() {
+            return SynchronizedData_BackgroundService.this;
+        }
+
+        public SynchronizedData_BackgroundService getService() {
+            return SynchronizedData_BackgroundService.this;
+        }
+    }
 
     @Override
     public void onCreate() {
         super.onCreate();
         Log.d("SynchronizedDataService", "Service created");
+        getUploadQueue(this); // Picks up uploads left unfinished
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if (intent != null) {
-            Log.d("SynchronizedDataService", "Intent action: " + intent.getAction());
+        if (intent == null) {
+            // Restarted by the system (START_STICKY) after the process was killed
+            enqueue(this::resumeInterruptedRecording);
+            return START_STICKY;
+        }
+        Log.d("SynchronizedDataService", "Intent action: " + intent.getAction());
+        String action = intent.getAction();
+        if (action == null) {
+            // Promoted on the main thread, within the time allowed after startForegroundService
+            startForeground(1, createNotification());
+            enqueue(() -> startRecording(intent));
+            return START_STICKY;
         }
 
-        if (intent != null && intent.getAction() == null) {
-            Notification notification = createNotification();
-            startForeground(1, notification);
+        // Intents are still accepted, e.g. from other components; they go through the same commands,
+        // with EVENT_TIME_NS the press's SystemClock.elapsedRealtimeNanos() as for the binder
+        if (ACTION_RECORD_EVENT.equals(action)) {
+            recordEvent(intent.getLongExtra("EVENT_TIME_NS", SystemClock.elapsedRealtimeNanos()), null);
+        } else if (ACTION_ADD_EVENT_DESCRIPTION.equals(action)) {
+            String desc = intent.getStringExtra("EVENT_DESCRIPTION");
+            long pressedAt = intent.getLongExtra("EVENT_TIME_NS", -1);
+            if (desc != null && pressedAt != -1) describeEvent(pressedAt, desc);
+        } else if (ACTION_STOP_RECORDING.equals(action)) {
+            stopRecording();
+        } else if (ACTION_DISCARD_RECORDING.equals(action)) {
+            String sessionDir = intent.getStringExtra("SESSION_DIR");
+            discardRecording(sessionDir != null ? new File(sessionDir) : null);
+        } else if (ACTION_EXPORT_DATA.equals(action)) {
+            String sessionDir = intent.getStringExtra("SESSION_DIR");
+            exportRecording(intent.getStringExtra("RECORDING_NAME"), sessionDir != null ? new File(sessionDir) : null);
+        }
+        return START_NOT_STICKY;
+    }
 
-            boolean isAccelEnabled = intent.getBooleanExtra("ACCEL_ENABLED", true);
-            boolean isGyroEnabled = intent.getBooleanExtra("GYRO_ENABLED", true);
-            boolean isGPSEnabled = intent.getBooleanExtra("GPS_ENABLED", true); //Not sure if this is supposed to be true or false here
-            long recordingStartTime = System.currentTimeMillis();
+    // Command thread
+    private void startRecording(Intent intent) {
+        boolean isGPSEnabled = intent.getBooleanExtra("GPS_ENABLED", true); //Not sure if this is supposed to be true or false here
+        Map<SensorChannel, Integer> rates = channelRates(intent);
+        List<SensorChannel> channels = new ArrayList<>(rates.keySet());
+        int batchLatencyUs = intent.getIntExtra("BATCH_LATENCY_US", 0); // 0 for unbatched capture
+        // Resampling grid, 0 to follow the fastest sensor; SensorSynchronizer.LINEAR or CUBIC
+        int gridRateHz = intent.getIntExtra("GRID_RATE_HZ", 0);
+        int interpolation = intent.getIntExtra("INTERPOLATION", SynchronizedDataCollector.DEFAULT_INTERPOLATION);
+        long locationIntervalMs = intent.getLongExtra("LOCATION_INTERVAL_MS", SynchronizedDataCollector.GPS_INTERVAL_MS);
+        // Positions interpolated onto the exported rows from the fixes, which are stored either way
+        boolean interpolatePositions = intent.getBooleanExtra("INTERPOLATE_POSITIONS", true);
+        long clipPreMs = intent.getLongExtra("CLIP_PRE_MS", EventClipRecorder.DEFAULT_WINDOW_MS);
+        long clipPostMs = intent.getLongExtra("CLIP_POST_MS", EventClipRecorder.DEFAULT_WINDOW_MS);
+        String recordingName = intent.getStringExtra("RECORDING_NAME");
+        long recordingStartTime = System.currentTimeMillis();
+
+        // A recording still open here stays on disk, stopped, to be exported or discarded later
+        closeRecording();
+        DataExport dataExport = openDataExport(recordingName, recordingStartTime, channels, isGPSEnabled);
+        if (session != null) {
+            session.setSamplingRates(rates);
+            session.setBatchLatencyUs(batchLatencyUs);
+            session.setResampling(gridRateHz, interpolation);
+            session.setLocationSettings(locationIntervalMs, interpolatePositions);
+            session.setClipWindow(clipPreMs, clipPostMs);
+        }
+        locationExport = openLocationExport(session);
 
-            DataExport dataExport = new DataExport();
+        dataCollector = new SynchronizedDataCollector(
+                this, dataExport, channels, isGPSEnabled, recordingStartTime
+        );
+        for (Map.Entry<SensorChannel, Integer> rate : rates.entrySet()) {
+            dataCollector.setSamplingRate(rate.getKey(), rate.getValue());
+        }
+        dataCollector.setResampling(gridRateHz, interpolation);
+        dataCollector.setBatching(batchLatencyUs);
+        dataCollector.setLocationInterval(locationIntervalMs);
+        dataCollector.setLocationExport(locationExport);
+        updateLiveStream();
+        dataCollector.start();
+        startEventClips(recordingName, recordingStartTime, clipPreMs, clipPostMs);
+    }
 
-            dataCollector = new SynchronizedDataCollector(
-                    this, dataExport, isAccelEnabled, isGyroEnabled, isGPSEnabled, recordingStartTime, null
-            );
-            dataCollector.start();
-        }
-
-        if (intent != null && intent.getAction() != null) {
-            String action = intent.getAction();
-
-            if (ACTION_RECORD_EVENT.equals(action)) {
-                long eventTimestamp = intent.getLongExtra("EVENT_TIMESTAMP", -1);
-                long clockTime = System.currentTimeMillis();
-
-                if (eventTimestamp != -1 && dataCollector != null) {
-                    DataExport dataExport = dataCollector.getDataExport();
-                    dataExport.addEvent(eventTimestamp);
-
-                    ArrayList<String[]> rows = dataExport.getSensorData("Synchronized");
-                    if (rows != null && !rows.isEmpty()) {
-                        int targetIndex = rows.size() - 1;
-                        eventTimestampToRowIndex.put(eventTimestamp, targetIndex);
-
-                        String[] lastRow = rows.get(targetIndex);
-                        if (lastRow.length < 13) {
-                            lastRow = java.util.Arrays.copyOf(lastRow, 13);
-                            rows.set(targetIndex, lastRow);
-                        }
-                        lastRow[11] = String.valueOf(eventTimestamp);
-
-                        double latitude = dataCollector.getLatitude();
-                        double longitude = dataCollector.getLongitude();
-
-                        if (!dataCollector.hasValidGPSFix() || (latitude == 0.0 && longitude == 0.0)) {
-                            Log.w("GeoJSON", "Skipping GeoJSON pin: no valid GPS data");
-                            return START_NOT_STICKY;
-                        }
-
-                        recentPins.add(new GeoJsonHelper.EventPoint(latitude, longitude, clockTime));
-                        long cutoff = System.currentTimeMillis() - 30 * 60 * 1000;
-                        recentPins.removeIf(p -> p.timestamp < cutoff);
-
-                        String uniqueId = getAnonymousUserId(); // method below
-                        String timestamp = String.valueOf(System.currentTimeMillis());
-                        String filename = "event_" + uniqueId + "_" + timestamp + ".geojson";
-
-                        SasTokenService.requestSasUrl("gpsdata", filename, new SasTokenService.SasTokenCallback() {
-                            @Override
-                            public void onSuccess(String sasUrl) {
-                                GeoJsonHelper.uploadLatestGeoJson(getApplicationContext(), recentPins, sasUrl);
-                                recentPins.clear();
-                            }
-
-                            @Override
-                            public void onFailure(Exception e) {
-                                Log.e("GeoJsonUpload", "Failed to get SAS URL", e);
-                                recentPins.clear();
-                            }
-                        });
-                    }
-                }
-                return START_NOT_STICKY;
-            }
-            if (ACTION_ADD_EVENT_DESCRIPTION.equals(action)) {
-                String desc = intent.getStringExtra("EVENT_DESCRIPTION");
-                long timestamp = intent.getLongExtra("EVENT_TIMESTAMP", -1);
-
-                if (desc != null && timestamp != -1 && dataCollector != null) {
-                    ArrayList<String[]> rows = dataCollector.getDataExport().getSensorData("Synchronized");
-                    Integer targetIndex = eventTimestampToRowIndex.get(timestamp);
-
-                    if (rows != null && targetIndex != null && targetIndex >= 0 && targetIndex < rows.size()) {
-                        String[] targetRow = rows.get(targetIndex);
-                        if (targetRow.length < 13) {
-                            targetRow = java.util.Arrays.copyOf(targetRow, 13);
-                            rows.set(targetIndex, targetRow);
-                        }
-                        targetRow[EVENT_DESC_INDEX] = desc.replace(",", " ");
-                    }
-                }
-                return START_NOT_STICKY;
+    @Override
+    public void recordEvent(long pressedAtNanos, @Nullable Result<Long> recorded) {
+        enqueue(() -> {
+            long eventTime = -1;
+            if (dataCollector != null) {
+                eventTime = dataCollector.getElapsedNanos(pressedAtNanos);
+                recordEvent(eventTime);
+                lastEventLatencyNanos = SystemClock.elapsedRealtimeNanos() - pressedAtNanos;
             }
+            if (recorded != null) recorded.onResult(eventTime);
+        });
+    }
 
-            if (ACTION_STOP_RECORDING.equals(action)) {
-                if (dataCollector != null) {
-                    dataCollector.stop(); // Stop sensor updates, retain data
+    @Override
+    public void describeEvent(long pressedAtNanos, String description) {
+        enqueue(() -> {
+            if (dataCollector != null) describe(dataCollector.getElapsedNanos(pressedAtNanos), description);
+        });
+    }
+
+    @Override
+    public void stopRecording() {
+        enqueue(() -> {
+            if (dataCollector != null) {
+                dataCollector.stop(); // Flush the sensor FIFOs and stop sensor updates, retain data
+                finishEventClips();
+                dataCollector.getDataExport().flush(); // Make sure every row is on disk
+                if (locationExport != null) locationExport.flush();
+                IOException lost = writeFailure(dataCollector.getDataExport(), locationExport);
+                if (lost != null) {
+                    Log.e("SynchronizedDataService", "Recording stopped, but rows were lost", lost);
+                    showToast("Part of the recording could not be saved: " + lost.getMessage());
+                } else {
                     Log.d("SynchronizedDataService", "Recording stopped, data retained.");
                 }
-                return START_NOT_STICKY;
             }
+            if (session != null) {
+                if (dataCollector != null) session.putMetadata(dataCollector.getSamplingStats());
+                session.setState(RecordingSession.STATE_STOPPED); // Offer for export, don't resume
+            }
+        });
+    }
+
+    @Override
+    public void exportRecording(String recordingName, @Nullable File sessionDirectory) {
+        enqueue(() -> {
+            Log.d("SynchronizedDataService", "Exporting recording " + recordingName);
+            if (sessionDirectory != null && (session == null || !session.getDirectory().equals(sessionDirectory))) {
+                exportRecoveredRecording(sessionDirectory, recordingName);
+            } else if (dataCollector != null) {
+                exportRecording(dataCollector.getDataExport(), locationExport, recordingName, session);
+            }
+        });
+    }
+
+    @Override
+    public void discardRecording(@Nullable File sessionDirectory) {
+        enqueue(() -> {
+            if (sessionDirectory != null && (session == null || !session.getDirectory().equals(sessionDirectory))) {
+                RecordingSession other = RecordingSession.load(sessionDirectory);
+                if (other != null) other.delete();
+                return;
+            }
+            closeRecording();
+            if (session != null) {
+                session.delete();
+                Log.d("SynchronizedDataService", "Recording " + session.getName() + " discarded");
+                session = null;
+            }
+        });
+    }
+
+    // Stop the collector if it still runs and close the exports, so their writer threads end;
+    // the session's files stay where they are
+    private void closeRecording() {
+        if (dataCollector != null) {
+            dataCollector.stop();
+            finishEventClips();
+            dataCollector.getDataExport().close();
+            dataCollector = null;
+        }
+        if (locationExport != null) {
+            locationExport.close();
+            locationExport = null;
+        }
+    }
+
+    // Queue a command for the command thread; commands that come in after onDestroy are dropped
+    private void enqueue(Runnable command) {
+        try {
+            commands.execute(command);
+        } catch (RejectedExecutionException e) {
+            Log.w("SynchronizedDataService", "Service destroyed, command dropped");
+        }
+    }
+
+    // Time from the last event press to it being marked on the recording, in nanoseconds
+    public long getLastEventLatencyNanos() {
+        return lastEventLatencyNanos;
+    }
+
+    private void recordEvent(long eventTime) {
+        if (dataCollector == null) return;
+        long clockTime = System.currentTimeMillis();
+        // Matched to the nearest row on export, even if no row has been recorded yet
+        dataCollector.getDataExport().getEvents().add(eventTime);
+        if (session != null) session.appendEvent(eventTime); // Comes back with the rows after a kill
+        if (eventClips != null) {
+            String clipName = clipPrefix + "_event_" + eventTime / 1_000_000;
+            eventClips.addEvent(eventTime, clipName);
+            // Ready by the time the clip is written, once its after-window has passed
+            SasTokenService.prefetchSasUrl("appdata", clipName + RecordingFileWriter.EXTENSION);
+        }
+
+        double latitude = dataCollector.getLatitude();
+        double longitude = dataCollector.getLongitude();
+
+        if (!dataCollector.hasValidGPSFix() || (latitude == 0.0 && longitude == 0.0)) {
+            Log.w("GeoJSON", "Skipping GeoJSON pin: no valid GPS data");
+            return;
+        }
+
+        recentPins.add(new GeoJsonHelper.EventPoint(latitude, longitude, clockTime));
+        long cutoff = System.currentTimeMillis() - 30 * 60 * 1000;
+        recentPins.removeIf(p -> p.timestamp < cutoff);
+
+        String uniqueId = getAnonymousUserId(); // method below
+        String timestamp = String.valueOf(System.currentTimeMillis());
+        String filename = "event_" + uniqueId + "_" + timestamp + ".geojson";
+
+        // Handed to the upload queue, which keeps the batch until it went through
+        UploadQueue uploads = getUploadQueue(this);
+        File geojsonFile = new File(uploads.getDirectory(), filename);
+        try {
+            GeoJsonHelper.writeGeoJson(recentPins, geojsonFile);
+            uploads.enqueue("gpsdata", geojsonFile, true, Collections.singletonMap("blobName", filename));
+            recentPins.clear();
+        } catch (IOException e) {
+            // The pins go with the next batch
+            Log.e("GeoJsonUpload", "Could not queue GeoJSON pins for upload", e);
+            geojsonFile.delete();
+        }
+    }
+
+    // Keep the latest rows in memory, so every event also gets a clip of its own, uploaded as soon
+    // as its after-window has passed. The start time in the clip names keeps recordings of the same
+    // name from overwriting each other's clips, in Downloads and in the container
+    private void startEventClips(String recordingName, long startTime, long preMs, long postMs) {
+        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        if (!downloadsDir.exists()) downloadsDir.mkdirs();
+        String name = recordingName == null || recordingName.isEmpty() ? "recording" : recordingName;
+        clipPrefix = name + "_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(startTime));
+        eventClips = new EventClipRecorder(dataCollector.getDataExport().getSchema(), dataCollector.getGridRateHz(),
+                TimeUnit.MILLISECONDS.toNanos(preMs), TimeUnit.MILLISECONDS.toNanos(postMs), downloadsDir,
+                recordingMetadata(name, session), this::uploadClip);
+        dataCollector.setEventClips(eventClips);
+    }
+
+    // Write the clips of events whose after-window was cut short; only once the collector stopped
+    private void finishEventClips() {
+        if (eventClips == null) return;
+        dataCollector.setEventClips(null);
+        eventClips.finish();
+        eventClips = null;
+    }
+
+    // Called on the clip writer thread
+    private void uploadClip(File clip) {
+        MediaScannerConnection.scanFile(this, new String[]{clip.getAbsolutePath()}, null, null);
+        try {
+            getUploadQueue(this).enqueue("appdata", clip, false, Collections.singletonMap("blobName", clip.getName()));
+        } catch (IOException e) {
+            Log.e("AzureUpload", "Could not queue clip " + clip.getName() + " for upload", e);
+        }
+    }
+
+    private void describe(long eventTime, String description) {
+        if (dataCollector == null) return;
+        if (dataCollector.getDataExport().getEvents().describe(eventTime, description) && session != null) {
+            session.appendDescription(eventTime, description);
+        }
+    }
+
+    // Live samples are only produced while someone is subscribed, e.g. while the plots are shown
+    public synchronized void addLiveSampleListener(SynchronizedDataCollector.LiveSampleListener listener) {
+        SynchronizedDataCollector.LiveSampleListener[] listeners = Arrays.copyOf(liveListeners, liveListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        liveListeners = listeners;
+        enqueue(this::updateLiveStream);
+    }
+
+    public synchronized void removeLiveSampleListener(SynchronizedDataCollector.LiveSampleListener listener) {
+        List<SynchronizedDataCollector.LiveSampleListener> listeners = new ArrayList<>(Arrays.asList(liveListeners));
+        listeners.remove(listener);
+        liveListeners = listeners.toArray(new SynchronizedDataCollector.LiveSampleListener[0]);
+        enqueue(this::updateLiveStream);
+    }
+
+    // Command thread
+    private void updateLiveStream() {
+        if (dataCollector == null) return;
+        dataCollector.setLiveSampleListener(liveListeners.length == 0 ? null : liveFanOut, LIVE_SAMPLE_RATE_HZ);
+    }
+
+    // Channels to record with their requested rates, SENSOR_DELAY_* constants or periods in
+    // microseconds; CHANNELS holds channel names and CHANNEL_RATES the matching rates
+    private static Map<SensorChannel, Integer> channelRates(Intent intent) {
+        Map<SensorChannel, Integer> rates = new LinkedHashMap<>();
+        String[] names = intent.getStringArrayExtra("CHANNELS");
+        int[] channelRates = intent.getIntArrayExtra("CHANNEL_RATES");
+        if (names == null) {
+            for (SensorChannel channel : SynchronizedDataCollector.imuChannels(true, true)) {
+                rates.put(channel, channel.getDefaultRate());
+            }
+            return rates;
+        }
+        for (int i = 0; i < names.length; i++) {
+            SensorChannel channel = SensorChannel.byName(names[i]);
+            if (channel == null) {
+                Log.w("SynchronizedDataService", "Unknown sensor channel " + names[i]);
+                continue;
+            }
+            boolean hasRate = channelRates != null && i < channelRates.length;
+            rates.put(channel, hasRate ? channelRates[i] : channel.getDefaultRate());
+        }
+        return rates;
+    }
+
+    public static File getRecordingsRoot(Context context) {
+        return new File(context.getFilesDir(), "recordings");
+    }
+
+    // Uploads of every recording, kept for as long as the process lives; opening it picks up the
+    // uploads an earlier process left unfinished, and every later call the retries held back by
+    // onDestroy
+    public static synchronized UploadQueue getUploadQueue(Context context) {
+        if (uploadQueue == null) {
+            Context app = context.getApplicationContext();
+            File blockState = new File(app.getFilesDir(), "uploads"); // Blocks of big files already sent
+            UploadQueue queue = new UploadQueue(new File(app.getFilesDir(), "upload-queue"),
+                    new UploadQueue.Config(), IoScheduler.shared(), new UploadNotifier(app));
+            // Pins and features first, then clips, then whole recordings; pins go to the gpsdata
+            // container, features to ArcGIS, clips and recordings to the appdata container
+            queue.addDestination("gpsdata", IoScheduler.Lane.EVENT, 1, job ->
+                    GeoJsonHelper.uploadToAzure(uploadedFile(job), SasTokenService.getSasUrl("gpsdata", job.getExtra("blobName"))));
+            queue.addDestination(ArcGISUpload.DESTINATION, IoScheduler.Lane.EVENT, 1,
+                    job -> ArcGISUpload.post(job.getExtra("features")));
+            queue.addDestination("appdata", IoScheduler.Lane.NORMAL, 2, job -> uploadToAppdata(job, blockState));
+            queue.addDestination("recordings", IoScheduler.Lane.BULK, 1, job -> uploadToAppdata(job, blockState));
+            uploadQueue = queue;
+        }
+        uploadQueue.start();
+        return uploadQueue;
+    }
+
+    private static void uploadToAppdata(UploadQueue.Job job, File blockState) throws IOException {
+        File file = uploadedFile(job);
+        String sasUrl = SasTokenService.getSasUrl("appdata", job.getExtra("blobName"));
+        if (!AzureStorage.uploadCsvToBlob(file.getAbsolutePath(), sasUrl, blockState)) {
+            // The token may be what failed; the retry gets a new one
+            SasTokenService.invalidateSasUrl("appdata", job.getExtra("blobName"));
+            throw new IOException("Upload of " + file.getName() + " failed");
+        }
+    }
+
+    private static File uploadedFile(UploadQueue.Job job) throws IOException {
+        File file = job.getFile();
+        if (file == null || !file.exists()) throw new UploadQueue.RejectedUploadException("File of " + job.getId() + " is gone");
+        return file;
+    }
+
+    // Tells the app how the first try at uploading an export went, as the upload right after an
+    // export always did; later tries are only logged
+    private static class UploadNotifier implements UploadQueue.Listener {
+        private final Context context;
+
+        UploadNotifier(Context context) {
+            this.context = context;
+        }
+
+        @Override
+        public void onUploaded(UploadQueue.Job job) {
+            Log.d("AzureUpload", "Upload success: " + job.getId() + " to " + job.getDestination());
+            if (job.getExtra("export") != null && job.getAttempts() == 1) broadcastExport(job.getFile(), true);
+        }
+
+        @Override
+        public void onFailed(UploadQueue.Job job, IOException error, long retryInMs) {
+            if (job.getExtra("export") == null || job.getAttempts() != 1) return;
+            broadcastExport(job.getFile(), false);
+            String message = retryInMs >= 0 ? "Upload failed, will retry. File saved to Downloads."
+                    : "Upload failed. File saved to Downloads.";
+            new Handler(Looper.getMainLooper()).post(() ->
+                    Toast.makeText(context, message, Toast.LENGTH_LONG).show()
+            );
+        }
+
+        private void broadcastExport(@Nullable File zipFile, boolean uploaded) {
+            Intent doneIntent = new Intent("EXPORT_COMPLETED");
+            doneIntent.putExtra("ZIP_PATH", zipFile != null ? zipFile.getAbsolutePath() : lastRecordingZipPath);
+            doneIntent.putExtra("UPLOAD_SUCCESS", uploaded);
+            context.sendBroadcast(doneIntent);
+        }
+    }
+
+    // Stream the recording into segment files under the app's private storage
+    private DataExport openDataExport(String recordingName, long recordingStartTime,
+                                      List<SensorChannel> channels, boolean gps) {
+        File recordingsRoot = getRecordingsRoot(this);
+        // A recording left in the recording state is not coming back once a new one starts
+        for (RecordingSession previous : RecordingSession.list(recordingsRoot)) {
+            if (RecordingSession.STATE_RECORDING.equals(previous.getState())) {
+                previous.setState(RecordingSession.STATE_STOPPED);
+            }
+        }
+        try {
+            SampleSchema schema = SensorChannel.schemaFor(channels);
+            session = RecordingSession.create(recordingsRoot, recordingName, recordingStartTime, schema, channels, gps);
+            RecordingWriter writer = RecordingWriter.open(session.getDirectory(), schema, new RecordingWriter.Config());
+            Log.d("SynchronizedDataService", "Recording to " + session.getDirectory().getAbsolutePath());
+            return new DataExport(writer);
+        } catch (IOException e) {
+            Log.e("SynchronizedDataService", "Could not open recording files, keeping data in memory", e);
+            session = null;
+            return new DataExport(SensorChannel.schemaFor(channels));
+        }
+    }
 
-            if (ACTION_EXPORT_DATA.equals(action)) {
-                String recordingName = intent.getStringExtra("RECORDING_NAME");
-                Log.d("SynchronizedDataService", "ACTION_EXPORT_DATA matched. Recording name: " + recordingName);
-                exportRecording(recordingName);
-                return START_NOT_STICKY;
+    // Location fixes of a session, continuing after any already on disk; kept in memory without one
+    private static DataExport openLocationExport(@Nullable RecordingSession session) {
+        SampleSchema schema = SampleSchema.locationFixes();
+        if (session == null) return new DataExport(schema);
+        try {
+            File directory = session.getLocationDirectory();
+            long fixes = RecordingRecovery.recover(session, directory, schema).rowCount;
+            RecordingWriter.Config config = new RecordingWriter.Config();
+            config.blockRows = 64; // About a minute of fixes; partial blocks still go out every flush interval
+            config.bufferBlocks = 2;
+            return new DataExport(RecordingWriter.open(directory, schema, config, fixes));
+        } catch (IOException e) {
+            Log.e("SynchronizedDataService", "Could not open location files, keeping fixes in memory", e);
+            return new DataExport(schema);
+        }
+    }
+
+    // Pick up the newest recording that was still running when the process was killed
+    private void resumeInterruptedRecording() {
+        if (dataCollector != null) return;
+        for (RecordingSession candidate : RecordingSession.list(getRecordingsRoot(this))) {
+            if (!RecordingSession.STATE_RECORDING.equals(candidate.getState())) continue;
+            try {
+                RecordingRecovery.Result recovered = RecordingRecovery.recover(candidate);
+                RecordingWriter writer = RecordingWriter.open(candidate.getDirectory(), candidate.getSchema(),
+                        new RecordingWriter.Config(), recovered.rowCount);
+
+                startForeground(1, createNotification());
+                session = candidate;
+                DataExport resumed = new DataExport(writer);
+                candidate.loadEvents(resumed.getEvents()); // Events marked before the kill
+                List<SensorChannel> channels = candidate.getChannels();
+                dataCollector = new SynchronizedDataCollector(
+                        this, resumed, channels, candidate.isGPSEnabled(), candidate.getStartTime()
+                );
+                for (SensorChannel channel : channels) {
+                    dataCollector.setSamplingRate(channel, candidate.getSamplingRate(channel));
+                }
+                dataCollector.setResampling(candidate.getGridRateHz(), candidate.getInterpolation());
+                dataCollector.setBatching(candidate.getBatchLatencyUs());
+                locationExport = openLocationExport(candidate);
+                dataCollector.setLocationInterval(candidate.getLocationIntervalMs());
+                dataCollector.setLocationExport(locationExport);
+                updateLiveStream();
+                dataCollector.start();
+                startEventClips(candidate.getName(), candidate.getStartTime(), candidate.getClipPreMs(),
+                        candidate.getClipPostMs());
+                Log.d("SynchronizedDataService", "Resumed recording " + candidate.getName()
+                        + " after " + recovered.rowCount + " rows");
+            } catch (IOException e) {
+                Log.e("SynchronizedDataService", "Could not resume recording, leaving it for export", e);
+                candidate.setState(RecordingSession.STATE_STOPPED);
             }
+            return;
         }
+        stopSelf(); // Nothing to resume
+    }
 
-        return START_STICKY;
+    // Export a session that was interrupted and recovered from disk
+    private void exportRecoveredRecording(File sessionDir, String recordingName) {
+        RecordingSession recovered = RecordingSession.load(sessionDir);
+        if (recovered == null) {
+            Log.w("SynchronizedDataService", "No recording found in " + sessionDir);
+            return;
+        }
+        try {
+            RecordingRecovery.Result result = RecordingRecovery.recover(recovered);
+            RecordingWriter writer = RecordingWriter.open(sessionDir, recovered.getSchema(),
+                    new RecordingWriter.Config(), result.rowCount);
+            String name = recordingName != null ? recordingName : recovered.getName();
+            DataExport recoveredExport = new DataExport(writer);
+            recovered.loadEvents(recoveredExport.getEvents());
+            DataExport recoveredLocations = openLocationExport(recovered);
+            exportRecording(recoveredExport, recoveredLocations,
+                    name.isEmpty() ? "recovered_" + recovered.getStartTime() : name, recovered);
+            recoveredLocations.close();
+            recoveredExport.close();
+        } catch (IOException e) {
+            Log.e("SynchronizedDataService", "Could not recover recording for export", e);
+        }
     }
 
     private Notification createNotification() {
@@ -181,70 +601,161 @@ public class SynchronizedData_BackgroundService extends Service {
                 .build();
     }
 
-    private void exportRecording(String recordingName) {
-        if (dataCollector != null) {
-            DataExport dataExport = dataCollector.getDataExport();
-            File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-            if (!downloadsDir.exists()) downloadsDir.mkdirs();
+    // Sensor metadata stored in the header of the binary recording file
+    private Map<String, String> recordingMetadata(String recordingName, @Nullable RecordingSession source) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("name", recordingName);
+        if (source != null) {
+            metadata.put("startTime", String.valueOf(source.getStartTime()));
+            metadata.put("channels", SensorChannel.join(source.getChannels()));
+            for (SensorChannel channel : source.getChannels()) {
+                metadata.put(channel.getName() + "Unit", channel.getUnit());
+            }
+            metadata.put("gpsEnabled", String.valueOf(source.isGPSEnabled()));
+        }
+        // Requested and achieved sensor rates, saved with the session when recording stopped
+        if (source != null) {
+            metadata.putAll(source.getMetadata());
+        } else if (dataCollector != null) {
+            metadata.putAll(dataCollector.getSamplingStats());
+        }
+        metadata.put("gpsIntervalMs", String.valueOf(source != null
+                ? source.getLocationIntervalMs() : SynchronizedDataCollector.GPS_INTERVAL_MS));
+        metadata.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        return metadata;
+    }
 
-            File zipFile = getUniqueFile(downloadsDir, recordingName, ".zip");
+    // Why rows of the recording or its fixes never reached the segment files, null if all did
+    @Nullable
+    private static IOException writeFailure(DataExport dataExport, @Nullable DataExport locations) {
+        if (dataExport.getWriteFailure() != null) return dataExport.getWriteFailure();
+        return locations != null ? locations.getWriteFailure() : null;
+    }
 
-            if (dataExport.exportAsZip(zipFile)) {
-                lastRecordingZipPath = zipFile.getAbsolutePath();
+    private void exportRecording(DataExport dataExport, @Nullable DataExport locations, String recordingName,
+                                 @Nullable RecordingSession source) {
+        File downloadsDir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        if (!downloadsDir.exists()) downloadsDir.mkdirs();
+
+        // A recording missing rows is not exported as if it were whole, nor are its segments deleted
+        dataExport.flush();
+        if (locations != null) locations.flush();
+        IOException lost = writeFailure(dataExport, locations);
+        if (lost != null) {
+            Log.e("SynchronizedDataService", "Not exporting " + recordingName + ", rows were lost", lost);
+            reportExportFailure("Recording not exported, part of it could not be saved: " + lost.getMessage());
+            return;
+        }
 
-                MediaScannerConnection.scanFile(
-                        this,
-                        new String[]{zipFile.getAbsolutePath()},
-                        null,
-                        (path, uri) -> Log.d("SynchronizedDataService", "Scanned to MediaStore: " + uri)
-                );
+        // The binary file is the full recording, the zipped CSV is generated from it
+        File binaryFile = getUniqueFile(downloadsDir, recordingName, RecordingFileWriter.EXTENSION);
+        if (!dataExport.exportAsBinary(binaryFile, recordingMetadata(recordingName, source), true)) {
+            reportExportFailure("Recording could not be exported.");
+            return;
+        }
+        List<String> exported = new ArrayList<>();
+        exported.add(binaryFile.getAbsolutePath());
+
+        // The raw location fixes go in files of their own, and positions interpolated from them
+        // onto the rows of the CSV
+        LocationTrack track = null;
+        if (locations != null) locations.flush();
+        if (locations != null && locations.getSampleCount() > 0) {
+            String locationsName = recordingName + "_locations";
+            File locationsFile = getUniqueFile(downloadsDir, locationsName, RecordingFileWriter.EXTENSION);
+            File locationsZip = getUniqueFile(downloadsDir, locationsName, ".zip");
+            if (locations.exportAsBinary(locationsFile, recordingMetadata(recordingName, source), false)
+                    && locations.exportAsZip(locationsZip)) {
+                exported.add(locationsFile.getAbsolutePath());
+                exported.add(locationsZip.getAbsolutePath());
+            }
+            if (source == null || source.isPositionInterpolated()) {
+                long intervalMs = source != null ? source.getLocationIntervalMs() : SynchronizedDataCollector.GPS_INTERVAL_MS;
+                // Fixes further apart than a few intervals mean the signal was lost in between
+                long maxGapNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(10_000, 3 * intervalMs));
+                try {
+                    track = LocationTrack.read(locations.cursor(), locations.getSchema(), maxGapNanos);
+                } catch (IOException e) {
+                    Log.e("SynchronizedDataService", "Could not read the location fixes, exporting without positions", e);
+                }
+            }
+        }
 
-                String filename = zipFile.getName();
-
-                SasTokenService.requestSasUrl("appdata", filename, new SasTokenService.SasTokenCallback() {
-                    @Override
-                    public void onSuccess(String sasUrl) {
-                        boolean success = AzureStorage.uploadCsvToBlob(zipFile.getAbsolutePath(), sasUrl);
-                        Log.d("AzureUpload", "Upload success: " + success);
-
-                        Intent doneIntent = new Intent("EXPORT_COMPLETED");
-                        doneIntent.putExtra("ZIP_PATH", lastRecordingZipPath);
-                        doneIntent.putExtra("UPLOAD_SUCCESS", success);
-                        sendBroadcast(doneIntent);
-                    }
-
-                    @Override
-                    public void onFailure(Exception e) {
-                        Log.e("AzureUpload", "Failed to get SAS URL", e);
-
-                        Intent failedIntent = new Intent("EXPORT_COMPLETED");
-                        failedIntent.putExtra("ZIP_PATH", lastRecordingZipPath);
-                        failedIntent.putExtra("UPLOAD_SUCCESS", false);
-                        sendBroadcast(failedIntent);
-
-                        new Handler(Looper.getMainLooper()).post(() ->
-                                Toast.makeText(getApplicationContext(),
-                                        "Upload failed. File saved to Downloads.", Toast.LENGTH_LONG).show()
-                        );
-                    }
-                });
+        File zipFile = getUniqueFile(downloadsDir, recordingName, ".zip");
+        boolean zipped = false;
+        try (RecordingFileReader reader = RecordingFileReader.open(binaryFile)) {
+            DataExport csvExport = new DataExport(reader);
+            csvExport.setLocationTrack(track);
+            zipped = csvExport.exportAsZip(zipFile, Runtime.getRuntime().availableProcessors());
+            // The events also go in a table of their own, joined to the rows by time
+            File eventsFile = getUniqueFile(downloadsDir, recordingName + "_events", ".csv");
+            if (zipped && csvExport.getEventCount() > 0 && csvExport.exportEventsCsv(eventsFile)) {
+                exported.add(eventsFile.getAbsolutePath());
             }
+        } catch (IOException e) {
+            Log.e("SynchronizedDataService", "Could not read back " + binaryFile.getName(), e);
         }
+
+        if (zipped) {
+            lastRecordingZipPath = zipFile.getAbsolutePath();
+            exported.add(zipFile.getAbsolutePath());
+            // Segments are no longer needed once exported; the fixes live inside the rows' directory
+            if (locations != null) locations.deleteRecordingFiles();
+            dataExport.deleteRecordingFiles();
+
+            MediaScannerConnection.scanFile(
+                    this,
+                    exported.toArray(new String[0]),
+                    null,
+                    (path, uri) -> Log.d("SynchronizedDataService", "Scanned to MediaStore: " + uri)
+            );
+
+            // The app hears how the first try went from the queue's UploadNotifier
+            Map<String, String> extras = new LinkedHashMap<>();
+            extras.put("blobName", zipFile.getName());
+            extras.put("export", "true");
+            try {
+                getUploadQueue(this).enqueue("recordings", zipFile, false, extras);
+            } catch (IOException e) {
+                Log.e("AzureUpload", "Could not queue " + zipFile.getName() + " for upload", e);
+
+                Intent failedIntent = new Intent("EXPORT_COMPLETED");
+                failedIntent.putExtra("ZIP_PATH", lastRecordingZipPath);
+                failedIntent.putExtra("UPLOAD_SUCCESS", false);
+                sendBroadcast(failedIntent);
+
+                showToast("Upload failed. File saved to Downloads.");
+            }
+        }
+    }
+
+    // Tell the app no file was exported; the session's files stay for another try
+    private void reportExportFailure(String message) {
+        Intent failedIntent = new Intent("EXPORT_COMPLETED");
+        failedIntent.putExtra("UPLOAD_SUCCESS", false);
+        sendBroadcast(failedIntent);
+        showToast(message);
+    }
+
+    private void showToast(String message) {
+        new Handler(Looper.getMainLooper()).post(() ->
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_LONG).show());
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (dataCollector != null) {
-            Log.w("SynchronizedDataService", "dataCollector is null — cannot export.");
-            dataCollector.stop();
-        }
+        enqueue(this::closeRecording);
+        // After the export and last clips are queued: their uploads go out now, retries wait for
+        // the next recording or launch, and the upload threads end once they are idle
+        enqueue(() -> getUploadQueue(this).drain());
+        commands.shutdown(); // Runs what is queued, e.g. an export, then lets the thread end
     }
 
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 
     private File getUniqueFile(File dir, String baseName, String extension) {
@@ -0,0 +1,460 @@
+package com.humbl.imuapp;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads that outlive the process: every job is written to a small file of its own before it is
+ * tried, and only deleted once it went through, so a job that fails, or whose process is killed,
+ * is tried again, after a delay that doubles with every failure (with jitter, so jobs that failed
+ * together don't all come back at once), or when the queue is next opened.
+ *
+ * Jobs go to named destinations (a blob container, a feature service), each with an Uploader that
+ * does the transfer, a limit on how many of its jobs run at a time, and the IoScheduler lane they
+ * run in. Only jobs that are due and within their destination's limit are handed to the scheduler;
+ * the rest wait here, on one timer thread for all of them.
+ */
+public class UploadQueue {
+    private static final String TAG = "UploadQueue";
+    private static final String EXTENSION = ".job";
+    private static final long DISPATCH_RETRY_MS = 100; // After the scheduler's lane was full
+
+    public static class Config {
+        public long baseDelayMs = 5_000;          // Before the first retry
+        public long maxDelayMs = 30 * 60 * 1000L; // Longest wait between tries
+    }
+
+    public interface Uploader {
+        // Send the job, on an I/O worker; throw to have it tried again later,
+        // or RejectedUploadException if it never will go through
+        void upload(Job job) throws IOException;
+    }
+
+    public interface Listener {
+        void onUploaded(Job job);
+
+        // retryInMs is -1 if the job was rejected and dropped
+        void onFailed(Job job, IOException error, long retryInMs);
+    }
+
+    // Thrown by an Uploader for a job not worth trying again, e.g. its file is gone
+    public static class RejectedUploadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RejectedUploadException(String message) {
+            super(message);
+        }
+    }
+
+    public static final class Job {
+        private final String id;
+        private final String destination;
+        @Nullable private final File file;
+        private final boolean ownsFile;
+        private final Map<String, String> extras;
+        private final long createdAt;
+        private int attempts;
+        private long dueAt;
+        @Nullable private ScheduledFuture<?> timer; // Until its next try is due
+        private boolean parked; // Next try waits for start(), see drain
+
+        private Job(String id, String destination, @Nullable File file, boolean ownsFile,
+                    Map<String, String> extras, long createdAt) {
+            this.id = id;
+            this.destination = destination;
+            this.file = file;
+            this.ownsFile = ownsFile;
+            this.extras = Collections.unmodifiableMap(extras);
+            this.createdAt = createdAt;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        @Nullable
+        public File getFile() {
+            return file;
+        }
+
+        @Nullable
+        public String getExtra(String key) {
+            return extras.get(key);
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        // Tries so far, including one that is running
+        public int getAttempts() {
+            return attempts;
+        }
+    }
+
+    private static class Destination {
+        final IoScheduler.Lane lane;
+        final int maxConcurrent;
+        final Uploader uploader;
+        final ArrayDeque<Job> ready = new ArrayDeque<>(); // Due, waiting for a free slot
+        final Map<String, Future<?>> running = new HashMap<>(); // Handed to the scheduler, by job id
+        boolean dispatchScheduled;
+
+        Destination(IoScheduler.Lane lane, int maxConcurrent, Uploader uploader) {
+            this.lane = lane;
+            this.maxConcurrent = maxConcurrent;
+            this.uploader = uploader;
+        }
+    }
+
+    private final File directory;
+    private final Config config;
+    private final IoScheduler io;
+    @Nullable private final Listener listener;
+    private final Map<String, Destination> destinations = new HashMap<>();
+    private final Map<String, Job> pending = new LinkedHashMap<>(); // Not yet uploaded, by id
+    private final ScheduledThreadPoolExecutor timer;
+    private boolean started, draining, shutDown;
+    private int working; // Jobs between their upload starting and their outcome being saved
+
+    public UploadQueue(File directory, Config config, IoScheduler io, @Nullable Listener listener) {
+        this.directory = directory;
+        this.config = config;
+        this.io = io;
+        this.listener = listener;
+        timer = new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "UploadTimer"));
+        timer.setKeepAliveTime(30, TimeUnit.SECONDS); // No thread kept while no job is waiting
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    // Up to maxConcurrent jobs to the destination run at a time, in the lane; add every destination
+    // before start
+    public synchronized void addDestination(String name, IoScheduler.Lane lane, int maxConcurrent, Uploader uploader) {
+        destinations.put(name, new Destination(lane, maxConcurrent, uploader));
+    }
+
+    // Pick up the jobs left by an earlier process, at the time their next try was due; after drain,
+    // pick up the retries it held back
+    public synchronized void start() {
+        if (started) {
+            resume();
+            return;
+        }
+        started = true;
+        if (!directory.exists() && !directory.mkdirs()) Log.w(TAG, "Could not create " + directory);
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        int replayed = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(".tmp")) {
+                if (!file.delete()) Log.w(TAG, "Could not delete " + name); // Torn write
+                continue;
+            }
+            if (!name.endsWith(EXTENSION)) continue; // A file owned by a job
+            Job job = read(file);
+            if (job == null || !destinations.containsKey(job.destination)) {
+                Log.w(TAG, "Skipping job " + name + " with no destination to go to");
+                continue;
+            }
+            pending.put(job.id, job);
+            schedule(job, Math.max(0, job.dueAt - System.currentTimeMillis()));
+            replayed++;
+        }
+        if (replayed > 0) Log.d(TAG, "Replaying " + replayed + " uploads");
+    }
+
+    // Queue an upload of file (null for a job described by its extras alone); with ownsFile the file
+    // is deleted once the job is done with. Throws if the job could not be saved
+    public synchronized Job enqueue(String destination, @Nullable File file, boolean ownsFile,
+                                    Map<String, String> extras) throws IOException {
+        if (!destinations.containsKey(destination)) throw new IllegalArgumentException("Unknown destination " + destination);
+        if (shutDown) throw new IllegalStateException("Upload queue is shut down");
+        long now = System.currentTimeMillis();
+        Job job = new Job(now + "-" + UUID.randomUUID(), destination, file, ownsFile,
+                new LinkedHashMap<>(extras), now);
+        job.dueAt = now;
+        write(job);
+        pending.put(job.id, job);
+        if (started) schedule(job, 0);
+        return job;
+    }
+
+    // The directory jobs are saved in; a good place for files the jobs own
+    public File getDirectory() {
+        return directory;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    // Wait until every job queued so far has gone through or was dropped
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!pending.isEmpty()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    // Drop a job that has not gone through, interrupting its upload if it is running; the saved job,
+    // and its file if it owns it, are deleted, and the listener is not told. False if there was no such job
+    public synchronized boolean cancel(String jobId) {
+        Job job = pending.get(jobId);
+        if (job == null) return false;
+        Destination destination = destinations.get(job.destination);
+        if (job.timer != null) job.timer.cancel(false);
+        destination.ready.remove(job);
+        Future<?> running = destination.running.remove(jobId);
+        if (running != null) running.cancel(true);
+        finish(job);
+        dispatch(destination);
+        return true;
+    }
+
+    // Stop retrying: jobs waiting for their next try stay saved until start() is called again or
+    // the queue is next opened. Jobs due now still go out, and the threads end once they have
+    public synchronized void drain() {
+        draining = true;
+        for (Job job : pending.values()) {
+            if (job.timer == null) continue;
+            job.timer.cancel(false);
+            job.timer = null;
+            job.parked = true;
+        }
+    }
+
+    // Stop running jobs; those not done yet stay saved and are picked up by the next start
+    public synchronized void shutdown() {
+        shutDown = true;
+        timer.shutdownNow();
+        for (Destination destination : destinations.values()) {
+            destination.ready.clear();
+            for (Future<?> running : destination.running.values()) running.cancel(true);
+            destination.running.clear();
+        }
+    }
+
+    // Wait for the jobs running when the queue was shut down to give up
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (working > 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    private void resume() {
+        if (!draining) return;
+        draining = false;
+        long now = System.currentTimeMillis();
+        for (Job job : pending.values()) {
+            if (!job.parked) continue;
+            job.parked = false;
+            schedule(job, Math.max(0, job.dueAt - now));
+        }
+    }
+
+    private void schedule(Job job, long delayMs) {
+        if (shutDown) return;
+        if (delayMs <= 0) {
+            makeReady(job);
+        } else if (draining) {
+            job.parked = true;
+        } else {
+            job.timer = timer.schedule(() -> {
+                synchronized (this) {
+                    job.timer = null;
+                    if (!shutDown && pending.get(job.id) == job) makeReady(job);
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void makeReady(Job job) {
+        Destination destination = destinations.get(job.destination);
+        destination.ready.add(job);
+        dispatch(destination);
+    }
+
+    // Hand ready jobs to the scheduler while the destination has free slots
+    private void dispatch(Destination destination) {
+        while (!shutDown && destination.running.size() < destination.maxConcurrent && !destination.ready.isEmpty()) {
+            Job job = destination.ready.peek();
+            try {
+                destination.running.put(job.id, io.submit(destination.lane, () -> run(destination, job)));
+            } catch (RejectedExecutionException e) {
+                // The lane is full, or the scheduler shut down; the jobs stay ready for another go
+                if (!destination.dispatchScheduled && !io.isShutdown()) {
+                    destination.dispatchScheduled = true;
+                    timer.schedule(() -> {
+                        synchronized (this) {
+                            destination.dispatchScheduled = false;
+                            dispatch(destination);
+                        }
+                    }, DISPATCH_RETRY_MS, TimeUnit.MILLISECONDS);
+                }
+                Log.w(TAG, "Upload " + job.id + " held back: " + e.getMessage());
+                return;
+            }
+            destination.ready.poll();
+        }
+    }
+
+    // On an I/O worker
+    private void run(Destination destination, Job job) {
+        synchronized (this) {
+            if (shutDown || pending.get(job.id) != job) {
+                destination.running.remove(job.id); // Its turn came after it was cancelled
+                return;
+            }
+            job.attempts++;
+            working++;
+        }
+        try {
+            IOException error = null;
+            try {
+                destination.uploader.upload(job);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e);
+            } finally {
+                synchronized (this) {
+                    destination.running.remove(job.id);
+                    dispatch(destination);
+                }
+            }
+            settle(job, error);
+        } finally {
+            synchronized (this) {
+                working--;
+                notifyAll();
+            }
+        }
+    }
+
+    // Finish the job, or save and schedule its next try
+    private void settle(Job job, @Nullable IOException error) {
+        synchronized (this) {
+            if (pending.get(job.id) != job) return; // Cancelled while it ran
+        }
+        if (error == null) {
+            finish(job);
+            if (listener != null) listener.onUploaded(job);
+        } else if (error instanceof RejectedUploadException) {
+            Log.e(TAG, "Dropping upload " + job.id + " to " + job.destination, error);
+            finish(job);
+            if (listener != null) listener.onFailed(job, error, -1);
+        } else {
+            long delayMs = retryDelayMs(job.attempts);
+            Log.w(TAG, "Upload " + job.id + " to " + job.destination + " failed (attempt " + job.attempts
+                    + "), retrying in " + delayMs + " ms", error);
+            synchronized (this) {
+                if (pending.get(job.id) != job) return; // Cancelled meanwhile
+                job.dueAt = System.currentTimeMillis() + delayMs;
+                try {
+                    write(job);
+                } catch (IOException writeError) {
+                    Log.w(TAG, "Could not save the retry of " + job.id, writeError);
+                }
+                schedule(job, delayMs);
+            }
+            if (listener != null) listener.onFailed(job, error, delayMs);
+        }
+    }
+
+    // Doubling from the base delay up to the maximum, then a random point in the upper half of that
+    long retryDelayMs(int attempts) {
+        long delay = config.maxDelayMs;
+        if (attempts <= 62) delay = Math.min(config.maxDelayMs, config.baseDelayMs << Math.min(attempts - 1, 40));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private synchronized void finish(Job job) {
+        File jobFile = new File(directory, job.id + EXTENSION);
+        if (!jobFile.delete() && jobFile.exists()) Log.w(TAG, "Could not delete " + jobFile.getName());
+        if (job.ownsFile && job.file != null && !job.file.delete() && job.file.exists()) {
+            Log.w(TAG, "Could not delete " + job.file.getName());
+        }
+        pending.remove(job.id);
+        notifyAll();
+    }
+
+    // Written next to the job file and renamed over it, so a kill never leaves half a job
+    private void write(Job job) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("destination", job.destination);
+        if (job.file != null) properties.setProperty("file", job.file.getAbsolutePath());
+        properties.setProperty("ownsFile", String.valueOf(job.ownsFile));
+        properties.setProperty("createdAt", String.valueOf(job.createdAt));
+        properties.setProperty("attempts", String.valueOf(job.attempts));
+        properties.setProperty("dueAt", String.valueOf(job.dueAt));
+        for (Map.Entry<String, String> extra : job.extras.entrySet()) {
+            properties.setProperty("extra." + extra.getKey(), extra.getValue());
+        }
+        if (!directory.exists()) directory.mkdirs();
+        File tmp = new File(directory, job.id + EXTENSION + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            properties.store(out, null);
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(new File(directory, job.id + EXTENSION))) {
+            throw new IOException("Could not save upload job " + job.id);
+        }
+    }
+
+    @Nullable
+    private static Job read(File jobFile) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(jobFile)) {
+            properties.load(in);
+            Map<String, String> extras = new LinkedHashMap<>();
+            for (String key : properties.stringPropertyNames()) {
+                if (key.startsWith("extra.")) extras.put(key.substring(6), properties.getProperty(key));
+            }
+            String path = properties.getProperty("file");
+            String name = jobFile.getName();
+            Job job = new Job(name.substring(0, name.length() - EXTENSION.length()),
+                    properties.getProperty("destination"), path != null ? new File(path) : null,
+                    Boolean.parseBoolean(properties.getProperty("ownsFile")), extras,
+                    Long.parseLong(properties.getProperty("createdAt")));
+            job.attempts = Integer.parseInt(properties.getProperty("attempts"));
+            job.dueAt = Long.parseLong(properties.getProperty("dueAt"));
+            return job;
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Could not read upload job " + jobFile.getName(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Property tests for AsciiFormatter: every float and double must parse back to exactly the same
+ * value, using no more significant digits than necessary.
+ */
+public class AsciiFormatterTest {
+    private final AsciiFormatter formatter = new AsciiFormatter();
+    private final byte[] buf = new byte[AsciiFormatter.MAX_CHARS];
+
+    @Test
+    public void floatsRoundTripWithShortestDigits() {
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // Random bit patterns cover every exponent, sensor-like values cover the common range
+            float value = i % 2 == 0 ? Float.intBitsToFloat(random.nextInt()) : (float) (random.nextGaussian() * 20);
+            if (Float.isNaN(value)) continue;
+            String text = formatFloat(value);
+            assertEquals(text, Float.floatToIntBits(value), Float.floatToIntBits(Float.parseFloat(text)));
+            int digits = significantDigits(text);
+            if (digits > 1) {
+                assertFalse(text, floatFitsIn(value, digits - 1));
+            }
+        }
+    }
+
+    @Test
+    public void doublesRoundTripWithShortestDigits() {
+        Random random = new Random(7);
+        for (int i = 0; i < 200_000; i++) {
+            double value = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) : 49.26 + random.nextGaussian();
+            if (Double.isNaN(value)) continue;
+            String text = formatDouble(value);
+            assertEquals(text, Double.doubleToLongBits(value), Double.doubleToLongBits(Double.parseDouble(text)));
+            int digits = significantDigits(text);
+            if (digits > 1) {
+                assertFalse(text, doubleFitsIn(value, digits - 1));
+            }
+        }
+    }
+
+    @Test
+    public void layoutMatchesJavaToString() {
+        // Only values for which Java's own toString is already the shortest form (older JDKs are not always)
+        float[] floats = {0f, -0f, 1f, 9.81f, -0.5f, 0.001f, 0.0001f, 1234567f, 1.0E7f, 123.456f,
+                Float.MAX_VALUE, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NaN};
+        for (float value : floats) {
+            assertEquals(Float.toString(value), formatFloat(value));
+        }
+        double[] doubles = {0d, -0d, 1d, 49.2606, -123.246, 1e-3, 1e-4, 1e21, Double.MAX_VALUE, 100d};
+        for (double value : doubles) {
+            assertEquals(Double.toString(value), formatDouble(value));
+        }
+        long[] longs = {0, 7, -7, 1_700_000_000_000L, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : longs) {
+            int end = AsciiFormatter.writeLong(value, buf, 0);
+            assertEquals(Long.toString(value), new String(buf, 0, end, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void fixedPrecision() {
+        AsciiFormatter fixed = new AsciiFormatter(4);
+        assertEquals("9.8100", write(fixed, 9.81));
+        assertEquals("-0.0500", write(fixed, -0.05));
+        assertEquals("0.0000", write(fixed, -0.00001));
+        assertEquals("49.2606", write(fixed, 49.26064));
+        assertEquals("123.0000", write(fixed, 123));
+        assertEquals("12", write(new AsciiFormatter(0), 11.5));
+        // Too large for fixed notation, falls back to the shortest form
+        assertEquals("1.0E12", write(fixed, 1e12));
+    }
+
+    private String formatFloat(float value) {
+        return new String(buf, 0, formatter.writeFloat(value, buf, 0), StandardCharsets.US_ASCII);
+    }
+
+    private String formatDouble(double value) {
+        return new String(buf, 0, formatter.writeDouble(value, buf, 0), StandardCharsets.US_ASCII);
+    }
+
+    private String write(AsciiFormatter fixed, double value) {
+        return new String(buf, 0, fixed.writeDouble(value, buf, 0), StandardCharsets.US_ASCII);
+    }
+
+    // Digits of the significand without leading or trailing zeros
+    private static int significantDigits(String text) {
+        int e = text.indexOf('E');
+        String mantissa = (e < 0 ? text : text.substring(0, e)).replace("-", "").replace(".", "");
+        mantissa = mantissa.replaceAll("^0+", "").replaceAll("0+$", "");
+        return Math.max(mantissa.length(), 1);
+    }
+
+    // Whether some decimal with the given number of significant digits parses to the same float
+    private static boolean floatFitsIn(float value, int digits) {
+        BigDecimal exact = new BigDecimal(value);
+        for (RoundingMode mode : new RoundingMode[] {RoundingMode.FLOOR, RoundingMode.CEILING}) {
+            if (Float.parseFloat(exact.round(new MathContext(digits, mode)).toString()) == value) return true;
+        }
+        return false;
+    }
+
+    private static boolean doubleFitsIn(double value, int digits) {
+        BigDecimal exact = new BigDecimal(value);
+        for (RoundingMode mode : new RoundingMode[] {RoundingMode.FLOOR, RoundingMode.CEILING}) {
+            if (Double.parseDouble(exact.round(new MathContext(digits, mode)).toString()) == value) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,221 @@
+package com.humbl.imuapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class BlockBlobUploaderTest {
+    private static final int BLOCK = 64 * 1024;
+
+    private HttpServer server;
+    private StandInBlob blob;
+    private File directory;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "upload-test-" + System.nanoTime());
+        directory.mkdirs();
+        content = new byte[16 * BLOCK + 123]; // 17 blocks, the last one short
+        new Random(7).nextBytes(content);
+        file = new File(directory, "walk.zip");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+
+        blob = new StandInBlob();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", blob::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void blocksAreSentInParallelAndCommittedInOrder() {
+        BlockBlobUploader.Config config = config();
+        File state = new File(directory, "walk.zip.blocks");
+        assertTrue(new BlockBlobUploader(config).upload(file, sasUrl("sig=a"), state));
+
+        assertArrayEquals(content, blob.committed);
+        assertEquals(17, blob.blockPuts.get());
+        assertTrue("More blocks in flight than allowed: " + blob.maxInFlight.get(),
+                blob.maxInFlight.get() <= config.parallelBlocks);
+        assertFalse("State kept after the commit", state.exists());
+    }
+
+    @Test
+    public void failedAndCutOffBlocksAreRetriedOnTheirOwn() {
+        blob.flaky = true; // Every block fails once, and every other one is then cut off
+        assertTrue(new BlockBlobUploader(config()).upload(file, sasUrl("sig=a"), null));
+
+        assertArrayEquals(content, blob.committed);
+        assertEquals(17 + 17 + 9, blob.blockPuts.get());
+    }
+
+    @Test
+    public void interruptedUploadResumesWithOnlyTheMissingBlocks() {
+        File state = new File(directory, "walk.zip.blocks");
+        blob.outageAfter = 6; // The network goes for good after six blocks
+        assertFalse(new BlockBlobUploader(config()).upload(file, sasUrl("sig=a"), state));
+        assertNull(blob.committed);
+        assertTrue(state.exists());
+
+        // Later, with a fresh SAS token and a new uploader, as after an app restart
+        blob.outageAfter = Integer.MAX_VALUE;
+        blob.blockPuts.set(0);
+        assertTrue(new BlockBlobUploader(config()).upload(file, sasUrl("sig=b"), state));
+        assertEquals(17 - 6, blob.blockPuts.get());
+        assertArrayEquals(content, blob.committed);
+        assertFalse(state.exists());
+    }
+
+    @Test
+    public void stateOfAnotherFileIsIgnored() throws IOException {
+        File state = new File(directory, "walk.zip.blocks");
+        blob.outageAfter = 6;
+        assertFalse(new BlockBlobUploader(config()).upload(file, sasUrl("sig=a"), state));
+
+        // The file was recorded again under the same name: every block goes up again
+        content = Arrays.copyOf(content, content.length + BLOCK);
+        Files.write(file.toPath(), content);
+        file.setLastModified(file.lastModified() + 2000);
+        blob.outageAfter = Integer.MAX_VALUE;
+        blob.blocks.clear();
+        blob.blockPuts.set(0);
+        assertTrue(new BlockBlobUploader(config()).upload(file, sasUrl("sig=b"), state));
+        assertEquals(18, blob.blockPuts.get());
+        assertArrayEquals(content, blob.committed);
+    }
+
+    @Test
+    public void smallFileIsOnePut() {
+        byte[] small = Arrays.copyOf(content, 1000);
+        File smallFile = new File(directory, "clip.imur");
+        try (FileOutputStream out = new FileOutputStream(smallFile)) {
+            out.write(small);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        assertTrue(new BlockBlobUploader(config()).upload(smallFile, sasUrl("sig=a"), null));
+        assertArrayEquals(small, blob.committed);
+        assertEquals(0, blob.blockPuts.get());
+    }
+
+    private BlockBlobUploader.Config config() {
+        BlockBlobUploader.Config config = new BlockBlobUploader.Config();
+        config.blockBytes = BLOCK;
+        config.parallelBlocks = 3;
+        config.attempts = 3;
+        config.retryDelayMs = 1;
+        return config;
+    }
+
+    private String sasUrl(String signature) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/appdata/walk.zip?sv=2022-11-02&" + signature;
+    }
+
+    // Just enough of Put Blob, Put Block and Put Block List, with failures on demand
+    private static class StandInBlob {
+        private static final Pattern LATEST = Pattern.compile("<Latest>([^<]+)</Latest>");
+
+        final Map<String, byte[]> blocks = new ConcurrentHashMap<>();
+        final AtomicInteger blockPuts = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        volatile byte[] committed;
+        final Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        volatile boolean flaky;
+        volatile int outageAfter = Integer.MAX_VALUE;
+
+        void handle(HttpExchange exchange) throws IOException {
+            String query = exchange.getRequestURI().getQuery();
+            int now = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(now, Math::max);
+            try {
+                if (query.contains("comp=blocklist")) {
+                    String list = new String(readBody(exchange.getRequestBody(), -1), StandardCharsets.UTF_8);
+                    ByteArrayOutputStream blob = new ByteArrayOutputStream();
+                    Matcher ids = LATEST.matcher(list);
+                    while (ids.find()) {
+                        byte[] block = blocks.get(ids.group(1));
+                        if (block == null) {
+                            respond(exchange, 400);
+                            return;
+                        }
+                        blob.write(block);
+                    }
+                    committed = blob.toByteArray();
+                    respond(exchange, 201);
+                } else if (query.contains("comp=block")) {
+                    blockPuts.incrementAndGet();
+                    String id = query.substring(query.indexOf("blockid=") + 8);
+                    int attempt = attempts.computeIfAbsent(id, k -> new AtomicInteger()).incrementAndGet();
+                    boolean even = Integer.parseInt(id.substring(3)) % 2 == 0;
+                    if (flaky && attempt == 2 && even) {
+                        readBody(exchange.getRequestBody(), 1000);
+                        exchange.close(); // Connection dropped mid-transfer, no response
+                        return;
+                    }
+                    byte[] body = readBody(exchange.getRequestBody(), -1);
+                    synchronized (this) {
+                        if ((flaky && attempt == 1) || blocks.size() >= outageAfter) {
+                            respond(exchange, flaky ? 500 : 503);
+                            return;
+                        }
+                        blocks.put(id, body);
+                    }
+                    respond(exchange, 201);
+                } else {
+                    committed = readBody(exchange.getRequestBody(), -1);
+                    respond(exchange, 201);
+                }
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        private static byte[] readBody(InputStream in, int limit) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((limit < 0 || body.size() < limit) && (n = in.read(buffer)) != -1) body.write(buffer, 0, n);
+            return body.toByteArray();
+        }
+
+        private static void respond(HttpExchange exchange, int code) throws IOException {
+            exchange.sendResponseHeaders(code, -1);
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.humbl.imuapp;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * JVM benchmark of GorillaCodec against the CSV + Deflate export, on a synthetic hour of
+ * 50 Hz walking that ends in a fall and lying still.
+ */
+public class CodecBenchmarkTest {
+    private static final int ROWS = 50 * 3600;
+    private static final int BLOCK_ROWS = 1024;
+
+    private static SampleSchema schema;
+    private static ByteBuffer raw;
+    private static DataExport csvSource;
+
+    @BeforeClass
+    public static void generateWalkAndFall() {
+        schema = SampleSchema.synchronizedImu();
+        raw = ByteBuffer.allocate(ROWS * schema.getRowBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        csvSource = new DataExport(schema);
+        Random random = new Random(11);
+        SampleRow row = schema.newRow();
+
+        int fallRow = ROWS * 4 / 5;
+        long time = 1_700_000_000_000L;
+        double latitude = 49.2606, longitude = -123.2460;
+        for (int i = 0; i < ROWS; i++) {
+            time += 20 + (random.nextInt(10) == 0 ? random.nextInt(3) - 1 : 0);
+            double t = i / 50.0;
+            double[] acc = new double[3], gyro = new double[3];
+            if (i < fallRow) {
+                // Walking: roughly 1.8 steps per second
+                double phase = 2 * Math.PI * 1.8 * t;
+                acc[0] = 0.6 * Math.sin(phase);
+                acc[1] = 9.81 + 2.5 * Math.sin(2 * phase);
+                acc[2] = 1.2 * Math.cos(phase);
+                gyro[0] = 0.8 * Math.sin(phase);
+                gyro[1] = 0.3 * Math.cos(phase);
+                gyro[2] = 0.2 * Math.sin(2 * phase);
+                if (i % 50 == 0) {
+                    latitude += 1.2e-5;
+                    longitude -= 0.4e-5;
+                }
+            } else if (i < fallRow + 50) {
+                // Free fall, then the impact
+                boolean impact = i >= fallRow + 45;
+                acc[1] = impact ? 35 : 0.5;
+                acc[0] = impact ? -12 : 0.2;
+                gyro[0] = impact ? 1 : 5;
+            } else {
+                // Lying still on the side
+                acc[0] = 9.81;
+            }
+            double noise = i < fallRow + 50 ? 0.05 : 0.01;
+            for (int c = 0; c < 3; c++) {
+                row.floats[c] = quantize(acc[c] + random.nextGaussian() * noise, 0.0023956299);
+                row.floats[3 + c] = quantize(gyro[c] + random.nextGaussian() * noise / 10, 0.0010652645);
+            }
+            row.longs[0] = time;
+            row.longs[1] = time + random.nextInt(3);
+            row.longs[2] = time - time % 1000;
+            row.doubles[0] = latitude;
+            row.doubles[1] = longitude;
+            SampleBlock.writeRow(raw, row);
+            csvSource.addSample(row);
+        }
+        raw.flip();
+    }
+
+    // Sensors report whole multiples of their resolution
+    private static float quantize(double value, double resolution) {
+        return (float) (Math.round(value / resolution) * resolution);
+    }
+
+    @Test
+    public void gorillaVersusCsvDeflate() throws IOException {
+        int rawBytes = raw.remaining();
+        GorillaCodec codec = new GorillaCodec(schema);
+        byte[] encoded = new byte[codec.maxEncodedBytes(ROWS) + ROWS / BLOCK_ROWS * 16];
+        int[] blockOffsets = new int[ROWS / BLOCK_ROWS + 2];
+        ByteBuffer decoded = ByteBuffer.allocate(rawBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        // Best of several rounds, the first ones warm up the JIT
+        long encodeNanos = Long.MAX_VALUE, decodeNanos = Long.MAX_VALUE;
+        int encodedBytes = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int blocks = 0, length = 0;
+            for (int first = 0; first < ROWS; first += BLOCK_ROWS) {
+                raw.position(first * schema.getRowBytes());
+                blockOffsets[blocks++] = length;
+                length += codec.encode(raw, Math.min(BLOCK_ROWS, ROWS - first), encoded, length);
+            }
+            blockOffsets[blocks] = length;
+            encodeNanos = Math.min(encodeNanos, System.nanoTime() - start);
+            encodedBytes = length;
+
+            start = System.nanoTime();
+            decoded.clear();
+            for (int b = 0, first = 0; first < ROWS; b++, first += BLOCK_ROWS) {
+                codec.decode(encoded, blockOffsets[b], blockOffsets[b + 1] - blockOffsets[b],
+                        Math.min(BLOCK_ROWS, ROWS - first), decoded);
+            }
+            decodeNanos = Math.min(decodeNanos, System.nanoTime() - start);
+        }
+        raw.position(0);
+        assertEquals(raw, decoded.flip());
+
+        long csvNanos = Long.MAX_VALUE, parseNanos = Long.MAX_VALUE;
+        long csvBytes = 0;
+        byte[] deflated = null;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DeflaterOutputStream out = new DeflaterOutputStream(bytes, new Deflater(Deflater.DEFAULT_COMPRESSION), 64 * 1024)) {
+                csvBytes = csvSource.writeCSV(out);
+            }
+            csvNanos = Math.min(csvNanos, System.nanoTime() - start);
+            deflated = bytes.toByteArray();
+
+            start = System.nanoTime();
+            assertEquals(ROWS, parseCsv(deflated));
+            parseNanos = Math.min(parseNanos, System.nanoTime() - start);
+        }
+
+        System.out.printf("Walk and fall, %,d rows, %.1f MB raw:%n", ROWS, rawBytes / 1e6);
+        System.out.printf("  GorillaCodec  %.2f MB (%.1fx), encode %.0f MB/s, decode %.0f MB/s%n",
+                encodedBytes / 1e6, rawBytes / (double) encodedBytes,
+                rawBytes / 1e6 / (encodeNanos / 1e9), rawBytes / 1e6 / (decodeNanos / 1e9));
+        System.out.printf("  CSV + Deflate %.2f MB (%.1fx, CSV %.1f MB), encode %.0f MB/s, decode %.0f MB/s%n",
+                deflated.length / 1e6, rawBytes / (double) deflated.length, csvBytes / 1e6,
+                rawBytes / 1e6 / (csvNanos / 1e9), rawBytes / 1e6 / (parseNanos / 1e9));
+
+        assertTrue(encodedBytes < deflated.length);
+    }
+
+    // Inflate and parse every value back, returns the number of rows
+    private static int parseCsv(byte[] deflated) throws IOException {
+        int rows = 0;
+        double sink = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new InflaterInputStream(new ByteArrayInputStream(deflated)), StandardCharsets.UTF_8), 64 * 1024)) {
+            reader.readLine(); // Header
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",", -1);
+                for (int c = 0; c < schema.getColumnCount(); c++) {
+                    sink += schema.getType(c) == SampleSchema.TYPE_LONG
+                            ? Long.parseLong(fields[c]) : Double.parseDouble(fields[c]);
+                }
+                rows++;
+            }
+        }
+        return sink != 0 ? rows : -1;
+    }
+}
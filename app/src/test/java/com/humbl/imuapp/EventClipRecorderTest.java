@@ -0,0 +1,99 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class EventClipRecorderTest {
+    private static final long SECOND = 1_000_000_000L;
+    private static final long PERIOD = SECOND / 100; // 100 Hz rows
+
+    private File directory;
+    private SampleSchema schema;
+    private final List<File> written = new CopyOnWriteArrayList<>();
+    private EventClipRecorder clips;
+
+    @Before
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "clip-test-" + System.nanoTime());
+        directory.mkdirs();
+        schema = SensorChannel.schemaFor(Arrays.asList(SensorChannel.ACCELEROMETER, SensorChannel.GYROSCOPE));
+        clips = new EventClipRecorder(schema, 100, 2 * SECOND, SECOND, directory,
+                Collections.singletonMap("name", "walk"), written::add);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void clipIsWrittenOnceTheAfterWindowCloses() throws Exception {
+        SampleRow row = schema.newRow();
+        appendRows(row, 0, 1000); // 10 s, longer than the window
+        clips.addEvent(10 * SECOND + 3_000_000, "walk_event_10003");
+        appendRows(row, 1000, 1099);
+        Thread.sleep(200);
+        assertTrue("Clip written before its after-window closed", written.isEmpty());
+
+        appendRows(row, 1099, 1200);
+        // Written in the background, without waiting for the recording to stop
+        long deadline = System.currentTimeMillis() + 2000;
+        while (written.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(1, written.size());
+        clips.finish();
+        try (RecordingFileReader reader = RecordingFileReader.open(written.get(0))) {
+            assertEquals("walk_event_10003.imur", written.get(0).getName());
+            // From 2 s before the event to 1 s after it
+            assertEquals(300, reader.getRowCount());
+            SampleRow read = schema.newRow();
+            reader.readRow(0, read);
+            assertEquals(801 * PERIOD, read.longs[0]);
+            assertEquals(801f, read.floats[0], 0f);
+            reader.readRow(reader.getRowCount() - 1, read);
+            assertEquals(1100 * PERIOD, read.longs[0]);
+            assertEquals("10003000000", reader.getEvents().get(0).time);
+            assertEquals("walk", reader.getMetadata().get("name"));
+            assertEquals("2000", reader.getMetadata().get("clipPreMs"));
+        }
+    }
+
+    @Test
+    public void earlyAndUnfinishedEventsGetWhatThereIs() throws Exception {
+        SampleRow row = schema.newRow();
+        clips.addEvent(SECOND / 2, "early");
+        appendRows(row, 0, 300);
+        clips.addEvent(2 * SECOND + SECOND / 2, "cut_short");
+        appendRows(row, 300, 320);
+        clips.finish();
+
+        assertEquals(2, written.size());
+        try (RecordingFileReader early = RecordingFileReader.open(new File(directory, "early.imur"));
+             RecordingFileReader cutShort = RecordingFileReader.open(new File(directory, "cut_short.imur"))) {
+            // Only half a second of rows before the event exists
+            assertEquals(151, early.getRowCount());
+            assertEquals(50, early.getEvents().get(0).row);
+            // Recording stopped 0.7 s after the event
+            assertEquals(270, cutShort.getRowCount());
+        }
+    }
+
+    private void appendRows(SampleRow row, int from, int to) {
+        for (int i = from; i < to; i++) {
+            row.longs[0] = i * PERIOD;
+            row.floats[0] = i;
+            clips.append(row);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class EventTableTest {
+    private static final long PERIOD = 5_000_000; // Rows every 5 ms, 200 Hz
+
+    private File directory;
+    private SampleSchema schema;
+
+    @Before
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "event-test-" + System.nanoTime());
+        schema = SensorChannel.schemaFor(java.util.Arrays.asList(SensorChannel.ACCELEROMETER));
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void eventsBetweenSamplesGoToTheNearestRow() throws IOException {
+        DataExport export = new DataExport(schema);
+        addRows(export, 100);
+        EventTable events = export.getEvents();
+        events.add(10 * PERIOD + 2_000_000); // Closer to row 10
+        events.add(20 * PERIOD + 3_000_000); // Closer to row 21
+        events.add(30 * PERIOD + PERIOD / 2); // Halfway, the earlier row
+        events.add(500 * PERIOD); // After the last row
+
+        assertArrayEquals(new long[]{10, 21, 30, 99}, events.nearestRows(rowTimes(export)));
+    }
+
+    @Test
+    public void eventsBeforeTheFirstSampleAreKept() throws IOException {
+        DataExport export = new DataExport(schema);
+        // Marked and described before the sensors delivered anything
+        export.getEvents().add(0);
+        assertTrue(export.getEvents().describe(0, "start, standing"));
+        assertEquals(-1, export.getEvents().nearestRows(rowTimes(export))[0]);
+
+        addRows(export, 10, PERIOD);
+        String[] lines = csvLines(export);
+        assertTrue(lines[1].endsWith(",0,start  standing"));
+        for (int i = 2; i < lines.length; i++) assertTrue(lines[i].endsWith(",,"));
+    }
+
+    @Test
+    public void outOfOrderEventsAreSortedAndDescribedByTime() {
+        EventTable events = new EventTable();
+        events.add(300);
+        events.add(100);
+        events.add(200);
+        assertTrue(events.describe(100, "first"));
+        assertTrue(events.describe(300, "last"));
+        assertFalse(events.describe(150, "none"));
+
+        assertEquals(100, events.getTime(0));
+        assertEquals(200, events.getTime(1));
+        assertEquals("first", events.getDescription(0));
+        assertEquals("", events.getDescription(1));
+        assertEquals("last", events.getDescription(2));
+    }
+
+    @Test
+    public void segmentFilesGiveTheSameRowsAsTheSearch() throws IOException {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 16;
+        RecordingWriter writer = RecordingWriter.open(directory, schema, config);
+        DataExport onDisk = new DataExport(writer);
+        DataExport inMemory = new DataExport(schema);
+        addRows(onDisk, 1000);
+        addRows(inMemory, 1000);
+        long[] times = {-PERIOD, 0, 3, 7 * PERIOD + PERIOD / 2, 7 * PERIOD + PERIOD / 2 + 1, 999 * PERIOD, 2000 * PERIOD};
+        for (long time : times) {
+            onDisk.getEvents().add(time);
+            inMemory.getEvents().add(time);
+        }
+
+        long[] searched = inMemory.getEvents().nearestRows(rowTimes(inMemory));
+        assertArrayEquals(new long[]{0, 0, 0, 7, 8, 999, 999}, searched);
+        assertArrayEquals(searched, onDisk.getEvents().nearestRows(onDisk.cursor(), schema));
+
+        // The events table names each event's row
+        File eventsFile = new File(directory, "events.csv");
+        assertTrue(onDisk.exportEventsCsv(eventsFile));
+        List<String> lines = Files.readAllLines(eventsFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals("event_time,row,event_description", lines.get(0));
+        assertEquals(35_000_000 + 2_500_000 + 1 + ",8,", lines.get(5));
+        writer.close();
+    }
+
+    @Test
+    public void eventsOnTheSameRowStayApartExceptInTheRowColumns() throws IOException {
+        directory.mkdirs();
+        DataExport export = new DataExport(schema);
+        addRows(export, 100);
+        export.getEvents().add(10 * PERIOD - 1); // Both nearest row 10
+        export.getEvents().add(10 * PERIOD + 1);
+        export.getEvents().describe(10 * PERIOD - 1, "trip");
+        export.getEvents().describe(10 * PERIOD + 1, "fall");
+        File file = new File(directory, "walk" + RecordingFileWriter.EXTENSION);
+        assertTrue(export.exportAsBinary(file, new HashMap<>(), false));
+
+        try (RecordingFileReader reader = RecordingFileReader.open(file)) {
+            assertEquals(2, reader.getEvents().size());
+            assertEquals("fall", reader.getEvents().get(1).description);
+            DataExport fromFile = new DataExport(reader);
+            assertEquals(2, fromFile.getEventCount());
+            File eventsFile = new File(directory, "events.csv");
+            assertTrue(fromFile.exportEventsCsv(eventsFile));
+            List<String> lines = Files.readAllLines(eventsFile.toPath(), StandardCharsets.UTF_8);
+            assertEquals(3, lines.size());
+            assertEquals(10 * PERIOD - 1 + ",10,trip", lines.get(1));
+            assertEquals(10 * PERIOD + 1 + ",10,fall", lines.get(2));
+            // The row's own columns hold both
+            assertTrue(csvLines(fromFile)[11].endsWith("," + (10 * PERIOD - 1) + " " + (10 * PERIOD + 1) + ",trip; fall"));
+        }
+    }
+
+    private void addRows(DataExport export, int count) {
+        addRows(export, count, 0);
+    }
+
+    private void addRows(DataExport export, int count, long start) {
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < count; i++) {
+            row.longs[0] = start + i * PERIOD;
+            row.floats[0] = i;
+            export.addSample(row);
+        }
+    }
+
+    // Times of an in-memory export, read back through its cursor
+    private EventTable.RowTimes rowTimes(DataExport export) throws IOException {
+        long[] times = new long[export.getSampleCount()];
+        SampleRow row = schema.newRow();
+        try (SampleCursor cursor = export.cursor()) {
+            for (int i = 0; cursor.next(row); i++) times[i] = row.longs[0];
+        }
+        return new EventTable.RowTimes() {
+            @Override
+            public long rowCount() {
+                return times.length;
+            }
+
+            @Override
+            public long timeOf(long row) {
+                return times[(int) row];
+            }
+        };
+    }
+
+    private static String[] csvLines(DataExport export) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.writeCSV(out);
+        return out.toString(StandardCharsets.UTF_8.name()).split("\n");
+    }
+}
@@ -0,0 +1,230 @@
+package com.humbl.imuapp;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * JVM benchmark for exporting long recordings. Rows are read back from segment files, as in the
+ * recording service, so the sample data itself does not sit on the heap during the export. The
+ * thread scaling run compresses the whole recording five times; pass -Dimu.zipScaling=true to
+ * Gradle to include it.
+ */
+public class ExportBenchmarkTest {
+    private static final int ROWS = 1_000_000;
+
+    private static File dir;
+    private static DataExport dataExport;
+
+    @BeforeClass
+    public static void recordRows() throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "export-bench-" + System.nanoTime());
+        SampleSchema schema = SampleSchema.synchronizedImu();
+        dataExport = new DataExport(RecordingWriter.open(new File(dir, "segments"), schema, new RecordingWriter.Config()));
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < ROWS; i++) {
+            fillRow(row, i);
+            dataExport.addSample(row);
+        }
+        dataExport.flush();
+    }
+
+    private static void fillRow(SampleRow row, int i) {
+        long t = i * 5L;
+        row.longs[0] = t;
+        row.longs[1] = t + 1;
+        row.longs[2] = (t / 1000) * 1000;
+        for (int c = 0; c < row.floats.length; c++) {
+            row.floats[c] = (float) Math.sin(i * 0.013 + c) * 9.81f;
+        }
+        row.doubles[0] = 49.2606 + (i / 200) * 1e-6;
+        row.doubles[1] = -123.2460 - (i / 200) * 1e-6;
+    }
+
+    @AfterClass
+    public static void cleanUp() {
+        dataExport.deleteRecordingFiles();
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void streamingZipExport() throws IOException {
+        File zip = new File(dir, "export.zip");
+        long baseline = settledHeap();
+        resetPeakHeap();
+
+        long start = System.nanoTime();
+        assertTrue(dataExport.exportAsZip(zip));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long peak = peakHeap() - baseline;
+
+        long csvBytes;
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            csvBytes = zipFile.getEntry("export.csv").getSize();
+        }
+        System.out.printf("Streaming zip export of %,d rows: %.1f MB CSV in %.2f s = %.1f MB/s, "
+                        + "zip %.1f MB, peak retained heap above baseline %.1f MB%n",
+                ROWS, csvBytes / 1e6, seconds, csvBytes / 1e6 / seconds, zip.length() / 1e6, peak / 1e6);
+
+        // Memory must not scale with the dataset (the CSV alone is many times this size)
+        assertTrue("Peak heap " + peak + " bytes", peak < csvBytes / 4);
+        zip.delete();
+    }
+
+    @Test
+    public void parallelZipMatchesSingleStreamSize() throws IOException {
+        // A tenth of the recording, held in memory, still spans many compressed chunks
+        SampleSchema schema = SampleSchema.synchronizedImu();
+        DataExport small = new DataExport(schema);
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < ROWS / 10; i++) {
+            fillRow(row, i);
+            small.addSample(row);
+        }
+        File zip = new File(dir, "small.zip");
+        assertTrue(small.exportAsZip(zip, 1));
+        File parallelZip = new File(dir, "small-parallel.zip");
+        assertTrue(small.exportAsZip(parallelZip, 4));
+        double sizeChange = 100.0 * (parallelZip.length() - zip.length()) / zip.length();
+        assertTrue("Size change " + sizeChange + "%", sizeChange < 3);
+        zip.delete();
+        parallelZip.delete();
+    }
+
+    @Test
+    public void parallelZipScaling() throws IOException {
+        assumeTrue(Boolean.getBoolean("imu.zipScaling"));
+        File zip = new File(dir, "export.zip");
+        assertTrue(dataExport.exportAsZip(zip, 1));
+        long singleThreadBytes = zip.length();
+
+        System.out.printf("Zip export scaling on %d available processors (ZipOutputStream: %.2f MB):%n",
+                Runtime.getRuntime().availableProcessors(), singleThreadBytes / 1e6);
+        for (int threads : new int[]{1, 2, 4, 8}) {
+            // One thread through ParallelZipOutputStream shows the chunking overhead on its own
+            long start = System.nanoTime();
+            File parallelZip = new File(dir, "export-" + threads + ".zip");
+            try (ParallelZipOutputStream out = new ParallelZipOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(parallelZip), 64 * 1024),
+                    "export.csv", threads, Deflater.DEFAULT_COMPRESSION)) {
+                dataExport.writeCSV(out);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double sizeChange = 100.0 * (parallelZip.length() - singleThreadBytes) / singleThreadBytes;
+            System.out.printf("  %d threads: %.2f s, %.2f MB (%+.2f%% vs single stream)%n",
+                    threads, seconds, parallelZip.length() / 1e6, sizeChange);
+            assertTrue("Size change " + sizeChange + "%", sizeChange < 3);
+            parallelZip.delete();
+        }
+        zip.delete();
+    }
+
+    @Test
+    public void binaryExport() throws IOException {
+        File binary = new File(dir, "export" + RecordingFileWriter.EXTENSION);
+        long start = System.nanoTime();
+        assertTrue(dataExport.exportAsBinary(binary, new HashMap<>(), false));
+        double writeSeconds = (System.nanoTime() - start) / 1e9;
+
+        start = System.nanoTime();
+        long csvBytes;
+        try (RecordingFileReader reader = RecordingFileReader.open(binary)) {
+            csvBytes = new DataExport(reader).writeCSV(new OutputStream() {
+                @Override
+                public void write(int b) {}
+
+                @Override
+                public void write(byte[] b, int off, int len) {}
+            });
+        }
+        double csvSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Binary export of %,d rows: %.1f MB in %.2f s (CSV would be %.1f MB, %.1fx larger); "
+                        + "CSV generated from the binary file in %.2f s%n",
+                ROWS, binary.length() / 1e6, writeSeconds, csvBytes / 1e6, csvBytes / (double) binary.length(), csvSeconds);
+        binary.delete();
+    }
+
+    @Test
+    public void numberFormatting() {
+        float[] floats = new float[ROWS];
+        double[] doubles = new double[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            floats[i] = (float) Math.sin(i * 0.013) * 9.81f;
+            doubles[i] = 49.2606 + i * 1e-7;
+        }
+        AsciiFormatter formatter = new AsciiFormatter();
+        byte[] buf = new byte[AsciiFormatter.MAX_CHARS];
+
+        // Best of several rounds, the first ones warm up the JIT
+        long stringFloat = Long.MAX_VALUE, asciiFloat = Long.MAX_VALUE;
+        long stringDouble = Long.MAX_VALUE, asciiDouble = Long.MAX_VALUE;
+        long sink = 0;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (float value : floats) sink += String.valueOf(value).length();
+            stringFloat = Math.min(stringFloat, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (float value : floats) sink += formatter.writeFloat(value, buf, 0);
+            asciiFloat = Math.min(asciiFloat, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (double value : doubles) sink += String.valueOf(value).length();
+            stringDouble = Math.min(stringDouble, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (double value : doubles) sink += formatter.writeDouble(value, buf, 0);
+            asciiDouble = Math.min(asciiDouble, System.nanoTime() - start);
+        }
+        System.out.printf("Formatting %,d values, ns/value: float String.valueOf %.1f, AsciiFormatter %.1f; "
+                        + "double String.valueOf %.1f, AsciiFormatter %.1f (%d)%n",
+                ROWS, stringFloat / (double) ROWS, asciiFloat / (double) ROWS,
+                stringDouble / (double) ROWS, asciiDouble / (double) ROWS, sink % 10);
+    }
+
+    private static long settledHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isLongLived(pool)) used += pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    // Old generation pools: short-lived garbage never reaches them, anything the export keeps does
+    private static boolean isLongLived(MemoryPoolMXBean pool) {
+        String name = pool.getName();
+        return pool.getType() == MemoryType.HEAP && !name.contains("Eden") && !name.contains("Survivor");
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isLongLived(pool)) pool.resetPeakUsage();
+        }
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (isLongLived(pool)) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+}
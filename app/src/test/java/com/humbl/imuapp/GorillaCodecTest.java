@@ -0,0 +1,62 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class GorillaCodecTest {
+    private final SampleSchema schema = SampleSchema.synchronizedImu();
+    private final GorillaCodec codec = new GorillaCodec(schema);
+
+    @Test
+    public void roundTripsEdgeValuesBitForBit() {
+        long[] longs = {0, 1, -1, Long.MIN_VALUE, Long.MAX_VALUE, 1_700_000_000_000L, 1_700_000_000_020L, 42};
+        float[] floats = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                Float.MIN_VALUE, Float.MAX_VALUE, 9.81f, 9.81f, -9.81f, Float.intBitsToFloat(0x7FC00001)};
+        double[] doubles = {0d, -0d, Double.NaN, Double.MIN_VALUE, Double.MAX_VALUE, 49.2606, 49.2606, -123.246};
+
+        int rows = 64;
+        ByteBuffer block = ByteBuffer.allocate(rows * schema.getRowBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        SampleRow row = schema.newRow();
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < row.longs.length; c++) row.longs[c] = longs[(r + c) % longs.length];
+            for (int c = 0; c < row.floats.length; c++) row.floats[c] = floats[(r * 3 + c) % floats.length];
+            for (int c = 0; c < row.doubles.length; c++) row.doubles[c] = doubles[(r + 5 * c) % doubles.length];
+            SampleBlock.writeRow(block, row);
+        }
+        assertRoundTrip(block, rows);
+    }
+
+    @Test
+    public void roundTripsRandomBlocks() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            int rows = 1 + random.nextInt(1024);
+            ByteBuffer block = ByteBuffer.allocate(rows * schema.getRowBytes()).order(ByteOrder.LITTLE_ENDIAN);
+            SampleRow row = schema.newRow();
+            for (int r = 0; r < rows; r++) {
+                for (int c = 0; c < row.longs.length; c++) row.longs[c] = trial % 2 == 0 ? random.nextLong() : r * 20L + random.nextInt(3);
+                for (int c = 0; c < row.floats.length; c++) row.floats[c] = Float.intBitsToFloat(random.nextInt());
+                for (int c = 0; c < row.doubles.length; c++) row.doubles[c] = Double.longBitsToDouble(random.nextLong());
+                SampleBlock.writeRow(block, row);
+            }
+            assertRoundTrip(block, rows);
+        }
+    }
+
+    private void assertRoundTrip(ByteBuffer block, int rows) {
+        block.flip();
+        byte[] encoded = new byte[codec.maxEncodedBytes(rows) + 3];
+        int length = codec.encode(block, rows, encoded, 3);
+        assertTrue(length <= codec.maxEncodedBytes(rows));
+
+        ByteBuffer decoded = ByteBuffer.allocate(rows * schema.getRowBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        codec.decode(encoded, 3, length, rows, decoded);
+        assertEquals(rows * schema.getRowBytes(), decoded.position());
+        assertArrayEquals(block.array(), decoded.array());
+    }
+}
@@ -0,0 +1,161 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+public class HttpClientsTest {
+    private MockWebServer server;
+    private HandshakeCertificates clientCertificates;
+    private File directory;
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void setUp() throws IOException {
+        // A TLS stand-in for the blob store, speaking HTTP/2 like the real hosts can
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName("localhost")
+                .build();
+        HandshakeCertificates serverCertificates = new HandshakeCertificates.Builder()
+                .heldCertificate(certificate)
+                .build();
+        clientCertificates = new HandshakeCertificates.Builder()
+                .addTrustedCertificate(certificate.certificate())
+                .build();
+        server = new MockWebServer();
+        server.useHttps(serverCertificates.sslSocketFactory(), false);
+        server.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(201);
+            }
+        });
+        server.start();
+
+        directory = new File(System.getProperty("java.io.tmpdir"), "http-test-" + System.nanoTime());
+        directory.mkdirs();
+        content = new byte[200_000];
+        new Random(3).nextBytes(content);
+        file = new File(directory, "walk.zip");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        File[] files = directory.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void fileRangeIsStreamedAgainOnEveryWrite() throws IOException {
+        RequestBody body = HttpClients.fileBody(file, 70_000, 50_000, null);
+        assertEquals(50_000, body.contentLength());
+        for (int write = 0; write < 2; write++) {
+            Buffer sent = new Buffer();
+            body.writeTo(sent);
+            assertArrayEquals(Arrays.copyOfRange(content, 70_000, 120_000), sent.readByteArray());
+        }
+    }
+
+    @Test
+    public void requestsShareOneConnection() throws Exception {
+        OkHttpClient client = trustingStandIn(HttpClients.newBuilder()).build();
+        for (int i = 0; i < 10; i++) {
+            try (Response response = put(client, "/appdata/walk" + i + ".zip")) {
+                assertEquals(201, response.code());
+                assertEquals(Protocol.HTTP_2, response.protocol());
+            }
+        }
+        for (int i = 0; i < 10; i++) {
+            RecordedRequest request = server.takeRequest();
+            assertEquals(i, request.getSequenceNumber()); // The i-th request on one connection
+            assertEquals(content.length, request.getBodySize());
+        }
+    }
+
+    @Test
+    public void connectionReuseSavesTheHandshake() throws Exception {
+        // A small body, like a GeoJSON batch or a token request, where the handshake is most of the time
+        file = new File(directory, "pins.geojson");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content, 0, 1024);
+        }
+        int requests = 40;
+        OkHttpClient pooled = trustingStandIn(HttpClients.newBuilder()).build();
+        put(pooled, "/warmup").close();
+        long[] reused = new long[requests];
+        long[] fresh = new long[requests];
+        for (int i = 0; i < requests; i++) {
+            long start = System.nanoTime();
+            put(pooled, "/appdata/pooled" + i).close();
+            reused[i] = System.nanoTime() - start;
+
+            // As every uploader did before: a new connection, and a new TLS handshake, per request
+            OkHttpClient unpooled = trustingStandIn(HttpClients.newBuilder()).build();
+            start = System.nanoTime();
+            put(unpooled, "/appdata/fresh" + i).close();
+            fresh[i] = System.nanoTime() - start;
+            unpooled.connectionPool().evictAll();
+        }
+        Arrays.sort(reused);
+        Arrays.sort(fresh);
+        double reusedMs = reused[requests / 2] / 1e6;
+        double freshMs = fresh[requests / 2] / 1e6;
+        System.out.printf("1 KB PUT over TLS: %.2f ms on a new connection, %.2f ms reused, %.2f ms saved (medians)%n",
+                freshMs, reusedMs, freshMs - reusedMs);
+        assertTrue(reusedMs < freshMs);
+    }
+
+    @Test
+    public void blockUploadsGoThroughThePool() throws Exception {
+        BlockBlobUploader.Config config = new BlockBlobUploader.Config();
+        config.blockBytes = 64 * 1024;
+        config.parallelBlocks = 2;
+        OkHttpClient client = trustingStandIn(HttpClients.newBuilder()).build();
+        String sasUrl = server.url("/appdata/walk.zip").newBuilder().query("sv=2022-11-02&sig=a").build().toString();
+        assertTrue(new BlockBlobUploader(config, client).upload(file, sasUrl, null));
+
+        // Four blocks and the block list, all on one HTTP/2 connection
+        assertEquals(5, server.getRequestCount());
+        assertEquals(1, client.connectionPool().connectionCount());
+    }
+
+    private OkHttpClient.Builder trustingStandIn(OkHttpClient.Builder builder) {
+        return builder.sslSocketFactory(clientCertificates.sslSocketFactory(), clientCertificates.trustManager());
+    }
+
+    private Response put(OkHttpClient client, String path) throws IOException {
+        Request request = new Request.Builder()
+                .url(server.url(path))
+                .put(HttpClients.fileBody(file, null))
+                .build();
+        return client.newCall(request).execute();
+    }
+}
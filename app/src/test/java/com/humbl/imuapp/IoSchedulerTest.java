@@ -0,0 +1,287 @@
+package com.humbl.imuapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IoSchedulerTest {
+    private final IoScheduler io = new IoScheduler(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        io.shutdown();
+        assertTrue(io.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void eventsGoAheadOfEarlierBulkWork() throws Exception {
+        occupyWorker();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            io.submit(IoScheduler.Lane.BULK, () -> order.add("bulk" + n));
+            io.submit(IoScheduler.Lane.NORMAL, () -> order.add("clip" + n));
+            io.submit(IoScheduler.Lane.EVENT, () -> order.add("event" + n));
+        }
+        release.countDown();
+        io.shutdown();
+        assertTrue(io.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(List.of("event0", "event1", "event2", "clip0", "clip1", "clip2", "bulk0", "bulk1", "bulk2"), order);
+    }
+
+    @Test
+    public void fullLaneRefusesWorkUntilThereIsRoom() throws Exception {
+        occupyWorker();
+        List<Future<?>> queued = new ArrayList<>();
+        for (int i = 0; i < IoScheduler.Lane.BULK.capacity; i++) queued.add(io.submit(IoScheduler.Lane.BULK, () -> { }));
+        try {
+            io.submit(IoScheduler.Lane.BULK, () -> { });
+            fail("Accepted more than the lane holds");
+        } catch (RejectedExecutionException expected) {
+        }
+        io.submit(IoScheduler.Lane.EVENT, () -> { }); // Other lanes have room of their own
+
+        assertTrue(queued.get(0).cancel(false));
+        assertEquals(IoScheduler.Lane.BULK.capacity - 1, io.getWaitingCount(IoScheduler.Lane.BULK));
+        io.submit(IoScheduler.Lane.BULK, () -> { });
+    }
+
+    @Test
+    public void cancelledTaskNeverRunsAndRunningOneIsInterrupted() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        Future<?> running = io.submit(IoScheduler.Lane.BULK, () -> {
+            started.countDown();
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+        });
+        AtomicInteger ran = new AtomicInteger();
+        Future<?> queued = io.submit(IoScheduler.Lane.EVENT, ran::incrementAndGet);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(queued.cancel(false));
+        assertTrue(running.cancel(true));
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        io.submit(IoScheduler.Lane.EVENT, () -> { }).get(5, TimeUnit.SECONDS);
+        assertEquals(0, ran.get());
+        assertEquals(0, io.getWaitingCount(IoScheduler.Lane.EVENT));
+    }
+
+    @Test
+    public void shutdownFinishesQueuedWorkAndRefusesNew() throws Exception {
+        occupyWorker();
+        AtomicInteger ran = new AtomicInteger();
+        for (int i = 0; i < 10; i++) io.submit(IoScheduler.Lane.NORMAL, ran::incrementAndGet);
+        io.shutdown();
+        try {
+            io.submit(IoScheduler.Lane.EVENT, () -> { });
+            fail("Accepted work after shutdown");
+        } catch (RejectedExecutionException expected) {
+        }
+        release.countDown();
+        assertTrue(io.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(10, ran.get());
+    }
+
+    @Test
+    public void thousandEventsKeepThreadsAndMemoryBounded() throws Exception {
+        int events = 1000;
+        AtomicInteger received = new AtomicInteger();
+        // A stand-in for the blob store and the feature service, on threads started up front
+        ThreadPoolExecutor serverThreads = new ThreadPoolExecutor(8, 8, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>());
+        serverThreads.prestartAllCoreThreads();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", exchange -> answer(exchange, received));
+        server.setExecutor(serverThreads);
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        File directory = new File(System.getProperty("java.io.tmpdir"), "io-test-" + System.nanoTime());
+        directory.mkdirs();
+        File features = new File(directory, "features.json");
+        try (FileOutputStream out = new FileOutputStream(features)) {
+            out.write(new byte[512]);
+        }
+        IoScheduler shared = new IoScheduler(IoScheduler.WORKERS);
+        UploadQueue queue = new UploadQueue(directory, new UploadQueue.Config(), shared, null);
+        try {
+            // As a press once did: a thread of its own for each request
+            GeoJsonHelper.uploadToAzure(features, base + "/warmup"); // Start OkHttp's own threads first
+            int before = Thread.activeCount();
+            ThreadSampler sampler = new ThreadSampler();
+            List<Thread> perRequest = new ArrayList<>();
+            for (int i = 0; i < events; i++) {
+                String url = base + "/gpsdata/thread" + i;
+                Thread thread = new Thread(() -> {
+                    try {
+                        GeoJsonHelper.uploadToAzure(features, url);
+                    } catch (IOException ignored) {
+                        // Only the threads are counted
+                    }
+                });
+                perRequest.add(thread);
+                thread.start();
+            }
+            for (Thread thread : perRequest) thread.join();
+            int perRequestPeak = sampler.finish() - before;
+            received.set(0);
+
+            // The app's destinations, on the scheduler, with the token prefetch every press does
+            queue.addDestination("gpsdata", IoScheduler.Lane.EVENT, 1, job ->
+                    GeoJsonHelper.uploadToAzure(job.getFile(), job.getExtra("url")));
+            queue.addDestination(ArcGISUpload.DESTINATION, IoScheduler.Lane.EVENT, 1, job ->
+                    GeoJsonHelper.uploadToAzure(features, job.getExtra("url")));
+            // Big files in blocks, as the appdata and recordings destinations send them
+            BlockBlobUploader.Config blockConfig = new BlockBlobUploader.Config();
+            blockConfig.blockBytes = 64 * 1024;
+            BlockBlobUploader blocks = new BlockBlobUploader(blockConfig);
+            UploadQueue.Uploader inBlocks = job -> {
+                if (!blocks.upload(job.getFile(), job.getExtra("url"), null)) throw new IOException("Upload failed");
+            };
+            queue.addDestination("appdata", IoScheduler.Lane.NORMAL, 2, inBlocks);
+            queue.addDestination("recordings", IoScheduler.Lane.BULK, 1, inBlocks);
+            queue.start();
+            AtomicInteger tokens = new AtomicInteger();
+            SasUrlCache cache = new SasUrlCache((container, blobName) -> {
+                tokens.incrementAndGet();
+                return base + "/" + container + "/" + blobName + "?se=2099-01-01T00%3A00%3A00Z&sig=x";
+            }, new SasUrlCache.Config(), shared);
+            String[] bigFiles = {"walk.zip", "walk_clip_1.imur", "walk_clip_2.imur"};
+            for (String name : bigFiles) {
+                try (FileOutputStream out = new FileOutputStream(new File(directory, name))) {
+                    out.write(new byte[4 * blockConfig.blockBytes]);
+                }
+            }
+
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            before = Thread.activeCount();
+            sampler = new ThreadSampler();
+            long start = System.nanoTime();
+            // A recording and two clips going up in blocks at the same time as the events
+            for (String name : bigFiles) {
+                queue.enqueue(name.endsWith(".zip") ? "recordings" : "appdata", new File(directory, name), false,
+                        Collections.singletonMap("url", base + "/appdata/" + name + "?sig=x"));
+            }
+            for (int i = 0; i < events; i++) {
+                File pins = new File(directory, "event_" + i + ".geojson");
+                try (FileOutputStream out = new FileOutputStream(pins)) {
+                    out.write(new byte[256]);
+                }
+                queue.enqueue("gpsdata", pins, true, Collections.singletonMap("url", base + "/gpsdata/event" + i));
+                queue.enqueue(ArcGISUpload.DESTINATION, null, false,
+                        Collections.singletonMap("url", base + "/arcgis/event" + i));
+                cache.prefetch("appdata", "walk_event_" + i + ".imur");
+            }
+            long fired = System.nanoTime();
+            System.gc();
+            long heapGrowth = runtime.totalMemory() - runtime.freeMemory() - heapBefore;
+            assertTrue(queue.awaitIdle(60, TimeUnit.SECONDS));
+            long drained = System.nanoTime();
+            int scheduledPeak = sampler.finish() - before;
+
+            assertEquals(2 * events + bigFiles.length * 5, received.get()); // Four blocks and a block list each
+            System.out.printf("%d events: %d extra threads at peak with a thread per request, %d on the scheduler and block threads "
+                            + "(%d workers started); heap +%.1f MB with every job queued; fired in %.0f ms, "
+                            + "sent in %.0f ms, %d token prefetches run%n",
+                    events, perRequestPeak, scheduledPeak, shared.getThreadsStarted(), heapGrowth / 1e6,
+                    (fired - start) / 1e6, (drained - start) / 1e6, tokens.get());
+            // Its workers, the blocks' shared threads, the queue's timer, and one spare for OkHttp's housekeeping
+            assertTrue("Threads: " + scheduledPeak, scheduledPeak <= IoScheduler.WORKERS + blockConfig.parallelBlocks + 2);
+            assertTrue(shared.getThreadsStarted() <= IoScheduler.WORKERS);
+            assertTrue("Heap: " + heapGrowth, heapGrowth < 32_000_000);
+        } finally {
+            queue.shutdown();
+            shared.shutdown();
+            server.stop(0);
+            serverThreads.shutdown();
+            File[] files = directory.listFiles();
+            if (files != null) for (File file : files) file.delete();
+            directory.delete();
+        }
+    }
+
+    // Keep the one worker busy until release
+    private void occupyWorker() throws InterruptedException {
+        CountDownLatch busy = new CountDownLatch(1);
+        io.submit(IoScheduler.Lane.EVENT, () -> {
+            busy.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(busy.await(5, TimeUnit.SECONDS));
+    }
+
+    private static void answer(HttpExchange exchange, AtomicInteger received) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            while (in.read(buffer) != -1) {
+                // Read the whole body, as the blob store does
+            }
+            Thread.sleep(2);
+            received.incrementAndGet();
+            exchange.sendResponseHeaders(201, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // The most threads alive at once, sampled until finish
+    private static class ThreadSampler extends Thread {
+        private volatile boolean running = true;
+        private int peak;
+
+        ThreadSampler() {
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                peak = Math.max(peak, Thread.activeCount() - 1); // Not counting the sampler
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        int finish() throws InterruptedException {
+            running = false;
+            join();
+            return peak;
+        }
+    }
+}
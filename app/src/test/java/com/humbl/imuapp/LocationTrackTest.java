@@ -0,0 +1,91 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocationTrackTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void interpolatesBetweenFixes() {
+        LocationTrack track = new LocationTrack(10 * SECOND);
+        track.add(SECOND, 49.0, -123.0);
+        track.add(2 * SECOND, 49.1, -123.2);
+        track.add(SECOND, 0, 0); // Out of order, ignored
+        assertEquals(2, track.size());
+
+        double[] position = new double[2];
+        assertTrue(track.interpolate(SECOND + SECOND / 4, position));
+        assertEquals(49.025, position[0], 1e-9);
+        assertEquals(-123.05, position[1], 1e-9);
+        assertTrue(track.interpolate(2 * SECOND, position));
+        assertEquals(49.1, position[0], 0);
+        assertEquals(-123.2, position[1], 0);
+    }
+
+    @Test
+    public void noPositionOutsideTheTrackOrAcrossAGap() {
+        LocationTrack track = new LocationTrack(10 * SECOND);
+        track.add(SECOND, 49.0, -123.0);
+        track.add(2 * SECOND, 49.1, -123.2);
+        track.add(30 * SECOND, 49.2, -123.4);
+
+        double[] position = new double[2];
+        assertFalse(track.interpolate(SECOND / 2, position));
+        assertFalse(track.interpolate(31 * SECOND, position));
+        assertFalse(track.interpolate(10 * SECOND, position));
+    }
+
+    @Test
+    public void crossesTheAntimeridianTheShortWay() {
+        LocationTrack track = new LocationTrack(10 * SECOND);
+        track.add(0, -17.0, 179.8);
+        track.add(SECOND, -17.0, -179.8);
+
+        double[] position = new double[2];
+        assertTrue(track.interpolate(SECOND / 4, position));
+        assertEquals(179.9, position[1], 1e-9);
+        assertTrue(track.interpolate(3 * SECOND / 4, position));
+        assertEquals(-179.9, position[1], 1e-9);
+    }
+
+    @Test
+    public void csvRowsGetInterpolatedPositions() throws IOException {
+        List<SensorChannel> channels = Arrays.asList(SensorChannel.ACCELEROMETER);
+        SampleSchema schema = SensorChannel.schemaFor(channels);
+        DataExport export = new DataExport(schema);
+        SampleRow row = schema.newRow();
+        int timeSlot = schema.getSlot(schema.indexOf("timeStampNs"));
+        for (int i = 0; i < 3; i++) {
+            row.longs[timeSlot] = i * SECOND;
+            export.addSample(row);
+        }
+
+        DataExport fixes = new DataExport(SampleSchema.locationFixes());
+        SampleSchema fixSchema = fixes.getSchema();
+        SampleRow fix = fixSchema.newRow();
+        for (int i = 0; i < 2; i++) {
+            fix.longs[fixSchema.getSlot(fixSchema.indexOf("timeStampNs"))] = i * SECOND;
+            fix.doubles[fixSchema.getSlot(fixSchema.indexOf("latitude"))] = 49.0 + i;
+            fix.doubles[fixSchema.getSlot(fixSchema.indexOf("longitude"))] = -123.0;
+            fixes.addSample(fix);
+        }
+        export.setLocationTrack(LocationTrack.read(fixes.cursor(), fixSchema, 10 * SECOND));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        export.writeCSV(out);
+        String[] lines = out.toString(StandardCharsets.UTF_8.name()).split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[0].contains("latitude,longitude"));
+        assertTrue(lines[2].contains("50.0,-123.0"));
+        // The last row is after the last fix, so its position is left empty
+        assertTrue(lines[3].contains(",,"));
+    }
+}
@@ -0,0 +1,85 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class ParallelZipOutputStreamTest {
+    private static final int CHUNK = ParallelDeflateOutputStream.CHUNK_BYTES;
+
+    @Test
+    public void unzipsToTheSameBytesAtChunkBoundaries() throws IOException {
+        int[] sizes = {0, 1, CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK, 20 * CHUNK + 12345};
+        for (int size : sizes) {
+            byte[] data = csvLikeData(size);
+            ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+            try (ParallelZipOutputStream zip = new ParallelZipOutputStream(zipped, "data.csv", 3, Deflater.DEFAULT_COMPRESSION)) {
+                // Uneven writes, so chunks fill up part way through a call
+                for (int off = 0; off < size; ) {
+                    int n = Math.min(size - off, 1 + (off * 7) % 70_000);
+                    zip.write(data, off, n);
+                    off += n;
+                }
+            }
+
+            // ZipInputStream checks the CRC and sizes from the data descriptor
+            try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zipped.toByteArray()))) {
+                ZipEntry entry = in.getNextEntry();
+                assertEquals("data.csv", entry.getName());
+                assertArrayEquals("size " + size, data, readAll(in));
+                assertNull(in.getNextEntry());
+            }
+        }
+    }
+
+    @Test
+    public void centralDirectoryIsReadable() throws IOException {
+        byte[] data = csvLikeData(5 * CHUNK + 99);
+        File file = File.createTempFile("parallel-zip", ".zip");
+        try {
+            try (ParallelZipOutputStream zip = new ParallelZipOutputStream(new FileOutputStream(file), "export.csv", 4, 6)) {
+                zip.write(data);
+            }
+            try (ZipFile zipFile = new ZipFile(file)) {
+                ZipEntry entry = zipFile.getEntry("export.csv");
+                assertEquals(data.length, entry.getSize());
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(data, readAll(in));
+                }
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] csvLikeData(int size) {
+        Random random = new Random(size);
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < size) {
+            sb.append(1_700_000_000_000L + sb.length()).append(',').append(random.nextFloat() * 9.81f).append(",,\n");
+        }
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) bytes[i] = (byte) sb.charAt(i);
+        return bytes;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+}
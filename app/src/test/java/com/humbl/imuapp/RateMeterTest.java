@@ -0,0 +1,37 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RateMeterTest {
+    @Test
+    public void measuresRateAndJitterFromTimestamps() {
+        RateMeter meter = new RateMeter();
+        Random random = new Random(5);
+        long time = 123_456_789L;
+        // 400 Hz with +-50 us of uniform jitter, one 10 ms gap
+        for (int i = 0; i < 4000; i++) {
+            meter.add(time);
+            time += 2_500_000 + random.nextInt(100_001) - 50_000 + (i == 2000 ? 10_000_000 : 0);
+        }
+        assertEquals(4000, meter.getCount());
+        assertEquals(2_500 + 10_000 / 3999.0, meter.getMeanIntervalUs(), 2);
+        assertEquals(1e6 / meter.getMeanIntervalUs(), meter.getAchievedHz(), 0.01);
+        assertEquals(12_500, meter.getMaxIntervalUs(), 50);
+        // Uniform jitter of +-50 us has a 28.9 us deviation, the gap adds to it
+        assertTrue(meter.getJitterUs() > 28 && meter.getJitterUs() < 200);
+    }
+
+    @Test
+    public void steadyTimestampsHaveNoJitter() {
+        RateMeter meter = new RateMeter();
+        assertEquals(0, meter.getAchievedHz(), 0);
+        for (int i = 0; i < 100; i++) meter.add(i * 20_000_000L);
+        assertEquals(50, meter.getAchievedHz(), 1e-9);
+        assertEquals(0, meter.getJitterUs(), 1e-9);
+        assertEquals(20_000, meter.getMaxIntervalUs(), 0);
+    }
+}
@@ -0,0 +1,120 @@
+package com.humbl.imuapp;
+
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.os.SystemClock;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowSensor;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class RecordingCommandsTest {
+    private ServiceController<SynchronizedData_BackgroundService> controller;
+    private SynchronizedData_BackgroundService service;
+    private RecordingCommands commands;
+
+    @Before
+    public void startRecording() {
+        Application app = RuntimeEnvironment.getApplication();
+        SensorManager sensorManager = (SensorManager) app.getSystemService(Context.SENSOR_SERVICE);
+        shadowOf(sensorManager).addSensor(ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER));
+        shadowOf(sensorManager).addSensor(ShadowSensor.newInstance(Sensor.TYPE_GYROSCOPE));
+
+        Intent start = new Intent(app, SynchronizedData_BackgroundService.class)
+                .putExtra("GPS_ENABLED", false)
+                .putExtra("RECORDING_NAME", "commands");
+        controller = Robolectric.buildService(SynchronizedData_BackgroundService.class, start);
+        service = controller.create().startCommand(0, 1).get();
+        commands = ((SynchronizedData_BackgroundService.LocalBinder) service.onBind(start)).getCommands();
+    }
+
+    @After
+    public void tearDown() {
+        controller.destroy();
+        for (RecordingSession session : RecordingSession.list(SynchronizedData_BackgroundService.getRecordingsRoot(
+                RuntimeEnvironment.getApplication()))) {
+            session.delete();
+        }
+    }
+
+    @Test
+    public void eventsRoundTripThroughTheCommandThread() throws InterruptedException {
+        int events = 200;
+        long[] eventTimes = new long[events];
+        long[] roundTrips = new long[events];
+        for (int i = 0; i < events; i++) {
+            int event = i;
+            CountDownLatch recorded = new CountDownLatch(1);
+            long sent = System.nanoTime();
+            commands.recordEvent(SystemClock.elapsedRealtimeNanos(), time -> {
+                eventTimes[event] = time;
+                recorded.countDown();
+            });
+            assertTrue(recorded.await(2, TimeUnit.SECONDS));
+            roundTrips[i] = System.nanoTime() - sent;
+        }
+
+        for (int i = 0; i < events; i++) {
+            assertTrue(eventTimes[i] >= 0);
+            if (i > 0) assertTrue(eventTimes[i] >= eventTimes[i - 1]);
+        }
+        assertTrue(service.getLastEventLatencyNanos() >= 0);
+        Arrays.sort(roundTrips);
+        System.out.printf("Event round trip: median %.1f us, 99th percentile %.1f us%n",
+                roundTrips[events / 2] / 1e3, roundTrips[events * 99 / 100] / 1e3);
+    }
+
+    @Test
+    public void commandsFromManyThreadsRunInOrderWithStop() throws InterruptedException {
+        // Events race the stop from other threads; each either lands on the recording or is
+        // queued after the stop, where the collector still has the recording's clock
+        Thread[] pressers = new Thread[4];
+        CountDownLatch recorded = new CountDownLatch(pressers.length * 50);
+        for (int t = 0; t < pressers.length; t++) {
+            pressers[t] = new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    commands.recordEvent(SystemClock.elapsedRealtimeNanos(), time -> {
+                        if (time >= 0) recorded.countDown();
+                    });
+                }
+            });
+            pressers[t].start();
+        }
+        commands.stopRecording();
+        for (Thread presser : pressers) presser.join();
+        assertTrue(recorded.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void discardDeletesTheSessionAndEndsTheRecording() throws InterruptedException {
+        File root = SynchronizedData_BackgroundService.getRecordingsRoot(RuntimeEnvironment.getApplication());
+        assertEquals(1, RecordingSession.list(root).size());
+        commands.stopRecording();
+        commands.discardRecording(null);
+        CountDownLatch after = new CountDownLatch(1);
+        commands.recordEvent(SystemClock.elapsedRealtimeNanos(), time -> {
+            assertEquals(-1L, time.longValue()); // Nothing left to mark it on
+            after.countDown();
+        });
+        assertTrue(after.await(5, TimeUnit.SECONDS));
+        assertTrue(RecordingSession.list(root).isEmpty());
+    }
+}
@@ -0,0 +1,136 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RecordingFileTest {
+    private static final int ROWS = 5000;
+
+    private File dir;
+    private SampleSchema schema;
+    private DataExport source;
+
+    @Before
+    public void setUp() {
+        dir = new File(System.getProperty("java.io.tmpdir"), "recording-file-test-" + System.nanoTime());
+        dir.mkdirs();
+        schema = SampleSchema.synchronizedImu();
+        source = new DataExport(schema);
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < ROWS; i++) {
+            row.longs[0] = 1000 + i * 20L;
+            row.longs[1] = 1000 + i * 20L + 3;
+            row.floats[0] = i * 0.5f;
+            row.floats[5] = -i;
+            row.doubles[0] = 49.26 + i * 1e-6;
+            source.addSample(row);
+        }
+        // Nearest row 1200 is at 25000
+        source.getEvents().add(25010);
+        source.getEvents().describe(25010, "stumble, left foot");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void roundTripWithRandomAccess() throws IOException {
+        for (boolean compress : new boolean[]{false, true}) {
+            checkRandomAccess(export(compress));
+        }
+    }
+
+    private void checkRandomAccess(File file) throws IOException {
+        try (RecordingFileReader reader = RecordingFileReader.open(file)) {
+            assertEquals(ROWS, reader.getRowCount());
+            assertEquals(5, reader.getBlockCount());
+            assertEquals(schema.toSpec(), reader.getSchema().toSpec());
+            assertEquals("50", reader.getMetadata().get("accelRateHz"));
+            assertEquals(1, reader.getEvents().size());
+            assertEquals(1200, reader.getEvents().get(0).row);
+            assertEquals("25010", reader.getEvents().get(0).time);
+
+            SampleRow row = schema.newRow();
+            reader.readRow(4321, row);
+            assertEquals(1000 + 4321 * 20L, row.longs[0]);
+            assertEquals(4321 * 0.5f, row.floats[0], 0f);
+            assertEquals(-4321f, row.floats[5], 0f);
+            assertEquals(49.26 + 4321 * 1e-6, row.doubles[0], 0d);
+
+            assertEquals(0, reader.findRow(0));
+            assertEquals(3000, reader.findRow(1000 + 3000 * 20L));
+            assertEquals(3001, reader.findRow(1000 + 3000 * 20L + 1));
+            assertEquals(ROWS, reader.findRow(Long.MAX_VALUE));
+
+            int count = 0;
+            try (SampleCursor cursor = reader.cursor(1020)) {
+                while (cursor.next(row)) {
+                    assertEquals(1000 + (1020 + count) * 20L, row.longs[0]);
+                    count++;
+                }
+            }
+            assertEquals(ROWS - 1020, count);
+            assertTrue(reader.verifyChecksums());
+        }
+    }
+
+    @Test
+    public void csvFromBinaryMatchesDirectExport() throws IOException {
+        File file = export(true);
+        ByteArrayOutputStream direct = new ByteArrayOutputStream();
+        source.writeCSV(direct);
+        ByteArrayOutputStream fromFile = new ByteArrayOutputStream();
+        try (RecordingFileReader reader = RecordingFileReader.open(file)) {
+            new DataExport(reader).writeCSV(fromFile);
+        }
+        assertEquals(direct.toString("UTF-8"), fromFile.toString("UTF-8"));
+    }
+
+    @Test
+    public void detectsCorruptionAndForeignFiles() throws IOException {
+        File file = export(false);
+        try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+            raw.seek(file.length() / 2);
+            int b = raw.read();
+            raw.seek(file.length() / 2);
+            raw.write(b ^ 0xFF);
+        }
+        try (RecordingFileReader reader = RecordingFileReader.open(file)) {
+            assertFalse(reader.verifyChecksums());
+        }
+
+        File csv = new File(dir, "not-binary.csv");
+        try (RandomAccessFile raw = new RandomAccessFile(csv, "rw")) {
+            raw.write("timeStampAcc,accX,accY,accZ\n1,2,3,4\n1,2,3,4\n1,2,3,4\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        try {
+            RecordingFileReader.open(csv).close();
+            fail("Opened a CSV file as a recording");
+        } catch (IOException expected) {
+        }
+    }
+
+    private File export(boolean compress) {
+        Map<String, String> metadata = new LinkedHashMap<>();
+        metadata.put("name", "walk");
+        metadata.put("accelRateHz", "50");
+        File file = new File(dir, (compress ? "walk-compressed" : "walk") + RecordingFileWriter.EXTENSION);
+        assertTrue(source.exportAsBinary(file, metadata, compress));
+        return file;
+    }
+}
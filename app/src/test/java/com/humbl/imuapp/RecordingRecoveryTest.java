@@ -0,0 +1,218 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class RecordingRecoveryTest {
+    private File root;
+    private SampleSchema schema;
+
+    @Before
+    public void setUp() {
+        root = new File(System.getProperty("java.io.tmpdir"), "recovery-test-" + System.nanoTime());
+        schema = SampleSchema.synchronizedImu();
+    }
+
+    @After
+    public void tearDown() {
+        for (RecordingSession session : RecordingSession.list(root)) session.delete();
+        root.delete();
+    }
+
+    @Test
+    public void samplingSettingsSurviveReload() throws IOException {
+        List<SensorChannel> channels = Arrays.asList(
+                SensorChannel.ACCELEROMETER, SensorChannel.GYROSCOPE, SensorChannel.PRESSURE);
+        RecordingSession session = RecordingSession.create(root, "run", 4000L, SensorChannel.schemaFor(channels),
+                channels, false);
+        Map<SensorChannel, Integer> rates = new LinkedHashMap<>();
+        rates.put(SensorChannel.ACCELEROMETER, 2500);
+        rates.put(SensorChannel.GYROSCOPE, android.hardware.SensorManager.SENSOR_DELAY_FASTEST);
+        session.setSamplingRates(rates);
+        assertEquals(0, session.getGridRateHz()); // Following the sensors unless chosen
+        session.setResampling(200, SensorSynchronizer.CUBIC);
+        Map<String, String> stats = new LinkedHashMap<>();
+        stats.put("accelAchievedHz", "398.70");
+        stats.put("accelJitterUs", "41.2");
+        session.putMetadata(stats);
+
+        RecordingSession loaded = RecordingSession.load(session.getDirectory());
+        assertEquals(channels, loaded.getChannels());
+        assertEquals(2500, loaded.getSamplingRate(SensorChannel.ACCELEROMETER));
+        assertEquals(android.hardware.SensorManager.SENSOR_DELAY_FASTEST, loaded.getSamplingRate(SensorChannel.GYROSCOPE));
+        // Channels without a chosen rate run at their default
+        assertEquals(SensorChannel.PRESSURE.getDefaultRate(), loaded.getSamplingRate(SensorChannel.PRESSURE));
+        assertEquals(200, loaded.getGridRateHz());
+        assertEquals(SensorSynchronizer.CUBIC, loaded.getInterpolation());
+        assertEquals(stats, loaded.getMetadata());
+    }
+
+    @Test
+    public void truncatesTornTailAndResumes() throws IOException {
+        RecordingSession session = RecordingSession.create(root, "walk", 1000L, schema, true, true, false);
+        RecordingWriter writer = RecordingWriter.open(session.getDirectory(), schema, smallSegments());
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < 5000; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        writer.flush();
+
+        // Simulate the process dying: copy what reached disk, plus half a block that never finished
+        File crashed = copySession(session.getDirectory(), new File(root, "2000"));
+        File[] segments = RecordingWriter.listSegments(crashed);
+        File tail = segments[segments.length - 1];
+        long tailLength = tail.length();
+        try (FileOutputStream out = new FileOutputStream(tail, true)) {
+            byte[] torn = new byte[SampleBlock.HEADER_BYTES + 100];
+            torn[0] = 'I';
+            torn[1] = 'M';
+            out.write(torn);
+        }
+        writer.close();
+
+        RecordingSession crashedSession = RecordingSession.load(crashed);
+        assertNotNull(crashedSession);
+        assertEquals(RecordingSession.STATE_RECORDING, crashedSession.getState());
+
+        RecordingRecovery.Result result = RecordingRecovery.recover(crashedSession);
+        assertEquals(5000, result.rowCount);
+        assertEquals(SampleBlock.HEADER_BYTES + 100, result.truncatedBytes);
+        assertEquals(tailLength, tail.length());
+        // Sealed segments are trusted, only the tail is read back
+        assertTrue(result.scannedBytes <= tailLength);
+
+        RecordingWriter resumed = RecordingWriter.open(crashed, crashedSession.getSchema(), smallSegments(), result.rowCount);
+        for (int i = 5000; i < 6000; i++) {
+            fillRow(row, i);
+            resumed.append(row);
+        }
+        resumed.close();
+        assertEquals(6000, resumed.getRowCount());
+
+        SampleRow read = schema.newRow();
+        int count = 0;
+        try (SegmentReader reader = new SegmentReader(crashed, schema)) {
+            while (reader.next(read)) {
+                assertEquals(count, read.longs[0]);
+                count++;
+            }
+        }
+        assertEquals(6000, count);
+
+        // A second recovery finds everything sealed and has nothing to scan
+        RecordingRecovery.Result again = RecordingRecovery.recover(crashedSession);
+        assertEquals(6000, again.rowCount);
+        assertEquals(0, again.scannedBytes);
+    }
+
+    @Test
+    public void corruptBlockEndsTheTail() throws IOException {
+        RecordingSession session = RecordingSession.create(root, "fall", 3000L, schema, true, true, true);
+        RecordingWriter writer = RecordingWriter.open(session.getDirectory(), schema, smallSegments());
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < 300; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        writer.flush();
+        File crashed = copySession(session.getDirectory(), new File(root, "4000"));
+        writer.close();
+
+        // Flip a payload byte in the second block of the only segment
+        File segment = RecordingWriter.listSegments(crashed)[0];
+        long secondBlock = RecordingWriter.SEGMENT_HEADER_BYTES + SampleBlock.HEADER_BYTES + 100L * schema.getRowBytes();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(secondBlock + SampleBlock.HEADER_BYTES + 5);
+            int b = file.read();
+            file.seek(secondBlock + SampleBlock.HEADER_BYTES + 5);
+            file.write(b ^ 0xFF);
+        }
+
+        RecordingRecovery.Result result = RecordingRecovery.recover(RecordingSession.load(crashed));
+        assertEquals(100, result.rowCount);
+        assertEquals(secondBlock, segment.length());
+    }
+
+    @Test
+    public void eventsSurviveTheKill() throws IOException {
+        RecordingSession session = RecordingSession.create(root, "trail", 5000L, schema, true, true, false);
+        RecordingWriter writer = RecordingWriter.open(session.getDirectory(), schema, smallSegments());
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < 500; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        writer.flush();
+        session.appendEvent(120);
+        session.appendEvent(340);
+        session.appendDescription(120, "slip\non ice");
+        session.appendEvent(120); // Pressed twice at the same time
+        File crashed = copySession(session.getDirectory(), new File(root, "6000"));
+        writer.close();
+        // Killed while logging a description
+        try (FileOutputStream out = new FileOutputStream(new File(crashed, "events.log"), true)) {
+            out.write("describe\t340\tfel".getBytes(StandardCharsets.UTF_8));
+        }
+
+        RecordingSession crashedSession = RecordingSession.load(crashed);
+        RecordingRecovery.Result result = RecordingRecovery.recover(crashedSession);
+        DataExport recovered = new DataExport(RecordingWriter.open(crashed, schema, smallSegments(), result.rowCount));
+        crashedSession.loadEvents(recovered.getEvents());
+
+        EventTable events = recovered.getEvents();
+        assertEquals(3, events.size());
+        assertEquals(120, events.getTime(0));
+        assertEquals("slip on ice", events.getDescription(0));
+        assertEquals(120, events.getTime(1));
+        assertEquals(340, events.getTime(2));
+        assertEquals("", events.getDescription(2));
+        File eventsCsv = new File(crashed, "events.csv");
+        assertTrue(recovered.exportEventsCsv(eventsCsv));
+        assertEquals(Arrays.asList("event_time,row,event_description", "120,120,slip on ice", "120,120,", "340,340,"),
+                Files.readAllLines(eventsCsv.toPath(), StandardCharsets.UTF_8));
+        recovered.close();
+    }
+
+    private static RecordingWriter.Config smallSegments() {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 100;
+        config.segmentBytes = 64 * 1024;
+        return config;
+    }
+
+    private static void fillRow(SampleRow row, int i) {
+        row.longs[0] = i;
+        row.longs[1] = i;
+        row.floats[0] = i * 0.25f;
+        row.doubles[0] = 49.0 + i * 1e-6;
+    }
+
+    private static File copySession(File from, File to) throws IOException {
+        to.mkdirs();
+        for (File file : from.listFiles()) {
+            try (FileInputStream in = new FileInputStream(file);
+                 FileOutputStream out = new FileOutputStream(new File(to, file.getName()))) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) out.write(buffer, 0, n);
+            }
+        }
+        return to;
+    }
+}
@@ -0,0 +1,196 @@
+package com.humbl.imuapp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RecordingWriterTest {
+    private File directory;
+    private SampleSchema schema;
+
+    @Before
+    public void setUp() {
+        directory = new File(System.getProperty("java.io.tmpdir"), "writer-test-" + System.nanoTime());
+        schema = SampleSchema.synchronizedImu();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void rowsRollOverIntoSealedSegmentsAndReadBackInOrder() throws IOException {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 100;
+        config.segmentBytes = 32 * 1024;
+        config.bufferBlocks = 2; // The appends outrun the writer thread, and wait for it
+        RecordingWriter writer = RecordingWriter.open(directory, schema, config);
+        int rows = 50_000;
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < rows; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        writer.close();
+        assertNull(writer.getFailure());
+        assertEquals(rows, writer.getRowCount());
+
+        // A segment holds whole blocks up to its size, then the next one starts
+        File[] segments = RecordingWriter.listSegments(directory);
+        int blockBytes = SampleBlock.HEADER_BYTES + config.blockRows * schema.getRowBytes();
+        int blocksPerSegment = (config.segmentBytes - RecordingWriter.SEGMENT_HEADER_BYTES) / blockBytes;
+        assertEquals((rows / config.blockRows + blocksPerSegment - 1) / blocksPerSegment, segments.length);
+        for (File segment : segments) assertTrue(segment.length() <= config.segmentBytes);
+
+        // Every segment was sealed with its row count once it was complete
+        List<String> sealed = Files.readAllLines(new File(directory, RecordingWriter.SEGMENT_INDEX_FILE).toPath(),
+                StandardCharsets.US_ASCII);
+        assertEquals(segments.length, sealed.size());
+        long sealedRows = 0;
+        for (int i = 0; i < sealed.size(); i++) {
+            String[] entry = sealed.get(i).split(" ");
+            assertEquals(segments[i].getName(), entry[0]);
+            sealedRows += Long.parseLong(entry[1]);
+        }
+        assertEquals(rows, sealedRows);
+
+        assertEquals(rows, readBack());
+    }
+
+    @Test
+    public void corruptBlockEndsOnlyItsSegment() throws IOException {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 100;
+        config.segmentBytes = 32 * 1024;
+        RecordingWriter writer = RecordingWriter.open(directory, schema, config);
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < 5000; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        writer.close();
+
+        // Flip a payload byte in the third block of the first segment
+        File first = RecordingWriter.listSegments(directory)[0];
+        int blockBytes = SampleBlock.HEADER_BYTES + config.blockRows * schema.getRowBytes();
+        long third = RecordingWriter.SEGMENT_HEADER_BYTES + 2L * blockBytes;
+        try (RandomAccessFile file = new RandomAccessFile(first, "rw")) {
+            file.seek(third + SampleBlock.HEADER_BYTES + 7);
+            int b = file.read();
+            file.seek(third + SampleBlock.HEADER_BYTES + 7);
+            file.write(b ^ 0xFF);
+        }
+
+        // The rest of the first segment is skipped, the later segments are read as written
+        int blocksPerSegment = (config.segmentBytes - RecordingWriter.SEGMENT_HEADER_BYTES) / blockBytes;
+        int lost = (blocksPerSegment - 2) * config.blockRows;
+        SampleRow read = schema.newRow();
+        int count = 0;
+        try (SegmentReader reader = new SegmentReader(directory, schema)) {
+            while (reader.next(read)) {
+                int expected = count < 2 * config.blockRows ? count : count + lost;
+                assertEquals(expected, read.longs[0]);
+                count++;
+            }
+        }
+        assertEquals(5000 - lost, count);
+    }
+
+    @Test
+    public void partialBlocksReachTheSegmentAfterTheFlushInterval() throws Exception {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 1000; // Never filled in this test
+        config.flushIntervalMs = 200;
+        config.syncIntervalMs = 0; // fsync after every block
+        RecordingWriter writer = RecordingWriter.open(directory, schema, config);
+        SampleRow row = schema.newRow();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            fillRow(row, i);
+            writer.append(row);
+        }
+        assertEquals(0, readBack()); // Still in the write buffer
+
+        // No more rows come, as between two sensor batches; the writer thread takes the block
+        long deadline = System.currentTimeMillis() + 5000;
+        int count;
+        while ((count = readBack()) < 10 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(10, count);
+        long tookMs = (System.nanoTime() - start) / 1_000_000;
+        assertTrue("Took " + tookMs + " ms", tookMs >= config.flushIntervalMs && tookMs < 3 * config.flushIntervalMs);
+        // The open segment is only sealed when the writer closes it
+        assertFalse(new File(directory, RecordingWriter.SEGMENT_INDEX_FILE).exists());
+        assertNull(writer.getFailure());
+
+        // Appending goes on in a new block
+        fillRow(row, 10);
+        writer.append(row);
+        writer.close();
+        assertEquals(11, readBack());
+        assertTrue(new File(directory, RecordingWriter.SEGMENT_INDEX_FILE).exists());
+    }
+
+    @Test
+    public void failedWriteIsReportedAndTheExportRefused() throws IOException {
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.blockRows = 100;
+        config.segmentBytes = 32 * 1024;
+        RecordingWriter writer = RecordingWriter.open(directory, schema, config);
+        // The second segment cannot be created, as when the storage is full
+        File blocked = RecordingWriter.segmentFile(directory, 1);
+        assertTrue(blocked.mkdir());
+        DataExport export = new DataExport(writer);
+        SampleRow row = schema.newRow();
+        for (int i = 0; i < 5000; i++) {
+            fillRow(row, i);
+            export.addSample(row);
+        }
+        export.flush();
+        assertNotNull(export.getWriteFailure());
+
+        File binaryFile = new File(directory, "walk" + RecordingFileWriter.EXTENSION);
+        assertFalse(export.exportAsBinary(binaryFile, new HashMap<>(), true));
+        assertFalse(binaryFile.exists());
+        writer.close();
+
+        // The rows that did reach the first segment are still there to recover
+        assertTrue(blocked.delete());
+        int blockBytes = SampleBlock.HEADER_BYTES + config.blockRows * schema.getRowBytes();
+        int blocksPerSegment = (config.segmentBytes - RecordingWriter.SEGMENT_HEADER_BYTES) / blockBytes;
+        assertEquals(blocksPerSegment * config.blockRows, readBack());
+    }
+
+    // Rows readable from the segments so far, checking they come in the order written
+    private int readBack() throws IOException {
+        SampleRow read = schema.newRow();
+        int count = 0;
+        try (SegmentReader reader = new SegmentReader(directory, schema)) {
+            while (reader.next(read)) {
+                assertEquals(count, read.longs[0]);
+                assertEquals(count * 0.25f, read.floats[0], 0f);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void fillRow(SampleRow row, int i) {
+        row.longs[0] = i;
+        row.longs[1] = i;
+        row.floats[0] = i * 0.25f;
+        row.doubles[0] = 49.0 + i * 1e-6;
+    }
+}
@@ -0,0 +1,108 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Two sensor channels at 1 kHz each, offered from one thread and drained by another, the way
+ * SynchronizedDataCollector uses the buffer. Runs for a few seconds by default; pass
+ * -Dimu.stressSeconds=300 to Gradle for a run of several minutes.
+ */
+public class SampleRingBufferStressTest {
+    private static final int CHANNELS = 2;
+    private static final int WIDTH = 3;
+
+    @Test
+    public void everyReadingArrivesInOrderWithoutProducerAllocation() throws InterruptedException {
+        int seconds = Integer.getInteger("imu.stressSeconds", 5);
+        SampleRingBuffer ring = new SampleRingBuffer(1024, WIDTH, CHANNELS);
+        AtomicReference<String> error = new AtomicReference<>();
+        long[] nextTime = new long[CHANNELS];
+        long[] received = new long[CHANNELS];
+        SampleRingBuffer.Consumer check = (channel, time, values, offset) -> {
+            if (time != nextTime[channel] || values[offset] != valueOf(channel, time)
+                    || values[offset + WIDTH - 1] != -valueOf(channel, time)) {
+                error.compareAndSet(null, "channel " + channel + " expected time " + nextTime[channel] + ", got " + time);
+            }
+            nextTime[channel] = time + 1;
+            received[channel]++;
+        };
+
+        Thread consumer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (ring.drain(check, 256) == 0) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(2));
+            }
+            while (ring.drain(check, 256) > 0) {}
+        }, "Drain");
+        consumer.start();
+
+        // Producer: one reading per channel per millisecond, like two sensors at 1 kHz
+        long total = seconds * 1000L;
+        long warmup = Math.min(1000, total / 2);
+        float[] reading = new float[WIDTH];
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        long start = System.nanoTime();
+        for (long time = 0; time < total; time++) {
+            // Only the offers are measured: parking and JIT deoptimization may allocate on their own
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int channel = 0; channel < CHANNELS; channel++) {
+                reading[0] = valueOf(channel, time);
+                reading[1] = time;
+                reading[WIDTH - 1] = -valueOf(channel, time);
+                if (!ring.offer(channel, time, reading)) fail("dropped reading at " + time);
+            }
+            if (time >= warmup) allocated += threads.getCurrentThreadAllocatedBytes() - before;
+            long due = start + TimeUnit.MILLISECONDS.toNanos(time + 1);
+            long wait = due - System.nanoTime();
+            if (wait > 0) LockSupport.parkNanos(wait);
+        }
+
+        consumer.interrupt();
+        consumer.join();
+        assertNull(error.get());
+        for (int channel = 0; channel < CHANNELS; channel++) {
+            assertEquals(total, received[channel]);
+            assertEquals(0, ring.getDroppedCount(channel));
+        }
+        assertEquals(0, ring.size());
+        assertEquals(0, allocated);
+        System.out.printf("%d s at 1 kHz x %d channels: %d readings, at most %d of %d slots used%n",
+                seconds, CHANNELS, ring.getOfferedCount(), ring.getHighWaterMark(), ring.getCapacity());
+    }
+
+    @Test
+    public void fullBufferDropsAndCountsReadings() {
+        SampleRingBuffer ring = new SampleRingBuffer(100, WIDTH, CHANNELS);
+        assertEquals(128, ring.getCapacity());
+        float[] reading = new float[WIDTH];
+        // Nobody drains: the first 128 fit, the rest are dropped
+        for (int i = 0; i < 200; i++) {
+            ring.offer(i % CHANNELS, i, reading);
+        }
+        assertEquals(128, ring.getOfferedCount());
+        assertEquals(72, ring.getDroppedCount());
+        assertEquals(36, ring.getDroppedCount(0));
+        assertEquals(36, ring.getDroppedCount(1));
+        assertEquals(128, ring.getHighWaterMark());
+
+        // Once drained there is room again, and the oldest readings come out first
+        long[] first = {-1};
+        assertEquals(10, ring.drain((channel, time, values, offset) -> {
+            if (first[0] < 0) first[0] = time;
+        }, 10));
+        assertEquals(0, first[0]);
+        assertTrue(ring.offer(0, 200, reading));
+        assertEquals(119, ring.size());
+    }
+
+    private static float valueOf(int channel, long time) {
+        return channel * 1000 + time % 1000 + 0.5f;
+    }
+}
@@ -0,0 +1,119 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * Heap footprint of one hour of synchronized samples, comparing the old ArrayList<String[]>
+ * rows against the primitive SampleStore columns.
+ */
+public class SampleStoreFootprintTest {
+    // SENSOR_DELAY_GAME delivers roughly 50 synchronized rows per second
+    private static final int ROWS_PER_HOUR = 50 * 60 * 60;
+
+    @Test
+    public void storeRoundTripsRows() {
+        SampleSchema schema = SampleSchema.synchronizedImu();
+        SampleStore store = new SampleStore(schema);
+        SampleRow row = schema.newRow();
+        int rows = SampleStore.CHUNK_ROWS * 2 + 17;
+        for (int i = 0; i < rows; i++) {
+            fillRow(row, i);
+            store.append(row);
+        }
+        assertEquals(rows, store.size());
+
+        SampleRow out = schema.newRow();
+        SampleRow expected = schema.newRow();
+        for (int i = 0; i < rows; i += 997) {
+            store.get(i, out);
+            fillRow(expected, i);
+            assertArrayEquals(expected.longs, out.longs);
+            assertArrayEquals(expected.floats, out.floats, 0f);
+            assertArrayEquals(expected.doubles, out.doubles, 0d);
+        }
+    }
+
+    @Test
+    public void oneHourRecordingFootprint() {
+        SampleSchema schema = SampleSchema.synchronizedImu();
+        SampleRow row = schema.newRow();
+
+        long before = usedHeap();
+        ArrayList<String[]> legacy = new ArrayList<>();
+        for (int i = 0; i < ROWS_PER_HOUR; i++) {
+            fillRow(row, i);
+            legacy.add(legacyRow(row));
+        }
+        long legacyBytes = usedHeap() - before;
+        assertEquals(ROWS_PER_HOUR, legacy.size());
+        legacy = null;
+
+        before = usedHeap();
+        SampleStore store = new SampleStore(schema);
+        for (int i = 0; i < ROWS_PER_HOUR; i++) {
+            fillRow(row, i);
+            store.append(row);
+        }
+        long storeBytes = usedHeap() - before;
+        assertEquals(ROWS_PER_HOUR, store.size());
+
+        double legacyPerSample = (double) legacyBytes / ROWS_PER_HOUR;
+        double storePerSample = (double) storeBytes / ROWS_PER_HOUR;
+        System.out.printf("One hour (%d rows): String[] rows %.1f bytes/sample (%.1f MB), "
+                        + "SampleStore %.1f bytes/sample (%.1f MB, estimate %.1f MB)%n",
+                ROWS_PER_HOUR, legacyPerSample, legacyBytes / 1e6,
+                storePerSample, storeBytes / 1e6, store.estimatedHeapBytes() / 1e6);
+
+        assertTrue("Store should be at least 5x smaller", storePerSample * 5 < legacyPerSample);
+        assertTrue("Store should stay close to the raw row size",
+                storePerSample < schema.getRowBytes() * 1.25);
+    }
+
+    // Same values and conversions as the old SynchronizedDataCollector.addCombinedRow
+    private static String[] legacyRow(SampleRow row) {
+        String[] r = new String[13];
+        r[0] = String.valueOf(row.longs[0]);
+        r[1] = String.valueOf(row.floats[0]);
+        r[2] = String.valueOf(row.floats[1]);
+        r[3] = String.valueOf(row.floats[2]);
+        r[4] = String.valueOf(row.longs[1]);
+        r[5] = String.valueOf(row.floats[3]);
+        r[6] = String.valueOf(row.floats[4]);
+        r[7] = String.valueOf(row.floats[5]);
+        r[8] = String.valueOf(row.longs[2]);
+        r[9] = String.valueOf(row.doubles[0]);
+        r[10] = String.valueOf(row.doubles[1]);
+        r[11] = "";
+        r[12] = "";
+        return r;
+    }
+
+    private static void fillRow(SampleRow row, int i) {
+        long t = i * 20L;
+        row.longs[0] = t;
+        row.longs[1] = t + 3;
+        row.longs[2] = (t / 1000) * 1000;
+        for (int c = 0; c < row.floats.length; c++) {
+            row.floats[c] = (float) Math.sin(i * 0.01 + c) * 9.81f;
+        }
+        row.doubles[0] = 49.2606 + i * 1e-7;
+        row.doubles[1] = -123.2460 - i * 1e-7;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
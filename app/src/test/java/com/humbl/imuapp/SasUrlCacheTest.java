@@ -0,0 +1,149 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SasUrlCacheTest {
+    private static final long MINUTE = 60_000;
+
+    // Stands in for the token function: a round trip, then a URL valid for lifetimeMs
+    private static class TokenFunction implements SasUrlCache.TokenSource {
+        final AtomicInteger fetches = new AtomicInteger();
+        volatile long roundTripMs;
+        volatile long lifetimeMs = 60 * MINUTE;
+        volatile String scope = "b";
+
+        @Override
+        public String fetch(String container, String blobName) throws IOException {
+            fetches.incrementAndGet();
+            try {
+                Thread.sleep(roundTripMs);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return "https://account.blob.core.windows.net/" + container + "/" + blobName
+                    + "?sv=2022-11-02&se=" + iso(System.currentTimeMillis() + lifetimeMs).replace(":", "%3A")
+                    + "&sr=" + scope + "&sp=cw&sig=" + fetches.get();
+        }
+    }
+
+    private final TokenFunction function = new TokenFunction();
+    private final SasUrlCache cache = new SasUrlCache(function, new SasUrlCache.Config(), IoScheduler.shared());
+
+    @Test
+    public void expiryIsReadFromTheQuery() {
+        long expected = 1893553445000L; // 2030-01-02T03:04:05Z
+        assertEquals(expected, SasUrlCache.expiryOf("https://a/c/b?sv=1&se=2030-01-02T03%3A04%3A05Z&sig=x"));
+        assertEquals(expected, SasUrlCache.expiryOf("https://a/c/b?se=2030-01-02T03:04:05.1234567Z"));
+        assertEquals(expected - 5000, SasUrlCache.expiryOf("https://a/c/b?se=2030-01-02T03%3A04Z"));
+        assertEquals(1893542400000L, SasUrlCache.expiryOf("https://a/c/b?se=2030-01-02"));
+        assertEquals(-1, SasUrlCache.expiryOf("https://a/c/b?sv=1&sig=x"));
+    }
+
+    @Test
+    public void tokenIsReusedUntilCloseToExpiry() throws IOException {
+        String first = cache.get("appdata", "walk.zip");
+        assertEquals(first, cache.get("appdata", "walk.zip"));
+        assertEquals(1, function.fetches.get());
+        cache.get("appdata", "run.zip"); // A blob token serves its own blob only
+        assertEquals(2, function.fetches.get());
+
+        function.lifetimeMs = 30_000; // Less than the minimum validity
+        cache.get("gpsdata", "pins.geojson");
+        cache.get("gpsdata", "pins.geojson");
+        assertEquals(4, function.fetches.get());
+    }
+
+    @Test
+    public void tokenNearExpiryIsRefreshedInTheBackground() throws Exception {
+        function.lifetimeMs = 3 * MINUTE; // Within the refresh margin
+        cache.get("appdata", "walk.zip");
+        function.roundTripMs = 200;
+        long start = System.nanoTime();
+        cache.get("appdata", "walk.zip");
+        assertTrue("Waited for the refresh", System.nanoTime() - start < 100_000_000);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (function.fetches.get() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(2, function.fetches.get());
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        function.roundTripMs = 100;
+        Set<String> urls = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(16);
+        for (int i = 0; i < 16; i++) {
+            new Thread(() -> {
+                try {
+                    urls.add(cache.get("appdata", "walk.zip"));
+                } catch (IOException e) {
+                    urls.add("failed");
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assertEquals(1, function.fetches.get());
+        assertEquals(1, urls.size());
+    }
+
+    @Test
+    public void containerTokenServesEveryBlob() throws IOException {
+        function.scope = "c";
+        cache.get("appdata", "walk.zip");
+        String other = cache.get("appdata", "clips/walk_event_1.imur");
+        assertEquals(1, function.fetches.get());
+        assertTrue(other, other.startsWith("https://account.blob.core.windows.net/appdata/clips/walk_event_1.imur?sv="));
+        assertTrue(other.endsWith("&sig=1"));
+
+        cache.invalidate("appdata", "walk.zip");
+        cache.get("appdata", "walk.zip");
+        assertEquals(2, function.fetches.get());
+    }
+
+    @Test
+    public void pressToUploadStartLatency() throws Exception {
+        function.roundTripMs = 80;
+        int events = 10;
+        long[] before = new long[events];
+        long[] after = new long[events];
+        for (int i = 0; i < events; i++) {
+            // Before: the token is fetched when the upload is about to start
+            long pressed = System.nanoTime();
+            cache.get("appdata", "before_event_" + i + ".imur");
+            before[i] = System.nanoTime() - pressed;
+
+            // After: fetched on the press, while the clip's after-window passes
+            pressed = System.nanoTime();
+            cache.prefetch("appdata", "after_event_" + i + ".imur");
+            Thread.sleep(120);
+            long uploadStart = System.nanoTime();
+            cache.get("appdata", "after_event_" + i + ".imur");
+            after[i] = System.nanoTime() - uploadStart;
+        }
+        Arrays.sort(before);
+        Arrays.sort(after);
+        System.out.printf("Token wait before an upload starts: %.1f ms uncached, %.2f ms prefetched (medians)%n",
+                before[events / 2] / 1e6, after[events / 2] / 1e6);
+        assertTrue(after[events / 2] * 10 < before[events / 2]);
+        assertEquals(2 * events, function.fetches.get());
+    }
+
+    private static String iso(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+}
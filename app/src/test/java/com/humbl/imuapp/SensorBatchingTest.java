@@ -0,0 +1,214 @@
+package com.humbl.imuapp;
+
+import android.app.Application;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = SensorBatchingTest.BatchingSensorHub.class)
+public class SensorBatchingTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    // Stands in for the sensor hub: takes readings at the registered rates on a simulated clock,
+    // holds them in its FIFO for up to the report latency, then delivers all of them in one go.
+    // Every delivery is one wakeup of the app
+    @Implements(SensorManager.class)
+    public static class BatchingSensorHub extends ShadowSensorManager {
+        private static class Registration {
+            final SensorEventListener listener;
+            final Sensor sensor;
+            final long periodNanos;
+            final long latencyNanos;
+            final Handler handler;
+            final SensorEvent event;
+            long nextNanos;
+
+            Registration(SensorEventListener listener, Sensor sensor, long periodNanos, long latencyNanos,
+                         Handler handler, long nextNanos) {
+                this.listener = listener;
+                this.sensor = sensor;
+                this.periodNanos = periodNanos;
+                this.latencyNanos = latencyNanos;
+                this.handler = handler;
+                this.nextNanos = nextNanos;
+                this.event = ShadowSensorManager.createSensorEvent(3, sensor.getType());
+                this.event.sensor = sensor;
+            }
+        }
+
+        private final List<Registration> registrations = new ArrayList<>();
+        private final List<Registration> fifo = new ArrayList<>(); // Which sensor took each held reading
+        private final List<Long> fifoTimes = new ArrayList<>();
+        private long now = SECOND; // Simulated SensorEvent.timestamp clock
+        int deliveries;
+
+        @Implementation
+        protected boolean registerListener(SensorEventListener listener, Sensor sensor, int rate, Handler handler) {
+            return registerListener(listener, sensor, rate, 0, handler);
+        }
+
+        @Implementation
+        protected boolean registerListener(SensorEventListener listener, Sensor sensor, int rate,
+                                           int maxReportLatencyUs, Handler handler) {
+            long periodNanos = 1000L * SynchronizedDataCollector.toPeriodUs(rate);
+            registrations.add(new Registration(listener, sensor, periodNanos, 1000L * maxReportLatencyUs, handler, now));
+            return true;
+        }
+
+        @Implementation
+        protected void unregisterListener(SensorEventListener listener) {
+            registrations.removeIf(r -> r.listener == listener);
+        }
+
+        @Implementation
+        protected boolean flush(SensorEventListener listener) {
+            deliver();
+            for (Registration r : registrations) {
+                if (r.listener == listener && listener instanceof SensorEventListener2) {
+                    r.handler.post(() -> ((SensorEventListener2) listener).onFlushCompleted(r.sensor));
+                }
+            }
+            return true;
+        }
+
+        // Run the simulated clock forward, taking readings and delivering batches as they fall due
+        void advance(long nanos) {
+            long end = now + nanos;
+            while (true) {
+                Registration next = null;
+                for (Registration r : registrations) {
+                    if (next == null || r.nextNanos < next.nextNanos) next = r;
+                }
+                if (next == null || next.nextNanos > end) break;
+                now = next.nextNanos;
+                // The hub reports as soon as the oldest reading it holds reaches the shortest latency
+                if (!fifoTimes.isEmpty() && now - fifoTimes.get(0) >= latencyNanos()) deliver();
+                fifo.add(next);
+                fifoTimes.add(now);
+                next.nextNanos += next.periodNanos;
+                if (latencyNanos() == 0) deliver();
+            }
+            now = end;
+        }
+
+        private long latencyNanos() {
+            long latency = Long.MAX_VALUE;
+            for (Registration r : registrations) latency = Math.min(latency, r.latencyNanos);
+            return latency;
+        }
+
+        // Hand everything held to the listeners in a single callback and wait until it has run
+        private void deliver() {
+            if (fifo.isEmpty()) return;
+            List<Registration> sensors = new ArrayList<>(fifo);
+            List<Long> times = new ArrayList<>(fifoTimes);
+            fifo.clear();
+            fifoTimes.clear();
+            deliveries++;
+            Handler handler = sensors.get(0).handler;
+            handler.post(() -> {
+                for (int i = 0; i < sensors.size(); i++) {
+                    Registration r = sensors.get(i);
+                    long time = times.get(i);
+                    r.event.timestamp = time;
+                    for (int k = 0; k < 3; k++) r.event.values[k] = (float) Math.sin(time / 1e9 + k);
+                    r.listener.onSensorChanged(r.event);
+                }
+            });
+            CountDownLatch handled = new CountDownLatch(1);
+            handler.post(handled::countDown);
+            try {
+                handled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Application app;
+    private BatchingSensorHub hub;
+
+    @Before
+    public void addSensors() {
+        app = RuntimeEnvironment.getApplication();
+        SensorManager sensorManager = (SensorManager) app.getSystemService(Context.SENSOR_SERVICE);
+        hub = Shadow.extract(sensorManager);
+        hub.addSensor(ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER));
+        hub.addSensor(ShadowSensor.newInstance(Sensor.TYPE_GYROSCOPE));
+    }
+
+    // Both sensors at the default 50 Hz for the given simulated time
+    private SynchronizedDataCollector record(DataExport export, int batchLatencyUs, long nanos) {
+        SynchronizedDataCollector collector = new SynchronizedDataCollector(
+                app, export, true, true, false, System.currentTimeMillis());
+        collector.setBatching(batchLatencyUs);
+        collector.start();
+        hub.advance(nanos);
+        collector.stop();
+        return collector;
+    }
+
+    @Test
+    public void batchingCutsWakeupsWithoutLosingReadings() {
+        DataExport unbatched = new DataExport();
+        SynchronizedDataCollector perReading = record(unbatched, 0, 60 * SECOND);
+        int unbatchedDeliveries = hub.deliveries;
+        hub.deliveries = 0;
+        DataExport batched = new DataExport();
+        SynchronizedDataCollector perBatch = record(batched, SynchronizedDataCollector.DEFAULT_BATCH_LATENCY_US, 60 * SECOND);
+
+        double unbatchedPerMinute = perReading.getDeliveriesPerMinute();
+        double batchedPerMinute = perBatch.getDeliveriesPerMinute();
+        System.out.println(String.format(Locale.US, "Wakeups per minute: %.1f unbatched, %.1f batched every %d s",
+                unbatchedPerMinute, batchedPerMinute, SynchronizedDataCollector.DEFAULT_BATCH_LATENCY_US / 1_000_000));
+
+        // Every reading of both sensors wakes the app without batching
+        assertEquals(6000, unbatchedPerMinute, 10);
+        assertEquals(String.valueOf(unbatchedDeliveries), perReading.getSamplingStats().get("sensorDeliveries"));
+        // Once every 10 s with it, plus the flush when stopping
+        assertTrue("batched " + batchedPerMinute, batchedPerMinute < 8);
+        Map<String, String> stats = perBatch.getSamplingStats();
+        assertEquals(String.valueOf(hub.deliveries), stats.get("sensorDeliveries"));
+        assertEquals(String.valueOf(SynchronizedDataCollector.DEFAULT_BATCH_LATENCY_US), stats.get("batchLatencyUs"));
+
+        // Each delivery is drained in one pass and nothing is dropped on the way
+        assertTrue(unbatched.getSampleCount() >= 2990);
+        assertTrue(Math.abs(unbatched.getSampleCount() - batched.getSampleCount()) <= 1);
+        assertEquals(0, perBatch.getDroppedReadings());
+    }
+
+    @Test
+    public void stopFlushesReadingsStillInTheFifo() {
+        DataExport export = new DataExport();
+        // Shorter than the report latency, so nothing is delivered until stop() flushes
+        SynchronizedDataCollector collector = record(export, SynchronizedDataCollector.DEFAULT_BATCH_LATENCY_US, 5 * SECOND);
+        assertEquals(1, hub.deliveries);
+        assertTrue(export.getSampleCount() >= 245);
+        assertEquals("251", collector.getSamplingStats().get("accelReadings")); // 5 s at 50 Hz, both ends included
+    }
+}
@@ -0,0 +1,45 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SensorChannelTest {
+    @Test
+    public void imuChannelsKeepTheResampledColumns() {
+        List<SensorChannel> imu = Arrays.asList(SensorChannel.ACCELEROMETER, SensorChannel.GYROSCOPE);
+        // The resampled layout without its GPS columns, positions are stored as separate fixes
+        assertEquals("timeStampNs:L,accX:F,accY:F,accZ:F,gyroX:F,gyroY:F,gyroZ:F", SensorChannel.schemaFor(imu).toSpec());
+        assertTrue(SampleSchema.resampledImu().toSpec().startsWith(SensorChannel.schemaFor(imu).toSpec() + ","));
+    }
+
+    @Test
+    public void columnsFollowTheChannelsArity() {
+        SampleSchema schema = SensorChannel.schemaFor(Arrays.asList(SensorChannel.PRESSURE, SensorChannel.GAME_ROTATION));
+        // Grid time, one pressure value, then a quaternion
+        assertEquals(1 + 1 + 4, schema.getColumnCount());
+        assertEquals("pressure", schema.getName(1));
+        assertEquals("rotX", schema.getName(2));
+        assertEquals("rotW", schema.getName(5));
+        assertEquals(SampleSchema.TYPE_FLOAT, schema.getType(5));
+    }
+
+    @Test
+    public void namesRoundTrip() {
+        List<SensorChannel> channels = Arrays.asList(SensorChannel.MAGNETOMETER, SensorChannel.LINEAR_ACCELERATION);
+        assertEquals("mag,linearAccel", SensorChannel.join(channels));
+        assertEquals(channels, SensorChannel.parse("mag, linearAccel,unknown,mag"));
+        assertEquals(Collections.emptyList(), SensorChannel.parse(""));
+        assertTrue(SensorChannel.all().containsAll(channels));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void namesAreUnique() {
+        SensorChannel.register(new SensorChannel("accel", "Another accelerometer", android.hardware.Sensor.TYPE_ACCELEROMETER,
+                "acc2", new String[]{"X", "Y", "Z"}, "m/s²", android.hardware.SensorManager.SENSOR_DELAY_GAME, false));
+    }
+}
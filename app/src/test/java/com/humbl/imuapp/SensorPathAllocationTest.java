@@ -0,0 +1,157 @@
+package com.humbl.imuapp;
+
+import android.app.Application;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.os.Handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Accelerometer and gyroscope readings at 200 Hz delivered to a running SynchronizedDataCollector
+ * in batches, through the same reused SensorEvents the platform hands out. Once warmed up, neither
+ * its callback thread nor its drain thread (synchronizer, RecordingWriter and event clip window)
+ * may allocate per reading.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SensorPathAllocationTest {
+    private static final long PERIOD_NANOS = 5_000_000; // 200 Hz
+    private static final int BATCH = 8; // Readings per sensor delivery
+    // The one drain wakeup a delivery posts may take a Message from Robolectric's looper, where
+    // the platform recycles them; anything allocated per reading is well over this
+    private static final long WAKEUP_BYTES = 128;
+
+    private Application app;
+    private Sensor accelerometer;
+    private Sensor gyroscope;
+    private File directory;
+    private RecordingWriter writer;
+
+    @Before
+    public void setUp() {
+        app = RuntimeEnvironment.getApplication();
+        SensorManager sensorManager = (SensorManager) app.getSystemService(Context.SENSOR_SERVICE);
+        accelerometer = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+        gyroscope = ShadowSensor.newInstance(Sensor.TYPE_GYROSCOPE);
+        shadowOf(sensorManager).addSensor(accelerometer);
+        shadowOf(sensorManager).addSensor(gyroscope);
+        directory = new File(System.getProperty("java.io.tmpdir"), "allocation-test-" + System.nanoTime());
+    }
+
+    @After
+    public void tearDown() {
+        if (writer != null) writer.close();
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void steadyStateReadingsDoNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        List<SensorChannel> channels = Arrays.asList(SensorChannel.ACCELEROMETER, SensorChannel.GYROSCOPE);
+        SampleSchema schema = SensorChannel.schemaFor(channels);
+        RecordingWriter.Config config = new RecordingWriter.Config();
+        config.bufferBlocks = 64; // Room for every row, so append never waits for the disk
+        config.flushIntervalMs = 60_000;
+        writer = RecordingWriter.open(directory, schema, config);
+        DataExport export = new DataExport(writer);
+        EventClipRecorder clips = new EventClipRecorder(schema, 200, 10_000_000_000L, 10_000_000_000L, directory,
+                Collections.emptyMap(), null);
+
+        SynchronizedDataCollector collector = new SynchronizedDataCollector(
+                app, export, channels, false, System.currentTimeMillis());
+        collector.setSamplingRate(SensorChannel.ACCELEROMETER, 5000);
+        collector.setSamplingRate(SensorChannel.GYROSCOPE, 5000);
+        collector.setResampling(200, SensorSynchronizer.CUBIC);
+        collector.setEventClips(clips);
+        collector.start();
+        Handler callbacks = new Handler(collector.getCallbackLooper());
+        Thread drainThread = findThread("SensorDrain");
+
+        // The platform fills the same event object for every reading of a sensor
+        SensorEvent[] events = {
+                ShadowSensorManager.createSensorEvent(3, Sensor.TYPE_ACCELEROMETER),
+                ShadowSensorManager.createSensorEvent(3, Sensor.TYPE_GYROSCOPE)};
+        events[0].sensor = accelerometer;
+        events[1].sensor = gyroscope;
+
+        // Two minutes of readings, the gyroscope half a period behind; the first half warms up the JIT
+        int deliveries = 2 * 60 * 200 / BATCH;
+        long[] callbackAllocated = new long[1];
+        long drainBefore = 0;
+        long start = 10_000_000_000L;
+        for (int delivery = 0; delivery < deliveries; delivery++) {
+            boolean measured = delivery >= deliveries / 2;
+            if (delivery == deliveries / 2) {
+                awaitRows(export, delivery * BATCH - 10);
+                drainBefore = threads.getThreadAllocatedBytes(drainThread.getId());
+            }
+            long first = start + (long) delivery * BATCH * PERIOD_NANOS;
+            CountDownLatch delivered = new CountDownLatch(1);
+            callbacks.post(() -> {
+                long before = threads.getCurrentThreadAllocatedBytes();
+                for (int i = 0; i < BATCH; i++) {
+                    for (int channel = 0; channel < 2; channel++) {
+                        SensorEvent event = events[channel];
+                        event.timestamp = first + i * PERIOD_NANOS + channel * PERIOD_NANOS / 2;
+                        for (int k = 0; k < 3; k++) event.values[k] = (float) Math.sin(event.timestamp / 1e9 + k + channel);
+                        collector.onSensorChanged(event);
+                    }
+                }
+                if (measured) callbackAllocated[0] += threads.getCurrentThreadAllocatedBytes() - before;
+                delivered.countDown();
+            });
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        }
+        awaitRows(export, deliveries * BATCH - 10);
+        long drainAllocated = threads.getThreadAllocatedBytes(drainThread.getId()) - drainBefore;
+        collector.stop();
+        clips.finish();
+
+        assertEquals(0, collector.getDroppedReadings());
+        assertEquals(0, drainAllocated);
+        long measuredDeliveries = deliveries - deliveries / 2;
+        assertTrue("Callbacks allocated " + callbackAllocated[0] + " bytes in " + measuredDeliveries + " deliveries",
+                callbackAllocated[0] <= WAKEUP_BYTES * measuredDeliveries);
+    }
+
+    // The drain thread works on its own; wait until it has stored the rows so far
+    private static void awaitRows(DataExport export, int rows) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (export.getSampleCount() < rows && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertTrue(export.getSampleCount() >= rows);
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) return thread;
+        }
+        throw new AssertionError("No " + name + " thread");
+    }
+}
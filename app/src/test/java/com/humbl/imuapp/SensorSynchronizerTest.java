@@ -0,0 +1,149 @@
+package com.humbl.imuapp;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongConsumer;
+
+import static org.junit.Assert.*;
+
+public class SensorSynchronizerTest {
+    private static final long MS = 1_000_000L;
+
+    // Rows as they came out of the synchronizer
+    private static class Rows implements SensorSynchronizer.Output {
+        final List<Long> times = new ArrayList<>();
+        final List<float[]> values = new ArrayList<>();
+
+        @Override
+        public void onRow(long timeNanos, float[] row) {
+            times.add(timeNanos);
+            values.add(row.clone());
+        }
+
+        long last() {
+            return times.isEmpty() ? Long.MIN_VALUE : times.get(times.size() - 1);
+        }
+    }
+
+    private interface Signal {
+        double at(int channel, int axis, long timeNanos);
+    }
+
+    // Two sensors at different rates and phases with timestamp jitter, fed in time order;
+    // afterEach gets the time both channels have reached so far
+    private static void feed(SensorSynchronizer sync, Signal signal, long durationNanos, LongConsumer afterEach) {
+        long[] period = {5 * MS, 5_263_158};              // 200 Hz and 190 Hz
+        long[] next = {300_000, 2_100_000};               // Out of phase
+        Random random = new Random(3);
+        float[] reading = new float[3];
+        long[] latest = {Long.MIN_VALUE, Long.MIN_VALUE};
+        while (Math.min(next[0], next[1]) < durationNanos) {
+            int channel = next[0] <= next[1] ? 0 : 1;
+            long time = next[channel] + random.nextInt(200_000) - 100_000;
+            for (int k = 0; k < 3; k++) reading[k] = (float) signal.at(channel, k, time);
+            sync.add(channel, time, reading, 0);
+            latest[channel] = time;
+            next[channel] += period[channel];
+            if (afterEach != null) afterEach.accept(Math.min(latest[0], latest[1]));
+        }
+    }
+
+    @Test
+    public void linearSignalsAreExactOnTheGrid() {
+        Rows rows = new Rows();
+        SensorSynchronizer sync = new SensorSynchronizer(2, 3, 100, SensorSynchronizer.LINEAR, 200 * MS, rows);
+        Signal ramp = (channel, axis, t) -> (channel + 1) * (axis - 1) * t / 1e9 + axis;
+        feed(sync, ramp, 10_000 * MS, null);
+
+        assertTrue(rows.times.size() > 990);
+        for (int i = 0; i < rows.times.size(); i++) {
+            long t = rows.times.get(i);
+            assertEquals(0, t % (10 * MS));
+            if (i > 0) assertEquals(10 * MS, t - rows.times.get(i - 1));
+            for (int c = 0; c < 2; c++) {
+                for (int k = 0; k < 3; k++) {
+                    assertEquals(ramp.at(c, k, t), rows.values.get(i)[c * 3 + k], 1e-4);
+                }
+            }
+        }
+        for (int c = 0; c < 2; c++) {
+            // The nearest reading is never more than half a sensor period (plus jitter) away
+            assertTrue(sync.getMaxErrorNanos(c) <= 2_800_000);
+            assertTrue(sync.getMeanErrorNanos(c) > 0);
+            assertEquals(0, sync.getHeldRows(c));
+        }
+    }
+
+    @Test
+    public void cubicFollowsCurvesMoreClosely() {
+        Signal wave = (channel, axis, t) -> 9.81 * Math.sin(2 * Math.PI * (3 + axis) * t / 1e9 + channel);
+        double[] worst = new double[2];
+        int[] methods = {SensorSynchronizer.LINEAR, SensorSynchronizer.CUBIC};
+        for (int m = 0; m < 2; m++) {
+            Rows rows = new Rows();
+            SensorSynchronizer sync = new SensorSynchronizer(2, 3, 400, methods[m], 200 * MS, rows);
+            feed(sync, wave, 5_000 * MS, null);
+            assertTrue(rows.times.size() > 1990);
+            for (int i = 0; i < rows.times.size(); i++) {
+                for (int c = 0; c < 2; c++) {
+                    for (int k = 0; k < 3; k++) {
+                        double error = Math.abs(wave.at(c, k, rows.times.get(i)) - rows.values.get(i)[c * 3 + k]);
+                        worst[m] = Math.max(worst[m], error);
+                    }
+                }
+            }
+        }
+        assertTrue("linear " + worst[0] + ", cubic " + worst[1], worst[1] < worst[0] / 2);
+        assertTrue(worst[1] < 0.02);
+    }
+
+    @Test
+    public void rowsFollowTheSlowestChannelClosely() {
+        Rows rows = new Rows();
+        SensorSynchronizer sync = new SensorSynchronizer(2, 3, 200, SensorSynchronizer.CUBIC, 200 * MS, rows);
+        long[] worstLag = {0};
+        // After every reading, check how far the rows trail the data that is already in
+        feed(sync, (c, k, t) -> k, 2_000 * MS, reached -> {
+            if (!rows.times.isEmpty()) worstLag[0] = Math.max(worstLag[0], reached - rows.last());
+        });
+        // Two periods of the slower sensor for cubic, plus one grid period and jitter
+        assertTrue("lag " + worstLag[0], worstLag[0] < 2 * 5_263_158 + 5 * MS + 200_000);
+    }
+
+    @Test
+    public void stalledChannelIsHeldAfterMaxLatency() {
+        Rows rows = new Rows();
+        SensorSynchronizer sync = new SensorSynchronizer(2, 1, 100, SensorSynchronizer.LINEAR, 50 * MS, rows);
+        float[] value = new float[1];
+        for (long t = 0; t <= 1000 * MS; t += 5 * MS) {
+            value[0] = t / 1e9f;
+            sync.add(0, t, value, 0);
+            if (t <= 300 * MS) sync.add(1, t + MS, value, 0); // Channel 1 stops after 300 ms
+        }
+        // Rows keep coming, at most maxLatency behind the channel that is still delivering
+        assertTrue(rows.last() >= 1000 * MS - 50 * MS - 10 * MS);
+        assertTrue(sync.getHeldRows(1) > 60);
+        assertEquals(0, sync.getHeldRows(0));
+        assertTrue(sync.getMaxErrorNanos(1) >= 600 * MS);
+        // The held channel keeps its last value
+        assertEquals(0.3f, rows.values.get(rows.values.size() - 1)[1], 1e-6);
+    }
+
+    @Test
+    public void readingsThatGoBackInTimeAreRejected() {
+        Rows rows = new Rows();
+        SensorSynchronizer sync = new SensorSynchronizer(1, 1, 100, SensorSynchronizer.LINEAR, 50 * MS, rows);
+        float[] value = {1};
+        sync.add(0, 10 * MS, value, 0);
+        sync.add(0, 10 * MS, value, 0);
+        sync.add(0, 5 * MS, value, 0);
+        sync.add(0, 20 * MS, value, 0);
+        assertEquals(2, sync.getRejectedReadings(0));
+        assertEquals(2, rows.times.size());
+        assertEquals(10 * MS, (long) rows.times.get(0));
+        assertEquals(20 * MS, (long) rows.times.get(1));
+    }
+}
@@ -0,0 +1,158 @@
+package com.humbl.imuapp;
+
+import android.Manifest;
+import android.app.Application;
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowSensor;
+import org.robolectric.shadows.ShadowSensorManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.robolectric.Shadows.shadowOf;
+
+@RunWith(RobolectricTestRunner.class)
+public class SynchronizedDataCollectorTest {
+    private Application app;
+    private SensorManager sensorManager;
+    private Sensor accelerometer;
+
+    @Before
+    public void addSensors() {
+        app = RuntimeEnvironment.getApplication();
+        sensorManager = (SensorManager) app.getSystemService(Context.SENSOR_SERVICE);
+        accelerometer = ShadowSensor.newInstance(Sensor.TYPE_ACCELEROMETER);
+        shadowOf(sensorManager).addSensor(accelerometer);
+        shadowOf(sensorManager).addSensor(ShadowSensor.newInstance(Sensor.TYPE_GYROSCOPE));
+    }
+
+    // Notes where the sensor callbacks ran
+    private static class ThreadCheckingCollector extends SynchronizedDataCollector {
+        volatile Looper callbackLooper;
+        volatile int callbackPriority;
+
+        ThreadCheckingCollector(Context context, DataExport dataExport) {
+            super(context, dataExport, true, true, false, System.currentTimeMillis());
+        }
+
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            callbackLooper = Looper.myLooper();
+            callbackPriority = Process.getThreadPriority(Process.myTid());
+            super.onSensorChanged(event);
+        }
+    }
+
+    @Test
+    public void sensorCallbacksRunOnTheCollectorThread() {
+        DataExport export = new DataExport();
+        ThreadCheckingCollector collector = new ThreadCheckingCollector(app, export);
+        collector.start();
+        Looper looper = collector.getCallbackLooper();
+        assertNotNull(looper);
+        assertNotSame(Looper.getMainLooper(), looper);
+        assertTrue(shadowOf(sensorManager).hasListener(collector, accelerometer));
+
+        // Deliver a pair of readings through the handler the listeners were registered with; both
+        // are stamped on a grid point, so they make exactly one row
+        long timestamp = 1000 * (1_000_000_000L / collector.getGridRateHz());
+        SensorEvent accel = event(Sensor.TYPE_ACCELEROMETER, timestamp, 0.1f, 9.8f, 0.2f);
+        SensorEvent gyro = event(Sensor.TYPE_GYROSCOPE, timestamp, 0.01f, 0.02f, 0.03f);
+        new Handler(looper).post(() -> {
+            collector.onSensorChanged(accel);
+            collector.onSensorChanged(gyro);
+        });
+        collector.stop();
+
+        assertSame(looper, collector.callbackLooper);
+        assertEquals(Process.THREAD_PRIORITY_URGENT_AUDIO, collector.callbackPriority);
+        assertEquals(1, export.getSampleCount());
+        assertNull(collector.getCallbackLooper());
+        assertFalse(shadowOf(sensorManager).hasListener(collector, accelerometer));
+    }
+
+    @Test
+    public void liveSamplesAreThinnedOut() {
+        DataExport export = new DataExport();
+        SynchronizedDataCollector collector = new SynchronizedDataCollector(
+                app, export, true, false, false, System.currentTimeMillis());
+        List<Long> liveTimes = new ArrayList<>();
+        collector.setLiveSampleListener((timeMs, channels, values) -> {
+            assertArrayEquals(new SensorChannel[]{SensorChannel.ACCELEROMETER}, channels);
+            assertEquals(9.8f, values[1], 1e-4f);
+            liveTimes.add(timeMs);
+        }, 10);
+        collector.start();
+
+        // Two seconds of accelerometer readings on the sensor's 50 Hz grid
+        long period = 1_000_000_000L / collector.getGridRateHz();
+        new Handler(collector.getCallbackLooper()).post(() -> {
+            for (int i = 1; i <= 100; i++) {
+                collector.onSensorChanged(event(Sensor.TYPE_ACCELEROMETER, 1000 * period + i * period, 0, 9.8f, 0));
+            }
+        });
+        collector.stop();
+
+        assertEquals(100, export.getSampleCount());
+        // At most one live sample per 100 ms, out of a row every 20 ms
+        assertEquals(20, liveTimes.size());
+        for (int i = 1; i < liveTimes.size(); i++) {
+            assertEquals(100, liveTimes.get(i) - liveTimes.get(i - 1));
+        }
+    }
+
+    @Test
+    public void locationUpdatesDoNotNeedTheMainLooper() throws InterruptedException {
+        shadowOf(app).grantPermissions(Manifest.permission.ACCESS_FINE_LOCATION);
+        LocationManager locationManager = (LocationManager) app.getSystemService(Context.LOCATION_SERVICE);
+        shadowOf(locationManager).setProviderEnabled(LocationManager.NETWORK_PROVIDER, true);
+        SynchronizedDataCollector collector = new SynchronizedDataCollector(
+                app, new DataExport(), false, false, true, System.currentTimeMillis());
+        // Without the GPS provider the collector falls back to the network one
+        DataExport fixes = new DataExport(SampleSchema.locationFixes());
+        collector.setLocationExport(fixes);
+        collector.start();
+
+        Location location = new Location(LocationManager.NETWORK_PROVIDER);
+        location.setLatitude(49.2606);
+        location.setLongitude(-123.2460);
+        location.setTime(System.currentTimeMillis());
+        location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        shadowOf(locationManager).simulateLocation(location);
+
+        // The test never runs the paused main looper, so the fix can only come in on the collector's thread
+        long deadline = System.currentTimeMillis() + 2000;
+        while (!collector.hasValidGPSFix() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        collector.stop();
+        assertTrue(collector.hasValidGPSFix());
+        assertEquals(49.2606, collector.getLatitude(), 0);
+        assertEquals(1, fixes.getSampleCount());
+    }
+
+    private static SensorEvent event(int type, long timestamp, float x, float y, float z) {
+        SensorEvent event = ShadowSensorManager.createSensorEvent(3, type);
+        event.timestamp = timestamp;
+        event.values[0] = x;
+        event.values[1] = y;
+        event.values[2] = z;
+        return event;
+    }
+}
@@ -0,0 +1,230 @@
+package com.humbl.imuapp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class UploadQueueTest {
+    private HttpServer server;
+    private final Map<String, byte[]> received = new ConcurrentHashMap<>(); // Body by path
+    private final Map<String, AtomicInteger> inFlight = new ConcurrentHashMap<>(); // By destination
+    private final Map<String, AtomicInteger> maxInFlight = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean down;
+    private volatile long latencyMs;
+    private File directory;
+    private final IoScheduler io = new IoScheduler(IoScheduler.WORKERS);
+    private UploadQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(System.getProperty("java.io.tmpdir"), "queue-test-" + System.nanoTime());
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) queue.shutdown();
+        io.shutdown();
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void jobsLeftByAKilledProcessAreReplayed() throws Exception {
+        down = true;
+        queue = newQueue(50);
+        for (int i = 0; i < 5; i++) enqueue("appdata", "zip" + i, 1000);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.get() < 5 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        queue.shutdown(); // As if the process was killed with every job failing
+        assertTrue(queue.awaitTermination(5, TimeUnit.SECONDS));
+
+        down = false;
+        queue = newQueue(50);
+        assertEquals(5, queue.getPendingCount());
+        assertTrue(queue.awaitIdle(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 5; i++) assertEquals(1000, received.get("/appdata/zip" + i).length);
+        File[] left = directory.listFiles();
+        assertEquals("Jobs or their files left behind", 0, left == null ? 0 : left.length);
+    }
+
+    @Test
+    public void retriesBackOffWithJitter() {
+        UploadQueue.Config config = new UploadQueue.Config();
+        config.baseDelayMs = 1000;
+        config.maxDelayMs = 60_000;
+        UploadQueue backoff = new UploadQueue(directory, config, io, null);
+        for (int attempt = 1; attempt <= 100; attempt++) {
+            long full = Math.min(60_000, 1000L << Math.min(attempt - 1, 40));
+            long delay = backoff.retryDelayMs(attempt);
+            assertTrue(attempt + ": " + delay, delay >= full / 2 && delay <= full);
+        }
+        // Spread out, so jobs that failed together don't retry together
+        long first = backoff.retryDelayMs(6);
+        boolean spread = false;
+        for (int i = 0; i < 20 && !spread; i++) spread = backoff.retryDelayMs(6) != first;
+        assertTrue(spread);
+    }
+
+    @Test
+    public void rejectedJobIsDroppedWithItsFile() throws Exception {
+        queue = new UploadQueue(directory, new UploadQueue.Config(), io, null);
+        queue.addDestination("appdata", IoScheduler.Lane.NORMAL, 1, job -> {
+            throw new UploadQueue.RejectedUploadException("No such container");
+        });
+        queue.start();
+        File owned = enqueue("appdata", "gone", 10);
+        assertTrue(queue.awaitIdle(5, TimeUnit.SECONDS));
+        assertFalse(owned.exists());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void cancelledJobIsDroppedWithItsFile() throws Exception {
+        down = true;
+        queue = newQueue(60_000);
+        File owned = enqueue("appdata", "zip", 10);
+        UploadQueue.Job job = queue.enqueue("appdata", null, false, Collections.emptyMap());
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.get() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        // The first one failed and waits for its retry
+        String waiting = directory.list((dir, name) -> name.endsWith(".job") && !name.startsWith(job.getId()))[0];
+        assertTrue(queue.cancel(waiting.substring(0, waiting.length() - 4)));
+        assertTrue(queue.cancel(job.getId()));
+        assertFalse(queue.cancel(job.getId()));
+        assertEquals(0, queue.getPendingCount());
+        assertFalse(owned.exists());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void drainedQueueHoldsRetriesUntilStarted() throws Exception {
+        down = true;
+        queue = newQueue(50);
+        enqueue("appdata", "zip", 10);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (requests.get() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        queue.drain();
+        down = false;
+        enqueue("appdata", "clip", 10); // Due now, so still sent
+        deadline = System.currentTimeMillis() + 5000;
+        while (!received.containsKey("/appdata/clip") && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertTrue(received.containsKey("/appdata/clip"));
+        Thread.sleep(300);
+        assertFalse("Retried while drained", received.containsKey("/appdata/zip"));
+        assertEquals(1, queue.getPendingCount());
+
+        queue.start();
+        assertTrue(queue.awaitIdle(5, TimeUnit.SECONDS));
+        assertTrue(received.containsKey("/appdata/zip"));
+    }
+
+    @Test
+    public void destinationsKeepToTheirOwnLimits() throws Exception {
+        latencyMs = 20;
+        queue = new UploadQueue(directory, new UploadQueue.Config(), io, null);
+        queue.addDestination("appdata", IoScheduler.Lane.NORMAL, 3, this::put);
+        queue.addDestination("gpsdata", IoScheduler.Lane.EVENT, 1, this::put);
+        queue.start();
+        for (int i = 0; i < 20; i++) {
+            enqueue("appdata", "zip" + i, 100);
+            enqueue("gpsdata", "pins" + i, 100);
+        }
+        assertTrue(queue.awaitIdle(10, TimeUnit.SECONDS));
+        assertEquals(40, received.size());
+        assertEquals(3, maxInFlight.get("appdata").get());
+        assertEquals(1, maxInFlight.get("gpsdata").get());
+    }
+
+    @Test
+    public void drainThroughput() throws Exception {
+        latencyMs = 2; // A fast network
+        int jobs = 300;
+        queue = new UploadQueue(directory, new UploadQueue.Config(), io, null);
+        queue.addDestination("appdata", IoScheduler.Lane.NORMAL, 4, this::put);
+        queue.start();
+        long start = System.nanoTime();
+        for (int i = 0; i < jobs; i++) enqueue("appdata", "zip" + i, 16 * 1024);
+        long queued = System.nanoTime();
+        assertTrue(queue.awaitIdle(30, TimeUnit.SECONDS));
+        long drained = System.nanoTime();
+
+        assertEquals(jobs, received.size());
+        System.out.printf("Upload queue: %d jobs queued in %.1f ms, drained in %.1f ms (%.0f jobs/s)%n",
+                jobs, (queued - start) / 1e6, (drained - start) / 1e6, jobs / ((drained - start) / 1e9));
+    }
+
+    private UploadQueue newQueue(long baseDelayMs) {
+        UploadQueue.Config config = new UploadQueue.Config();
+        config.baseDelayMs = baseDelayMs;
+        UploadQueue fresh = new UploadQueue(directory, config, io, null);
+        fresh.addDestination("appdata", IoScheduler.Lane.NORMAL, 2, this::put);
+        fresh.start();
+        return fresh;
+    }
+
+    private File enqueue(String destination, String name, int size) throws IOException {
+        directory.mkdirs();
+        File file = new File(directory, name + ".bin");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/" + destination + "/" + name;
+        queue.enqueue(destination, file, true, Collections.singletonMap("url", url));
+        return file;
+    }
+
+    private void put(UploadQueue.Job job) throws IOException {
+        GeoJsonHelper.uploadToAzure(job.getFile(), job.getExtra("url"));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        String path = exchange.getRequestURI().getPath();
+        String destination = path.substring(1, path.indexOf('/', 1));
+        int now = inFlight.computeIfAbsent(destination, k -> new AtomicInteger()).incrementAndGet();
+        maxInFlight.computeIfAbsent(destination, k -> new AtomicInteger()).accumulateAndGet(now, Math::max);
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) body.write(buffer, 0, n);
+            }
+            if (latencyMs > 0) Thread.sleep(latencyMs);
+            if (!down) received.put(path, body.toByteArray());
+            // Done before answering, or the client's next request could be counted with this one
+            inFlight.get(destination).decrementAndGet();
+            exchange.sendResponseHeaders(down ? 503 : 201, -1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}